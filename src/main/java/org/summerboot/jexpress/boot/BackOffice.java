@@ -170,6 +170,9 @@ public class BackOffice extends BootConfig {
     @Config(key = "default.web.resource.ttl.sec", defaultValue = "3600")
     private long webResourceCacheTtlSec = 3600;
 
+    @Config(key = "default.web.resource.cache.max.size", defaultValue = "10000", desc = "max number of cached web resource paths, the least recently used one is evicted when exceeded")
+    private long webResourceCacheMaxSize = 10000;
+
     @Config(key = "reflection.package.level", defaultValue = "2")
     private int reflectionPackageLevel = 2;
 
@@ -341,6 +344,10 @@ public class BackOffice extends BootConfig {
         return webResourceCacheTtlSec;
     }
 
+    public long getWebResourceCacheMaxSize() {
+        return webResourceCacheMaxSize;
+    }
+
     public int getReflectionPackageLevel() {
         return reflectionPackageLevel;
     }
@@ -65,6 +65,7 @@ public interface BootConstant {
 
     String RESPONSE_HEADER_KEY_REF = "X-Reference";
     String RESPONSE_HEADER_KEY_TS = "X-ServerTs";
+    String REQUEST_HEADER_KEY_TIMEOUT_MS = "X-Request-Timeout-Ms";
 
     String PAUSE_LOCK_CODE_VIAFILE = BackOffice.agent.getPauseLockCodeViaFile();
     String PAUSE_LOCK_CODE_VIAWEB = BackOffice.agent.getPauseLockCodeViaWeb();
@@ -28,13 +28,16 @@ import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.appender.ConsoleAppender;
 import org.apache.logging.log4j.core.filter.LevelRangeFilter;
 import org.quartz.SchedulerException;
+import org.summerboot.jexpress.boot.config.BootConfig;
 import org.summerboot.jexpress.boot.config.ConfigUtil;
 import org.summerboot.jexpress.boot.event.AppLifecycleListener;
+import org.summerboot.jexpress.boot.instrumentation.HTTPClientStatusListener;
 import org.summerboot.jexpress.boot.instrumentation.HealthMonitor;
 import org.summerboot.jexpress.boot.instrumentation.NIOStatusListener;
 import org.summerboot.jexpress.boot.instrumentation.Timeout;
 import org.summerboot.jexpress.boot.instrumentation.jmx.InstrumentationMgr;
 import org.summerboot.jexpress.i18n.I18n;
+import org.summerboot.jexpress.integration.httpclient.HttpClientConfig;
 import org.summerboot.jexpress.integration.quartz.QuartzUtil;
 import org.summerboot.jexpress.integration.smtp.PostOffice;
 import org.summerboot.jexpress.nio.grpc.GRPCServer;
@@ -272,6 +275,17 @@ abstract public class SummerApplication extends SummerBigBang {
             if (instrumentationMgr != null/* && isJMXRequired()*/) {
                 instrumentationMgr.start(BootConstant.VERSION);
             }
+            // HTTP client status (access report, circuit state, cache) goes to the same listener as the servers
+            HTTPClientStatusListener httpClientListener = super.guiceInjector.getInstance(HTTPClientStatusListener.class);
+            for (ConfigMetadata registeredAppConfig : scanedJExpressConfigs.values()) {
+                if (HttpClientConfig.class.isAssignableFrom(registeredAppConfig.cfgClass)
+                        && !(isUserSpecifiedImplTags(registeredAppConfig.checkImplTagUsed) ^ registeredAppConfig.loadWhenImplTagUsed)) {
+                    HttpClientConfig httpCfg = (HttpClientConfig) (registeredAppConfig.instance == null ? BootConfig.instance(registeredAppConfig.cfgClass) : registeredAppConfig.instance);
+                    if (httpCfg != null) {
+                        httpCfg.setStatusListener(httpClientListener);
+                    }
+                }
+            }
 
             // 3a. runner.run
             log.trace("3a. runner.run");
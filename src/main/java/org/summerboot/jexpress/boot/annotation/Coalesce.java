@@ -0,0 +1,74 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.boot.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Request coalescing (single-flight) for an idempotent @GET method: while one
+ * request is being processed, identical requests wait for it and share its
+ * response instead of invoking the method again. Requests are identical when
+ * they have the same path, query parameters, Accept header, the headers listed
+ * in {@link #headers()} and the same caller tenant (and caller if
+ * {@link #perCaller()}).
+ * <p>
+ * Only a successful text response is shared; when the leader fails, times out
+ * or responds with a file/stream/redirect, the waiting requests are processed
+ * individually. The returned object is shared by all requests of the flight,
+ * it must not be modified by listeners.
+ * <pre>
+ * {@code
+ * @GET
+ * @Path("/catalog/{id}")
+ * @Coalesce(headers = "Accept-Language")
+ * public Product get(@PathParam("id") long id) {
+ *     return db.load(id);
+ * }
+ * }
+ * </pre>
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+@Target({ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface Coalesce {
+
+    /**
+     * @return request headers that make a difference to the response, in
+     * addition to Accept
+     */
+    String[] headers() default {};
+
+    /**
+     * @return true to never share responses across tenants
+     */
+    boolean perTenant() default true;
+
+    /**
+     * @return true to never share responses across callers
+     */
+    boolean perCaller() default false;
+
+    /**
+     * @return max time to wait for the leader before processing individually
+     */
+    long waitTimeoutMs() default 30000;
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.boot.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Server side response cache for an idempotent @GET/@HEAD method: the status,
+ * headers and body of a successful text response are kept in memory and
+ * replayed to identical requests without invoking the method. Requests are
+ * identical when they have the same path, query parameters, Accept header,
+ * the headers listed in {@link #headers()} (Vary) and the same caller tenant
+ * (and caller if {@link #perCaller()}).
+ * <p>
+ * Within {@link #staleWhileRevalidateSec()} after the TTL, the stale response
+ * is still served while one background refresh runs on the BackOffice
+ * executor. Entries can be evicted by tag via
+ * {@code HttpResponseCache.invalidateTag(tag)}, the total size of all entries
+ * is bounded by nio.server.ResponseCache.MaxBytes.
+ * <pre>
+ * {@code
+ * @GET
+ * @Path("/countries")
+ * @ResponseCache(ttlSec = 3600, staleWhileRevalidateSec = 60, headers = "Accept-Language", tags = "countries")
+ * public List<Country> countries() {
+ *     return db.loadCountries();
+ * }
+ *
+ * // anywhere else, after the countries are updated
+ * HttpResponseCache.invalidateTag("countries");
+ * }
+ * </pre>
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+@Target({ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface ResponseCache {
+
+    /**
+     * @return time to live of a cached response
+     */
+    long ttlSec();
+
+    /**
+     * @return how long an expired response can still be served while it is
+     * being refreshed in the background, 0 to disable
+     */
+    long staleWhileRevalidateSec() default 0;
+
+    /**
+     * @return request headers that make a difference to the response, in
+     * addition to Accept
+     */
+    String[] headers() default {};
+
+    /**
+     * @return true to never share responses across tenants
+     */
+    boolean perTenant() default true;
+
+    /**
+     * @return true to never share responses across callers
+     */
+    boolean perCaller() default false;
+
+    /**
+     * @return tags for {@code HttpResponseCache.invalidateTag(tag)}
+     */
+    String[] tags() default {};
+
+    /**
+     * @return responses larger than this are not cached
+     */
+    int maxEntryBytes() default 1048576;
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.boot.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Server-Sent Events endpoint. The annotated @GET method is invoked once per
+ * subscription (after authentication and authorization) and returns the
+ * topic(s) the caller subscribes to: a String, String[] or Collection of
+ * String. Returning null or setting an error on the ServiceContext sends a
+ * normal HTTP response instead of opening the event stream.
+ * <pre>
+ * {@code
+ * @GET
+ * @Path("/events/{topic}")
+ * @SSE(maxBufferBytes = 65536, overflow = SSE.OverflowPolicy.CLOSE)
+ * public String subscribe(@PathParam("topic") String topic) {
+ *     return topic;
+ * }
+ *
+ * // anywhere else
+ * SseBroadcaster.publish("prices", "tick", priceDto);
+ * }
+ * </pre>
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+@Target({ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface SSE {
+
+    enum OverflowPolicy {
+        /**
+         * skip events while the subscriber's buffer is full, the client can
+         * catch up via Last-Event-ID after reconnecting
+         */
+        DROP,
+        /**
+         * close the slow subscriber
+         */
+        CLOSE
+    }
+
+    /**
+     * @return max bytes buffered for one subscriber before the overflow policy
+     * applies
+     */
+    int maxBufferBytes() default 262144;
+
+    OverflowPolicy overflow() default OverflowPolicy.DROP;
+
+    /**
+     * @return reconnection time sent to the client as the "retry:" field, 0 to
+     * use browser default
+     */
+    long retryMs() default 0;
+}
@@ -15,10 +15,33 @@
  */
 package org.summerboot.jexpress.boot.instrumentation;
 
+import org.summerboot.jexpress.util.concurrent.CircuitBreaker;
+
 /**
  * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
  */
 public interface HTTPClientStatusListener {
 
     void onHTTPClientAccessReportUpdate(long task, long completed, long queue, long active, long pool, long core, long max, long largest);
+
+    /**
+     * @param destination the circuit breaker name, host + path template
+     * @param from
+     * @param to
+     */
+    default void onHTTPClientCircuitStateChange(String destination, CircuitBreaker.State from, CircuitBreaker.State to) {
+    }
+
+    /**
+     * called at most once per second while the response cache is used
+     *
+     * @param hit          served from a fresh entry
+     * @param revalidated  served from an entry confirmed by a 304
+     * @param staleIfError served from an expired entry because the call failed
+     * @param miss
+     * @param eviction
+     * @param size
+     */
+    default void onHTTPClientCacheReportUpdate(long hit, long revalidated, long staleIfError, long miss, long eviction, long size) {
+    }
 }
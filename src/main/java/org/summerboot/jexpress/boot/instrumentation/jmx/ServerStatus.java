@@ -22,7 +22,9 @@ import org.summerboot.jexpress.boot.instrumentation.HTTPClientStatusListener;
 import org.summerboot.jexpress.boot.instrumentation.HealthInspector;
 import org.summerboot.jexpress.boot.instrumentation.HealthMonitor;
 import org.summerboot.jexpress.boot.instrumentation.NIOStatusListener;
+import org.summerboot.jexpress.nio.server.RouteLatency;
 import org.summerboot.jexpress.util.BeanUtil;
+import org.summerboot.jexpress.util.concurrent.CircuitBreaker;
 
 import javax.management.AttributeChangeNotification;
 import javax.management.MBeanNotificationInfo;
@@ -96,6 +98,19 @@ public class ServerStatus extends NotificationBroadcasterSupport implements NIOS
         QPS_SERVICE.execute(asyncTask);
     }
 
+    @Override
+    public void onHTTPClientCircuitStateChange(String destination, CircuitBreaker.State from, CircuitBreaker.State to) {
+        QPS_SERVICE.execute(() -> setLastIOStatus(DTF.format(LocalDateTime.now()) + " " + destination + " circuit " + from + " -> " + to, "HTTPClient-Circuit"));
+    }
+
+    @Override
+    public void onHTTPClientCacheReportUpdate(long hit, long revalidated, long staleIfError, long miss, long eviction, long size) {
+        long total = hit + revalidated + staleIfError + miss;
+        String hitRate = String.format("%.1f", total == 0 ? 0 : (total - miss) * 100.0 / total);
+        QPS_SERVICE.execute(() -> setLastIOStatus(DTF.format(LocalDateTime.now()) + " cache hitRate=" + hitRate + "%, hit=" + hit + ", revalidated=" + revalidated
+                + ", staleIfError=" + staleIfError + ", miss=" + miss + ", eviction=" + eviction + ", size=" + size, "HTTPClient-Cache"));
+    }
+
     protected final AtomicLong sequenceNumber = new AtomicLong(1);
 
     protected synchronized void setLastIOStatus(String status, String source) {
@@ -143,4 +158,9 @@ public class ServerStatus extends NotificationBroadcasterSupport implements NIOS
     public String getServiceStatusReason() {
         return HealthMonitor.getServiceStatusReason();
     }
+
+    @Override
+    public String getRouteLatencyReport() {
+        return RouteLatency.report();
+    }
 }
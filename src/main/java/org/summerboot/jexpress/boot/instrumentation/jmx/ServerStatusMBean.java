@@ -29,4 +29,6 @@ public interface ServerStatusMBean {
     String getServiceStatus();
 
     String getServiceStatusReason();
+
+    String getRouteLatencyReport();
 }
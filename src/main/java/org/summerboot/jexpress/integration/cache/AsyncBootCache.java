@@ -0,0 +1,73 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.cache;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking variant of {@link BootCache} and {@link AuthTokenCache}, for
+ * callers that must not park their thread (event loop inline controllers) or
+ * want to overlap several cache calls. The stages may complete on an IO event
+ * loop, blocking work should be chained with the *Async methods and an
+ * executor.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public interface AsyncBootCache {
+
+    /**
+     * @see BootCache#tryLock(String, String, long, TimeUnit)
+     */
+    CompletionStage<Boolean> tryLockAsync(String lockName, String unlockPassword, long ttlToExpireIncaseUnableToUnlock, TimeUnit timeUnit);
+
+    /**
+     * @see BootCache#unlock(String, String)
+     */
+    CompletionStage<Boolean> unlockAsync(String lockName, String unlockPassword);
+
+    /**
+     * @see BootCache#getAll(Collection)
+     */
+    CompletionStage<Map<String, String>> getAllAsync(Collection<String> keys);
+
+    /**
+     * @see BootCache#setAll(Map, long)
+     */
+    CompletionStage<Void> setAllAsync(Map<String, String> keyValues, long ttlMilliseconds);
+
+    /**
+     * @see BootCache#flashsaleAcquireQuota(String, long)
+     */
+    CompletionStage<Long> flashsaleAcquireQuotaAsync(String itemId, long requestAmount);
+
+    /**
+     * @see BootCache#flashsaleRevokeQuota(String, long)
+     */
+    CompletionStage<Long> flashsaleRevokeQuotaAsync(String itemId, long requestAmount);
+
+    /**
+     * @see AuthTokenCache#blacklist(String, String, long)
+     */
+    CompletionStage<Void> blacklistAsync(String key, String value, long ttlMilliseconds);
+
+    /**
+     * @see AuthTokenCache#isBlacklist(String)
+     */
+    CompletionStage<Boolean> isBlacklistAsync(String key);
+}
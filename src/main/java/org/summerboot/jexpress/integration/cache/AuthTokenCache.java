@@ -20,7 +20,10 @@ import org.summerboot.jexpress.boot.instrumentation.HealthInspector;
 import org.summerboot.jexpress.nio.server.domain.Err;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -57,4 +60,20 @@ public interface AuthTokenCache extends HealthInspector {
     void blacklist(String key, String value, long ttlMilliseconds);
 
     boolean isBlacklist(String key);
+
+    /**
+     * batch version of {@link #isBlacklist(String)}
+     *
+     * @param keys
+     * @return the keys on the blacklist
+     */
+    default Set<String> filterBlacklist(Collection<String> keys) {
+        Set<String> ret = new HashSet<>();
+        for (String key : keys) {
+            if (isBlacklist(key)) {
+                ret.add(key);
+            }
+        }
+        return ret;
+    }
 }
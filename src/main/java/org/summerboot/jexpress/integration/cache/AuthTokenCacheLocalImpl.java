@@ -24,13 +24,22 @@ import com.google.inject.Singleton;
 @Singleton
 public class AuthTokenCacheLocalImpl extends SimpleLocalCacheImpl<String, String> implements AuthTokenCache {
 
+    /**
+     * skips the cache lookup for tokens that are definitely not blacklisted
+     */
+    protected final RevocationIndex revocationIndex = new RevocationIndex(RevocationIndex.DEFAULT_EXPECTED_INSERTIONS, RevocationIndex.DEFAULT_FPP, true);
+
     @Override
     public void blacklist(String key, String value, long ttlMilliseconds) {
         put(key, value, ttlMilliseconds);
+        revocationIndex.add(key, System.currentTimeMillis() + ttlMilliseconds);
     }
 
     @Override
     public boolean isBlacklist(String key) {
+        if (!revocationIndex.mightContain(key)) {
+            return false;
+        }
         String v = get(key);
         return v != null;
     }
@@ -18,6 +18,9 @@ package org.summerboot.jexpress.integration.cache;
 import org.summerboot.jexpress.boot.BootConstant;
 import org.summerboot.jexpress.integration.cache.domain.FlashSale;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -66,6 +69,58 @@ public interface BootCache {
         return !tryLock(key, unlockPassword, ttl, timeUnit);
     }
 
+    /**
+     * single get
+     *
+     * @param key
+     * @return the value, or null if the key does not exist
+     */
+    String get(String key);
+
+    /**
+     * single set
+     *
+     * @param key
+     * @param value
+     * @param ttlMilliseconds no expiry if less than 1
+     */
+    void set(String key, String value, long ttlMilliseconds);
+
+    /**
+     * multi-get in one round trip, defaults to one get per key
+     *
+     * @param keys
+     * @return the values of the keys that exist
+     */
+    default Map<String, String> getAll(Collection<String> keys) {
+        Map<String, String> ret = new HashMap<>();
+        if (keys == null) {
+            return ret;
+        }
+        for (String key : keys) {
+            String value = get(key);
+            if (value != null) {
+                ret.put(key, value);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * multi-set in one round trip, defaults to one set per key
+     *
+     * @param keyValues
+     * @param ttlMilliseconds no expiry if less than 1
+     */
+    default void setAll(Map<String, String> keyValues, long ttlMilliseconds) {
+        if (keyValues == null) {
+            return;
+        }
+        for (Map.Entry<String, String> kv : keyValues.entrySet()) {
+            set(kv.getKey(), kv.getValue(), ttlMilliseconds);
+        }
+    }
+
     /**
      * flash sale - enable
      *
@@ -23,21 +23,36 @@ import org.summerboot.jexpress.boot.config.BootConfig;
 import org.summerboot.jexpress.integration.cache.domain.FlashSale;
 import org.summerboot.jexpress.integration.smtp.PostOffice;
 import org.summerboot.jexpress.integration.smtp.SMTPClientConfig;
+import org.summerboot.jexpress.util.concurrent.CircuitBreaker;
+import redis.clients.jedis.AbstractPipeline;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
 import redis.clients.jedis.Response;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisClusterOperationException;
 import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.jedis.exceptions.JedisDataException;
 import redis.clients.jedis.params.SetParams;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * 1. download redis-cell from https://github.com/brandur/redis-cell/releases 2.
@@ -46,7 +61,7 @@ import java.util.concurrent.TimeUnit;
  * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
  */
 @Singleton
-public class BootCache_RedisImple implements AuthTokenCache, BootCache {
+public class BootCache_RedisImple implements AuthTokenCache, BootCache, AsyncBootCache {
 
     /*
       to avoid: 
@@ -79,6 +94,23 @@ public class BootCache_RedisImple implements AuthTokenCache, BootCache {
             + "    return order\n"
             + "end\n"
             + "return 0";//hmset myitem1 Status 0 Total 10 Booked 0
+    /*
+      leased mode: give back the unused part of the previous lease, then lease up to ARGV[1] units
+      returns {granted, limit}
+     */
+    protected static final String LUA_SCRIPT_FLASHSALE_LEASE = "local want = tonumber(ARGV[1])\n"
+            + "local giveBack = tonumber(ARGV[2])\n"
+            + "if giveBack and giveBack > 0 then redis.call(\"HINCRBY\", KEYS[1], \"" + FlashSale.Booked + "\", 0 - giveBack) end\n"
+            + "local vals = redis.call(\"HMGET\", KEYS[1], \"" + FlashSale.Status + "\", \"" + FlashSale.Total + "\", \"" + FlashSale.Limit + "\", \"" + FlashSale.Booked + "\")\n"
+            + "local status = tonumber(vals[1])\n"
+            + "local total = tonumber(vals[2])\n"
+            + "local limit = tonumber(vals[3])\n"
+            + "local booked = tonumber(vals[4])\n"
+            + "if not status or status < 1 or not want or not total or not limit or not booked then return {0, 0} end\n"
+            + "local granted = math.min(want, total - booked)\n"
+            + "if granted < 1 then return {0, limit} end\n"
+            + "redis.call(\"HINCRBY\", KEYS[1], \"" + FlashSale.Booked + "\", granted)\n"
+            + "return {granted, limit}";
     protected static final String REDIS_SUCCESS = "OK";
     protected static final Long RELEASE_SUCCESS = 1L;
 
@@ -88,10 +120,14 @@ public class BootCache_RedisImple implements AuthTokenCache, BootCache {
             1, 1, 1, 60, null,
             false, false, false);
 
-    protected static final RuntimeException REDIS_MASTER_NULL_EX = new RuntimeException("Redis master is null");
+    protected static final JedisConnectionException REDIS_MASTER_NULL_EX = new JedisConnectionException("Redis master is null");
 
     protected static RedisConfig redisCfg = RedisConfig.cfg;
 
+    protected final QuotaLeases flashsaleLeases = new QuotaLeases("Redis.FlashSale.Lease",
+            (itemId, leftover) -> executeRedis(false, redis -> redis.hincrBy(itemId, FlashSale.Booked, 0 - leftover)));
+    protected final QuotaLeases rateLimiterLeases = new QuotaLeases("Redis.RateLimiter.Lease", null);// GCRA tokens cannot be given back
+
     protected class Holder<T> {
 
         protected T value;
@@ -109,60 +145,153 @@ public class BootCache_RedisImple implements AuthTokenCache, BootCache {
         }
     }
 
-    protected void execute(JedisCall caller) {
-        executeEx(caller, 0, 6);
+    protected final CircuitBreaker circuitBreaker = new CircuitBreaker("Redis", () -> redisCfg.getCircuitBreakerFailureThreshold(), () -> redisCfg.getCircuitBreakerOpenMs());
+
+    public BootCache_RedisImple() {
+        // before RedisConfig closes the clients, both run from its shutdown hook
+        redisCfg.addShutdownTask(this::shutdown);
     }
 
-    protected void execute(boolean retry, JedisCall caller) {
-        if (retry) {
-            executeEx(caller, 0, 6);
-        } else {
-            executeEx(caller, 0, 0);
+    /**
+     * Gives the leased flash sale quota back to Redis, then stops the lock
+     * service watchdog, the near cache listener and the async client. Called
+     * by {@link RedisConfig#shutdown()} before the clients are closed.
+     */
+    public void shutdown() {
+        flashsaleLeases.releaseAll();
+        rateLimiterLeases.releaseAll();
+        RedisLockService ls = lockService;
+        if (ls != null) {
+            ls.shutdown();
+        }
+        RedisNearCache nc = nearCache;
+        if (nc != null) {
+            nc.shutdown();
+        }
+        RedisAsyncClient ac = asyncClient;
+        if (ac != null) {
+            ac.shutdown();
         }
     }
 
-    protected void executeEx(JedisCall caller, int currentRetry, int maxRetry) {
-        boolean success = false;
-        try (Jedis jedis = redisCfg.getMaster();) {
-            if (jedis == null) {
-                //System.out.println("e 1 retry " + currentRetry);
-                onRedisDown(REDIS_MASTER_NULL_EX);
-                if (currentRetry >= maxRetry) {
-                    //System.out.println("e 2 retry " + currentRetry);
-                    //throw REDIS_MASTER_NULL_EX;
-                    return;
+    /**
+     * Standalone mode only, see {@link #executeRedis(boolean, RedisCall)}
+     *
+     * @param caller
+     */
+    protected void execute(JedisCall caller) {
+        execute(true, caller);
+    }
+
+    /**
+     * Standalone mode only, see {@link #executeRedis(boolean, RedisCall)}
+     *
+     * @param retry
+     * @param caller
+     */
+    protected void execute(boolean retry, JedisCall caller) {
+        if (redisCfg.getMode() != RedisConfig.Mode.Standalone) {
+            throw new UnsupportedOperationException("JedisCall is only supported with redis.Mode=" + RedisConfig.Mode.Standalone + ", use RedisCall instead");
+        }
+        executeEx(retry, () -> {
+            try (Jedis jedis = redisCfg.getMaster();) {
+                if (jedis == null) {
+                    throw REDIS_MASTER_NULL_EX;
                 }
-            } else {
                 caller.call(jedis);
-                success = true;
             }
-        } catch (JedisConnectionException ex) {
-            if (currentRetry == 2) {//retry on same connection once
-                //System.out.println("e 3 retry " + currentRetry);
-                onRedisDown(ex);
+        });
+    }
+
+    /**
+     * @param retry  true to retry on connection failure and transient errors
+     *               (READONLY, LOADING, etc.) within redis.Retry.DeadlineMs
+     * @param caller
+     */
+    protected void executeRedis(boolean retry, RedisCall caller) {
+        executeEx(retry, () -> {
+            UnifiedJedis redis = redisCfg.getClient();
+            if (redis == null) {
+                throw REDIS_MASTER_NULL_EX;
+            }
+            caller.call(redis);
+        });
+    }
+
+    /**
+     * Retries with jittered exponential backoff, gives up as soon as the next
+     * attempt could not start before the deadline, and fails fast while the
+     * circuit breaker is open.
+     *
+     * @param retry
+     * @param attempt
+     */
+    protected void executeEx(boolean retry, Runnable attempt) {
+        int maxAttempts = retry ? Math.max(1, redisCfg.getRetryMaxAttempts()) : 1;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(redisCfg.getRetryDeadlineMs());
+        for (int i = 1; ; i++) {
+            if (!circuitBreaker.tryAcquire()) {
+                throw new JedisConnectionException("Redis circuit breaker is open");
             }
-            if (currentRetry >= maxRetry) {
-                //System.out.println("e 4 retry " + currentRetry);
+            RuntimeException failure;
+            try {
+                attempt.run();
+                circuitBreaker.onSuccess();
+                return;
+            } catch (JedisConnectionException | JedisClusterOperationException ex) {
+                circuitBreaker.onFailure();
+                if (redisCfg.getMode() == RedisConfig.Mode.Standalone && (ex == REDIS_MASTER_NULL_EX || i >= 2)) {
+                    onRedisDown(ex);
+                }
+                failure = ex;
+            } catch (JedisDataException ex) {
+                circuitBreaker.onSuccess();// Redis responded
+                if (!isTransient(ex)) {
+                    throw ex;
+                }
+                failure = ex;
+            } catch (RuntimeException ex) {
+                circuitBreaker.onSuccess();
                 throw ex;
             }
-        } catch (JedisDataException ex) {
-            //System.out.println("e 5 retry " + currentRetry);
-            if (currentRetry >= maxRetry) {
-                //System.out.println("e 6 retry " + currentRetry);
-                throw ex;
+            long delayNanos = backoffNanos(i);
+            if (i >= maxAttempts || System.nanoTime() + delayNanos >= deadline) {
+                throw failure;
             }
-        }
-        if (!success) {
-            //System.out.println("e 7 retry " + currentRetry);
             try {
-                TimeUnit.MILLISECONDS.sleep(500);
-            } catch (InterruptedException e) {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            } catch (InterruptedException ex) {
                 Thread.currentThread().interrupt();
+                throw failure;
             }
-            executeEx(caller, ++currentRetry, maxRetry);
         }
     }
 
+    /**
+     * @param attempt 1 based
+     * @return full jitter: random between 0 and min(MaxDelayMs, BaseDelayMs *
+     * 2^(attempt-1))
+     */
+    protected long backoffNanos(int attempt) {
+        long ceilingMs = Math.min(redisCfg.getRetryMaxDelayMs(), redisCfg.getRetryBaseDelayMs() << Math.min(attempt - 1, 20));
+        return ceilingMs < 1 ? 0 : TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(ceilingMs + 1));
+    }
+
+    /**
+     * @param ex
+     * @return true if the error is expected to go away during failover or
+     * startup
+     */
+    protected boolean isTransient(JedisDataException ex) {
+        String msg = ex.getMessage();
+        return msg != null && (msg.startsWith("READONLY") || msg.startsWith("LOADING") || msg.startsWith("MASTERDOWN")
+                || msg.startsWith("TRYAGAIN") || msg.startsWith("CLUSTERDOWN"));
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
     protected void onRedisDown(Throwable ex) {
         Runnable asyncTask = () -> {
             long lastAlertTs = 0;
@@ -184,6 +313,18 @@ public class BootCache_RedisImple implements AuthTokenCache, BootCache {
                     }
                 }
             } while (newNode == null);
+            RedisNearCache nc = nearCache;
+            if (nc != null) {
+                nc.reconnect();// listen on the new master
+            }
+            RedisAsyncClient ac = asyncClient;
+            if (ac != null) {
+                ac.reconnect();
+            }
+            RedisLockService ls = lockService;
+            if (ls != null) {
+                ls.reconnect();
+            }
             onNoticeAutoFailover(redisCfg.info(), newNode);
         };
         if (tpe.getActiveCount() < 1) {
@@ -227,9 +368,9 @@ public class BootCache_RedisImple implements AuthTokenCache, BootCache {
     @Override
     public boolean tryLock(String lockName, String unlockPassword, long ttlToExpireIncaseUnableToUnlock, TimeUnit timeUnit) {
         final Holder<Boolean> holder = new Holder<>(false);
-        execute(true, jedis -> {
+        executeRedis(true, redis -> {
             SetParams p = new SetParams().nx().px(timeUnit.toMillis(ttlToExpireIncaseUnableToUnlock));
-            String result = jedis.set(lockName, unlockPassword, p);
+            String result = redis.set(lockName, unlockPassword, p);
 
             boolean isLocked = REDIS_SUCCESS.equalsIgnoreCase(result);
             holder.value(isLocked);
@@ -248,24 +389,83 @@ public class BootCache_RedisImple implements AuthTokenCache, BootCache {
     @Override
     public boolean unlock(String lockName, String unlockPassword) {
         final Holder<Boolean> holder = new Holder<>(false);
-        execute(true, jedis -> {
-            Object result = jedis.eval(LUA_SCRIPT_UNLOCK, Collections.singletonList(lockName), Collections.singletonList(unlockPassword));
+        executeRedis(true, redis -> {
+            Object result = redis.eval(LUA_SCRIPT_UNLOCK, Collections.singletonList(lockName), Collections.singletonList(unlockPassword));
             boolean isReleased = RELEASE_SUCCESS.equals(result);
             holder.value(isReleased);
         });
         return holder.value();
     }
 
+    protected volatile RedisLockService lockService;
+
+    /**
+     * @return lock service with fencing tokens and lease renewal, an
+     * alternative to {@link #tryLock(String, String, long, TimeUnit)} for long
+     * running jobs
+     */
+    public RedisLockService getLockService() {
+        RedisLockService ret = lockService;
+        if (ret == null) {
+            synchronized (this) {
+                ret = lockService;
+                if (ret == null) {
+                    ret = new RedisLockService(this, redisCfg.getLockChannel());
+                    lockService = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    protected volatile RedisNearCache nearCache;
+
+    /**
+     * @return the L1 cache for blacklist, null if disabled by
+     * redis.NearCache.MaxSize=0
+     */
+    protected RedisNearCache nearCache() {
+        RedisNearCache ret = nearCache;
+        if (ret == null && redisCfg.getNearCacheMaxSize() > 0) {
+            synchronized (this) {
+                ret = nearCache;
+                if (ret == null) {
+                    RevocationIndex revocationIndex = redisCfg.getRevocationIndexExpectedInsertions() > 0
+                            ? new RevocationIndex(redisCfg.getRevocationIndexExpectedInsertions(), redisCfg.getRevocationIndexFpp(), false)
+                            : null;
+                    ret = new RedisNearCache(redisCfg, redisCfg.getNearCacheInvalidationChannel(), redisCfg.getNearCacheMaxSize(), redisCfg.getNearCacheNegativeTtlMs(),
+                            revocationIndex, redisCfg.getRevocationIndexKey());
+                    ret.start();
+                    nearCache = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
     @Override
     public void blacklist(String key, String value, long ttlMilliseconds) {
         if (key == null) {
             return;
         }
-        execute(true, jedis -> {
+        RedisNearCache nc = nearCache();
+        executeRedis(true, redis -> {
             if (ttlMilliseconds > 0) {
-                jedis.psetex(key, ttlMilliseconds, value == null ? "?" : value);
+                redis.psetex(key, ttlMilliseconds, value == null ? "?" : value);
+                if (nc != null) {
+                    if (nc.getRevocationIndex() != null) {
+                        redis.zadd(nc.getRevocationIndexKey(), System.currentTimeMillis() + ttlMilliseconds, key);
+                    }
+                    redis.publish(nc.getChannel(), nc.message(key, ttlMilliseconds));
+                }
             }
         });
+        if (nc != null && ttlMilliseconds > 0) {
+            nc.onPresent(key, ttlMilliseconds);
+            if (nc.getRevocationIndex() != null) {
+                nc.getRevocationIndex().add(key, System.currentTimeMillis() + ttlMilliseconds);
+            }
+        }
     }
 
     @Override
@@ -273,35 +473,208 @@ public class BootCache_RedisImple implements AuthTokenCache, BootCache {
         if (key == null) {
             return false;
         }
-        final Holder<Boolean> holder = new Holder<>(false);
-        execute(true, jedis -> {
-            boolean exists = jedis.exists(key);
-            holder.value(exists);
+        RedisNearCache nc = nearCache();
+        if (nc == null) {
+            final Holder<Boolean> holder = new Holder<>(false);
+            executeRedis(true, redis -> {
+                boolean exists = redis.exists(key);
+                holder.value(exists);
+            });
+            return holder.value();
+        }
+        RevocationIndex revocationIndex = nc.getRevocationIndex();
+        if (revocationIndex != null && !revocationIndex.mightContain(key)) {
+            return false;// definitely not revoked
+        }
+        Boolean cached = nc.exists(key);
+        if (cached != null) {
+            return cached;
+        }
+        long loadToken = nc.beforeLoad();
+        final Holder<Long> holder = new Holder<>(-2L);
+        executeRedis(true, redis -> {
+            holder.value(redis.pttl(key));// -2: not exists, -1: no expire
         });
+        long pttl = holder.value();
+        if (pttl == -2) {
+            nc.onAbsent(key, loadToken);
+            return false;
+        }
+        nc.onPresent(key, pttl);
+        return true;
+    }
+
+    /**
+     * Keys decided by the revocation index or the near cache are not sent to
+     * Redis, the rest are checked with one pipelined round trip
+     *
+     * @param keys
+     * @return the keys on the blacklist
+     */
+    @Override
+    public Set<String> filterBlacklist(Collection<String> keys) {
+        Set<String> ret = new HashSet<>();
+        if (keys == null || keys.isEmpty()) {
+            return ret;
+        }
+        RedisNearCache nc = nearCache();
+        RevocationIndex revocationIndex = nc == null ? null : nc.getRevocationIndex();
+        List<String> toLoad = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (key == null) {
+                continue;
+            }
+            if (nc != null) {
+                if (revocationIndex != null && !revocationIndex.mightContain(key)) {
+                    continue;
+                }
+                Boolean cached = nc.exists(key);
+                if (cached != null) {
+                    if (cached) {
+                        ret.add(key);
+                    }
+                    continue;
+                }
+            }
+            toLoad.add(key);
+        }
+        if (toLoad.isEmpty()) {
+            return ret;
+        }
+        long loadToken = nc == null ? 0 : nc.beforeLoad();
+        final Holder<List<Long>> holder = new Holder<>(null);
+        executeRedis(true, redis -> {
+            // a fresh list per attempt, a retry never sees the replies of a failed one
+            List<Long> replies = new ArrayList<>(toLoad.size());
+            try (AbstractPipeline pipeline = redis.pipelined();) {
+                List<Response<Long>> responses = new ArrayList<>(toLoad.size());
+                for (String key : toLoad) {
+                    responses.add(pipeline.pttl(key));
+                }
+                pipeline.sync();
+                for (Response<Long> response : responses) {
+                    replies.add(response.get());
+                }
+            }
+            holder.value(replies);
+        });
+        List<Long> pttls = holder.value();
+        for (int i = 0; i < toLoad.size(); i++) {
+            String key = toLoad.get(i);
+            long pttl = pttls.get(i);
+            if (pttl == -2) {
+                if (nc != null) {
+                    nc.onAbsent(key, loadToken);
+                }
+            } else {
+                ret.add(key);
+                if (nc != null) {
+                    nc.onPresent(key, pttl);
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public String get(String key) {
+        final Holder<String> holder = new Holder<>(null);
+        executeRedis(true, redis -> holder.value(redis.get(key)));
         return holder.value();
     }
 
+    @Override
+    public void set(String key, String value, long ttlMilliseconds) {
+        executeRedis(true, redis -> {
+            if (ttlMilliseconds > 0) {
+                redis.psetex(key, ttlMilliseconds, value);
+            } else {
+                redis.set(key, value);
+            }
+        });
+    }
+
+    /**
+     * Pipelined GET, works across Cluster slots
+     *
+     * @param keys
+     * @return the values of the keys that exist
+     */
+    @Override
+    public Map<String, String> getAll(Collection<String> keys) {
+        if (keys == null || keys.isEmpty()) {
+            return new HashMap<>();
+        }
+        List<String> keyList = new ArrayList<>(keys);
+        final Holder<Map<String, String>> holder = new Holder<>(null);
+        executeRedis(true, redis -> {
+            // a fresh map per attempt, a retry never sees the values of a failed one
+            Map<String, String> ret = new HashMap<>();
+            try (AbstractPipeline pipeline = redis.pipelined();) {
+                List<Response<String>> responses = new ArrayList<>(keyList.size());
+                for (String key : keyList) {
+                    responses.add(pipeline.get(key));
+                }
+                pipeline.sync();
+                for (int i = 0; i < keyList.size(); i++) {
+                    String value = responses.get(i).get();
+                    if (value != null) {
+                        ret.put(keyList.get(i), value);
+                    }
+                }
+            }
+            holder.value(ret);
+        });
+        return holder.value();
+    }
+
+    /**
+     * Pipelined SET/PSETEX, works across Cluster slots
+     *
+     * @param keyValues
+     * @param ttlMilliseconds no expiry if less than 1
+     */
+    @Override
+    public void setAll(Map<String, String> keyValues, long ttlMilliseconds) {
+        if (keyValues == null || keyValues.isEmpty()) {
+            return;
+        }
+        executeRedis(true, redis -> {
+            try (AbstractPipeline pipeline = redis.pipelined();) {
+                for (Map.Entry<String, String> kv : keyValues.entrySet()) {
+                    if (ttlMilliseconds > 0) {
+                        pipeline.psetex(kv.getKey(), ttlMilliseconds, kv.getValue());
+                    } else {
+                        pipeline.set(kv.getKey(), kv.getValue());
+                    }
+                }
+                pipeline.sync();
+            }
+        });
+    }
+
     @Override
     public boolean flashsaleInventoryInit(String itemId, long totalAmount, long limit) {
         final Holder<Boolean> holder = new Holder<>(false);
-        execute(true, jedis -> {
+        executeRedis(true, redis -> {
             Map<String, String> item = new HashMap<>();
             item.put(FlashSale.Status, "0");
             item.put(FlashSale.Total, String.valueOf(totalAmount));
             item.put(FlashSale.Limit, String.valueOf(limit));
             item.put(FlashSale.Booked, "0");
-            String result = jedis.hmset(itemId, item);
+            String result = redis.hmset(itemId, item);
             boolean success = REDIS_SUCCESS.equalsIgnoreCase(result);
             holder.value(success);
         });
+        flashsaleLeases.discard(itemId);// Booked is reset
         return holder.value();
     }
 
     @Override
     public FlashSale flashsaleInventoryReport(String itemId) {
         FlashSale ret = new FlashSale();
-        execute(true, jedis -> {
-            List<String> result = jedis.hmget(itemId, FlashSale.Status, FlashSale.Total, FlashSale.Limit, FlashSale.Booked);
+        executeRedis(true, redis -> {
+            List<String> result = redis.hmget(itemId, FlashSale.Status, FlashSale.Total, FlashSale.Limit, FlashSale.Booked);
             ret.setStatus(Integer.parseInt(result.get(0)));
             ret.setTotal(Long.parseLong(result.get(1)));
             ret.setLimit(Long.parseLong(result.get(2)));
@@ -312,19 +685,39 @@ public class BootCache_RedisImple implements AuthTokenCache, BootCache {
 
     @Override
     public void flashsaleEnable(String itemId, boolean isEnabled) {
-        execute(true, jedis -> {
-            jedis.hset(itemId, FlashSale.Status, isEnabled ? "1" : "0");
+        executeRedis(true, redis -> {
+            redis.hset(itemId, FlashSale.Status, isEnabled ? "1" : "0");
         });
+        if (!isEnabled) {
+            flashsaleLeases.release(itemId);
+        }
     }
 
+    /**
+     * With redis.Lease.FlashSale.BlockSize &gt; 0, the inventory is leased in
+     * blocks and orders are confirmed locally; the unused part of a lease is
+     * given back after redis.Lease.TtlMs, so the item may look sold out on
+     * one node while another node still holds a lease.
+     *
+     * @param itemId
+     * @param requestAmount
+     * @return confirmed order amount
+     */
     @Override
     public long flashsaleAcquireQuota(String itemId, long requestAmount) {
         if (requestAmount < 1) {
             return -1;
         }
+        int blockSize = redisCfg.getLeaseFlashSaleBlockSize();
+        if (blockSize > 0) {
+            boolean granted = flashsaleLeases.acquire(itemId, requestAmount, redisCfg.getLeaseTtlMs() / 2,
+                    (amount, giveBack) -> flashsaleLease(itemId, Math.max(blockSize, amount), giveBack));
+            return granted ? requestAmount : 0;
+        }
         final Holder<Long> holder = new Holder<>(0L);
-        execute(true, jedis -> {
-            Object result = jedis.eval(LUA_SCRIPT_FLASHSALE,
+        // no retry: the script is not idempotent, a retry after a lost reply would book twice
+        executeRedis(false, redis -> {
+            Object result = redis.eval(LUA_SCRIPT_FLASHSALE,
                     Collections.singletonList(itemId),
                     Collections.singletonList(String.valueOf(requestAmount)));
             holder.value((Long) result);
@@ -332,14 +725,29 @@ public class BootCache_RedisImple implements AuthTokenCache, BootCache {
         return holder.value();
     }
 
+    protected QuotaLeases.Lease flashsaleLease(String itemId, long want, long giveBack) {
+        final Holder<List<Long>> holder = new Holder<>(null);
+        // no retry: the script is not idempotent, a retry after a lost reply would lease twice
+        executeRedis(false, redis -> {
+            Object result = redis.eval(LUA_SCRIPT_FLASHSALE_LEASE,
+                    Collections.singletonList(itemId),
+                    List.of(String.valueOf(want), String.valueOf(giveBack)));
+            holder.value((List<Long>) result);
+        });
+        long granted = holder.value().get(0);
+        long limit = holder.value().get(1);
+        return granted < 1 ? null : new QuotaLeases.Lease(granted, limit, redisCfg.getLeaseTtlMs());
+    }
+
     @Override
     public long flashsaleRevokeQuota(String itemId, long requestAmount) {
         if (requestAmount < 1) {
             return -1;
         }
         final Holder<Long> holder = new Holder<>(0L);
-        execute(true, jedis -> {
-            Long result = jedis.hincrBy(itemId, FlashSale.Booked, 0 - requestAmount);
+        // no retry: a retry after a lost reply would revoke twice
+        executeRedis(false, redis -> {
+            Long result = redis.hincrBy(itemId, FlashSale.Booked, 0 - requestAmount);
             holder.value(result);
         });
         return holder.value();
@@ -357,23 +765,292 @@ public class BootCache_RedisImple implements AuthTokenCache, BootCache {
      * if the action was allowed
      */
     public long rateLimiterGetWaitTime(String key, int initBurst, int maxBurstPerPeriod, int period, int requestQuota) {
-        final Holder<Integer> holder = new Holder<>(-1);
-        execute(true, jedis -> {
+        int blockSize = redisCfg.getLeaseRateLimiterBlockSize();
+        if (blockSize > 0) {
+            // tokens are taken from Redis in blocks, unused tokens of an expired lease are lost (the limiter errs on the strict side)
+            // a denied block is remembered until its retry after, meanwhile only the per request call below goes to Redis
+            long block = Math.max(requestQuota, Math.min(blockSize, maxBurstPerPeriod));
+            boolean granted = rateLimiterLeases.acquire(key, requestQuota, redisCfg.getLeaseTtlMs() / 2,
+                    (amount, giveBack) -> rateLimiterLease(key, initBurst, maxBurstPerPeriod, period, block));
+            if (granted) {
+                return -1;
+            }
+        }
+        return rateLimiterThrottle(key, initBurst, maxBurstPerPeriod, period, requestQuota).get(3);
+    }
+
+    protected QuotaLeases.Lease rateLimiterLease(String key, int initBurst, int maxBurstPerPeriod, int period, long block) {
+        List<Long> reply = rateLimiterThrottle(key, initBurst, maxBurstPerPeriod, period, block);
+        if (reply.get(0) == 0) {
+            return new QuotaLeases.Lease(block, Long.MAX_VALUE, redisCfg.getLeaseTtlMs());
+        }
+        long retryAfterSeconds = reply.get(3);
+        return retryAfterSeconds > 0 ? QuotaLeases.Lease.denied(TimeUnit.SECONDS.toMillis(retryAfterSeconds)) : null;
+    }
+
+    /**
+     * @return CL.THROTTLE reply: limited (0/1), limit, remaining, retry after
+     * seconds (-1 if allowed), reset after seconds
+     */
+    protected List<Long> rateLimiterThrottle(String key, int initBurst, int maxBurstPerPeriod, int period, long quota) {
+        final Holder<List<Long>> holder = new Holder<>(null);
+        executeRedis(true, redis -> {
             List<String> argvs = new ArrayList<>();
             argvs.add(String.valueOf(initBurst));
             argvs.add(String.valueOf(maxBurstPerPeriod));
             argvs.add(String.valueOf(period));
-            argvs.add(String.valueOf(requestQuota));
-            Object result = jedis.eval(LUA_SCRIPT_THROTTLE,
+            argvs.add(String.valueOf(quota));
+            Object result = redis.eval(LUA_SCRIPT_THROTTLE,
                     Collections.singletonList(key),
                     argvs);
-            List<Integer> quotaResult = (List<Integer>) result;
-            int retryAfterSeconds = quotaResult.get(3);
-            holder.value(retryAfterSeconds);
+            holder.value((List<Long>) result);
         });
         return holder.value();
     }
 
+    public QuotaLeases getFlashsaleLeases() {
+        return flashsaleLeases;
+    }
+
+    public QuotaLeases getRateLimiterLeases() {
+        return rateLimiterLeases;
+    }
+
+    protected static final ExecutorService ASYNC_FALLBACK = Executors.newVirtualThreadPerTaskExecutor();
+
+    protected volatile RedisAsyncClient asyncClient;
+
+    /**
+     * @return the non-blocking client of the current master, null if
+     * redis.Mode is not Standalone
+     */
+    protected RedisAsyncClient asyncClient() {
+        if (redisCfg.getMode() != RedisConfig.Mode.Standalone) {
+            return null;
+        }
+        RedisAsyncClient ret = asyncClient;
+        if (ret == null) {
+            synchronized (this) {
+                ret = asyncClient;
+                if (ret == null) {
+                    ret = new RedisAsyncClient(() -> redisCfg.getMasterAddress(), () -> redisCfg.getMasterPassword(), Protocol.DEFAULT_TIMEOUT);
+                    asyncClient = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Non-blocking counterpart of {@link #executeRedis(boolean, RedisCall)}:
+     * same circuit breaker, retries are scheduled on the client's event loop
+     * instead of sleeping.
+     *
+     * @param <T>
+     * @param retry
+     * @param call     the non-blocking call
+     * @param fallback the blocking equivalent, run on a virtual thread in
+     *                 Sentinel/Cluster mode
+     * @return
+     */
+    protected <T> CompletableFuture<T> executeAsync(boolean retry, Function<RedisAsyncClient, CompletableFuture<T>> call, Supplier<T> fallback) {
+        RedisAsyncClient client = asyncClient();
+        if (client == null) {
+            return CompletableFuture.supplyAsync(fallback, ASYNC_FALLBACK);
+        }
+        CompletableFuture<T> ret = new CompletableFuture<>();
+        int maxAttempts = retry ? Math.max(1, redisCfg.getRetryMaxAttempts()) : 1;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(redisCfg.getRetryDeadlineMs());
+        attemptAsync(client, call, 1, maxAttempts, deadline, ret);
+        return ret;
+    }
+
+    protected <T> void attemptAsync(RedisAsyncClient client, Function<RedisAsyncClient, CompletableFuture<T>> call, int i, int maxAttempts, long deadline, CompletableFuture<T> ret) {
+        if (!circuitBreaker.tryAcquire()) {
+            ret.completeExceptionally(new JedisConnectionException("Redis circuit breaker is open"));
+            return;
+        }
+        CompletableFuture<T> f;
+        try {
+            f = call.apply(client);
+        } catch (RuntimeException ex) {
+            f = CompletableFuture.failedFuture(ex);
+        }
+        f.whenComplete((v, ex) -> {
+            if (ex == null) {
+                circuitBreaker.onSuccess();
+                ret.complete(v);
+                return;
+            }
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            boolean retriable;
+            if (cause instanceof JedisConnectionException || cause instanceof TimeoutException) {
+                circuitBreaker.onFailure();
+                if (i >= 2) {
+                    onRedisDown(cause);
+                }
+                retriable = true;
+            } else {
+                circuitBreaker.onSuccess();// Redis responded
+                retriable = cause instanceof JedisDataException jde && isTransient(jde);
+            }
+            long delayNanos = backoffNanos(i);
+            if (!retriable || i >= maxAttempts || System.nanoTime() + delayNanos >= deadline) {
+                ret.completeExceptionally(cause);
+                return;
+            }
+            client.getGroup().schedule(() -> attemptAsync(client, call, i + 1, maxAttempts, deadline, ret), delayNanos, TimeUnit.NANOSECONDS);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> tryLockAsync(String lockName, String unlockPassword, long ttlToExpireIncaseUnableToUnlock, TimeUnit timeUnit) {
+        String px = String.valueOf(timeUnit.toMillis(ttlToExpireIncaseUnableToUnlock));
+        return executeAsync(true,
+                c -> c.send("SET", lockName, unlockPassword, "NX", "PX", px).thenApply(r -> REDIS_SUCCESS.equalsIgnoreCase((String) r)),
+                () -> tryLock(lockName, unlockPassword, ttlToExpireIncaseUnableToUnlock, timeUnit));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> unlockAsync(String lockName, String unlockPassword) {
+        return executeAsync(true,
+                c -> c.send("EVAL", LUA_SCRIPT_UNLOCK, "1", lockName, unlockPassword).thenApply(r -> RELEASE_SUCCESS.equals(r)),
+                () -> unlock(lockName, unlockPassword));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, String>> getAllAsync(Collection<String> keys) {
+        if (keys == null || keys.isEmpty()) {
+            return CompletableFuture.completedFuture(new HashMap<>());
+        }
+        List<String> keyList = new ArrayList<>(keys);
+        String[] args = new String[keyList.size() + 1];
+        args[0] = "MGET";
+        for (int i = 0; i < keyList.size(); i++) {
+            args[i + 1] = keyList.get(i);
+        }
+        return executeAsync(true, c -> c.send(args).thenApply(r -> {
+            List<Object> values = (List<Object>) r;
+            Map<String, String> ret = new HashMap<>();
+            for (int i = 0; i < keyList.size(); i++) {
+                Object value = values.get(i);
+                if (value != null) {
+                    ret.put(keyList.get(i), (String) value);
+                }
+            }
+            return ret;
+        }), () -> getAll(keyList));
+    }
+
+    @Override
+    public CompletableFuture<Void> setAllAsync(Map<String, String> keyValues, long ttlMilliseconds) {
+        if (keyValues == null || keyValues.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String px = String.valueOf(ttlMilliseconds);
+        return executeAsync(true, c -> {
+            List<CompletableFuture<Object>> replies = new ArrayList<>(keyValues.size());
+            for (Map.Entry<String, String> kv : keyValues.entrySet()) {
+                replies.add(ttlMilliseconds > 0
+                        ? c.send("PSETEX", kv.getKey(), px, kv.getValue())
+                        : c.send("SET", kv.getKey(), kv.getValue()));
+            }
+            return CompletableFuture.allOf(replies.toArray(new CompletableFuture[replies.size()]));
+        }, () -> {
+            setAll(keyValues, ttlMilliseconds);
+            return null;
+        });
+    }
+
+    /**
+     * In leased mode the blocking lease refill runs on a virtual thread
+     */
+    @Override
+    public CompletableFuture<Long> flashsaleAcquireQuotaAsync(String itemId, long requestAmount) {
+        if (requestAmount < 1) {
+            return CompletableFuture.completedFuture(-1L);
+        }
+        if (redisCfg.getLeaseFlashSaleBlockSize() > 0) {
+            return CompletableFuture.supplyAsync(() -> flashsaleAcquireQuota(itemId, requestAmount), ASYNC_FALLBACK);
+        }
+        // no retry: a timed out EVAL may have been applied, see flashsaleAcquireQuota
+        return executeAsync(false,
+                c -> c.send("EVAL", LUA_SCRIPT_FLASHSALE, "1", itemId, String.valueOf(requestAmount)).thenApply(r -> (Long) r),
+                () -> flashsaleAcquireQuota(itemId, requestAmount));
+    }
+
+    @Override
+    public CompletableFuture<Long> flashsaleRevokeQuotaAsync(String itemId, long requestAmount) {
+        if (requestAmount < 1) {
+            return CompletableFuture.completedFuture(-1L);
+        }
+        // no retry: a timed out HINCRBY may have been applied, see flashsaleRevokeQuota
+        return executeAsync(false,
+                c -> c.send("HINCRBY", itemId, FlashSale.Booked, String.valueOf(0 - requestAmount)).thenApply(r -> (Long) r),
+                () -> flashsaleRevokeQuota(itemId, requestAmount));
+    }
+
+    @Override
+    public CompletableFuture<Void> blacklistAsync(String key, String value, long ttlMilliseconds) {
+        if (key == null || ttlMilliseconds <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        RedisNearCache nc = nearCache();
+        String px = String.valueOf(ttlMilliseconds);
+        return executeAsync(true, c -> {
+            CompletableFuture<Object> set = c.send("PSETEX", key, px, value == null ? "?" : value);
+            if (nc == null) {
+                return set.thenApply(r -> (Void) null);
+            }
+            CompletableFuture<Object> zadd = nc.getRevocationIndex() == null
+                    ? CompletableFuture.completedFuture(null)
+                    : c.send("ZADD", nc.getRevocationIndexKey(), String.valueOf(System.currentTimeMillis() + ttlMilliseconds), key);
+            CompletableFuture<Object> publish = c.send("PUBLISH", nc.getChannel(), nc.message(key, ttlMilliseconds));
+            return CompletableFuture.allOf(set, zadd, publish);
+        }, () -> {
+            blacklist(key, value, ttlMilliseconds);
+            return null;
+        }).thenRun(() -> {
+            if (nc != null) {
+                nc.onPresent(key, ttlMilliseconds);
+                if (nc.getRevocationIndex() != null) {
+                    nc.getRevocationIndex().add(key, System.currentTimeMillis() + ttlMilliseconds);
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> isBlacklistAsync(String key) {
+        if (key == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        RedisNearCache nc = nearCache();
+        if (nc == null) {
+            return executeAsync(true,
+                    c -> c.send("EXISTS", key).thenApply(r -> ((Long) r) > 0),
+                    () -> isBlacklist(key));
+        }
+        RevocationIndex revocationIndex = nc.getRevocationIndex();
+        if (revocationIndex != null && !revocationIndex.mightContain(key)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        Boolean cached = nc.exists(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long loadToken = nc.beforeLoad();
+        return executeAsync(true, c -> c.send("PTTL", key).thenApply(r -> {
+            long pttl = (Long) r;
+            if (pttl == -2) {
+                nc.onAbsent(key, loadToken);
+                return false;
+            }
+            nc.onPresent(key, pttl);
+            return true;
+        }), () -> isBlacklist(key));
+    }
+
     /**
      * Only good for: low rate, check if a user input wrong password more than X
      * times within N minutes.
@@ -397,16 +1074,16 @@ public class BootCache_RedisImple implements AuthTokenCache, BootCache {
     public long rateLimiterGetSlidingWindowRate(String key, int periodSecond) {
         long nowTs = System.currentTimeMillis();
         final Holder<Long> holder = new Holder<>(0L);
-        execute(true, jedis -> {
+        executeRedis(true, redis -> {
             Response<Long> count;
-            try (Pipeline pipeline = jedis.pipelined();) {
+            try (AbstractPipeline pipeline = redis.pipelined();) {
                 //pipeline.multi();
                 pipeline.zadd(key, nowTs, String.valueOf(nowTs));
                 pipeline.zremrangeByScore(key, 0, nowTs - periodSecond * 1000);
                 count = pipeline.zcard(key);
                 pipeline.expire(key, periodSecond + 1);
                 //pipeline.exec();
-                pipeline.syncAndReturnAll();
+                pipeline.sync();
             }
             if (count != null && count.get() != null) {
                 long c = count.get();
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe counting Bloom filter with 4-bit counters (16 per long), so
+ * elements can be removed. Elements are identified by a 64-bit fingerprint.
+ * The filter is blocked: all k counters of an element are in the same 64-byte
+ * block (one CPU cache line), so a lookup costs one cache miss instead of k,
+ * for a slightly higher false positive rate. A counter that
+ * reaches 15 sticks there and is never decremented, which can only cause false
+ * positives, never false negatives.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class CountingBloomFilter {
+
+    protected static final int MAX_COUNT = 15;
+    protected static final int BLOCK_LONGS = 8;// 64 bytes
+    protected static final int BLOCK_COUNTERS = BLOCK_LONGS * 16;
+
+    protected final AtomicLongArray counters;
+    protected final long numCounters;
+    protected final int numBlocks;
+    protected final int numHashes;
+
+    /**
+     * @param expectedInsertions
+     * @param fpp expected false positive probability, i.e. 0.01
+     */
+    public CountingBloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        double p = fpp > 0 && fpp < 1 ? fpp : 0.01;
+        long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)) * 1.25);// +25% to compensate the blocked layout
+        m = Math.max(BLOCK_COUNTERS, (m + BLOCK_COUNTERS - 1) / BLOCK_COUNTERS * BLOCK_COUNTERS);
+        if (m / 16 > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many expected insertions: " + expectedInsertions);
+        }
+        this.numCounters = m;
+        this.numBlocks = (int) (m / BLOCK_COUNTERS);
+        this.numHashes = Math.min(9, Math.max(1, (int) Math.round((double) m / n * Math.log(2))));// 7 bits per probe from one 64-bit hash
+        this.counters = new AtomicLongArray((int) (m / 16));
+    }
+
+    /**
+     * 64-bit fingerprint of a string (FNV-1a over the chars, with murmur3
+     * finalizer), allocation free
+     *
+     * @param value
+     * @return
+     */
+    public static long fingerprint(String value) {
+        int len = value.length();
+        long h = 0x9E3779B97F4A7C15L ^ len;
+        for (int i = 0; i < len; i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    protected static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return counter index of the i-th probe, in the block selected by the
+     * fingerprint
+     */
+    protected long index(long fingerprint, long h2, int i) {
+        long block = Math.floorMod(fingerprint, (long) numBlocks);
+        return block * BLOCK_COUNTERS + ((h2 >>> (7 * i)) & (BLOCK_COUNTERS - 1));
+    }
+
+    public void add(long fingerprint) {
+        update(fingerprint, 1);
+    }
+
+    public void remove(long fingerprint) {
+        update(fingerprint, -1);
+    }
+
+    protected void update(long fingerprint, int delta) {
+        long h2 = mix(fingerprint + 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long idx = index(fingerprint, h2, i);
+            int slot = (int) (idx >>> 4);
+            int shift = (int) (idx & 15) << 2;
+            while (true) {
+                long word = counters.get(slot);
+                int count = (int) (word >>> shift) & 0xF;
+                if (count == MAX_COUNT || delta < 0 && count == 0) {
+                    break;// saturated, or removing an element never added
+                }
+                long updated = word + ((long) delta << shift);
+                if (counters.compareAndSet(slot, word, updated)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param fingerprint
+     * @return false if definitely not added
+     */
+    public boolean mightContain(long fingerprint) {
+        long h2 = mix(fingerprint + 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long idx = index(fingerprint, h2, i);
+            if ((counters.get((int) (idx >>> 4)) >>> ((idx & 15) << 2) & 0xF) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    public long getNumCounters() {
+        return numCounters;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    public long getMemoryBytes() {
+        return numCounters / 2;
+    }
+}
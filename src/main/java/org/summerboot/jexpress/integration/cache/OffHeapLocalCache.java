@@ -0,0 +1,449 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte bounded LRU cache with per-entry TTL that keeps the values outside of
+ * the Java heap, for large binary artifacts (generated PDF, barcode images,
+ * rendered pages) which would otherwise be promoted to old gen.
+ * <p>
+ * Direct memory is allocated lazily in slabs of slabSize bytes, each one cut
+ * into fixed size blocks. A value is serialized and copied into as many free
+ * blocks as it needs, so there is no fragmentation and a freed block can be
+ * reused by any value; the waste is the unused tail of the last block, choose
+ * the block size accordingly. Only the keys and block indexes stay on heap.
+ * When the blocks run out the least recently used entries are evicted.
+ * <p>
+ * Reads copy the value out without holding the lock, an entry evicted while
+ * being read keeps its blocks until the last reader is done. The total is
+ * limited by -XX:MaxDirectMemorySize as well. The stats are exposed via JMX
+ * until {@link #close()}, which also drops all entries; the direct memory is
+ * reclaimed once the cache is no longer referenced.
+ * <pre>
+ * {@code
+ * SimpleLocalCache<String, byte[]> pdfCache = new OffHeapLocalCache<>("pdf", 512 * 1024 * 1024L, 64 * 1024, OffHeapLocalCache.BYTES);
+ * }
+ * </pre>
+ *
+ * @param <K>
+ * @param <V>
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class OffHeapLocalCache<K, V> implements SimpleLocalCache<K, V>, OffHeapCacheStatsMXBean, AutoCloseable {
+
+    protected static final Logger log = LogManager.getLogger(OffHeapLocalCache.class.getName());
+
+    protected static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+    protected static final int SWEEP_PER_PUT = 2;
+
+    public interface Serializer<V> {
+
+        byte[] serialize(V value);
+
+        V deserialize(byte[] data);
+    }
+
+    public static final Serializer<byte[]> BYTES = new Serializer<>() {
+        @Override
+        public byte[] serialize(byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] deserialize(byte[] data) {
+            return data;
+        }
+    };
+
+    public static final Serializer<String> UTF8 = new Serializer<>() {
+        @Override
+        public byte[] serialize(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(byte[] data) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    };
+
+    protected static class Entry {
+
+        protected final int[] blocks;
+        protected final int length;
+        protected final long ttlMillis;
+        protected int readers;
+        protected boolean removed;
+
+        protected Entry(int[] blocks, int length, Long ttlMilliseconds) {
+            this.blocks = blocks;
+            this.length = length;
+            this.ttlMillis = ttlMilliseconds == null || ttlMilliseconds < 0
+                    ? Long.MAX_VALUE
+                    : System.currentTimeMillis() + ttlMilliseconds;
+        }
+    }
+
+    protected final long maxBytes;
+    protected final int blockSize;
+    protected final int blocksPerSlab;
+    protected final int maxBlocks;
+    protected final Serializer<V> serializer;
+    protected final List<ByteBuffer> slabs = new ArrayList<>();
+    protected final LinkedHashMap<Object, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+    protected int[] freeBlocks = new int[0];
+    protected int freeCount;
+    protected int allocatedBlocks;// blocks of all slabs so far
+    protected int usedBlocks;
+
+    protected final LongAdder hitCount = new LongAdder();
+    protected final LongAdder missCount = new LongAdder();
+    protected final LongAdder evictionCount = new LongAdder();
+    protected final LongAdder expiredCount = new LongAdder();
+    protected volatile ObjectName objectName;
+
+    /**
+     * @param name       JMX name, null to use the class name
+     * @param maxBytes   max direct memory to allocate
+     * @param blockSize  allocation unit, a value takes ceil(length /
+     *                   blockSize) blocks
+     * @param serializer converts values to and from bytes
+     */
+    public OffHeapLocalCache(String name, long maxBytes, int blockSize, Serializer<V> serializer) {
+        if (blockSize <= 0 || blockSize > DEFAULT_SLAB_SIZE) {
+            throw new IllegalArgumentException("blockSize must be within 1.." + DEFAULT_SLAB_SIZE + ": " + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.blocksPerSlab = DEFAULT_SLAB_SIZE / blockSize;
+        this.maxBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / blockSize));
+        this.maxBytes = (long) maxBlocks * blockSize;
+        this.serializer = serializer;
+        registerMBean(name == null ? getClass().getSimpleName() : name);
+    }
+
+    protected void registerMBean(String name) {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("org.summerboot.jexpress:type=LocalCache,name=" + ObjectName.quote(name));
+            if (mBeanServer.isRegistered(objectName)) {
+                objectName = new ObjectName("org.summerboot.jexpress:type=LocalCache,name=" + ObjectName.quote(name + "@" + Integer.toHexString(System.identityHashCode(this))));
+            }
+            mBeanServer.registerMBean(new StandardMBean(this, OffHeapCacheStatsMXBean.class, true), objectName);
+            this.objectName = objectName;
+        } catch (JMException | RuntimeException ex) {
+            log.debug(() -> "JMX not available for " + name + ": " + ex);
+        }
+    }
+
+    /**
+     * unregister from JMX and remove all entries, the JMX server no longer
+     * keeps the slabs reachable
+     */
+    @Override
+    public void close() {
+        clear();
+        ObjectName on = objectName;
+        if (on == null) {
+            return;
+        }
+        objectName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+        } catch (JMException | RuntimeException ex) {
+            log.debug(() -> "failed to unregister " + on + ": " + ex);
+        }
+    }
+
+    /**
+     * @param key
+     * @param value           null to delete
+     * @param ttlMilliseconds
+     */
+    @Override
+    public void put(K key, V value, Long ttlMilliseconds) {
+        if (value == null) {
+            delete(key);
+            return;
+        }
+        byte[] data = serializer.serialize(value);
+        int need = Math.max(1, (data.length + blockSize - 1) / blockSize);
+        if (need > maxBlocks) {
+            delete(key);
+            log.debug(() -> "value of " + data.length + " bytes exceeds cache size " + maxBytes + ": " + key);
+            return;
+        }
+        int[] blocks;
+        synchronized (this) {
+            Entry old = index.remove(key);
+            if (old != null) {
+                unlink(old);
+            }
+            sweepExpired();
+            while (freeCount < need && allocatedBlocks < maxBlocks) {
+                allocateSlab();
+            }
+            Iterator<Entry> lru = index.values().iterator();
+            while (freeCount < need && lru.hasNext()) {
+                Entry e = lru.next();
+                lru.remove();
+                unlink(e);
+                evictionCount.increment();
+            }
+            if (freeCount < need) {
+                // the remaining blocks are pinned by readers of removed entries
+                log.debug(() -> "not enough free blocks for " + key);
+                return;
+            }
+            blocks = new int[need];
+            for (int i = 0; i < need; i++) {
+                blocks[i] = freeBlocks[--freeCount];
+            }
+            usedBlocks += need;
+        }
+        // the blocks are not visible to anyone else until indexed
+        write(blocks, data);
+        Entry e = new Entry(blocks, data.length, ttlMilliseconds);
+        synchronized (this) {
+            Entry old = index.put(key, e);
+            if (old != null) {
+                unlink(old);// a concurrent put of the same key
+            }
+        }
+    }
+
+    /**
+     * @param key
+     * @return
+     */
+    @Override
+    public V get(K key) {
+        if (key == null) {
+            return null;
+        }
+        Entry e;
+        synchronized (this) {
+            e = index.get(key);
+            if (e != null && e.ttlMillis < System.currentTimeMillis()) {
+                index.remove(key);
+                unlink(e);
+                expiredCount.increment();
+                e = null;
+            }
+            if (e != null) {
+                e.readers++;
+            }
+        }
+        if (e == null) {
+            missCount.increment();
+            return null;
+        }
+        byte[] data;
+        try {
+            data = read(e);
+        } finally {
+            synchronized (this) {
+                if (--e.readers == 0 && e.removed) {
+                    free(e);
+                }
+            }
+        }
+        hitCount.increment();
+        return serializer.deserialize(data);
+    }
+
+    /**
+     * @param key
+     * @return
+     */
+    @Override
+    public V delete(K key) {
+        if (key == null) {
+            return null;
+        }
+        synchronized (this) {
+            Entry e = index.remove(key);
+            if (e != null) {
+                unlink(e);
+            }
+        }
+        return null;// not deserialized only to be discarded
+    }
+
+    /**
+     * removes all entries, the allocated slabs are kept for reuse
+     */
+    public void clear() {
+        synchronized (this) {
+            for (Entry e : index.values()) {
+                unlink(e);
+            }
+            index.clear();
+        }
+    }
+
+    /**
+     * caller must hold the lock
+     */
+    protected void unlink(Entry e) {
+        e.removed = true;
+        if (e.readers == 0) {
+            free(e);
+        }
+    }
+
+    /**
+     * caller must hold the lock
+     */
+    protected void free(Entry e) {
+        for (int b : e.blocks) {
+            freeBlocks[freeCount++] = b;
+        }
+        usedBlocks -= e.blocks.length;
+    }
+
+    /**
+     * caller must hold the lock
+     */
+    protected void sweepExpired() {
+        // amortized expiry: check a few entries from the least recently used end
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = index.values().iterator();
+        for (int i = 0; i < SWEEP_PER_PUT && it.hasNext(); i++) {
+            Entry e = it.next();
+            if (e.ttlMillis < now) {
+                it.remove();
+                unlink(e);
+                expiredCount.increment();
+            }
+        }
+    }
+
+    /**
+     * caller must hold the lock
+     */
+    protected void allocateSlab() {
+        int first = allocatedBlocks;
+        int count = Math.min(blocksPerSlab, maxBlocks - first);
+        slabs.add(ByteBuffer.allocateDirect(count * blockSize));
+        allocatedBlocks += count;
+        if (freeBlocks.length < allocatedBlocks) {
+            int[] grown = new int[allocatedBlocks];
+            System.arraycopy(freeBlocks, 0, grown, 0, freeCount);
+            freeBlocks = grown;
+        }
+        for (int b = first + count - 1; b >= first; b--) {
+            freeBlocks[freeCount++] = b;
+        }
+    }
+
+    protected ByteBuffer slab(int block) {
+        synchronized (this) {
+            return slabs.get(block / blocksPerSlab);
+        }
+    }
+
+    protected void write(int[] blocks, byte[] data) {
+        int offset = 0;
+        for (int b : blocks) {
+            int len = Math.min(blockSize, data.length - offset);
+            // absolute bulk put, safe for concurrent use of the same slab
+            slab(b).put((b % blocksPerSlab) * blockSize, data, offset, len);
+            offset += len;
+        }
+    }
+
+    protected byte[] read(Entry e) {
+        byte[] data = new byte[e.length];
+        int offset = 0;
+        for (int b : e.blocks) {
+            int len = Math.min(blockSize, e.length - offset);
+            slab(b).get((b % blocksPerSlab) * blockSize, data, offset, len);
+            offset += len;
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return index.size();
+    }
+
+    /**
+     * @return max bytes
+     */
+    @Override
+    public long getMaxSize() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return (long) usedBlocks * blockSize;
+    }
+
+    @Override
+    public synchronized long getAllocatedBytes() {
+        return (long) allocatedBlocks * blockSize;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hit = hitCount.sum();
+        long total = hit + missCount.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
+}
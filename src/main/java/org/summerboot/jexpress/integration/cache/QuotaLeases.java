@@ -0,0 +1,320 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.summerboot.jexpress.boot.config.NamedDefaultThreadFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Node local blocks of quota (tokens, inventory) leased from Redis.
+ * <p>
+ * Requests are served by decrementing the local counter of the key's lease;
+ * only when the lease is exhausted or expired does one thread per key go to
+ * Redis for a new block, giving back the unused part of the old one in the
+ * same call; the Redis call is made without holding any lock, other threads
+ * of the same key wait for its result. Leases idle past their expiry are
+ * given back by a background sweeper. The block size and lease time trade
+ * accuracy for throughput: at most (nodes x block) units can be held by other
+ * nodes for up to one lease time. Units whose give back fails are dropped
+ * rather than kept, as the failed call may have been applied in Redis.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class QuotaLeases {
+
+    protected static final Logger log = LogManager.getLogger(QuotaLeases.class.getName());
+
+    protected static final long MIN_SWEEP_INTERVAL_MS = 100;
+
+    public static class Lease {
+
+        protected final AtomicLong remaining;
+        protected final long maxPerAcquire;
+        protected final long expireAt;
+
+        /**
+         * @param granted       units leased
+         * @param maxPerAcquire requests asking for more are rejected
+         * @param ttlMs         lease time
+         */
+        public Lease(long granted, long maxPerAcquire, long ttlMs) {
+            this.remaining = new AtomicLong(granted);
+            this.maxPerAcquire = maxPerAcquire;
+            this.expireAt = System.currentTimeMillis() + ttlMs;
+        }
+
+        /**
+         * @param ttlMs how long to reject locally without asking Redis
+         * @return an empty lease rejecting every request until it expires
+         */
+        public static Lease denied(long ttlMs) {
+            return new Lease(0, 0, ttlMs);
+        }
+
+        protected boolean isValid(long now) {
+            return now < expireAt;
+        }
+
+        protected boolean tryTake(long amount) {
+            long r;
+            do {
+                r = remaining.get();
+                if (r < amount) {
+                    return false;
+                }
+            } while (!remaining.compareAndSet(r, r - amount));
+            return true;
+        }
+
+        protected long drain() {
+            return remaining.getAndSet(0);
+        }
+    }
+
+    /**
+     * Leases a new block from Redis
+     */
+    @FunctionalInterface
+    public interface Refill {
+
+        /**
+         * @param amount   units requested by the current caller
+         * @param giveBack unused units of the previous lease to return
+         * @return the new lease, null if nothing was granted
+         */
+        Lease refill(long amount, long giveBack);
+    }
+
+    protected final String name;
+    protected final BiConsumer<String, Long> giveBack;
+    protected final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    protected final Map<String, CompletableFuture<Lease>> refilling = new ConcurrentHashMap<>();
+    protected volatile ScheduledExecutorService sweeper;
+
+    protected final LongAdder localHitCount = new LongAdder();
+    protected final LongAdder refillCount = new LongAdder();
+    protected final LongAdder rejectCount = new LongAdder();
+
+    /**
+     * @param name     for the sweeper thread name
+     * @param giveBack returns unused units of an expired lease to Redis, null
+     *                 if the units cannot be returned and simply expire
+     */
+    public QuotaLeases(String name, BiConsumer<String, Long> giveBack) {
+        this.name = name;
+        this.giveBack = giveBack;
+    }
+
+    /**
+     * @param key
+     * @param amount
+     * @param sweepIntervalMs how often idle expired leases are given back
+     * @param refill          called by one thread per key when the local lease
+     *                        cannot serve the amount
+     * @return true if the amount is granted
+     */
+    public boolean acquire(String key, long amount, long sweepIntervalMs, Refill refill) {
+        while (true) {
+            long now = System.currentTimeMillis();
+            Lease lease = leases.get(key);
+            if (lease != null && lease.isValid(now)) {
+                if (amount > lease.maxPerAcquire) {
+                    rejectCount.increment();
+                    return false;
+                }
+                if (lease.tryTake(amount)) {
+                    localHitCount.increment();
+                    return true;
+                }
+            }
+            CompletableFuture<Lease> mine = new CompletableFuture<>();
+            CompletableFuture<Lease> pending = refilling.putIfAbsent(key, mine);
+            if (pending != null) {
+                // another thread is refilling this key: shares a failed or empty result, otherwise checks again
+                if (pending.join() == null) {
+                    rejectCount.increment();
+                    return false;
+                }
+                continue;
+            }
+            try {
+                return refill(key, amount, sweepIntervalMs, refill, mine);
+            } finally {
+                refilling.remove(key, mine);
+            }
+        }
+    }
+
+    protected boolean refill(String key, long amount, long sweepIntervalMs, Refill refill, CompletableFuture<Lease> mine) {
+        Lease fresh = null;
+        try {
+            // another thread may have refilled before this one registered
+            Lease lease = leases.get(key);
+            if (lease != null && lease.isValid(System.currentTimeMillis()) && lease.tryTake(amount)) {
+                localHitCount.increment();
+                return true;
+            }
+            if (lease != null) {
+                leases.remove(key, lease);
+            }
+            long leftover = lease == null ? 0 : lease.drain();
+            try {
+                fresh = refill.refill(amount, leftover);
+            } catch (RuntimeException ex) {
+                if (leftover > 0) {
+                    // the give back may have been applied before the failure, dropped to never return the units twice
+                    log.warn(() -> name + " dropped " + leftover + " units of " + key + " after a failed refill: " + ex);
+                }
+                throw ex;
+            }
+            refillCount.increment();
+            if (fresh == null) {
+                rejectCount.increment();
+                return false;
+            }
+            if (amount > fresh.maxPerAcquire) {
+                // kept for the requests within the limit
+                leases.put(key, fresh);
+                startSweeper(sweepIntervalMs);
+                rejectCount.increment();
+                return false;
+            }
+            if (fresh.tryTake(amount)) {
+                leases.put(key, fresh);
+                startSweeper(sweepIntervalMs);
+                return true;
+            }
+            // partial grant: given back at once if possible, otherwise kept for smaller requests
+            if (giveBack != null) {
+                giveBack(key, fresh.drain());
+            } else {
+                leases.put(key, fresh);
+                startSweeper(sweepIntervalMs);
+            }
+            rejectCount.increment();
+            return false;
+        } finally {
+            mine.complete(fresh);
+        }
+    }
+
+    protected void startSweeper(long sweepIntervalMs) {
+        if (sweeper != null) {
+            return;
+        }
+        synchronized (this) {
+            if (sweeper == null) {
+                long interval = Math.max(MIN_SWEEP_INTERVAL_MS, sweepIntervalMs);
+                ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor(NamedDefaultThreadFactory.build(name, true));
+                ses.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+                sweeper = ses;
+            }
+        }
+    }
+
+    /**
+     * gives back the unused units of expired leases
+     */
+    protected void sweep() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Lease> e : leases.entrySet()) {
+            Lease lease = e.getValue();
+            if (!lease.isValid(now)) {
+                release(e.getKey(), lease);
+            }
+        }
+    }
+
+    protected void release(String key, Lease lease) {
+        if (!leases.remove(key, lease)) {
+            return;// refilled meanwhile
+        }
+        giveBack(key, lease.drain());
+    }
+
+    protected void giveBack(String key, long leftover) {
+        if (leftover < 1 || giveBack == null) {
+            return;
+        }
+        try {
+            giveBack.accept(key, leftover);
+        } catch (RuntimeException ex) {
+            // the call may have been applied before the failure, dropped to never return the units twice
+            log.warn(() -> name + " dropped " + leftover + " units of " + key + " after a failed give back: " + ex);
+        }
+    }
+
+    /**
+     * gives back the lease of the key
+     *
+     * @param key
+     */
+    public void release(String key) {
+        Lease lease = leases.get(key);
+        if (lease != null) {
+            release(key, lease);
+        }
+    }
+
+    /**
+     * drops the lease of the key without giving it back, i.e. after the
+     * quota is reset in Redis
+     *
+     * @param key
+     */
+    public void discard(String key) {
+        Lease lease = leases.remove(key);
+        if (lease != null) {
+            lease.drain();
+        }
+    }
+
+    /**
+     * gives back all leases, i.e. before shutdown or when the sale ends
+     */
+    public void releaseAll() {
+        for (Map.Entry<String, Lease> e : leases.entrySet()) {
+            release(e.getKey(), e.getValue());
+        }
+    }
+
+    public int getLeaseCount() {
+        return leases.size();
+    }
+
+    public long getLocalHitCount() {
+        return localHitCount.sum();
+    }
+
+    public long getRefillCount() {
+        return refillCount.sum();
+    }
+
+    public long getRejectCount() {
+        return rejectCount.sum();
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.cache;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.kqueue.KQueueEventLoopGroup;
+import io.netty.channel.kqueue.KQueueSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.redis.ArrayRedisMessage;
+import io.netty.handler.codec.redis.ErrorRedisMessage;
+import io.netty.handler.codec.redis.FullBulkStringRedisMessage;
+import io.netty.handler.codec.redis.IntegerRedisMessage;
+import io.netty.handler.codec.redis.RedisArrayAggregator;
+import io.netty.handler.codec.redis.RedisBulkStringAggregator;
+import io.netty.handler.codec.redis.RedisDecoder;
+import io.netty.handler.codec.redis.RedisEncoder;
+import io.netty.handler.codec.redis.RedisMessage;
+import io.netty.handler.codec.redis.SimpleStringRedisMessage;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.summerboot.jexpress.boot.config.NamedDefaultThreadFactory;
+import org.summerboot.jexpress.nio.server.NioServer;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking Redis client on Netty: one pipelined connection, commands are
+ * written in order and their futures completed in the same order as the
+ * replies arrive. Runs on the NioServer IO event loops when the server is
+ * started, so a command issued from a channel handler does not leave its
+ * event loop; otherwise on its own single event loop.
+ * <p>
+ * Replies are converted to Java objects: simple string to String, integer to
+ * Long, bulk string to String (null for nil), array to List (null for nil),
+ * error to a failed future with JedisDataException. The futures are
+ * completed on the event loop, callers must not block in their callbacks.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RedisAsyncClient {
+
+    protected static final Logger log = LogManager.getLogger(RedisAsyncClient.class.getName());
+
+    protected final Supplier<HostAndPort> address;
+    protected final Supplier<String> password;
+    protected final int timeoutMs;
+    protected final EventLoopGroup group;
+    protected final boolean ownGroup;
+    protected final Class<? extends Channel> channelClass;
+
+    protected volatile CompletableFuture<Channel> connection;
+
+    /**
+     * @param address   resolved on every (re)connect, i.e. the current master
+     * @param password  null if no AUTH is required
+     * @param timeoutMs connect and per-command timeout
+     */
+    public RedisAsyncClient(Supplier<HostAndPort> address, Supplier<String> password, int timeoutMs) {
+        this.address = address;
+        this.password = password;
+        this.timeoutMs = timeoutMs;
+        EventLoopGroup shared = NioServer.getSharedWorkerGroup();
+        ownGroup = shared == null;
+        group = ownGroup ? new NioEventLoopGroup(1, NamedDefaultThreadFactory.build("Redis.Async", false)) : shared;
+        if (group instanceof EpollEventLoopGroup) {
+            channelClass = EpollSocketChannel.class;
+        } else if (group instanceof KQueueEventLoopGroup) {
+            channelClass = KQueueSocketChannel.class;
+        } else {
+            channelClass = NioSocketChannel.class;
+        }
+    }
+
+    /**
+     * A command and its reply future, the future is queued by the handler
+     * on the event loop right before the command is written so that the
+     * queue order always matches the wire order
+     */
+    protected static class Command {
+
+        protected final RedisMessage message;
+        protected final CompletableFuture<Object> reply;
+
+        protected Command(RedisMessage message, CompletableFuture<Object> reply) {
+            this.message = message;
+            this.reply = reply;
+        }
+    }
+
+    protected static class ReplyHandler extends ChannelDuplexHandler {
+
+        protected final Queue<CompletableFuture<Object>> pending = new ArrayDeque<>();
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            if (msg instanceof Command cmd) {
+                pending.add(cmd.reply);
+                ctx.write(cmd.message, promise);
+                promise.addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+            } else {
+                ctx.write(msg, promise);
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                CompletableFuture<Object> reply = pending.poll();
+                if (reply == null) {
+                    log.warn(() -> "unexpected reply from " + ctx.channel().remoteAddress());
+                    return;
+                }
+                if (msg instanceof ErrorRedisMessage err) {
+                    reply.completeExceptionally(new JedisDataException(err.content()));
+                } else {
+                    reply.complete(toJava((RedisMessage) msg));
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            JedisConnectionException ex = new JedisConnectionException("connection closed: " + ctx.channel().remoteAddress());
+            CompletableFuture<Object> reply;
+            while ((reply = pending.poll()) != null) {
+                reply.completeExceptionally(ex);
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.warn(() -> "Redis connection error " + ctx.channel().remoteAddress() + ": " + cause);
+            ctx.close();
+        }
+    }
+
+    protected static Object toJava(RedisMessage msg) {
+        if (msg instanceof SimpleStringRedisMessage s) {
+            return s.content();
+        }
+        if (msg instanceof IntegerRedisMessage i) {
+            return i.value();
+        }
+        if (msg instanceof FullBulkStringRedisMessage b) {
+            return b.isNull() ? null : b.content().toString(CharsetUtil.UTF_8);
+        }
+        if (msg instanceof ArrayRedisMessage a) {
+            if (a.isNull()) {
+                return null;
+            }
+            List<Object> ret = new ArrayList<>(a.children().size());
+            for (RedisMessage child : a.children()) {
+                ret.add(child instanceof ErrorRedisMessage err ? new JedisDataException(err.content()) : toJava(child));
+            }
+            return ret;
+        }
+        return msg.toString();
+    }
+
+    /**
+     * @param args command and arguments, i.e. "SET", key, value
+     * @return the converted reply
+     */
+    public CompletableFuture<Object> send(String... args) {
+        CompletableFuture<Object> reply = new CompletableFuture<>();
+        connection().whenComplete((ch, ex) -> {
+            if (ex != null) {
+                reply.completeExceptionally(ex);
+            } else {
+                write(ch, args, reply);
+            }
+        });
+        return reply.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    protected void write(Channel ch, String[] args, CompletableFuture<Object> reply) {
+        List<RedisMessage> children = new ArrayList<>(args.length);
+        for (String arg : args) {
+            children.add(new FullBulkStringRedisMessage(ByteBufUtil.writeUtf8(ch.alloc(), arg)));
+        }
+        ch.writeAndFlush(new Command(new ArrayRedisMessage(children), reply));
+    }
+
+    protected CompletableFuture<Channel> connection() {
+        CompletableFuture<Channel> c = connection;
+        if (c != null && (!c.isDone() || !c.isCompletedExceptionally() && c.join().isActive())) {
+            return c;
+        }
+        synchronized (this) {
+            c = connection;
+            if (c == null || c.isDone() && (c.isCompletedExceptionally() || !c.join().isActive())) {
+                c = connect();
+                connection = c;
+            }
+            return c;
+        }
+    }
+
+    protected CompletableFuture<Channel> connect() {
+        CompletableFuture<Channel> ret = new CompletableFuture<>();
+        HostAndPort hp = address.get();
+        if (hp == null) {
+            ret.completeExceptionally(new JedisConnectionException("Redis master is null"));
+            return ret;
+        }
+        Bootstrap b = new Bootstrap()
+                .group(group)
+                .channel(channelClass)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMs)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new RedisDecoder(), new RedisBulkStringAggregator(), new RedisArrayAggregator(),
+                                new RedisEncoder(), new ReplyHandler());
+                    }
+                });
+        b.connect(hp.getHost(), hp.getPort()).addListener((ChannelFutureListener) f -> {
+            if (!f.isSuccess()) {
+                ret.completeExceptionally(new JedisConnectionException("failed to connect " + hp, f.cause()));
+                return;
+            }
+            Channel ch = f.channel();
+            String pwd = password.get();
+            if (pwd == null) {
+                ret.complete(ch);
+                return;
+            }
+            CompletableFuture<Object> auth = new CompletableFuture<>();
+            write(ch, new String[]{"AUTH", pwd}, auth);
+            auth.whenComplete((r, ex) -> {
+                if (ex == null) {
+                    ret.complete(ch);
+                } else {
+                    ch.close();
+                    ret.completeExceptionally(ex);
+                }
+            });
+        });
+        return ret;
+    }
+
+    /**
+     * closes the connection, the next command connects to the then current
+     * address, i.e. after failover
+     */
+    public void reconnect() {
+        CompletableFuture<Channel> c = connection;
+        connection = null;
+        if (c != null) {
+            c.thenAccept(Channel::close);
+        }
+    }
+
+    public void shutdown() {
+        reconnect();
+        if (ownGroup) {
+            group.shutdownGracefully();
+        }
+    }
+
+    /**
+     * @return the event loop group the client runs on, i.e. to schedule
+     * retries without blocking
+     */
+    public EventLoopGroup getGroup() {
+        return group;
+    }
+}
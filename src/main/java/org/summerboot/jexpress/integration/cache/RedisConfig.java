@@ -24,10 +24,16 @@ import org.summerboot.jexpress.boot.config.ConfigUtil;
 import org.summerboot.jexpress.boot.config.JExpressConfig;
 import org.summerboot.jexpress.security.SecurityUtil;
 import org.summerboot.jexpress.util.BeanUtil;
+import redis.clients.jedis.ConnectionPoolConfig;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisClientConfig;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.JedisSentineled;
 import redis.clients.jedis.Protocol;
+import redis.clients.jedis.UnifiedJedis;
 import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.jedis.exceptions.JedisDataException;
 
@@ -37,9 +43,11 @@ import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
 import static org.summerboot.jexpress.boot.config.ConfigUtil.ENCRYPTED_WARPER_PREFIX;
@@ -51,13 +59,58 @@ public class RedisConfig implements JExpressConfig {
 
     protected static final String PK = "primary";
 
+    /**
+     * redis.Mode, the redis.node entries are the data nodes in Standalone
+     * mode, the sentinels in Sentinel mode and the seed nodes in Cluster mode
+     */
+    public enum Mode {
+        /**
+         * one or more independent nodes with client side master probing and
+         * failover
+         */
+        Standalone,
+        /**
+         * master discovered and failed over by Redis Sentinel
+         */
+        Sentinel,
+        /**
+         * Redis Cluster, keys are routed to the slot owner
+         */
+        Cluster
+    }
+
     protected static Logger log = LogManager.getLogger(RedisConfig.class);
     protected File cfgFile;
-    protected volatile List<JedisPool> jedisPools;
-    protected volatile JedisPool masterPool;
+    protected volatile JedisPooled masterPool;
+    protected volatile List<UnifiedJedis> clients;
+    protected volatile UnifiedJedis masterClient;
+    @JsonIgnore
+    protected final List<Runnable> shutdownTasks = new CopyOnWriteArrayList<>();
+    protected volatile List<HostAndPort> nodeAddresses;
+    protected volatile List<String> nodePasswords;
+    protected volatile HostAndPort masterAddress;
+    protected volatile String masterPassword;
+    protected volatile Mode mode;
+    protected volatile String sentinelMasterName;
+    protected volatile int retryMaxAttempts;
+    protected volatile long retryBaseDelayMs;
+    protected volatile long retryMaxDelayMs;
+    protected volatile long retryDeadlineMs;
+    protected volatile int circuitBreakerFailureThreshold;
+    protected volatile long circuitBreakerOpenMs;
+    protected volatile int leaseFlashSaleBlockSize;
+    protected volatile int leaseRateLimiterBlockSize;
+    protected volatile long leaseTtlMs;
+    protected volatile String lockChannel;
     protected volatile List<String> nodes;
     protected volatile int reconnectRetryIntervalMinutes;
     protected volatile int sendAlertIntervalMinutes;
+    protected volatile long nearCacheMaxSize;
+    protected volatile long nearCacheNegativeTtlMs;
+    protected volatile String nearCacheInvalidationChannel;
+    protected volatile long revocationIndexExpectedInsertions;
+    protected volatile double revocationIndexFpp;
+    protected volatile String revocationIndexKey;
 
     public static final RedisConfig cfg = new RedisConfig();
 
@@ -98,21 +151,48 @@ public class RedisConfig implements JExpressConfig {
         try (InputStream is = new FileInputStream(cfgFile);) {
             props.load(is);
         }
-        if (jedisPools == null) {
-            jedisPools = new ArrayList();
-        } else {
-            jedisPools.clear();
-        }
         if (nodes == null) {
             nodes = new ArrayList();
         } else {
             nodes.clear();
         }
+        // replaced below, closed once the new ones are in place
+        List<UnifiedJedis> oldClients = clients;
+        UnifiedJedis oldMasterClient = mode != Mode.Standalone ? masterClient : null;
+        clients = new ArrayList();
+        if (nodeAddresses == null) {
+            nodeAddresses = new ArrayList();
+            nodePasswords = new ArrayList();
+        } else {
+            nodeAddresses.clear();
+            nodePasswords.clear();
+        }
         ConfigUtil helper = new ConfigUtil(this.cfgFile.getAbsolutePath());
         reconnectRetryIntervalMinutes = helper.getAsInt(props, "redis.Reconnect.Retry.IntervalMinutes", 1);
         sendAlertIntervalMinutes = helper.getAsInt(props, "redis.SendAlert.IntervalMinutes", 10);
+        nearCacheMaxSize = helper.getAsLong(props, "redis.NearCache.MaxSize", 100000L);// 0 to disable
+        nearCacheNegativeTtlMs = helper.getAsLong(props, "redis.NearCache.NegativeTtlMs", 2000L);
+        nearCacheInvalidationChannel = helper.getAsString(props, "redis.NearCache.InvalidationChannel", "jexpress.nearcache.blacklist");
+        revocationIndexExpectedInsertions = helper.getAsLong(props, "redis.RevocationIndex.ExpectedInsertions", RevocationIndex.DEFAULT_EXPECTED_INSERTIONS);// 0 to disable
+        revocationIndexFpp = Double.parseDouble(helper.getAsString(props, "redis.RevocationIndex.Fpp", String.valueOf(RevocationIndex.DEFAULT_FPP)));
+        revocationIndexKey = helper.getAsString(props, "redis.RevocationIndex.Key", "jexpress.revoked");
+        mode = Mode.valueOf(helper.getAsString(props, "redis.Mode", Mode.Standalone.name()));
+        sentinelMasterName = helper.getAsString(props, "redis.Sentinel.MasterName", "mymaster");
+        retryMaxAttempts = helper.getAsInt(props, "redis.Retry.MaxAttempts", 3);
+        retryBaseDelayMs = helper.getAsLong(props, "redis.Retry.BaseDelayMs", 20L);
+        retryMaxDelayMs = helper.getAsLong(props, "redis.Retry.MaxDelayMs", 200L);
+        retryDeadlineMs = helper.getAsLong(props, "redis.Retry.DeadlineMs", 500L);// total time budget of one call including retries
+        circuitBreakerFailureThreshold = helper.getAsInt(props, "redis.CircuitBreaker.FailureThreshold", 5);// 0 to disable
+        circuitBreakerOpenMs = helper.getAsLong(props, "redis.CircuitBreaker.OpenMs", 3000L);
+        leaseFlashSaleBlockSize = helper.getAsInt(props, "redis.Lease.FlashSale.BlockSize", 0);// 0 to call Redis per request
+        leaseRateLimiterBlockSize = helper.getAsInt(props, "redis.Lease.RateLimiter.BlockSize", 0);// 0 to call Redis per request
+        leaseTtlMs = helper.getAsLong(props, "redis.Lease.TtlMs", 1000L);
+        lockChannel = props.getProperty("redis.Lock.Channel", "jexpress.lock.released");
 
         masterPool = null;
+        masterClient = null;
+        Set<HostAndPort> hostAndPorts = new LinkedHashSet<>();
+        String[] password = {null};
 
         Set<String> _keys = props.keySet().stream().map(o -> o.toString()).collect(Collectors.toSet());
         List<String> keys = new ArrayList<>(_keys);
@@ -136,42 +216,92 @@ public class RedisConfig implements JExpressConfig {
                 }
                 String host = f2[1];
                 int port = Integer.parseInt(fields[2]);
-                JedisPool jp = new JedisPool(new JedisPoolConfig(),
-                        host,
-                        port,
-                        Protocol.DEFAULT_TIMEOUT,
-                        pwd);
-                jedisPools.add(jp);
                 nodes.add(host + ":" + port);
+                if (mode != Mode.Standalone) {
+                    hostAndPorts.add(new HostAndPort(host, port));
+                    if (password[0] == null) {
+                        password[0] = pwd;
+                    }
+                    return;
+                }
+                clients.add(new JedisPooled(new ConnectionPoolConfig(), host, port, Protocol.DEFAULT_TIMEOUT, pwd));
+                nodeAddresses.add(new HostAndPort(host, port));
+                nodePasswords.add(pwd);
             }
         });
-        String master = autoFailover(null);
-        if (master != null) {
-            nodes.add("current master=" + master);
+        switch (mode) {
+            case Standalone -> {
+                String master = autoFailover(null);
+                if (master != null) {
+                    nodes.add("current master=" + master);
+                }
+            }
+            case Sentinel -> {
+                JedisClientConfig clientConfig = DefaultJedisClientConfig.builder().timeoutMillis(Protocol.DEFAULT_TIMEOUT).password(password[0]).build();
+                masterClient = new JedisSentineled(sentinelMasterName, clientConfig, new ConnectionPoolConfig(), hostAndPorts, clientConfig);
+                nodes.add("sentinel master=" + sentinelMasterName);
+            }
+            case Cluster -> {
+                JedisClientConfig clientConfig = DefaultJedisClientConfig.builder().timeoutMillis(Protocol.DEFAULT_TIMEOUT).password(password[0]).build();
+                masterClient = new JedisCluster(hostAndPorts, clientConfig, new ConnectionPoolConfig());
+            }
+        }
+        close(oldClients, oldMasterClient);
+    }
+
+    protected static void close(List<UnifiedJedis> clients, UnifiedJedis masterClient) {
+        if (clients != null) {
+            clients.forEach((c) -> {
+                try {
+                    c.close();
+                } catch (Throwable ex) {
+                }
+            });
+        }
+        if (masterClient != null) {
+            try {
+                masterClient.close();
+            } catch (Throwable ex) {
+            }
         }
     }
 
+    /**
+     * @param task runs on {@link #shutdown()} while the clients are still
+     * open, i.e. to give back leased quota
+     */
+    public void addShutdownTask(Runnable task) {
+        shutdownTasks.add(task);
+    }
+
     @Override
 
     public void shutdown() {
-        jedisPools.forEach((p) -> {
+        for (Runnable task : shutdownTasks) {
             try {
-                p.destroy();
+                task.run();
             } catch (Throwable ex) {
+                log.warn("Redis shutdown task failed", ex);
             }
-        });
+        }
+        shutdownTasks.clear();
+        close(clients, mode != Mode.Standalone ? masterClient : null);
     }
 
     public String autoFailover(Throwable cause) {
         if (cause != null) {
             log.error(cause);
         }
+        if (mode != Mode.Standalone) {
+            return null;// failover is done by Sentinel/Cluster
+        }
         long lastFailoveredMasterPoolTTL = 0;
-        masterPool = null;
         String key = PK;
-        JedisPool firstAvaliableMasterPool = null, failoveredMasterPool = null;
-        for (JedisPool pool : jedisPools) {
-            try (Jedis jedis = pool.getResource();) {
+        List<UnifiedJedis> pools = clients;
+        JedisPooled firstAvaliableMasterPool = null, failoveredMasterPool = null;
+        for (UnifiedJedis c : pools) {
+            JedisPooled pool = (JedisPooled) c;
+            try (Jedis jedis = new Jedis(pool.getPool().getResource());) {
                 jedis.del("arbitraryValue_just_check-writable");
                 String anyValue = jedis.get(key);
                 if (anyValue == null) {// not found
@@ -197,16 +327,20 @@ public class RedisConfig implements JExpressConfig {
                 log.warn("find connection: " + ex);
             }
         }
-        if (failoveredMasterPool != null) {
-            masterPool = failoveredMasterPool;
-        } else if (firstAvaliableMasterPool != null) {
-            masterPool = firstAvaliableMasterPool;
+        JedisPooled newMasterPool = failoveredMasterPool != null ? failoveredMasterPool : firstAvaliableMasterPool;
+        if (newMasterPool != null) {
+            int i = pools.indexOf(newMasterPool);
+            masterAddress = nodeAddresses.get(i);
+            masterPassword = nodePasswords.get(i);
         }
+        // the shared client is one of the node clients in Standalone mode, switched but never closed here
+        masterPool = newMasterPool;
+        masterClient = newMasterPool;
 
         String ret = null; // return null to indicate no available node
-        if (masterPool != null) {
+        if (newMasterPool != null) {
             // now switched to new master node
-            try (Jedis jedis = masterPool.getResource();) {
+            try (Jedis jedis = new Jedis(newMasterPool.getPool().getResource());) {
                 //ret = jedis.getClient().toString();
                 ret = jedis.getConnection().toString();
                 long ttl = (Long.MAX_VALUE - System.currentTimeMillis() - 1000) / 1000;
@@ -217,12 +351,87 @@ public class RedisConfig implements JExpressConfig {
         return ret;
     }
 
+    /**
+     * @return a connection to the master in Standalone mode, null if no
+     * master is available or in Sentinel/Cluster mode
+     */
     @JsonIgnore
     public Jedis getMaster() {
-        if (masterPool == null) {
+        JedisPooled pool = masterPool;
+        if (pool == null) {
             return null;
         }
-        return masterPool.getResource();
+        return new Jedis(pool.getPool().getResource());// returned to the pool on close
+    }
+
+    /**
+     * @return the shared client of the current master (Standalone/Sentinel)
+     * or the cluster, null if no master is available; not to be closed by the
+     * caller
+     */
+    @JsonIgnore
+    public UnifiedJedis getClient() {
+        return masterClient;
+    }
+
+    /**
+     * @return address of the current master in Standalone mode
+     */
+    public HostAndPort getMasterAddress() {
+        return masterAddress;
+    }
+
+    @JsonIgnore
+    public String getMasterPassword() {
+        return masterPassword;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public String getSentinelMasterName() {
+        return sentinelMasterName;
+    }
+
+    public int getRetryMaxAttempts() {
+        return retryMaxAttempts;
+    }
+
+    public long getRetryBaseDelayMs() {
+        return retryBaseDelayMs;
+    }
+
+    public long getRetryMaxDelayMs() {
+        return retryMaxDelayMs;
+    }
+
+    public long getRetryDeadlineMs() {
+        return retryDeadlineMs;
+    }
+
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    public long getCircuitBreakerOpenMs() {
+        return circuitBreakerOpenMs;
+    }
+
+    public int getLeaseFlashSaleBlockSize() {
+        return leaseFlashSaleBlockSize;
+    }
+
+    public int getLeaseRateLimiterBlockSize() {
+        return leaseRateLimiterBlockSize;
+    }
+
+    public long getLeaseTtlMs() {
+        return leaseTtlMs;
+    }
+
+    public String getLockChannel() {
+        return lockChannel;
     }
 
     public List<String> getNodes() {
@@ -236,4 +445,28 @@ public class RedisConfig implements JExpressConfig {
     public int getSendAlertIntervalMinutes() {
         return sendAlertIntervalMinutes;
     }
+
+    public long getNearCacheMaxSize() {
+        return nearCacheMaxSize;
+    }
+
+    public long getNearCacheNegativeTtlMs() {
+        return nearCacheNegativeTtlMs;
+    }
+
+    public String getNearCacheInvalidationChannel() {
+        return nearCacheInvalidationChannel;
+    }
+
+    public long getRevocationIndexExpectedInsertions() {
+        return revocationIndexExpectedInsertions;
+    }
+
+    public double getRevocationIndexFpp() {
+        return revocationIndexFpp;
+    }
+
+    public String getRevocationIndexKey() {
+        return revocationIndexKey;
+    }
 }
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.summerboot.jexpress.boot.config.NamedDefaultThreadFactory;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.UnifiedJedis;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Redis distributed lock with fencing tokens and lease renewal.
+ * <ul>
+ * <li>every successful acquire returns a fencing token from a per-lock
+ * counter that only increases, so a resource can reject writes from a holder
+ * whose lease has already been taken over</li>
+ * <li>a watchdog renews the lease every 1/3 of its time while held, a lease
+ * that could not be renewed is reported by {@link Lease#isLost()}</li>
+ * <li>a local gate per lock name lets only one thread per node contend in
+ * Redis, the others wait in-process</li>
+ * <li>a contender waiting for a lock held by another node is woken by a
+ * pub/sub message when the lock is released, and otherwise at the latest
+ * when the holder's lease expires - no spin polling</li>
+ * </ul>
+ * Not reentrant: a thread acquiring a lock it already holds waits until
+ * timeout.
+ * <pre>
+ * {@code
+ * try (RedisLockService.Lease lease = cache.getLockService().acquire("job:daily-report", 30000, 5000)) {
+ *     if (lease == null) {
+ *         return;// busy
+ *     }
+ *     storage.write(report, lease.getFencingToken());
+ * }
+ * }
+ * </pre>
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RedisLockService {
+
+    protected static final Logger log = LogManager.getLogger(RedisLockService.class.getName());
+
+    /*
+      returns {fencingToken, 0} when acquired, {0, pttl of the current holder} otherwise;
+      owner aware so that a retry after a lost reply gets the same token instead of waiting for itself
+     */
+    protected static final String LUA_SCRIPT_ACQUIRE = "if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then\n"
+            + "    return {redis.call('incr', KEYS[2]), 0}\n"
+            + "end\n"
+            + "if redis.call('get', KEYS[1]) == ARGV[1] then\n"
+            + "    redis.call('pexpire', KEYS[1], ARGV[2])\n"
+            + "    return {tonumber(redis.call('get', KEYS[2])), 0}\n"
+            + "end\n"
+            + "return {0, redis.call('pttl', KEYS[1])}";
+    protected static final String LUA_SCRIPT_RENEW = "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end";
+    protected static final String LUA_SCRIPT_RELEASE = "if redis.call('get', KEYS[1]) == ARGV[1] then\n"
+            + "    redis.call('del', KEYS[1])\n"
+            + "    redis.call('publish', ARGV[2], ARGV[3])\n"
+            + "    return 1\n"
+            + "end\n"
+            + "return 0";
+
+    protected static final long MAX_WAIT_WITHOUT_NOTIFICATION_MS = 200;
+
+    protected final BootCache_RedisImple cache;
+    protected final String channel;
+    protected final Map<String, LocalGate> gates = new ConcurrentHashMap<>();
+    protected final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(NamedDefaultThreadFactory.build("Redis.Lock.Watchdog", true));
+    protected volatile JedisPubSub pubSub;
+    protected volatile boolean subscribed = false;
+    protected volatile boolean running = true;
+
+    protected final LongAdder acquiredCount = new LongAdder();
+    protected final LongAdder contendedCount = new LongAdder();
+    protected final LongAdder timeoutCount = new LongAdder();
+    protected final LongAdder lostCount = new LongAdder();
+    protected final LongAdder totalWaitNanos = new LongAdder();
+    protected final LongAdder totalHoldNanos = new LongAdder();
+    protected final AtomicLong maxHoldNanos = new AtomicLong(0);
+
+    /**
+     * One per lock name while used on this node: the permit is held by the
+     * local owner of the lock, the signal is released by the unlock message
+     */
+    protected static class LocalGate {
+
+        protected final Semaphore permit = new Semaphore(1);
+        protected final Semaphore released = new Semaphore(0);
+        protected int refs;
+    }
+
+    public class Lease implements AutoCloseable {
+
+        protected final String name;
+        protected final String owner;
+        protected final long fencingToken;
+        protected final long leaseMs;
+        protected final long acquiredAt = System.nanoTime();
+        protected final LocalGate gate;
+        protected volatile long expireAt;
+        protected volatile boolean lost;
+        protected volatile boolean closed;
+        protected volatile ScheduledFuture<?> renewal;
+
+        protected Lease(String name, String owner, long fencingToken, long leaseMs, LocalGate gate) {
+            this.name = name;
+            this.owner = owner;
+            this.fencingToken = fencingToken;
+            this.leaseMs = leaseMs;
+            this.gate = gate;
+            this.expireAt = System.currentTimeMillis() + leaseMs;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return a number greater than that of any previous holder of this
+         * lock, to be checked by the protected resource
+         */
+        public long getFencingToken() {
+            return fencingToken;
+        }
+
+        /**
+         * @return true if the lease could not be renewed and another node may
+         * hold the lock now
+         */
+        public boolean isLost() {
+            return lost || !closed && System.currentTimeMillis() >= expireAt;
+        }
+
+        /**
+         * releases the lock
+         */
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    public RedisLockService(BootCache_RedisImple cache, String channel) {
+        this.cache = cache;
+        this.channel = channel;
+    }
+
+    protected static String lockKey(String name) {
+        return "lock:{" + name + "}";// hash tag keeps both keys in one Cluster slot
+    }
+
+    protected static String fenceKey(String name) {
+        return "lock:{" + name + "}:fence";
+    }
+
+    protected LocalGate gate(String name) {
+        return gates.compute(name, (k, g) -> {
+            if (g == null) {
+                g = new LocalGate();
+            }
+            g.refs++;
+            return g;
+        });
+    }
+
+    protected void ungate(String name) {
+        gates.computeIfPresent(name, (k, g) -> --g.refs == 0 ? null : g);
+    }
+
+    /**
+     * @param name    lock name
+     * @param leaseMs lease time, renewed by the watchdog while held
+     * @param waitMs  max time to wait for the lock, 0 to try once
+     * @return the lease, null if not acquired within waitMs
+     * @throws InterruptedException
+     */
+    public Lease acquire(String name, long leaseMs, long waitMs) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        LocalGate gate = gate(name);
+        boolean gated = false;
+        boolean ok = false;
+        try {
+            if (!gate.permit.tryAcquire(waitMs, TimeUnit.MILLISECONDS)) {
+                contendedCount.increment();
+                timeoutCount.increment();
+                return null;
+            }
+            gated = true;
+            String owner = cache.generateUnlockPassword();
+            boolean contended = false;
+            while (true) {
+                gate.released.drainPermits();
+                long[] result = tryAcquire(name, owner, leaseMs);
+                if (result[0] > 0) {
+                    if (contended || System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(1)) {
+                        contendedCount.increment();
+                    }
+                    totalWaitNanos.add(System.nanoTime() - start);
+                    acquiredCount.increment();
+                    Lease lease = new Lease(name, owner, result[0], leaseMs, gate);
+                    scheduleRenewal(lease);
+                    ok = true;
+                    return lease;
+                }
+                contended = true;
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    timeoutCount.increment();
+                    contendedCount.increment();
+                    return null;
+                }
+                // woken by the unlock message, or when the holder's lease expires
+                long holderPttl = result[1] > 0 ? result[1] : MAX_WAIT_WITHOUT_NOTIFICATION_MS;
+                long waitNanos = TimeUnit.MILLISECONDS.toNanos(subscribed ? holderPttl : Math.min(holderPttl, MAX_WAIT_WITHOUT_NOTIFICATION_MS));
+                gate.released.tryAcquire(Math.min(remainingNanos, waitNanos), TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            if (!ok) {
+                if (gated) {
+                    gate.permit.release();
+                }
+                ungate(name);
+            }
+        }
+    }
+
+    /**
+     * @return {fencingToken, 0} if acquired, {0, pttl} otherwise
+     */
+    protected long[] tryAcquire(String name, String owner, long leaseMs) {
+        startListener();
+        long[] ret = new long[2];
+        // retry is safe: the script returns the same token to the same owner
+        cache.executeRedis(true, redis -> {
+            List<Long> r = (List<Long>) redis.eval(LUA_SCRIPT_ACQUIRE, List.of(lockKey(name), fenceKey(name)), List.of(owner, String.valueOf(leaseMs)));
+            ret[0] = r.get(0);
+            ret[1] = r.get(1);
+        });
+        return ret;
+    }
+
+    protected void scheduleRenewal(Lease lease) {
+        long interval = Math.max(1, lease.leaseMs / 3);
+        lease.renewal = watchdog.scheduleWithFixedDelay(() -> renew(lease), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    protected void renew(Lease lease) {
+        if (lease.closed || lease.lost) {
+            return;
+        }
+        long[] renewed = {0};
+        try {
+            cache.executeRedis(false, redis -> {
+                renewed[0] = (Long) redis.eval(LUA_SCRIPT_RENEW, List.of(lockKey(lease.name)), List.of(lease.owner, String.valueOf(lease.leaseMs)));
+            });
+        } catch (RuntimeException ex) {
+            log.warn(() -> "failed to renew lock " + lease.name + ": " + ex);
+            return;// try again on next tick, lost once expired
+        }
+        if (renewed[0] == 1) {
+            lease.expireAt = System.currentTimeMillis() + lease.leaseMs;
+        } else {
+            lease.lost = true;
+            lostCount.increment();
+            ScheduledFuture<?> r = lease.renewal;
+            if (r != null) {
+                r.cancel(false);
+            }
+            log.warn(() -> "lock " + lease.name + " lost, fencing token " + lease.fencingToken);
+        }
+    }
+
+    protected void release(Lease lease) {
+        if (lease.closed) {
+            return;
+        }
+        lease.closed = true;
+        ScheduledFuture<?> r = lease.renewal;
+        if (r != null) {
+            r.cancel(false);
+        }
+        long holdNanos = System.nanoTime() - lease.acquiredAt;
+        totalHoldNanos.add(holdNanos);
+        maxHoldNanos.accumulateAndGet(holdNanos, Math::max);
+        try {
+            if (!lease.lost) {
+                cache.executeRedis(true, redis -> {
+                    redis.eval(LUA_SCRIPT_RELEASE, List.of(lockKey(lease.name)), List.of(lease.owner, channel, lease.name));
+                });
+            }
+        } finally {
+            lease.gate.permit.release();
+            ungate(lease.name);
+        }
+    }
+
+    protected void onReleased(String name) {
+        LocalGate gate = gates.get(name);
+        if (gate != null) {
+            gate.released.release();
+        }
+    }
+
+    protected void startListener() {
+        if (pubSub != null || !running) {
+            return;
+        }
+        synchronized (this) {
+            if (pubSub == null) {
+                pubSub = new JedisPubSub() {
+                    @Override
+                    public void onSubscribe(String channel, int subscribedChannels) {
+                        subscribed = true;
+                    }
+
+                    @Override
+                    public void onMessage(String channel, String message) {
+                        onReleased(message);
+                    }
+                };
+                Thread.ofVirtual().name("Redis.Lock.Listener").start(this::listen);
+            }
+        }
+    }
+
+    protected void listen() {
+        while (running) {
+            try {
+                UnifiedJedis redis = RedisConfig.cfg.getClient();
+                if (redis != null) {
+                    redis.subscribe(pubSub, channel);// blocks until unsubscribed or disconnected
+                }
+            } catch (Throwable ex) {
+                log.debug(() -> "lock listener disconnected from " + channel + ": " + ex);
+            } finally {
+                subscribed = false;
+            }
+            if (running) {
+                try {
+                    TimeUnit.SECONDS.sleep(1);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * resubscribe, i.e. after Redis master changed
+     */
+    public void reconnect() {
+        JedisPubSub ps = pubSub;
+        if (ps != null && ps.isSubscribed()) {
+            ps.unsubscribe();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        reconnect();
+        watchdog.shutdownNow();
+    }
+
+    public long getAcquiredCount() {
+        return acquiredCount.sum();
+    }
+
+    /**
+     * @return acquires (successful or not) that had to wait for another holder
+     */
+    public long getContendedCount() {
+        return contendedCount.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /**
+     * @return leases that expired or were taken over while held
+     */
+    public long getLostCount() {
+        return lostCount.sum();
+    }
+
+    public double getAvgWaitMs() {
+        long n = acquiredCount.sum();
+        return n == 0 ? 0 : totalWaitNanos.sum() / 1e6 / n;
+    }
+
+    public double getAvgHoldMs() {
+        long n = acquiredCount.sum();
+        return n == 0 ? 0 : totalHoldNanos.sum() / 1e6 / n;
+    }
+
+    public double getMaxHoldMs() {
+        return maxHoldNanos.get() / 1e6;
+    }
+
+    public int getLocalLockCount() {
+        return gates.size();
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+import redis.clients.jedis.resps.Tuple;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * L1 in-process cache in front of Redis for key existence checks (i.e. JWT
+ * blacklist), kept consistent across nodes via Redis pub/sub.
+ * <p>
+ * A key found in Redis is cached until its Redis TTL expires. A key not found
+ * is cached for a short negative TTL, and only while the invalidation channel
+ * is subscribed: a blacklist on any node publishes the key, so all nodes drop
+ * the negative entry within milliseconds. Negative entries cached before a
+ * resubscription are ignored, since messages may have been missed meanwhile.
+ * <p>
+ * With a {@link RevocationIndex}, every revoked key is also kept in a Redis
+ * sorted set scored by expiry time; the index is rebuilt from it after each
+ * (re)subscription and then kept up to date by the invalidation messages.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RedisNearCache {
+
+    protected static final Logger log = LogManager.getLogger(RedisNearCache.class.getName());
+
+    protected static final Long PRESENT = -1L;
+
+    /**
+     * value is PRESENT, or the subscription epoch when the key was found absent
+     */
+    protected final SimpleLocalCacheImpl<String, Long> l1;
+    protected final String channel;
+    protected final long negativeTtlMs;
+    protected final RedisConfig redisCfg;
+
+    protected final AtomicLong invalidations = new AtomicLong(0);
+    protected volatile long epoch = 0;
+    protected volatile boolean subscribed = false;
+    protected volatile JedisPubSub pubSub;
+    protected volatile boolean running = true;
+    protected final RevocationIndex revocationIndex;
+    protected final String revocationIndexKey;
+
+    public RedisNearCache(RedisConfig redisCfg, String channel, long maxSize, long negativeTtlMs) {
+        this(redisCfg, channel, maxSize, negativeTtlMs, null, null);
+    }
+
+    /**
+     * @param redisCfg
+     * @param channel
+     * @param maxSize
+     * @param negativeTtlMs
+     * @param revocationIndex null to disable
+     * @param revocationIndexKey Redis sorted set of revoked keys
+     */
+    public RedisNearCache(RedisConfig redisCfg, String channel, long maxSize, long negativeTtlMs, RevocationIndex revocationIndex, String revocationIndexKey) {
+        this.redisCfg = redisCfg;
+        this.channel = channel;
+        this.negativeTtlMs = negativeTtlMs;
+        this.l1 = new SimpleLocalCacheImpl<>("RedisNearCache", maxSize);
+        this.revocationIndex = revocationIndex;
+        this.revocationIndexKey = revocationIndexKey;
+    }
+
+    public RevocationIndex getRevocationIndex() {
+        return revocationIndex;
+    }
+
+    public String getRevocationIndexKey() {
+        return revocationIndexKey;
+    }
+
+    /**
+     * rebuild the index from the Redis sorted set, the index becomes ready
+     * only if still subscribed to the same epoch
+     *
+     * @param syncEpoch
+     */
+    protected void syncRevocationIndex(long syncEpoch) {
+        long now = System.currentTimeMillis();
+        long count = 0;
+        UnifiedJedis redis = redisCfg.getClient();
+        if (redis == null) {
+            return;
+        }
+        try {
+            redis.zremrangeByScore(revocationIndexKey, 0, now);
+            ScanParams params = new ScanParams().count(1000);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<Tuple> result = redis.zscan(revocationIndexKey, cursor, params);
+                for (Tuple t : result.getResult()) {
+                    revocationIndex.add(t.getElement(), (long) t.getScore());
+                    count++;
+                }
+                cursor = result.getCursor();
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor) && running);
+        } catch (Throwable ex) {
+            log.warn(() -> "failed to sync revocation index from " + revocationIndexKey + ": " + ex);
+            return;
+        }
+        if (subscribed && epoch == syncEpoch) {
+            revocationIndex.setReady(true);
+        }
+        final long total = count;
+        log.info(() -> "revocation index synced: " + total + " entries in " + (System.currentTimeMillis() - now) + "ms");
+    }
+
+    /**
+     * @param key
+     * @return true if present, false if absent, null if unknown (ask Redis)
+     */
+    public Boolean exists(String key) {
+        Long v = l1.get(key);
+        if (v == null) {
+            return null;
+        }
+        if (PRESENT.equals(v)) {
+            return true;
+        }
+        return subscribed && v == epoch ? Boolean.FALSE : null;
+    }
+
+    /**
+     * @return a token to pass to {@link #onAbsent(String, long)} after asking
+     * Redis
+     */
+    public long beforeLoad() {
+        return invalidations.get();
+    }
+
+    public void onPresent(String key, long ttlMilliseconds) {
+        l1.put(key, PRESENT, ttlMilliseconds < 0 ? null : ttlMilliseconds);
+    }
+
+    /**
+     * cache the absence, unless an invalidation arrived while loading it from
+     * Redis
+     *
+     * @param key
+     * @param loadToken
+     */
+    public void onAbsent(String key, long loadToken) {
+        if (subscribed && negativeTtlMs > 0 && invalidations.get() == loadToken) {
+            l1.put(key, epoch, negativeTtlMs);
+        }
+    }
+
+    /**
+     * @param key
+     * @param ttlMilliseconds
+     * @return the pub/sub message to publish
+     */
+    public String message(String key, long ttlMilliseconds) {
+        return ttlMilliseconds + " " + key;
+    }
+
+    protected void onMessage(String message) {
+        int i = message.indexOf(' ');
+        if (i < 1) {
+            return;
+        }
+        invalidations.incrementAndGet();
+        try {
+            String key = message.substring(i + 1);
+            long ttlMilliseconds = Long.parseLong(message.substring(0, i));
+            onPresent(key, ttlMilliseconds);
+            if (revocationIndex != null) {
+                revocationIndex.add(key, System.currentTimeMillis() + ttlMilliseconds);
+            }
+        } catch (NumberFormatException ex) {
+            log.warn(() -> "invalid message on " + channel + ": " + message);
+        }
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public boolean isSubscribed() {
+        return subscribed;
+    }
+
+    /**
+     * start the invalidation listener
+     */
+    public void start() {
+        Thread.ofVirtual().name("Redis.NearCache").start(this::listen);
+    }
+
+    protected void listen() {
+        while (running) {
+            try {
+                UnifiedJedis redis = redisCfg.getClient();
+                if (redis != null) {
+                    JedisPubSub ps = new JedisPubSub() {
+                        @Override
+                        public void onSubscribe(String channel, int subscribedChannels) {
+                            long syncEpoch = ++epoch;
+                            if (revocationIndex != null) {
+                                // clear before any message is dispatched, then rebuild in background while messages keep coming
+                                revocationIndex.clear();
+                                Thread.ofVirtual().name("Redis.RevocationIndex.sync").start(() -> syncRevocationIndex(syncEpoch));
+                            }
+                            subscribed = true;
+                            log.debug(() -> "subscribed " + channel);
+                        }
+
+                        @Override
+                        public void onMessage(String channel, String message) {
+                            RedisNearCache.this.onMessage(message);
+                        }
+                    };
+                    pubSub = ps;
+                    redis.subscribe(ps, channel);// blocks until unsubscribed or disconnected
+                }
+            } catch (Throwable ex) {
+                log.warn(() -> "invalidation listener disconnected from " + channel + ": " + ex);
+            } finally {
+                subscribed = false;
+                pubSub = null;
+                if (revocationIndex != null) {
+                    revocationIndex.setReady(false);
+                }
+            }
+            if (running) {
+                try {
+                    TimeUnit.SECONDS.sleep(1);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * resubscribe, i.e. after Redis master changed
+     */
+    public void reconnect() {
+        JedisPubSub ps = pubSub;
+        if (ps != null && ps.isSubscribed()) {
+            ps.unsubscribe();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        reconnect();
+        l1.close();
+    }
+}
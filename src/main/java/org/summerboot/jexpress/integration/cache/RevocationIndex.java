@@ -0,0 +1,189 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.cache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory index of revoked (blacklisted) JWT ids in front of the
+ * authoritative {@link AuthTokenCache}: when {@link #mightContain(String)}
+ * returns false the token is definitely not revoked and the cache lookup is
+ * skipped, only possible positives need to be confirmed.
+ * <p>
+ * Entries are removed from the counting Bloom filter when they expire: the
+ * fingerprints are kept in primitive arrays bucketed by expiry time (8 bytes
+ * per revoked token), and expired buckets are drained lazily by the readers.
+ * <p>
+ * While not {@link #isReady()} (i.e. not yet synced with a shared store) every
+ * lookup is a possible positive.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RevocationIndex {
+
+    public static final long DEFAULT_EXPECTED_INSERTIONS = 1_000_000;
+    public static final double DEFAULT_FPP = 0.01;
+    protected static final long BUCKET_MILLIS = 10_000;
+
+    protected final CountingBloomFilter filter;
+    protected final ConcurrentSkipListMap<Long, Bucket> expiryBuckets = new ConcurrentSkipListMap<>();
+    protected volatile long nextExpiry = Long.MAX_VALUE;
+    protected volatile boolean ready;
+
+    protected final AtomicLong size = new AtomicLong(0);
+    protected final LongAdder negativeCount = new LongAdder();
+    protected final LongAdder positiveCount = new LongAdder();
+
+    protected static class Bucket {
+
+        protected long[] fingerprints = new long[16];
+        protected int size;
+        protected boolean drained;
+
+        /**
+         * @return false if the bucket has been drained
+         */
+        protected synchronized boolean add(long fingerprint) {
+            if (drained) {
+                return false;
+            }
+            if (size == fingerprints.length) {
+                fingerprints = Arrays.copyOf(fingerprints, size * 2);
+            }
+            fingerprints[size++] = fingerprint;
+            return true;
+        }
+
+        protected synchronized long[] drain() {
+            drained = true;
+            return Arrays.copyOf(fingerprints, size);
+        }
+    }
+
+    /**
+     * @param expectedInsertions max number of revoked and not yet expired
+     * tokens at the same time
+     * @param fpp
+     * @param ready true if this node is the only source of revocations
+     */
+    public RevocationIndex(long expectedInsertions, double fpp, boolean ready) {
+        this.filter = new CountingBloomFilter(expectedInsertions, fpp);
+        this.ready = ready;
+    }
+
+    /**
+     * @param jti
+     * @param expireAtMillis
+     */
+    public void add(String jti, long expireAtMillis) {
+        if (jti == null || expireAtMillis <= System.currentTimeMillis()) {
+            return;
+        }
+        long fingerprint = CountingBloomFilter.fingerprint(jti);
+        long bucketTime = (expireAtMillis / BUCKET_MILLIS + 1) * BUCKET_MILLIS;// expire at bucket end, never earlier
+        // filter first: once in a bucket, a concurrent expire() may remove the fingerprint from the filter at any time
+        filter.add(fingerprint);
+        size.incrementAndGet();
+        while (true) {
+            Bucket bucket = expiryBuckets.computeIfAbsent(bucketTime, k -> new Bucket());
+            if (bucket.add(fingerprint)) {
+                break;
+            }
+            expiryBuckets.remove(bucketTime, bucket);// drained concurrently, retry with a new one
+        }
+        if (bucketTime < nextExpiry) {
+            synchronized (this) {
+                if (bucketTime < nextExpiry) {
+                    nextExpiry = bucketTime;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param jti
+     * @return false if definitely not revoked
+     */
+    public boolean mightContain(String jti) {
+        if (!ready || jti == null) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= nextExpiry) {
+            expire(now);
+        }
+        boolean ret = filter.mightContain(CountingBloomFilter.fingerprint(jti));
+        if (ret) {
+            positiveCount.increment();
+        } else {
+            negativeCount.increment();
+        }
+        return ret;
+    }
+
+    protected synchronized void expire(long now) {
+        Map.Entry<Long, Bucket> e;
+        while ((e = expiryBuckets.firstEntry()) != null && e.getKey() <= now) {
+            expiryBuckets.remove(e.getKey(), e.getValue());
+            long[] fingerprints = e.getValue().drain();
+            for (long fingerprint : fingerprints) {
+                filter.remove(fingerprint);
+            }
+            size.addAndGet(-fingerprints.length);
+        }
+        Long first = e == null ? null : e.getKey();
+        nextExpiry = first == null ? Long.MAX_VALUE : first;
+    }
+
+    /**
+     * remove all entries and mark not ready, i.e. before resync
+     */
+    public synchronized void clear() {
+        ready = false;
+        expiryBuckets.clear();
+        filter.clear();
+        size.set(0);
+        nextExpiry = Long.MAX_VALUE;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    public long getNegativeCount() {
+        return negativeCount.sum();
+    }
+
+    public long getPositiveCount() {
+        return positiveCount.sum();
+    }
+
+    public long getMemoryBytes() {
+        return filter.getMemoryBytes() + size.get() * 8;
+    }
+}
@@ -16,27 +16,132 @@
 package org.summerboot.jexpress.integration.cache;
 
 import com.google.inject.Singleton;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Size bounded LRU cache with per-entry TTL.
+ * <p>
+ * The keys are spread over lock-striped segments, each one an access ordered
+ * LinkedHashMap that evicts its least recently used entry when full, so a get
+ * or put only locks one segment and costs O(1). Expired entries are removed
+ * lazily when read and from the LRU end on every put, and a put sweeps its
+ * whole segment at most once every {@value #FULL_SWEEP_INTERVAL_MS}ms, so
+ * expired entries behind a long-lived one are removed too. Hit/miss/eviction
+ * stats of a named cache are exposed via JMX until {@link #close()}.
+ *
  * @param <K>
  * @param <V>
  * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
  */
 @Singleton
-public class SimpleLocalCacheImpl<K, V> implements SimpleLocalCache<K, V> {
+public class SimpleLocalCacheImpl<K, V> implements SimpleLocalCache<K, V>, LocalCacheStatsMXBean, AutoCloseable {
+
+    protected static final Logger log = LogManager.getLogger(SimpleLocalCacheImpl.class.getName());
+
+    protected static final int SEGMENTS = 16;// power of 2
+    protected static final long FULL_SWEEP_INTERVAL_MS = 10000;
 
-    protected final Map<Object, CacheEntity<V>> debouncingData = new ConcurrentHashMap<>();
+    protected final long maxSize;
+    protected final Segment<V>[] segments;
 
-    protected void clean(long now) {
-        debouncingData.keySet().forEach(key -> {
-            CacheEntity<V> ce = debouncingData.get(key);
-            if (ce == null || ce.getTtlMillis() < now) {
-                debouncingData.remove(key);
+    protected final LongAdder hitCount = new LongAdder();
+    protected final LongAdder missCount = new LongAdder();
+    protected final LongAdder evictionCount = new LongAdder();
+    protected final LongAdder expiredCount = new LongAdder();
+    protected volatile ObjectName objectName;
+
+    /**
+     * unbounded, entries are only removed when expired or deleted, not
+     * registered to JMX
+     */
+    public SimpleLocalCacheImpl() {
+        this(null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param name JMX name, null to not register to JMX
+     * @param maxSize the least recently used entry is evicted when exceeded
+     */
+    public SimpleLocalCacheImpl(String name, long maxSize) {
+        this.maxSize = Math.max(SEGMENTS, maxSize);
+        int segmentCapacity = (int) Math.min(Integer.MAX_VALUE, (this.maxSize + SEGMENTS - 1) / SEGMENTS);
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>(segmentCapacity, evictionCount);
+        }
+        if (name != null) {
+            registerMBean(name);
+        }
+    }
+
+    protected static class Segment<V> extends LinkedHashMap<Object, CacheEntity<V>> {
+
+        protected final int capacity;
+        protected final LongAdder evictionCount;
+        protected long nextFullSweepTs = System.currentTimeMillis() + FULL_SWEEP_INTERVAL_MS;// guarded by this
+
+        protected Segment(int capacity, LongAdder evictionCount) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictionCount = evictionCount;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, CacheEntity<V>> eldest) {
+            if (size() > capacity) {
+                evictionCount.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    protected Segment<V> segment(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    protected void registerMBean(String name) {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("org.summerboot.jexpress:type=LocalCache,name=" + ObjectName.quote(name));
+            if (mBeanServer.isRegistered(objectName)) {
+                objectName = new ObjectName("org.summerboot.jexpress:type=LocalCache,name=" + ObjectName.quote(name + "@" + Integer.toHexString(System.identityHashCode(this))));
             }
-        });
+            mBeanServer.registerMBean(new StandardMBean(this, LocalCacheStatsMXBean.class, true), objectName);
+            this.objectName = objectName;
+        } catch (JMException | RuntimeException ex) {
+            log.debug(() -> "JMX not available for " + name + ": " + ex);
+        }
+    }
+
+    /**
+     * unregister from JMX, the cache itself stays usable
+     */
+    @Override
+    public void close() {
+        ObjectName on = objectName;
+        if (on == null) {
+            return;
+        }
+        objectName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+        } catch (JMException | RuntimeException ex) {
+            log.debug(() -> "failed to unregister " + on + ": " + ex);
+        }
     }
 
     /**
@@ -46,7 +151,26 @@ public class SimpleLocalCacheImpl<K, V> implements SimpleLocalCache<K, V> {
      */
     @Override
     public void put(K key, V value, Long ttlMilliseconds) {
-        debouncingData.put(key, new CacheEntity(value, ttlMilliseconds));
+        CacheEntity<V> ce = new CacheEntity(value, ttlMilliseconds);
+        Segment<V> segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, ce);
+            long now = System.currentTimeMillis();
+            boolean fullSweep = now >= segment.nextFullSweepTs;
+            if (fullSweep) {
+                segment.nextFullSweepTs = now + FULL_SWEEP_INTERVAL_MS;
+            }
+            // amortized expiry: from the least recently used end up to the first live entry, or the whole segment periodically
+            Iterator<CacheEntity<V>> it = segment.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().getTtlMillis() < now) {
+                    it.remove();
+                    expiredCount.increment();
+                } else if (!fullSweep) {
+                    break;
+                }
+            }
+        }
     }
 
     /**
@@ -58,16 +182,21 @@ public class SimpleLocalCacheImpl<K, V> implements SimpleLocalCache<K, V> {
         if (key == null) {
             return null;
         }
-        long now = System.currentTimeMillis();
-        clean(now);
-        CacheEntity<V> e = debouncingData.get(key);
-        if (e == null) {
-            return null;
+        Segment<V> segment = segment(key);
+        CacheEntity<V> e;
+        synchronized (segment) {
+            e = segment.get(key);
+            if (e != null && e.getTtlMillis() < System.currentTimeMillis()) {
+                segment.remove(key);
+                expiredCount.increment();
+                e = null;
+            }
         }
-        //System.out.println("ttl left=" + (e.getTtlSec() - now));
-        if (e.getTtlMillis() < now) {
+        if (e == null) {
+            missCount.increment();
             return null;
         }
+        hitCount.increment();
         return e.getValue();
     }
 
@@ -77,11 +206,60 @@ public class SimpleLocalCacheImpl<K, V> implements SimpleLocalCache<K, V> {
      */
     @Override
     public V delete(K key) {
-        V ret = get(key);
-        debouncingData.remove(key);
+        if (key == null) {
+            return null;
+        }
+        Segment<V> segment = segment(key);
+        CacheEntity<V> e;
+        synchronized (segment) {
+            e = segment.remove(key);
+        }
+        return e == null || e.getTtlMillis() < System.currentTimeMillis() ? null : e.getValue();
+    }
+
+    @Override
+    public long getSize() {
+        long ret = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                ret += segment.size();
+            }
+        }
         return ret;
     }
 
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hit = hitCount.sum();
+        long total = hit + missCount.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
+
     /**
      * @param <V>
      */
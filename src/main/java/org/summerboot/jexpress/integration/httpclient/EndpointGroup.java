@@ -0,0 +1,585 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.httpclient;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.summerboot.jexpress.boot.config.NamedDefaultThreadFactory;
+
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client side load balancing over the endpoints of one HTTP service: a static
+ * list, the A/AAAA records of a DNS name or the SRV records of a service, the
+ * latter two refreshed periodically.
+ * <p>
+ * An endpoint failing ConsecutiveFailures calls in a row is ejected for
+ * BaseMs, longer each time it is ejected again, as long as no more than
+ * MaxPercent of the endpoints are ejected. An active health check, when
+ * configured, takes an endpoint out until its probe succeeds again. When no
+ * endpoint is available the load is spread over all of them rather than
+ * failing every call.
+ * <p>
+ * DNS discovery sends to the resolved addresses, so it is plain http only:
+ * the Host header keeps the name when -Djdk.httpclient.allowRestrictedHeaders
+ * includes host, otherwise it carries the address.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class EndpointGroup {
+
+    protected static final Logger log = LogManager.getLogger(EndpointGroup.class.getName());
+
+    /**
+     * time constant of the latency moving average
+     */
+    protected static final long EWMA_DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+    /**
+     * latency assumed for an endpoint without a sample when no peer has one
+     * either
+     */
+    protected static final long EWMA_SEED_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /**
+     * a failure counts as a sample of at least this, or twice the current
+     * EWMA when higher
+     */
+    protected static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    protected static final int MAX_EJECTION_MULTIPLIER = 10;
+
+    public enum Strategy {
+        ROUND_ROBIN,
+        /**
+         * the endpoint with the fewest calls in flight
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * the better of two random endpoints, scored by peak EWMA latency x
+         * (calls in flight + 1); an endpoint without a sample is scored with
+         * the average of its peers, a failure counts as a slow sample
+         */
+        P2C_EWMA
+    }
+
+    public enum Discovery {
+        STATIC, DNS, SRV
+    }
+
+    protected final String name;
+    protected final Discovery discovery;
+    protected final List<URI> targets;
+    protected final Strategy strategy;
+    protected final long refreshMs;
+    protected final int ejectConsecutiveFailures;
+    protected final long ejectBaseMs;
+    protected final int ejectMaxPercent;
+    protected final String healthCheckPath;
+    protected final long healthCheckIntervalMs;
+    protected final long healthCheckTimeoutMs;
+    /**
+     * Host header of the calls sent to a resolved address, null to leave it
+     * to the HttpClient
+     */
+    protected final String hostHeader;
+    protected final AtomicInteger next = new AtomicInteger();
+    protected volatile List<Endpoint> endpoints = List.of();
+    protected volatile HttpClient httpClient;
+    protected volatile ScheduledExecutorService scheduler;
+
+    /**
+     * @param name                     profile name
+     * @param discovery
+     * @param targets                  the endpoints when STATIC, otherwise one
+     *                                 scheme://name:port to look up
+     * @param strategy
+     * @param refreshMs                DNS and SRV lookup interval
+     * @param ejectConsecutiveFailures 0 to disable passive ejection
+     * @param ejectBaseMs
+     * @param ejectMaxPercent
+     * @param healthCheckPath          null to disable active health checking
+     * @param healthCheckIntervalMs
+     * @param healthCheckTimeoutMs
+     */
+    public EndpointGroup(String name, Discovery discovery, List<URI> targets, Strategy strategy, long refreshMs,
+                         int ejectConsecutiveFailures, long ejectBaseMs, int ejectMaxPercent,
+                         String healthCheckPath, long healthCheckIntervalMs, long healthCheckTimeoutMs) {
+        this.name = name;
+        this.discovery = discovery;
+        this.targets = List.copyOf(targets);
+        this.strategy = strategy;
+        this.refreshMs = refreshMs;
+        this.ejectConsecutiveFailures = ejectConsecutiveFailures;
+        this.ejectBaseMs = ejectBaseMs;
+        this.ejectMaxPercent = ejectMaxPercent;
+        this.healthCheckPath = healthCheckPath;
+        this.healthCheckIntervalMs = healthCheckIntervalMs;
+        this.healthCheckTimeoutMs = healthCheckTimeoutMs;
+        String host = null;
+        if (discovery == Discovery.DNS) {
+            URI target = this.targets.get(0);
+            if (isHostHeaderAllowed()) {
+                host = target.getPort() > 0 ? target.getHost() + ":" + target.getPort() : target.getHost();
+            } else {
+                log.warn(() -> "HttpClient " + name + " sends the resolved address of " + target.getHost() + " as Host header, add host to -Djdk.httpclient.allowRestrictedHeaders to keep the name");
+            }
+        }
+        this.hostHeader = host;
+    }
+
+    protected static boolean isHostHeaderAllowed() {
+        String allowed = System.getProperty("jdk.httpclient.allowRestrictedHeaders");
+        if (allowed == null) {
+            return false;
+        }
+        for (String h : allowed.split(",")) {
+            if ("host".equalsIgnoreCase(h.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * resolves the endpoints, then starts the periodic lookup and health
+     * probes
+     *
+     * @param client sends the health probes
+     */
+    public void start(HttpClient client) {
+        this.httpClient = client;
+        refresh();
+        boolean isRefreshing = discovery != Discovery.STATIC && refreshMs > 0;
+        boolean isProbing = healthCheckPath != null && healthCheckIntervalMs > 0;
+        if (!isRefreshing && !isProbing) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(NamedDefaultThreadFactory.build("HttpClient." + name + ".Endpoints", true));
+        if (isRefreshing) {
+            scheduler.scheduleWithFixedDelay(this::refresh, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+        }
+        if (isProbing) {
+            scheduler.scheduleWithFixedDelay(this::probe, 0, healthCheckIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void shutdown() {
+        ScheduledExecutorService s = scheduler;
+        if (s != null) {
+            s.shutdownNow();
+        }
+    }
+
+    /**
+     * @param avoid an endpoint not to pick unless it is the only available
+     *              one, e.g. the one a retry or hedged call is moving away
+     *              from; nullable
+     * @return the endpoint for the next call, the caller must then
+     * {@link Endpoint#release(long, boolean)}
+     * @throws RPCRejectedException if no endpoint is resolved
+     */
+    public Endpoint select(Endpoint avoid) throws RPCRejectedException {
+        List<Endpoint> all = endpoints;
+        if (all.isEmpty()) {
+            throw new RPCRejectedException("profile " + name, "no endpoint resolved from " + targets);
+        }
+        long now = System.currentTimeMillis();
+        List<Endpoint> candidates = new ArrayList<>(all.size());
+        for (Endpoint e : all) {
+            if (e != avoid && e.isAvailable(now)) {
+                candidates.add(e);
+            }
+        }
+        if (candidates.isEmpty() && avoid != null && avoid.isAvailable(now)) {
+            candidates.add(avoid);
+        }
+        if (candidates.isEmpty()) {
+            candidates = all;// panic: all ejected or down
+        }
+        int size = candidates.size();
+        Endpoint ret;
+        if (size == 1) {
+            ret = candidates.get(0);
+        } else {
+            ret = switch (strategy) {
+                case ROUND_ROBIN ->
+                        candidates.get(Math.floorMod(next.getAndIncrement(), size));
+                case LEAST_OUTSTANDING -> {
+                    int offset = ThreadLocalRandom.current().nextInt(size);// spread the ties
+                    Endpoint best = null;
+                    for (int i = 0; i < size; i++) {
+                        Endpoint e = candidates.get((offset + i) % size);
+                        if (best == null || e.outstanding.get() < best.outstanding.get()) {
+                            best = e;
+                        }
+                    }
+                    yield best;
+                }
+                case P2C_EWMA -> {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    int i = rnd.nextInt(size);
+                    int j = rnd.nextInt(size - 1);
+                    if (j >= i) {
+                        j++;
+                    }
+                    Endpoint a = candidates.get(i);
+                    Endpoint b = candidates.get(j);
+                    double seedNanos = seedNanos(candidates);
+                    yield a.cost(seedNanos) <= b.cost(seedNanos) ? a : b;
+                }
+            };
+        }
+        ret.outstanding.incrementAndGet();
+        ret.requestCount.increment();
+        return ret;
+    }
+
+    /**
+     * @param candidates
+     * @return the average EWMA of the candidates with a sample, the latency
+     * assumed for the ones without
+     */
+    protected static double seedNanos(List<Endpoint> candidates) {
+        double sum = 0;
+        int count = 0;
+        for (Endpoint e : candidates) {
+            double ewma = e.ewma();
+            if (ewma > 0) {
+                sum += ewma;
+                count++;
+            }
+        }
+        return count == 0 ? EWMA_SEED_NANOS : sum / count;
+    }
+
+    protected void refresh() {
+        List<String> bases;
+        try {
+            bases = resolve();
+        } catch (Throwable ex) {
+            log.warn(() -> "HttpClient " + name + " failed to resolve " + targets + ", keeping " + endpoints, ex);
+            return;
+        }
+        if (bases.isEmpty()) {
+            log.warn(() -> "HttpClient " + name + " resolved no endpoint from " + targets + ", keeping " + endpoints);
+            return;
+        }
+        // keep the stats of the endpoints still there
+        Map<String, Endpoint> current = new LinkedHashMap<>();
+        for (Endpoint e : endpoints) {
+            current.put(e.base, e);
+        }
+        List<Endpoint> updated = new ArrayList<>(bases.size());
+        for (String base : bases) {
+            Endpoint e = current.get(base);
+            updated.add(e == null ? new Endpoint(base) : e);
+        }
+        if (!updated.equals(endpoints)) {
+            log.info(() -> "HttpClient " + name + " endpoints: " + bases);
+            endpoints = List.copyOf(updated);
+        }
+    }
+
+    /**
+     * @return scheme://host:port of each endpoint
+     * @throws Exception
+     */
+    protected List<String> resolve() throws Exception {
+        List<String> ret = new ArrayList<>();
+        switch (discovery) {
+            case STATIC -> {
+                for (URI target : targets) {
+                    ret.add(base(target.getScheme(), target.getHost(), port(target)));
+                }
+            }
+            case DNS -> {
+                URI target = targets.get(0);
+                for (InetAddress address : InetAddress.getAllByName(target.getHost())) {
+                    String ip = address.getHostAddress();
+                    ret.add(base(target.getScheme(), ip.contains(":") ? "[" + ip + "]" : ip, port(target)));
+                }
+            }
+            case SRV -> {
+                URI target = targets.get(0);
+                Hashtable<String, String> env = new Hashtable<>();
+                env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+                DirContext ctx = new InitialDirContext(env);
+                try {
+                    Attribute records = ctx.getAttributes(target.getHost(), new String[]{"SRV"}).get("SRV");
+                    if (records == null) {
+                        return ret;
+                    }
+                    // priority weight port target, only the most preferred priority is used
+                    int bestPriority = Integer.MAX_VALUE;
+                    NamingEnumeration<?> e = records.getAll();
+                    while (e.hasMore()) {
+                        String[] srv = e.next().toString().trim().split("\\s+");
+                        int priority = Integer.parseInt(srv[0]);
+                        if (priority > bestPriority) {
+                            continue;
+                        }
+                        if (priority < bestPriority) {
+                            bestPriority = priority;
+                            ret.clear();
+                        }
+                        String host = srv[3].endsWith(".") ? srv[3].substring(0, srv[3].length() - 1) : srv[3];
+                        ret.add(base(target.getScheme(), host, Integer.parseInt(srv[2])));
+                    }
+                } finally {
+                    ctx.close();
+                }
+            }
+        }
+        return ret;
+    }
+
+    protected static String base(String scheme, String host, int port) {
+        return scheme + "://" + host + ":" + port;
+    }
+
+    protected static int port(URI uri) {
+        int port = uri.getPort();
+        if (port > 0) {
+            return port;
+        }
+        return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    protected void probe() {
+        HttpClient client = httpClient;
+        for (Endpoint e : endpoints) {
+            HttpRequest req = HttpRequest.newBuilder(URI.create(e.base + healthCheckPath))
+                    .timeout(Duration.ofMillis(healthCheckTimeoutMs))
+                    .GET().build();
+            client.sendAsync(req, HttpResponse.BodyHandlers.discarding()).whenComplete((response, ex) -> {
+                boolean healthy = ex == null && response.statusCode() >= 200 && response.statusCode() < 300;
+                if (healthy != e.healthy) {
+                    e.healthy = healthy;
+                    if (healthy) {
+                        log.info(() -> "HttpClient " + name + " endpoint " + e.base + " passed health check");
+                    } else {
+                        log.warn(() -> "HttpClient " + name + " endpoint " + e.base + " failed health check: " + (ex == null ? response.statusCode() : ex));
+                    }
+                }
+            });
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    @Override
+    public String toString() {
+        return "EndpointGroup{" + "strategy=" + strategy + ", discovery=" + discovery + ", endpoints=" + endpoints + '}';
+    }
+
+    public class Endpoint {
+
+        protected final String base;
+        protected final AtomicInteger outstanding = new AtomicInteger();
+        protected final AtomicInteger consecutiveFailures = new AtomicInteger();
+        protected final LongAdder requestCount = new LongAdder();
+        protected final LongAdder failureCount = new LongAdder();
+        protected volatile boolean healthy = true;
+        protected volatile long ejectedUntil;
+        protected int ejectionCount;
+        protected double ewmaNanos;
+        protected long ewmaStamp;
+
+        protected Endpoint(String base) {
+            this.base = base;
+        }
+
+        /**
+         * @param req
+         * @return the request sent to this endpoint, same path and query
+         */
+        public HttpRequest rewrite(HttpRequest req) {
+            URI uri = req.uri();
+            String path = uri.getRawPath();
+            String query = uri.getRawQuery();
+            URI target = URI.create(base + (path == null ? "" : path) + (query == null ? "" : "?" + query));
+            HttpRequest.Builder reqBuilder = HttpRequest.newBuilder(req, (headerName, headerValue) -> true).uri(target);
+            if (hostHeader != null) {
+                reqBuilder.setHeader("Host", hostHeader);
+            }
+            return reqBuilder.build();
+        }
+
+        /**
+         * @param latencyNanos
+         * @param failed       connection error, timeout or unhealthy status
+         */
+        public void release(long latencyNanos, boolean failed) {
+            outstanding.decrementAndGet();
+            if (failed) {
+                failureCount.increment();
+                penalize(latencyNanos);
+                if (ejectConsecutiveFailures > 0 && consecutiveFailures.incrementAndGet() >= ejectConsecutiveFailures) {
+                    eject();
+                }
+            } else {
+                // a fast failure must not make the endpoint look fast
+                updateEwma(latencyNanos);
+                consecutiveFailures.set(0);
+            }
+        }
+
+        /**
+         * gives back a selected endpoint whose call was cancelled, no latency
+         * sample and no failure
+         */
+        public void cancel() {
+            outstanding.decrementAndGet();
+        }
+
+        protected void eject() {
+            synchronized (EndpointGroup.this) {
+                long now = System.currentTimeMillis();
+                if (ejectedUntil > now) {
+                    return;
+                }
+                List<Endpoint> all = endpoints;
+                int ejected = 0;
+                for (Endpoint e : all) {
+                    if (e.ejectedUntil > now) {
+                        ejected++;
+                    }
+                }
+                if (ejected * 100 >= ejectMaxPercent * all.size()) {
+                    return;
+                }
+                if (ejectionCount > 0 && now - ejectedUntil > ejectBaseMs * MAX_EJECTION_MULTIPLIER) {
+                    ejectionCount = 0;// behaved long enough since the last ejection
+                }
+                ejectionCount++;
+                long ejectMs = ejectBaseMs * Math.min(ejectionCount, MAX_EJECTION_MULTIPLIER);
+                ejectedUntil = now + ejectMs;
+                consecutiveFailures.set(0);
+                log.warn(() -> "HttpClient " + name + " endpoint " + base + " ejected for " + ejectMs + "ms");
+            }
+        }
+
+        /**
+         * peak EWMA: a slow sample counts at once, a fast one decays in
+         */
+        protected synchronized void updateEwma(long latencyNanos) {
+            long now = System.nanoTime();
+            if (ewmaStamp == 0 || latencyNanos > ewmaNanos) {
+                ewmaNanos = latencyNanos;
+            } else {
+                double w = Math.exp(-(double) (now - ewmaStamp) / EWMA_DECAY_NANOS);
+                ewmaNanos = ewmaNanos * w + latencyNanos * (1 - w);
+            }
+            ewmaStamp = now;
+        }
+
+        /**
+         * a failure must not make the endpoint look fast: it counts as a slow
+         * sample, so a failing endpoint loses to a healthy one until it
+         * succeeds again
+         */
+        protected synchronized void penalize(long latencyNanos) {
+            long penalty = Math.max(latencyNanos, FAILURE_PENALTY_NANOS);
+            if (ewmaStamp != 0) {
+                penalty = Math.max(penalty, (long) (ewmaNanos * 2));
+            }
+            updateEwma(penalty);
+        }
+
+        /**
+         * @return the EWMA, 0 if there is no sample yet
+         */
+        protected synchronized double ewma() {
+            return ewmaStamp == 0 ? 0 : ewmaNanos;
+        }
+
+        /**
+         * @param seedNanos the EWMA assumed when there is no sample yet
+         * @return
+         */
+        protected double cost(double seedNanos) {
+            double ewma = ewma();
+            return (ewma > 0 ? ewma : seedNanos) * (outstanding.get() + 1);
+        }
+
+        public synchronized double getEwmaMs() {
+            return ewmaNanos / 1_000_000;
+        }
+
+        public boolean isAvailable(long nowMs) {
+            return healthy && ejectedUntil <= nowMs;
+        }
+
+        public String getBase() {
+            return base;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        public long getRequestCount() {
+            return requestCount.sum();
+        }
+
+        public long getFailureCount() {
+            return failureCount.sum();
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public boolean isEjected() {
+            return ejectedUntil > System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return base + "{outstanding=" + outstanding.get() + ", requests=" + requestCount.sum() + ", failures=" + failureCount.sum()
+                    + ", ewmaMs=" + String.format("%.1f", getEwmaMs()) + (healthy ? "" : ", down") + (isEjected() ? ", ejected" : "") + "}";
+        }
+    }
+}
@@ -34,16 +34,20 @@ import javax.net.ssl.TrustManagerFactory;
 import java.io.File;
 import java.net.InetSocketAddress;
 import java.net.ProxySelector;
+import java.net.URI;
 import java.net.http.HttpClient;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -82,6 +86,24 @@ abstract public class HttpClientConfig extends BootConfig {
             System.out.println(tn + ": shutdown ses: " + ses);
             ses.shutdown();
         }
+        for (HttpClientProfile profile : profiles.values()) {
+            if (profile.getEndpoints() != null) {
+                profile.getEndpoints().shutdown();
+            }
+            ThreadPoolExecutor ptpe = profile.getExecutor();
+            if (ptpe != null && !ptpe.isShutdown()) {
+                System.out.println(tn + ": shutdown tpe: " + ptpe);
+                ptpe.shutdown();
+            }
+        }
+        RPCGuard g;
+        synchronized (this) {
+            g = guard;
+            guard = null;
+        }
+        if (g != null) {
+            g.close();
+        }
     }
 
     //3.1 HTTP Client Security
@@ -160,12 +182,20 @@ abstract public class HttpClientConfig extends BootConfig {
     @JsonIgnore
     protected volatile HttpClient.Builder builder;
 
+    @Config(key = "httpclient.version", defaultValue = "HTTP_2",
+            desc = "HTTP_2 multiplexes concurrent calls to the same host over one connection, HTTP_1_1 opens one connection per concurrent call")
+    protected volatile HttpClient.Version httpVersion = HttpClient.Version.HTTP_2;
+
     @Config(key = "httpclient.timeout.connect.ms", desc = "The maximum time to wait for only the connection to be established, should be less than httpclient.timeout.ms")
     protected volatile long httpConnectTimeoutMs = 3000;
 
     @Config(key = "httpclient.timeout.ms", desc = "The maximum time to wait from the beginning of the connection establishment until the server sends data back, this is the end-to-end timeout.")
     protected volatile long httpClientTimeoutMs = 5000;
 
+    @Config(key = "httpclient.DeadlineHeader", defaultValue = BootConstant.REQUEST_HEADER_KEY_TIMEOUT_MS,
+            desc = "When the ServiceContext has a deadline, each call is capped by the time left and this request header tells the remote side the remaining budget in milliseconds, blank to not send it")
+    protected volatile String deadlineHeader = BootConstant.REQUEST_HEADER_KEY_TIMEOUT_MS;
+
     @Config(key = "httpclient.executor.mode", defaultValue = "VirtualThread",
             desc = "valid value = VirtualThread (default for Java 21+), CPU, IO and Mixed (default for old Java) \n use CPU core + 1 when application is CPU bound\n"
                     + "use CPU core x 2 + 1 when application is I/O bound\n"
@@ -212,7 +242,152 @@ abstract public class HttpClientConfig extends BootConfig {
         sb.append("#").append(HEADER_CLIENT_REQUEST).append("request_header_name=request_header_value\n");
     }
 
-    protected HTTPClientStatusListener listener = null;
+    //3.4 HTTP Client Failure Isolation
+    @ConfigHeader(title = "4. HTTP Client Failure Isolation",
+            desc = "circuit breaker, bulkhead and retry budget per destination (host + path template, segments like ids are replaced by {})")
+    @Config(key = "httpclient.CircuitBreaker.FailureRatePercent", defaultValue = "0",
+            desc = "rate of failed calls (connection error, timeout, 502, 503, 504) in the window to open the circuit, 0 to disable, i.e. 50")
+    protected volatile int circuitBreakerFailureRatePercent = 0;
+
+    @Config(key = "httpclient.CircuitBreaker.SlowCallRatePercent", defaultValue = "0",
+            desc = "rate of calls slower than httpclient.CircuitBreaker.SlowCallMs in the window to open the circuit, 0 to disable")
+    protected volatile int circuitBreakerSlowCallRatePercent = 0;
+
+    @Config(key = "httpclient.CircuitBreaker.SlowCallMs", defaultValue = "3000")
+    protected volatile long circuitBreakerSlowCallMs = 3000;
+
+    @Config(key = "httpclient.CircuitBreaker.MinCalls", defaultValue = "20",
+            desc = "min calls in the window before the rates are evaluated")
+    protected volatile int circuitBreakerMinCalls = 20;
+
+    @Config(key = "httpclient.CircuitBreaker.WindowMs", defaultValue = "10000")
+    protected volatile long circuitBreakerWindowMs = 10000;
+
+    @Config(key = "httpclient.CircuitBreaker.OpenMs", defaultValue = "5000",
+            desc = "how long calls fail fast before a probe call is let through")
+    protected volatile long circuitBreakerOpenMs = 5000;
+
+    @Config(key = "httpclient.Bulkhead.MaxConcurrent", defaultValue = "0",
+            desc = "max concurrent calls per destination, 0 = unlimited")
+    protected volatile int bulkheadMaxConcurrent = 0;
+
+    @Config(key = "httpclient.Retry.MaxRetries", defaultValue = "0",
+            desc = "retries of idempotent requests (GET, HEAD, PUT, DELETE, OPTIONS) on connection error, timeout, 502, 503 or 504")
+    protected volatile int retryMaxRetries = 0;
+
+    @Config(key = "httpclient.Retry.BackoffMs", defaultValue = "50",
+            desc = "max delay before the first retry, doubled for each next retry, with full jitter")
+    protected volatile long retryBackoffMs = 50;
+
+    @Config(key = "httpclient.Retry.BudgetPercent", defaultValue = "10",
+            desc = "retries allowed per destination as a percentage of its requests in the last 10 seconds")
+    protected volatile int retryBudgetPercent = 10;
+
+    @Config(key = "httpclient.Retry.BudgetMinPerSec", defaultValue = "3",
+            desc = "retries allowed per destination per second regardless of traffic")
+    protected volatile int retryBudgetMinPerSec = 3;
+
+    @Config(key = "httpclient.Hedge.Percentile", defaultValue = "0",
+            desc = "a GET/HEAD call without response after this latency percentile of its destination (measured online) is sent once more, the first response wins, 0 to disable")
+    protected volatile double hedgePercentile = 0;
+
+    @Config(key = "httpclient.Hedge.MinDelayMs", defaultValue = "10",
+            desc = "never hedge earlier than this")
+    protected volatile long hedgeMinDelayMs = 10;
+
+    @Config(key = "httpclient.Hedge.BudgetPercent", defaultValue = "5",
+            desc = "hedged calls allowed per destination as a percentage of its requests in the last 10 seconds")
+    protected volatile int hedgeBudgetPercent = 5;
+
+    @Config(key = "httpclient.Response.MaxBytes", defaultValue = "67108864",
+            desc = "streaming mode only: max response body size, 0 = unlimited")
+    protected volatile long responseMaxBytes = 64 * 1024 * 1024;
+
+    @Config(key = "httpclient.Response.MemoPreviewBytes", defaultValue = "4096",
+            desc = "how much of a streamed response body or of a typed request body (see RPCDelegate.rpc) is kept for logging")
+    protected volatile int responseMemoPreviewBytes = 4096;
+
+    protected static final String PROFILE_PREFIX = "httpclient.profile.";
+    //3.5 HTTP Client Profiles
+    @ConfigHeader(title = "5. HTTP Client Profiles",
+            desc = "named HttpClient instances, each with its own connection pool and executor, so one slow destination cannot starve the others\n"
+                    + "unset settings fall back to the httpclient.* ones above, except executor and MaxConcurrent",
+            format = PROFILE_PREFIX + "<profile_name>.<setting>=<value>",
+            example = PROFILE_PREFIX + "partnerA.BaseURL=https://api.partner-a.com/v2/\n"
+                    + PROFILE_PREFIX + "partnerA.timeout.ms=2000",
+            callbackMethodName4Dump = "generateTemplate_Profiles")
+    @JsonIgnore
+    protected volatile Map<String, HttpClientProfile> profiles = Map.of();
+
+    @JsonIgnore
+    protected volatile HttpClientProfile defaultProfile;
+
+    protected void generateTemplate_Profiles(StringBuilder sb) {
+        String p = "#" + PROFILE_PREFIX + "partnerA.";
+        sb.append(p).append("BaseURL=https://api.partner-a.com/v2/\n");
+        sb.append(p).append("version=HTTP_1_1\n");
+        sb.append(p).append("redirectOption=NEVER\n");
+        sb.append(p).append("timeout.connect.ms=1000\n");
+        sb.append(p).append("timeout.ms=2000\n");
+        sb.append(p).append("MaxConcurrent=50\n");
+        sb.append(p).append("executor.mode=VirtualThread\n");
+        sb.append(p).append("executor.CoreSize=0\n");
+        sb.append(p).append("executor.MaxSize=0\n");
+        sb.append(p).append("executor.QueueSize=").append(Integer.MAX_VALUE).append("\n");
+        sb.append(p).append("ssl.protocol=TLSv1.3\n");
+        sb.append(p).append("ssl.KeyStore=keystore_partner_a.p12\n");
+        sb.append(p).append("ssl.KeyStorePwd=DEC(").append(BootConstant.DEFAULT_ADMIN_MM).append(")\n");
+        sb.append(p).append("ssl.KeyAlias=partner_a\n");
+        sb.append(p).append("ssl.KeyPwd=DEC(").append(BootConstant.DEFAULT_ADMIN_MM).append(")\n");
+        sb.append(p).append("ssl.TrustStore=").append(FILENAME_TRUSTSTORE_4CLIENT).append("\n");
+        sb.append(p).append("ssl.TrustStorePwd=DEC(").append(BootConstant.DEFAULT_ADMIN_MM).append(")\n");
+        sb.append(p).append("proxy.host=\n");
+        sb.append(p).append("proxy.port=8080\n");
+        sb.append(p).append("proxy.userName=\n");
+        sb.append(p).append("proxy.userPwd=\n");
+        sb.append(p).append("DefaultReqHttpHeaders.request_header_name=request_header_value\n");
+        sb.append("# load balancing: the scheme, host and port of the request URI (e.g. BaseURL=http://partnerA/v2/) are replaced by the selected endpoint\n");
+        sb.append("# one of: a static list, the A/AAAA records of a name, or the SRV records of a service (both looked up every RefreshSec)\n");
+        sb.append(p).append("Endpoints=https://10.0.0.1:8443, https://10.0.0.2:8443\n");
+        sb.append(p).append("Endpoints.DNS=https://partner-a.internal:8443\n");
+        sb.append(p).append("Endpoints.SRV=https://_partner-a._tcp.internal\n");
+        sb.append(p).append("Endpoints.RefreshSec=30\n");
+        sb.append("# ROUND_ROBIN, LEAST_OUTSTANDING or P2C_EWMA (default, the better of two random endpoints by latency x calls in flight)\n");
+        sb.append(p).append("Endpoints.Strategy=P2C_EWMA\n");
+        sb.append("# passive ejection after consecutive failures (connection error, timeout, 502, 503, 504), 0 to disable\n");
+        sb.append(p).append("Endpoints.Eject.ConsecutiveFailures=5\n");
+        sb.append(p).append("Endpoints.Eject.BaseMs=30000\n");
+        sb.append(p).append("Endpoints.Eject.MaxPercent=50\n");
+        sb.append("# active health check, an endpoint is taken out while its probe does not return 2xx\n");
+        sb.append(p).append("Endpoints.HealthCheck.Path=/health\n");
+        sb.append(p).append("Endpoints.HealthCheck.IntervalMs=5000\n");
+        sb.append(p).append("Endpoints.HealthCheck.TimeoutMs=2000\n");
+    }
+
+    //3.6 HTTP Client Response Cache
+    @ConfigHeader(title = "6. HTTP Client Response Cache",
+            desc = "client side HTTP cache for typed GET calls (RPCDelegate.rpc), honors Cache-Control, Expires, ETag and Last-Modified")
+    @Config(key = "httpclient.Cache.MaxEntries", defaultValue = "0",
+            desc = "max cached responses, least recently used ones are evicted first, 0 to disable")
+    protected volatile int cacheMaxEntries = 0;
+
+    @Config(key = "httpclient.Cache.MaxBodyLength", defaultValue = "1048576",
+            desc = "responses with a longer body (in chars) are not cached")
+    protected volatile int cacheMaxBodyLength = 1048576;
+
+    @Config(key = "httpclient.Cache.StaleIfErrorSec", defaultValue = "0",
+            desc = "how long an expired response may still be served when the call fails (connection error, timeout, 5xx) and the response has no stale-if-error directive")
+    protected volatile long cacheStaleIfErrorSec = 0;
+
+    @JsonIgnore
+    protected volatile RPCResponseCache responseCache;
+
+    protected long lastCacheReportTotal;
+
+    @JsonIgnore
+    protected volatile RPCGuard guard;
+
+    protected volatile HTTPClientStatusListener listener = null;
 
     public void setStatusListener(HTTPClientStatusListener l) {
         listener = l;
@@ -262,6 +437,36 @@ abstract public class HttpClientConfig extends BootConfig {
         //System.setProperty("jdk.httpclient.keepalive.timeout", "99999");
         //System.setProperty("jdk.httpclient.connectionPoolSize", "1");
 
+        // 3.4 HTTP Client proxy
+        if (StringUtils.isNotBlank(proxyUserName)) {
+            if (proxyUserPwd == null) {
+                proxyUserPwd = "";
+            }
+            //2a. set proxy authenticator at the request header level: 
+            proxyAuthorizationBasicValue = buildProxyAuthorizationBasicValue(proxyUserName, proxyUserPwd);
+            //HttpRequest.newBuilder().setHeader("Proxy-Authorization", ProxyAuthorizationValue);
+        }
+
+        // 3.5 HTTP Client Profiles
+        Set<String> profileNames = new TreeSet<>();
+        for (String key : keys) {
+            if (key.startsWith(PROFILE_PREFIX)) {
+                String rest = key.substring(PROFILE_PREFIX.length());
+                int i = rest.indexOf('.');
+                if (i > 0) {
+                    profileNames.add(rest.substring(0, i));
+                }
+            }
+        }
+        List<PendingProfile> pendingProfiles = new ArrayList<>();
+        for (String profileName : profileNames) {
+            if (HttpClientProfile.DEFAULT.equals(profileName)) {
+                helper.addError("reserved profile name \"" + PROFILE_PREFIX + profileName + "\"");
+                continue;
+            }
+            pendingProfiles.add(loadProfile(profileName, cfgFile.getParent(), helper, props, sslContext));
+        }
+
         String error = helper.getError();
         if (error != null) {
             throw new IllegalArgumentException(error);
@@ -284,29 +489,7 @@ abstract public class HttpClientConfig extends BootConfig {
 //                tpe = new ThreadPoolExecutor(currentCore, currentMax, 60L, TimeUnit.SECONDS,
 //                        new LinkedBlockingQueue<>(currentQueue), new NamedDefaultThreadFactory("HttpClient"), new AbortPolicyWithReport("HttpClientExecutor"));
 
-        builder = HttpClient.newBuilder()
-                .executor(tpe)
-                .version(HttpClient.Version.HTTP_2)
-                .followRedirects(redirectOption)
-                .connectTimeout(Duration.ofMillis(httpConnectTimeoutMs));
-        if (sslContext != null) {
-            builder.sslContext(sslContext);
-        }
-        if (StringUtils.isNotBlank(proxyHost)) {
-            builder.proxy(ProxySelector.of(new InetSocketAddress(proxyHost, proxyPort)));
-        }
-        if (StringUtils.isNotBlank(proxyUserName)) {
-            if (proxyUserPwd == null) {
-                proxyUserPwd = "";
-            }
-            //1. By default, basic authentication with the proxy is disabled when tunneling through an authenticating proxy since java 8u111.
-            System.setProperty("jdk.http.auth.tunneling.disabledSchemes", "");// -Djdk.http.auth.tunneling.disabledSchemes=""
-            //2a. set proxy authenticator at the request header level: 
-            String plain = proxyUserName + ":" + proxyUserPwd;
-            String encoded = new String(java.util.Base64.getEncoder().encode(plain.getBytes()));
-            proxyAuthorizationBasicValue = "Basic " + encoded;
-            //HttpRequest.newBuilder().setHeader("Proxy-Authorization", ProxyAuthorizationValue);
-
+        builder = newBuilder(tpe, httpVersion, redirectOption, httpConnectTimeoutMs, sslContext, proxyHost, proxyPort);
 //                    if (useAuthenticator) {
 //                        //2b. set proxy authenticator at the HttpClient level: not flexible to deal with different remote server settings
 //                        Authenticator authenticator = new Authenticator() {
@@ -317,8 +500,9 @@ abstract public class HttpClientConfig extends BootConfig {
 //                        };
 //                        builder.authenticator(authenticator);
 //                    }
-        }
         httpClient = builder.build();
+        defaultProfile = buildDefaultProfile(httpClient);
+        startProfiles(pendingProfiles);
         // 3. register new
         ses = Executors.newSingleThreadScheduledExecutor(NamedDefaultThreadFactory.build("HttpClient.QPS_SERVICE", tpeThreadingMode.equals(ThreadingMode.VirtualThread)));
         ses.scheduleAtFixedRate(() -> {
@@ -336,6 +520,18 @@ abstract public class HttpClientConfig extends BootConfig {
                 }
                 logger.info(() -> "HTTPClient task=" + task + ", completed=" + completed + ", queue=" + queue + ", active=" + active + ", pool=" + pool + ", core=" + core + ", max=" + max + ", largest=" + largest);
             }
+            RPCResponseCache cache = responseCache;
+            if (cache != null && listener != null) {
+                long hit = cache.getHitCount();
+                long revalidated = cache.getRevalidatedCount();
+                long staleIfError = cache.getStaleIfErrorCount();
+                long miss = cache.getMissCount();
+                long total = hit + revalidated + staleIfError + miss;
+                if (total != lastCacheReportTotal) {
+                    lastCacheReportTotal = total;
+                    listener.onHTTPClientCacheReportUpdate(hit, revalidated, staleIfError, miss, cache.getEvictionCount(), cache.size());
+                }
+            }
         }, 0, 1, TimeUnit.SECONDS);
 
         // 4. shutdown old
@@ -348,6 +544,230 @@ abstract public class HttpClientConfig extends BootConfig {
         System.gc();
     }
 
+    protected HttpClient.Builder newBuilder(Executor executor, HttpClient.Version version, HttpClient.Redirect redirect, long connectTimeoutMs,
+                                            SSLContext sslContext, String proxyHost, int proxyPort) {
+        HttpClient.Builder ret = HttpClient.newBuilder()
+                .version(version)
+                .followRedirects(redirect)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs));
+        if (executor != null) {
+            ret.executor(executor);
+        }
+        if (sslContext != null) {
+            ret.sslContext(sslContext);
+        }
+        if (StringUtils.isNotBlank(proxyHost)) {
+            ret.proxy(ProxySelector.of(new InetSocketAddress(proxyHost, proxyPort)));
+        }
+        return ret;
+    }
+
+    protected static String buildProxyAuthorizationBasicValue(String userName, String userPwd) {
+        //1. By default, basic authentication with the proxy is disabled when tunneling through an authenticating proxy since java 8u111.
+        System.setProperty("jdk.http.auth.tunneling.disabledSchemes", "");// -Djdk.http.auth.tunneling.disabledSchemes=""
+        String plain = userName + ":" + (userPwd == null ? "" : userPwd);
+        return "Basic " + new String(java.util.Base64.getEncoder().encode(plain.getBytes()));
+    }
+
+    protected static <E extends Enum<E>> E getAsEnum(ConfigUtil helper, Properties props, String key, Class<E> type, E defaultValue) {
+        String v = props.getProperty(key);
+        if (StringUtils.isBlank(v)) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, v.trim());
+        } catch (IllegalArgumentException ex) {
+            helper.addError("invalid \"" + key + "\", valid values: " + java.util.Arrays.toString(type.getEnumConstants()));
+            return defaultValue;
+        }
+    }
+
+    /**
+     * a profile parsed but not started yet, its executor and HttpClient are
+     * only built when the whole config file is valid
+     */
+    protected static class PendingProfile {
+
+        protected final HttpClientProfile profile;
+        protected final HttpClient.Builder builder;
+        protected final ThreadingMode threadingMode;
+        protected final int coreSize;
+        protected final int maxSize;
+        protected final int queueSize;
+
+        protected PendingProfile(HttpClientProfile profile, HttpClient.Builder builder, ThreadingMode threadingMode, int coreSize, int maxSize, int queueSize) {
+            this.profile = profile;
+            this.builder = builder;
+            this.threadingMode = threadingMode;
+            this.coreSize = coreSize;
+            this.maxSize = maxSize;
+            this.queueSize = queueSize;
+        }
+    }
+
+    protected PendingProfile loadProfile(String name, String configFolder, ConfigUtil helper, Properties props, SSLContext defaultSslContext) throws Exception {
+        String p = PROFILE_PREFIX + name + ".";
+        URI baseUrl = null;
+        String v = props.getProperty(p + "BaseURL");
+        if (StringUtils.isNotBlank(v)) {
+            try {
+                baseUrl = URI.create(v.trim());
+            } catch (IllegalArgumentException ex) {
+                helper.addError("invalid \"" + p + "BaseURL\" - " + ex.getMessage());
+            }
+        }
+        long connectTimeoutMs = helper.getAsLong(props, p + "timeout.connect.ms", httpConnectTimeoutMs);
+        long timeoutMs = helper.getAsLong(props, p + "timeout.ms", httpClientTimeoutMs);
+        HttpClient.Version version = getAsEnum(helper, props, p + "version", HttpClient.Version.class, httpVersion);
+        HttpClient.Redirect redirect = getAsEnum(helper, props, p + "redirectOption", HttpClient.Redirect.class, redirectOption);
+        int maxConcurrent = helper.getAsInt(props, p + "MaxConcurrent", 0);
+
+        // own executor: an HttpClient delivers its responses and runs its dependent tasks there
+        ThreadingMode threadingMode = getAsEnum(helper, props, p + "executor.mode", ThreadingMode.class, ThreadingMode.VirtualThread);
+        int coreSize = helper.getAsInt(props, p + "executor.CoreSize", 0);
+        int maxSize = helper.getAsInt(props, p + "executor.MaxSize", 0);
+        int queueSize = helper.getAsInt(props, p + "executor.QueueSize", Integer.MAX_VALUE);
+
+        // TLS material, falls back to httpclient.ssl.*
+        KeyManagerFactory pkmf = helper.getAsKeyManagerFactory(props, configFolder, p + "ssl.KeyStore", p + "ssl.KeyStorePwd", p + "ssl.KeyAlias", p + "ssl.KeyPwd");
+        TrustManagerFactory ptmf = helper.getAsTrustManagerFactory(props, configFolder, p + "ssl.TrustStore", p + "ssl.TrustStorePwd");
+        String pprotocol = StringUtils.defaultIfBlank(props.getProperty(p + "ssl.protocol"), protocol);
+        SSLContext sslContext = defaultSslContext;
+        if (pkmf != null || ptmf != null || !StringUtils.equals(pprotocol, protocol)) {
+            KeyManagerFactory k = pkmf == null ? kmf : pkmf;
+            TrustManagerFactory t = ptmf == null ? tmf : ptmf;
+            sslContext = SSLUtil.buildSSLContext(k == null ? null : k.getKeyManagers(), t == null ? SSLUtil.TRUST_ALL_CERTIFICATES : t.getTrustManagers(), pprotocol);
+        }
+
+        // proxy, falls back to httpclient.proxy.*
+        String pproxyHost = proxyHost;
+        int pproxyPort = proxyPort;
+        String pproxyAuthorization = proxyAuthorizationBasicValue;
+        v = props.getProperty(p + "proxy.host");
+        if (StringUtils.isNotBlank(v)) {
+            pproxyHost = v.trim();
+            pproxyPort = helper.getAsInt(props, p + "proxy.port", proxyPort);
+            String userName = props.getProperty(p + "proxy.userName");
+            pproxyAuthorization = StringUtils.isBlank(userName) ? null : buildProxyAuthorizationBasicValue(userName.trim(), helper.getAsPassword(props, p + "proxy.userPwd"));
+        }
+
+        String headerPrefix = p + "DefaultReqHttpHeaders.";
+        Map<String, String> headers = new HashMap<>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(headerPrefix)) {
+                headers.put(key.substring(headerPrefix.length()), props.getProperty(key));
+            }
+        }
+
+        EndpointGroup endpoints = loadEndpointGroup(name, p + "Endpoints", helper, props);
+        HttpClientProfile profile = new HttpClientProfile(name, baseUrl, connectTimeoutMs, timeoutMs, version, headers, pproxyAuthorization, maxConcurrent, endpoints);
+        HttpClient.Builder pbuilder = newBuilder(null/*built by startProfiles*/, version, redirect, connectTimeoutMs, sslContext, pproxyHost, pproxyPort);
+        return new PendingProfile(profile, pbuilder, threadingMode, coreSize, maxSize, queueSize);
+    }
+
+    /**
+     * @param name
+     * @param k      key prefix
+     * @param helper
+     * @param props
+     * @return null if no Endpoints are configured
+     */
+    protected EndpointGroup loadEndpointGroup(String name, String k, ConfigUtil helper, Properties props) {
+        EndpointGroup.Discovery discovery = null;
+        List<URI> targets = new ArrayList<>();
+        String keyUsed = null;
+        for (EndpointGroup.Discovery d : EndpointGroup.Discovery.values()) {
+            String key = d == EndpointGroup.Discovery.STATIC ? k : k + "." + d.name();
+            String v = props.getProperty(key);
+            if (StringUtils.isBlank(v)) {
+                continue;
+            }
+            if (discovery != null) {
+                helper.addError("only one of \"" + keyUsed + "\" and \"" + key + "\" can be set");
+                return null;
+            }
+            discovery = d;
+            keyUsed = key;
+            for (String url : v.split(",")) {
+                if (StringUtils.isBlank(url)) {
+                    continue;
+                }
+                try {
+                    URI uri = URI.create(url.trim());
+                    if (uri.getScheme() == null || uri.getHost() == null) {
+                        throw new IllegalArgumentException("expected scheme://host[:port]");
+                    }
+                    targets.add(uri);
+                } catch (IllegalArgumentException ex) {
+                    helper.addError("invalid \"" + key + "\" - " + url.trim() + ": " + ex.getMessage());
+                }
+            }
+            if (d != EndpointGroup.Discovery.STATIC && targets.size() != 1) {
+                helper.addError("\"" + key + "\" expects exactly one scheme://name[:port]");
+            }
+            if (d == EndpointGroup.Discovery.DNS && targets.stream().anyMatch(uri -> "https".equalsIgnoreCase(uri.getScheme()))) {
+                helper.addError("\"" + key + "\" connects to the resolved addresses, which fails the TLS hostname verification, use SRV or a static list for https");
+            }
+        }
+        if (discovery == null || targets.isEmpty()) {
+            return null;
+        }
+        EndpointGroup.Strategy strategy = getAsEnum(helper, props, k + ".Strategy", EndpointGroup.Strategy.class, EndpointGroup.Strategy.P2C_EWMA);
+        long refreshMs = TimeUnit.SECONDS.toMillis(helper.getAsInt(props, k + ".RefreshSec", 30));
+        int ejectConsecutiveFailures = helper.getAsInt(props, k + ".Eject.ConsecutiveFailures", 5);
+        long ejectBaseMs = helper.getAsLong(props, k + ".Eject.BaseMs", 30000L);
+        int ejectMaxPercent = helper.getAsInt(props, k + ".Eject.MaxPercent", 50);
+        String healthCheckPath = StringUtils.trimToNull(props.getProperty(k + ".HealthCheck.Path"));
+        if (healthCheckPath != null && !healthCheckPath.startsWith("/")) {
+            healthCheckPath = "/" + healthCheckPath;
+        }
+        long healthCheckIntervalMs = helper.getAsLong(props, k + ".HealthCheck.IntervalMs", 5000L);
+        long healthCheckTimeoutMs = helper.getAsLong(props, k + ".HealthCheck.TimeoutMs", 2000L);
+        return new EndpointGroup(name, discovery, targets, strategy, refreshMs, ejectConsecutiveFailures, ejectBaseMs, ejectMaxPercent,
+                healthCheckPath, healthCheckIntervalMs, healthCheckTimeoutMs);
+    }
+
+    protected HttpClientProfile buildDefaultProfile(HttpClient client) {
+        HttpClientProfile ret = new HttpClientProfile(HttpClientProfile.DEFAULT, null, httpConnectTimeoutMs, httpClientTimeoutMs, httpVersion,
+                null, proxyAuthorizationBasicValue, 0, null);
+        ret.httpClient = client;
+        return ret;
+    }
+
+    /**
+     * Swaps in the new profiles. The executor of a profile is kept across
+     * reloads unless its queue size changed; the replaced HttpClient stops
+     * accepting new calls and lets the ones in flight complete.
+     *
+     * @param pendingProfiles
+     */
+    protected void startProfiles(List<PendingProfile> pendingProfiles) {
+        Map<String, HttpClientProfile> oldProfiles = profiles;
+        Map<String, HttpClientProfile> newProfiles = new LinkedHashMap<>();
+        for (PendingProfile pending : pendingProfiles) {
+            HttpClientProfile profile = pending.profile;
+            HttpClientProfile oldProfile = oldProfiles.get(profile.getName());
+            profile.tpe = buildThreadPoolExecutor(oldProfile == null ? null : oldProfile.tpe, "HttpClient." + profile.getName(), pending.threadingMode,
+                    pending.coreSize, pending.maxSize, pending.queueSize, tpeKeepAliveSeconds, null,
+                    prestartAllCoreThreads, allowCoreThreadTimeOut, false);
+            profile.httpClient = pending.builder.executor(profile.tpe).build();
+            if (profile.endpoints != null) {
+                profile.endpoints.start(profile.httpClient);
+            }
+            newProfiles.put(profile.getName(), profile);
+        }
+        profiles = Collections.unmodifiableMap(newProfiles);
+        for (HttpClientProfile oldProfile : oldProfiles.values()) {
+            if (oldProfile.endpoints != null) {
+                oldProfile.endpoints.shutdown();
+            }
+            oldProfile.httpClient.shutdown();
+            if (!newProfiles.containsKey(oldProfile.getName())) {
+                oldProfile.tpe.shutdown();
+            }
+        }
+    }
+
     // 3. HttpClient
     public HttpClient getHttpClient() {
         return httpClient;
@@ -360,9 +780,34 @@ abstract public class HttpClientConfig extends BootConfig {
     public HttpClient updateBuilder(HttpClient.Builder builder) {
         this.builder = builder;
         this.httpClient = builder.build();
+        this.defaultProfile = buildDefaultProfile(this.httpClient);
         return this.httpClient;
     }
 
+    /**
+     * @param name null for the {@link HttpClientProfile#DEFAULT} profile
+     * @return
+     * @throws IllegalArgumentException if no such profile is configured
+     */
+    public HttpClientProfile getProfile(String name) {
+        if (name == null || HttpClientProfile.DEFAULT.equals(name)) {
+            return defaultProfile;
+        }
+        HttpClientProfile ret = profiles.get(name);
+        if (ret == null) {
+            throw new IllegalArgumentException("HttpClient profile not configured: " + PROFILE_PREFIX + name + ".*");
+        }
+        return ret;
+    }
+
+    public Set<String> getProfileNames() {
+        return profiles.keySet();
+    }
+
+    public HttpClient.Version getHttpVersion() {
+        return httpVersion;
+    }
+
     public Map<String, String> getHttpClientDefaultRequestHeaders() {
         return httpClientDefaultRequestHeaders;
     }
@@ -415,6 +860,10 @@ abstract public class HttpClientConfig extends BootConfig {
         return httpClientTimeoutMs;
     }
 
+    public String getDeadlineHeader() {
+        return deadlineHeader;
+    }
+
     public int getHttpClientCoreSize() {
         return httpClientCoreSize;
     }
@@ -434,4 +883,118 @@ abstract public class HttpClientConfig extends BootConfig {
     public String getTpeInfo() {
         return String.valueOf(tpe);
     }
+
+    /**
+     * @return the per destination circuit breakers, bulkheads and retry
+     * budgets
+     */
+    public RPCGuard getGuard() {
+        RPCGuard ret = guard;
+        if (ret == null) {
+            synchronized (this) {
+                ret = guard;
+                if (ret == null) {
+                    ret = new RPCGuard(this);
+                    guard = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the response cache, null if httpclient.Cache.MaxEntries is 0
+     */
+    public RPCResponseCache getResponseCache() {
+        if (cacheMaxEntries <= 0) {
+            return null;
+        }
+        RPCResponseCache ret = responseCache;
+        if (ret == null) {
+            synchronized (this) {
+                ret = responseCache;
+                if (ret == null) {
+                    ret = new RPCResponseCache(this);
+                    responseCache = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    public int getCacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+
+    public int getCacheMaxBodyLength() {
+        return cacheMaxBodyLength;
+    }
+
+    public long getCacheStaleIfErrorSec() {
+        return cacheStaleIfErrorSec;
+    }
+
+    public int getCircuitBreakerFailureRatePercent() {
+        return circuitBreakerFailureRatePercent;
+    }
+
+    public int getCircuitBreakerSlowCallRatePercent() {
+        return circuitBreakerSlowCallRatePercent;
+    }
+
+    public long getCircuitBreakerSlowCallMs() {
+        return circuitBreakerSlowCallMs;
+    }
+
+    public int getCircuitBreakerMinCalls() {
+        return circuitBreakerMinCalls;
+    }
+
+    public long getCircuitBreakerWindowMs() {
+        return circuitBreakerWindowMs;
+    }
+
+    public long getCircuitBreakerOpenMs() {
+        return circuitBreakerOpenMs;
+    }
+
+    public int getBulkheadMaxConcurrent() {
+        return bulkheadMaxConcurrent;
+    }
+
+    public int getRetryMaxRetries() {
+        return retryMaxRetries;
+    }
+
+    public long getRetryBackoffMs() {
+        return retryBackoffMs;
+    }
+
+    public int getRetryBudgetPercent() {
+        return retryBudgetPercent;
+    }
+
+    public int getRetryBudgetMinPerSec() {
+        return retryBudgetMinPerSec;
+    }
+
+    public long getResponseMaxBytes() {
+        return responseMaxBytes;
+    }
+
+    public int getResponseMemoPreviewBytes() {
+        return responseMemoPreviewBytes;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public long getHedgeMinDelayMs() {
+        return hedgeMinDelayMs;
+    }
+
+    public int getHedgeBudgetPercent() {
+        return hedgeBudgetPercent;
+    }
 }
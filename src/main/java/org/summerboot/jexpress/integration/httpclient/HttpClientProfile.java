@@ -0,0 +1,166 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.httpclient;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A named HttpClient with its own connection pool, executor, timeouts, TLS
+ * material, proxy and HTTP version, so one slow partner cannot starve the
+ * others. Configured as httpclient.profile.&lt;name&gt;.* in
+ * {@link HttpClientConfig}, selected by overriding
+ * {@link RPCDelegate_HTTPClientImpl#getHttpClientProfile()}.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class HttpClientProfile {
+
+    /**
+     * the profile built from the httpclient.* settings
+     */
+    public static final String DEFAULT = "default";
+
+    protected final String name;
+    protected final URI baseUrl;
+    protected final long connectTimeoutMs;
+    protected final long timeoutMs;
+    protected final HttpClient.Version version;
+    protected final Map<String, String> defaultRequestHeaders;
+    protected final String proxyAuthorizationBasicValue;
+    protected final int maxConcurrent;
+    protected final Semaphore permits;
+    protected final EndpointGroup endpoints;
+    protected final LongAdder rejectedCount = new LongAdder();
+    protected volatile HttpClient httpClient;
+    protected volatile ThreadPoolExecutor tpe;
+
+    public HttpClientProfile(String name, URI baseUrl, long connectTimeoutMs, long timeoutMs, HttpClient.Version version,
+                             Map<String, String> defaultRequestHeaders, String proxyAuthorizationBasicValue, int maxConcurrent, EndpointGroup endpoints) {
+        this.name = name;
+        this.baseUrl = baseUrl;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.timeoutMs = timeoutMs;
+        this.version = version;
+        this.defaultRequestHeaders = defaultRequestHeaders == null ? Map.of() : Map.copyOf(defaultRequestHeaders);
+        this.proxyAuthorizationBasicValue = proxyAuthorizationBasicValue;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * takes a connection slot, the caller must then {@link #release()}
+     *
+     * @throws RPCRejectedException when MaxConcurrent calls are in flight
+     */
+    public void acquire() throws RPCRejectedException {
+        if (permits != null && !permits.tryAcquire()) {
+            rejectedCount.increment();
+            throw new RPCRejectedException("profile " + name, "connection pool full (" + maxConcurrent + " concurrent calls)");
+        }
+    }
+
+    public void release() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * @param pathAndQuery absolute URL, or relative to the BaseURL
+     * @return
+     */
+    public URI resolve(String pathAndQuery) {
+        if (baseUrl == null) {
+            return URI.create(pathAndQuery);
+        }
+        return baseUrl.resolve(pathAndQuery);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public URI getBaseUrl() {
+        return baseUrl;
+    }
+
+    public long getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public HttpClient.Version getVersion() {
+        return version;
+    }
+
+    /**
+     * @return headers on top of httpclient.DefaultReqHttpHeaders.*
+     */
+    public Map<String, String> getDefaultRequestHeaders() {
+        return defaultRequestHeaders;
+    }
+
+    public String getProxyAuthorizationBasicValue() {
+        return proxyAuthorizationBasicValue;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getInFlight() {
+        return permits == null ? 0 : maxConcurrent - permits.availablePermits();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * @return the endpoints the calls are load balanced over, null to send
+     * them to the host of the request URI
+     */
+    public EndpointGroup getEndpoints() {
+        return endpoints;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * @return the executor of this profile, null for the
+     * {@link #DEFAULT} profile which shares the one of HttpClientConfig
+     */
+    public ThreadPoolExecutor getExecutor() {
+        return tpe;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpClientProfile{" + "name=" + name + ", baseUrl=" + baseUrl + ", version=" + version + ", timeoutMs=" + timeoutMs
+                + ", maxConcurrent=" + maxConcurrent + ", inFlight=" + getInFlight() + ", rejected=" + getRejectedCount() + ", endpoints=" + endpoints + ", tpe=" + tpe + '}';
+    }
+}
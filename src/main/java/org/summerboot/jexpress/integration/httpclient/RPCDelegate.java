@@ -1,16 +1,21 @@
 package org.summerboot.jexpress.integration.httpclient;
 
+import com.fasterxml.jackson.databind.JavaType;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.summerboot.jexpress.nio.server.domain.ServiceContext;
 import org.summerboot.jexpress.nio.server.domain.ServiceErrorConvertible;
 
 import java.io.IOException;
+import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public interface RPCDelegate {
     /**
@@ -48,8 +53,162 @@ public interface RPCDelegate {
         return reqBody;
     }
 
+    /**
+     * Fan-out helper: completes normally when all calls are done (successful
+     * or not) or when the deadline is reached, whichever comes first. The calls
+     * still running at the deadline are cancelled.
+     * <pre>
+     * {@code
+     * var a = rpc.rpcAsync(context, reqA);
+     * var b = rpc.rpcAsync(context, reqB);
+     * RPCDelegate.allWithin(800, a, b).join();
+     * RPCResult<A, Err> ra = a.isCompletedExceptionally() ? null : a.join();
+     * }
+     * </pre>
+     *
+     * @param deadlineMs overall time budget of all calls
+     * @param calls
+     * @return
+     */
+    static CompletableFuture<Void> allWithin(long deadlineMs, CompletableFuture<?>... calls) {
+        return CompletableFuture.allOf(calls)
+                .exceptionally(ex -> null)// failed calls are checked individually by the caller
+                .completeOnTimeout(null, deadlineMs, TimeUnit.MILLISECONDS)
+                .whenComplete((r, ex) -> {
+                    for (CompletableFuture<?> call : calls) {
+                        if (!call.isDone()) {
+                            call.cancel(true);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Runs a blocking call on a new virtual thread, the default of the
+     * non-blocking methods for implementations without a native one
+     *
+     * @param <R>
+     * @param call
+     * @return
+     */
+    static <R> CompletableFuture<R> async(Callable<R> call) {
+        CompletableFuture<R> ret = new CompletableFuture<>();
+        Thread.ofVirtual().name("RPCDelegate.async").start(() -> {
+            try {
+                ret.complete(call.call());
+            } catch (Throwable ex) {
+                ret.completeExceptionally(ex);
+            }
+        });
+        return ret;
+    }
+
     <T, E extends ServiceErrorConvertible> RPCResult<T, E> rpcEx(ServiceContext serviceContext, HttpRequest.Builder reqBuilder, HttpResponseStatus... successStatusList) throws IOException;
 
+    /**
+     * Typed call: the body is serialized to JSON bytes once with a cached
+     * ObjectWriter and published as is to every attempt, without the round
+     * trip through String; only a preview of up to
+     * httpclient.Response.MemoPreviewBytes is rendered for memo. No need to
+     * call RPCResult.update.
+     * <pre>
+     * {@code
+     * RPCResult<OrderDto, RPCError> r = rpc.rpc(context, "POST", URI.create(url), newOrder, OrderDto.class, RPCError.class);
+     * }
+     * </pre>
+     *
+     * @param <T>
+     * @param <E>
+     * @param context
+     * @param method               GET, POST, PUT, DELETE, ...
+     * @param uri
+     * @param body                 null for no body, a String or byte[] is
+     *                             sent as is with the Content-Type of the
+     *                             default request headers, anything else is
+     *                             serialized to JSON
+     * @param successResponseClass
+     * @param errorResponseClass
+     * @param successStatusList
+     * @return a Non-Null RPCResult, already updated
+     * @throws IOException
+     */
+    default <T, E extends ServiceErrorConvertible> RPCResult<T, E> rpc(ServiceContext context, String method, URI uri, Object body, Class<T> successResponseClass, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) throws IOException {
+        return rpc(context, method, uri, body, null, successResponseClass, errorResponseClass, successStatusList);
+    }
+
+    /**
+     * @param <T>
+     * @param <E>
+     * @param context
+     * @param method
+     * @param uri
+     * @param body                 null for no body, a String or byte[] is
+     *                             sent as is, anything else is serialized
+     * @param contentType          Content-Type of the body, null for JSON
+     *                             when serialized, otherwise the default
+     *                             request headers
+     * @param successResponseClass
+     * @param errorResponseClass
+     * @param successStatusList
+     * @return a Non-Null RPCResult, already updated
+     * @throws IOException
+     */
+    default <T, E extends ServiceErrorConvertible> RPCResult<T, E> rpc(ServiceContext context, String method, URI uri, Object body, String contentType, Class<T> successResponseClass, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) throws IOException {
+        HttpRequest.Builder reqBuilder = HttpRequest.newBuilder(uri);
+        RPCRequestBody requestBody = RPCRequestBody.of(body, contentType, 0);
+        if (requestBody == null) {
+            reqBuilder.method(method, HttpRequest.BodyPublishers.noBody());
+        } else {
+            if (requestBody.getContentType() != null) {
+                reqBuilder.setHeader("Content-Type", requestBody.getContentType());
+            }
+            reqBuilder.method(method, requestBody.publisher());
+        }
+        RPCResult<T, E> ret = rpcEx(context, reqBuilder, successStatusList);
+        return ret.update(successResponseClass, errorResponseClass, context);
+    }
+
+    /**
+     * Non-blocking version of
+     * {@link #rpc(ServiceContext, String, URI, Object, Class, Class, HttpResponseStatus...)},
+     * completes exceptionally with IOException when the body cannot be
+     * serialized or the remote call fails
+     *
+     * @param <T>
+     * @param <E>
+     * @param context
+     * @param method
+     * @param uri
+     * @param body
+     * @param successResponseClass
+     * @param errorResponseClass
+     * @param successStatusList
+     * @return a future of Non-Null RPCResult, already updated
+     */
+    default <T, E extends ServiceErrorConvertible> CompletableFuture<RPCResult<T, E>> rpcAsync(ServiceContext context, String method, URI uri, Object body, Class<T> successResponseClass, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) {
+        return rpcAsync(context, method, uri, body, null, successResponseClass, errorResponseClass, successStatusList);
+    }
+
+    /**
+     * Non-blocking version of
+     * {@link #rpc(ServiceContext, String, URI, Object, String, Class, Class, HttpResponseStatus...)}
+     *
+     * @param <T>
+     * @param <E>
+     * @param context
+     * @param method
+     * @param uri
+     * @param body
+     * @param contentType
+     * @param successResponseClass
+     * @param errorResponseClass
+     * @param successStatusList
+     * @return a future of Non-Null RPCResult, already updated
+     */
+    default <T, E extends ServiceErrorConvertible> CompletableFuture<RPCResult<T, E>> rpcAsync(ServiceContext context, String method, URI uri, Object body, String contentType, Class<T> successResponseClass, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) {
+        return async(() -> rpc(context, method, uri, body, contentType, successResponseClass, errorResponseClass, successStatusList));
+    }
+
     /**
      * @param <T>
      * @param <E>
@@ -88,4 +247,116 @@ public interface RPCDelegate {
      * @throws IOException
      */
     <T, E extends ServiceErrorConvertible> RPCResult<T, E> rpcEx(ServiceContext context, RPCResult<T, E> request, HttpResponseStatus... successStatusList) throws IOException;
+
+    /**
+     * Non-blocking version of
+     * {@link #rpcEx(ServiceContext, HttpRequest.Builder, HttpResponseStatus...)}
+     *
+     * @param <T>
+     * @param <E>
+     * @param serviceContext
+     * @param reqBuilder
+     * @param successStatusList
+     * @return
+     */
+    default <T, E extends ServiceErrorConvertible> CompletableFuture<RPCResult<T, E>> rpcAsync(ServiceContext serviceContext, HttpRequest.Builder reqBuilder, HttpResponseStatus... successStatusList) {
+        return async(() -> rpcEx(serviceContext, reqBuilder, successStatusList));
+    }
+
+    /**
+     * Non-blocking version of
+     * {@link #rpcEx(ServiceContext, HttpRequest, HttpResponseStatus...)}
+     *
+     * @param <T>
+     * @param <E>
+     * @param serviceContext
+     * @param req
+     * @param successStatusList
+     * @return
+     */
+    default <T, E extends ServiceErrorConvertible> CompletableFuture<RPCResult<T, E>> rpcAsync(ServiceContext serviceContext, HttpRequest req, HttpResponseStatus... successStatusList) {
+        return async(() -> rpcEx(serviceContext, req, successStatusList));
+    }
+
+    /**
+     * Non-blocking version of
+     * {@link #rpcEx(ServiceContext, HttpRequest, String, HttpResponseStatus...)},
+     * completes exceptionally with IOException when the remote call fails, and
+     * is cancelled when the client of the inbound request disconnects.
+     * Cancelling the returned future aborts the remote call.
+     *
+     * @param <T>
+     * @param <E>
+     * @param context
+     * @param originRequest
+     * @param originRequestBody
+     * @param successStatusList
+     * @return a future of Non-Null RPCResult
+     */
+    default <T, E extends ServiceErrorConvertible> CompletableFuture<RPCResult<T, E>> rpcAsync(ServiceContext context, HttpRequest originRequest, String originRequestBody, HttpResponseStatus... successStatusList) {
+        return async(() -> rpcEx(context, originRequest, originRequestBody, successStatusList));
+    }
+
+    /**
+     * Streaming version of
+     * {@link #rpcEx(ServiceContext, HttpRequest.Builder, HttpResponseStatus...)}
+     *
+     * @param <T>
+     * @param <E>
+     * @param context
+     * @param reqBuilder
+     * @param successResponseClass
+     * @param errorResponseClass
+     * @param successStatusList
+     * @return
+     * @throws IOException
+     */
+    default <T, E extends ServiceErrorConvertible> RPCResult<T, E> rpcStreaming(ServiceContext context, HttpRequest.Builder reqBuilder, Class<T> successResponseClass, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) throws IOException {
+        RPCResult<T, E> ret = rpcEx(context, reqBuilder, successStatusList);
+        return ret.update(successResponseClass, errorResponseClass, context);
+    }
+
+    /**
+     * Streaming mode for large responses: the JSON response is parsed into
+     * the success or error type straight from the network stream, the body is
+     * never held as a whole String. The body is limited to
+     * httpclient.Response.MaxBytes, only the first
+     * httpclient.Response.MemoPreviewBytes are kept for memo and
+     * {@link RPCResult#httpResponseBody()}. No need to call RPCResult.update.
+     * Defaults to a buffered {@link #rpcEx(ServiceContext, HttpRequest, String, HttpResponseStatus...)}
+     * for implementations without streaming support.
+     *
+     * @param <T>
+     * @param <E>
+     * @param context
+     * @param originRequest
+     * @param originRequestBody
+     * @param successResponseType
+     * @param errorResponseClass
+     * @param successStatusList
+     * @return a Non-Null RPCResult, already updated
+     * @throws IOException
+     */
+    default <T, E extends ServiceErrorConvertible> RPCResult<T, E> rpcStreaming(ServiceContext context, HttpRequest originRequest, String originRequestBody, JavaType successResponseType, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) throws IOException {
+        RPCResult<T, E> ret = rpcEx(context, originRequest, originRequestBody, successStatusList);
+        return ret.update(successResponseType, errorResponseClass, context);
+    }
+
+    /**
+     * Non-blocking version of
+     * {@link #rpcStreaming(ServiceContext, HttpRequest, String, JavaType, Class, HttpResponseStatus...)}
+     *
+     * @param <T>
+     * @param <E>
+     * @param context
+     * @param originRequest
+     * @param originRequestBody
+     * @param successResponseType
+     * @param errorResponseClass
+     * @param successStatusList
+     * @return a future of Non-Null RPCResult, already updated
+     */
+    default <T, E extends ServiceErrorConvertible> CompletableFuture<RPCResult<T, E>> rpcStreamingAsync(ServiceContext context, HttpRequest originRequest, String originRequestBody, JavaType successResponseType, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) {
+        return async(() -> rpcStreaming(context, originRequest, originRequestBody, successResponseType, errorResponseClass, successStatusList));
+    }
 }
@@ -15,27 +15,73 @@
  */
 package org.summerboot.jexpress.integration.httpclient;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JavaType;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import org.apache.commons.lang3.StringUtils;
 import org.summerboot.jexpress.boot.BootErrorCode;
 import org.summerboot.jexpress.boot.BootPOI;
+import org.summerboot.jexpress.boot.config.NamedDefaultThreadFactory;
 import org.summerboot.jexpress.nio.server.domain.Err;
 import org.summerboot.jexpress.nio.server.domain.ServiceContext;
 import org.summerboot.jexpress.nio.server.domain.ServiceErrorConvertible;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.time.Duration;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
  */
 public abstract class RPCDelegate_HTTPClientImpl implements RPCDelegate {
 
+    protected static final Executor STREAMING_PARSER = Executors.newThreadPerTaskExecutor(NamedDefaultThreadFactory.build("RPC.StreamingParser", true));
+
     abstract protected HttpClientConfig getHttpClientConfig();
 
+    /**
+     * Override to send the calls of this delegate through a named
+     * httpclient.profile.&lt;name&gt;.* of {@link HttpClientConfig}, with its
+     * own connection pool, executor, timeouts, TLS material and HTTP version.
+     * The profile is looked up for every call, so a config reload takes effect
+     * without restarting.
+     *
+     * @return null to use the default HttpClient
+     */
+    protected String getHttpClientProfile() {
+        return null;
+    }
+
+    protected HttpClientProfile profile() {
+        return getHttpClientConfig().getProfile(getHttpClientProfile());
+    }
+
+    /**
+     * @param pathAndQuery absolute URL, or relative to the BaseURL of the
+     *                     profile
+     * @return
+     */
+    protected URI uri(String pathAndQuery) {
+        return profile().resolve(pathAndQuery);
+    }
 
     /**
      * set default headers; proxy auth; timeout
@@ -44,16 +90,18 @@ public abstract class RPCDelegate_HTTPClientImpl implements RPCDelegate {
      */
     protected void configure(HttpRequest.Builder reqBuilder) {
         HttpClientConfig httpCfg = getHttpClientConfig();
+        HttpClientProfile profile = profile();
         Map<String, String> httpClientDefaultRequestHeaders = httpCfg.getHttpClientDefaultRequestHeaders();
         httpClientDefaultRequestHeaders.keySet().forEach(key -> {
             String value = httpClientDefaultRequestHeaders.get(key);
             reqBuilder.setHeader(key, value);
         });
-        String proxyAuth = httpCfg.getProxyAuthorizationBasicValue();
+        profile.getDefaultRequestHeaders().forEach(reqBuilder::setHeader);
+        String proxyAuth = profile.getProxyAuthorizationBasicValue();
         if (proxyAuth != null) {
             reqBuilder.setHeader("Proxy-Authorization", proxyAuth);
         }
-        reqBuilder.timeout(Duration.ofMillis(httpCfg.getHttpClientTimeoutMs()));
+        reqBuilder.timeout(Duration.ofMillis(profile.getTimeoutMs()));
     }
 
     @Override
@@ -64,6 +112,143 @@ public abstract class RPCDelegate_HTTPClientImpl implements RPCDelegate {
         return this.rpcEx(serviceContext, req, reqbody, successStatusList);
     }
 
+    protected RPCRequestBody requestBody(Object body, String contentType) throws JsonProcessingException {
+        return RPCRequestBody.of(body, contentType, getHttpClientConfig().getResponseMemoPreviewBytes());
+    }
+
+    protected HttpRequest typedRequest(String method, URI uri, RPCRequestBody requestBody) {
+        HttpRequest.Builder reqBuilder = HttpRequest.newBuilder(uri);
+        configure(reqBuilder);
+        if (requestBody == null) {
+            reqBuilder.method(method, HttpRequest.BodyPublishers.noBody());
+        } else {
+            if (requestBody.getContentType() != null) {
+                reqBuilder.setHeader("Content-Type", requestBody.getContentType());
+            }
+            reqBuilder.method(method, requestBody.publisher());
+        }
+        return reqBuilder.build();
+    }
+
+    @Override
+    public <T, E extends ServiceErrorConvertible> RPCResult<T, E> rpc(ServiceContext context, String method, URI uri, Object body, String contentType, Class<T> successResponseClass, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) throws IOException {
+        RPCRequestBody requestBody = requestBody(body, contentType);
+        HttpRequest req = typedRequest(method, uri, requestBody);
+        String preview = requestBody == null ? null : requestBody.preview();
+        RPCResponseCache cache = responseCache(req);
+        if (cache == null) {
+            RPCResult<T, E> ret = rpcEx(context, req, preview, successStatusList);
+            return ret.update(successResponseClass, errorResponseClass, context);
+        }
+        RPCResponseCache.Entry cached = cache.get(req);
+        if (cached != null && cached.isFresh()) {
+            return fromCache(context, cache, cached, req, RPCResponseCache.Outcome.HIT, null, successResponseClass, errorResponseClass, successStatusList);
+        }
+        RPCResult<T, E> ret;
+        try {
+            ret = rpcEx(context, cached == null ? req : cached.conditional(req), preview, successStatusList);
+        } catch (IOException ex) {
+            if (cached != null && cached.isUsableOnError()) {
+                return fromCache(context, cache, cached, req, RPCResponseCache.Outcome.STALE_IF_ERROR, ex.toString(), successResponseClass, errorResponseClass, successStatusList);
+            }
+            throw ex;
+        }
+        return onCacheableResponse(context, cache, cached, req, ret, successResponseClass, errorResponseClass, successStatusList);
+    }
+
+    /**
+     * @param req
+     * @return the response cache if enabled and the request is cacheable,
+     * otherwise null
+     */
+    protected RPCResponseCache responseCache(HttpRequest req) {
+        return RPCResponseCache.isCacheable(req) ? getHttpClientConfig().getResponseCache() : null;
+    }
+
+    protected <T, E extends ServiceErrorConvertible> RPCResult<T, E> onCacheableResponse(ServiceContext context, RPCResponseCache cache, RPCResponseCache.Entry cached, HttpRequest req, RPCResult<T, E> ret,
+                                                                                        Class<T> successResponseClass, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) {
+        int statusCode = ret.httpStatusCode();
+        if (cached != null) {
+            if (statusCode == 304) {
+                cache.revalidated(cached, ret.httpResponse());
+                return fromCache(context, cache, cached, req, RPCResponseCache.Outcome.REVALIDATED, null, successResponseClass, errorResponseClass, successStatusList);
+            }
+            if (statusCode >= 500 && cached.isUsableOnError()) {
+                return fromCache(context, cache, cached, req, RPCResponseCache.Outcome.STALE_IF_ERROR, String.valueOf(statusCode), successResponseClass, errorResponseClass, successStatusList);
+            }
+        }
+        cache.record(RPCResponseCache.Outcome.MISS);
+        ret.update(successResponseClass, errorResponseClass, context);
+        if (statusCode == 200 && ret.httpResponse() != null) {
+            cache.put(req, ret.httpResponse());
+        }
+        return ret;
+    }
+
+    /**
+     * @return a result built from the cached response, with a new object bound
+     * from the body parsed the first time, so no two callers share an instance
+     */
+    protected <T, E extends ServiceErrorConvertible> RPCResult<T, E> fromCache(ServiceContext context, RPCResponseCache cache, RPCResponseCache.Entry cached, HttpRequest req, RPCResponseCache.Outcome outcome, String reason,
+                                                                              Class<T> successResponseClass, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) {
+        cache.record(outcome);
+        context.memo(RPCMemo.MEMO_RPC_RESPONSE, "cache " + outcome + (reason == null ? "" : " (" + reason + ")") + ": " + cached.getStatusCode() + " " + req.uri());
+        RPCResult<T, E> ret = new RPCResult<>(req, null, cached.toResponse(req), isRemoteSuccess(cached.getStatusCode(), successStatusList));
+        if (ret.remoteSuccess && successResponseClass != null) {
+            try {
+                ret.successResponse = cached.copyOf(RPCResult.DefaultJacksonMapper, successResponseClass);
+                return ret;
+            } catch (IOException | IllegalArgumentException ex) {
+                // not JSON of this type, let update report it
+            }
+        }
+        return ret.update(successResponseClass, errorResponseClass, context);
+    }
+
+    @Override
+    public <T, E extends ServiceErrorConvertible> CompletableFuture<RPCResult<T, E>> rpcAsync(ServiceContext context, String method, URI uri, Object body, String contentType, Class<T> successResponseClass, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) {
+        RPCRequestBody requestBody;
+        try {
+            requestBody = requestBody(body, contentType);
+        } catch (JsonProcessingException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        HttpRequest req = typedRequest(method, uri, requestBody);
+        String preview = requestBody == null ? null : requestBody.preview();
+        RPCResponseCache cache = responseCache(req);
+        if (cache == null) {
+            return rpcAsync(context, req, preview, HttpResponse.BodyHandlers.ofString(),
+                    httpResponse -> this.<T, E>onResponse(context, req, preview, httpResponse, successStatusList).update(successResponseClass, errorResponseClass, context), null);
+        }
+        RPCResponseCache.Entry cached = cache.get(req);
+        if (cached != null && cached.isFresh()) {
+            return CompletableFuture.completedFuture(fromCache(context, cache, cached, req, RPCResponseCache.Outcome.HIT, null, successResponseClass, errorResponseClass, successStatusList));
+        }
+        HttpRequest sent = cached == null ? req : cached.conditional(req);
+        CompletableFuture<RPCResult<T, E>> call = rpcAsync(context, sent, preview, HttpResponse.BodyHandlers.ofString(),
+                httpResponse -> onCacheableResponse(context, cache, cached, req, this.<T, E>onResponse(context, sent, preview, httpResponse, successStatusList),
+                        successResponseClass, errorResponseClass, successStatusList), null);
+        if (cached == null) {
+            return call;
+        }
+        CompletableFuture<RPCResult<T, E>> ret = call.handle((r, ex) -> {
+            if (ex == null) {
+                return r;
+            }
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof IOException && cached.isUsableOnError()) {
+                return fromCache(context, cache, cached, req, RPCResponseCache.Outcome.STALE_IF_ERROR, cause.toString(), successResponseClass, errorResponseClass, successStatusList);
+            }
+            throw ex instanceof CompletionException ce ? ce : new CompletionException(ex);
+        });
+        ret.whenComplete((r, ex) -> {
+            if (ex instanceof CancellationException) {
+                call.cancel(true);
+            }
+        });
+        return ret;
+    }
+
     /**
      * @param <T>
      * @param <E>
@@ -96,16 +281,12 @@ public abstract class RPCDelegate_HTTPClientImpl implements RPCDelegate {
     @Override
     public <T, E extends ServiceErrorConvertible> RPCResult<T, E> rpcEx(ServiceContext context, HttpRequest originRequest, String originRequestBody, HttpResponseStatus... successStatusList) throws IOException {
         //1. log memo
-        context.memo(RPCMemo.MEMO_RPC_REQUEST, originRequest.toString() + " caller=" + context.caller());
-        if (originRequestBody != null) {
-            context.memo(RPCMemo.MEMO_RPC_REQUEST_DATA, originRequestBody);
-        }
+        memoRequest(context, originRequest, originRequestBody);
         //2. call remote sever
         HttpResponse httpResponse;
         context.poi(BootPOI.RPC_BEGIN);
         try {
-            HttpClientConfig httpCfg = getHttpClientConfig();
-            httpResponse = httpCfg.getHttpClient().send(originRequest, HttpResponse.BodyHandlers.ofString());
+            httpResponse = send(context, originRequest, HttpResponse.BodyHandlers.ofString());
         } catch (InterruptedException ex) {
             Thread.currentThread().interrupt();
             Err e = new Err(BootErrorCode.APP_INTERRUPTED, null, null, ex, "RPC Interrupted");
@@ -114,25 +295,395 @@ public abstract class RPCDelegate_HTTPClientImpl implements RPCDelegate {
         } finally {
             context.poi(BootPOI.RPC_END);
         }
+        return onResponse(context, originRequest, originRequestBody, httpResponse, successStatusList);
+    }
 
-        // 3a. check remote success or not
-        boolean isRemoteSuccess = false;
-        int statusCode = httpResponse.statusCode();
-        if (successStatusList == null || successStatusList.length < 1) {
-            isRemoteSuccess = statusCode == HttpResponseStatus.OK.code();
-        } else {
-            for (HttpResponseStatus successStatus : successStatusList) {// a simple loop is way faster than Arrays
-                if (statusCode == successStatus.code()) {
-                    isRemoteSuccess = true;
-                    break;
+    /**
+     * @param req
+     * @return the destination the circuit breaker, bulkhead and retry budget
+     * apply to, override to group URLs the default
+     * {@link RPCGuard#template(java.net.URI)} cannot recognize
+     */
+    protected String destination(HttpRequest req) {
+        return RPCGuard.template(req.uri());
+    }
+
+    /**
+     * @param req
+     * @return true if the request can be retried, no matter if the remote
+     * side has processed it
+     */
+    protected boolean isIdempotent(HttpRequest req) {
+        switch (req.method()) {
+            case "GET", "HEAD", "PUT", "DELETE", "OPTIONS":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param statusCode
+     * @return true if the status means the remote side is not healthy, counted
+     * as failure by the circuit breaker and retried
+     */
+    protected boolean isUnhealthy(int statusCode) {
+        return statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    protected <B> HttpResponse<B> send(ServiceContext context, HttpRequest req, HttpResponse.BodyHandler<B> bodyHandler) throws IOException, InterruptedException {
+        HttpClientConfig httpCfg = getHttpClientConfig();
+        HttpClientProfile profile = profile();
+        RPCGuard.Destination dest = httpCfg.getGuard().destination(destination(req));
+        dest.onRequest();
+        if (isHedgeable(req) && dest.hedgeDelayMs() > 0) {
+            CompletableFuture<HttpResponse<B>> response = sendAsync(context, profile, dest, req, bodyHandler);
+            try {
+                return response.get();
+            } catch (InterruptedException ex) {
+                response.cancel(true);
+                throw ex;
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                throw cause instanceof IOException ioe ? ioe : new IOException(cause);
+            }
+        }
+        EndpointGroup.Endpoint endpoint = null;
+        for (int attempt = 0; ; attempt++) {
+            HttpRequest attemptReq = withDeadline(context, req);
+            Slot slot = acquire(profile, dest, endpoint);
+            endpoint = slot.endpoint;
+            long start = System.nanoTime();
+            HttpResponse<B> httpResponse = null;
+            IOException failure = null;
+            boolean failed = false;
+            boolean cancelled = false;
+            try {
+                httpResponse = profile.getHttpClient().send(endpoint == null ? attemptReq : endpoint.rewrite(attemptReq), bodyHandler);
+                failed = isUnhealthy(httpResponse.statusCode());
+            } catch (IOException ex) {
+                failed = true;
+                failure = ex;
+            } catch (InterruptedException ex) {
+                cancelled = true;
+                throw ex;
+            } finally {
+                if (cancelled) {
+                    cancel(profile, dest, slot);
+                } else {
+                    release(profile, dest, slot, System.nanoTime() - start, failed);
+                }
+            }
+            if (!failed || !isIdempotent(req) || !dest.tryRetry(attempt)) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return httpResponse;
+            }
+            context.memo(RPCMemo.MEMO_RPC_RESPONSE, "retry " + (attempt + 1) + " after " + (failure == null ? httpResponse.statusCode() : failure));
+            discard(httpResponse);
+            TimeUnit.MILLISECONDS.sleep(Math.min(dest.backoffMs(attempt), context.remainingMs()));
+        }
+    }
+
+    /**
+     * caps the timeout of one attempt by the time left before the deadline of
+     * the context, and passes the remaining budget downstream via the
+     * httpclient.DeadlineHeader
+     *
+     * @param context
+     * @param req
+     * @return req as is when the context has no deadline
+     * @throws HttpTimeoutException when the deadline has already passed
+     */
+    protected HttpRequest withDeadline(ServiceContext context, HttpRequest req) throws HttpTimeoutException {
+        long remainingMs = context.remainingMs();
+        if (remainingMs == Long.MAX_VALUE) {
+            return req;
+        }
+        if (remainingMs < 1) {
+            throw new HttpTimeoutException("deadline exceeded before sending " + req.method() + " " + req.uri());
+        }
+        HttpRequest.Builder reqBuilder = HttpRequest.newBuilder(req, (headerName, headerValue) -> true);
+        long timeoutMs = req.timeout().map(Duration::toMillis).orElse(Long.MAX_VALUE);
+        if (remainingMs < timeoutMs) {
+            reqBuilder.timeout(Duration.ofMillis(remainingMs));
+        }
+        String header = getHttpClientConfig().getDeadlineHeader();
+        if (StringUtils.isNotBlank(header)) {
+            reqBuilder.setHeader(header, String.valueOf(remainingMs));
+        }
+        return reqBuilder.build();
+    }
+
+    /**
+     * What one attempt holds until
+     * {@link #release(HttpClientProfile, RPCGuard.Destination, Slot, long, boolean)}
+     */
+    protected static class Slot {
+
+        /**
+         * of the destination circuit breaker
+         */
+        protected final long circuitPermit;
+        /**
+         * to send to, null to send to the request URI
+         */
+        protected final EndpointGroup.Endpoint endpoint;
+
+        protected Slot(long circuitPermit, EndpointGroup.Endpoint endpoint) {
+            this.circuitPermit = circuitPermit;
+            this.endpoint = endpoint;
+        }
+    }
+
+    /**
+     * takes a connection slot of the profile, a bulkhead slot and a circuit
+     * permit of the destination, then selects an endpoint when the profile
+     * load balances over an {@link EndpointGroup}
+     *
+     * @param profile
+     * @param dest
+     * @param avoid   the endpoint of the previous attempt, nullable
+     * @return the slots taken and the endpoint to send to
+     * @throws RPCRejectedException
+     */
+    protected Slot acquire(HttpClientProfile profile, RPCGuard.Destination dest, EndpointGroup.Endpoint avoid) throws RPCRejectedException {
+        profile.acquire();
+        long circuitPermit;
+        try {
+            circuitPermit = dest.acquire();
+        } catch (RPCRejectedException ex) {
+            profile.release();
+            throw ex;
+        }
+        EndpointGroup endpoints = profile.getEndpoints();
+        if (endpoints == null) {
+            return new Slot(circuitPermit, null);
+        }
+        try {
+            return new Slot(circuitPermit, endpoints.select(avoid));
+        } catch (RPCRejectedException ex) {
+            profile.release();
+            dest.cancel(circuitPermit);// not called, says nothing about the destination
+            throw ex;
+        }
+    }
+
+    protected void release(HttpClientProfile profile, RPCGuard.Destination dest, Slot slot, long latencyNanos, boolean failed) {
+        profile.release();
+        dest.release(slot.circuitPermit, latencyNanos, failed);
+        if (slot.endpoint != null) {
+            slot.endpoint.release(latencyNanos, failed);
+        }
+    }
+
+    /**
+     * gives back the slots of a call cancelled by the caller: no latency
+     * sample, no circuit breaker outcome, no endpoint latency or failure
+     *
+     * @param profile
+     * @param dest
+     * @param slot
+     */
+    protected void cancel(HttpClientProfile profile, RPCGuard.Destination dest, Slot slot) {
+        profile.release();
+        dest.cancel(slot.circuitPermit);
+        if (slot.endpoint != null) {
+            slot.endpoint.cancel();
+        }
+    }
+
+    /**
+     * releases the connection of a response that will not be read
+     *
+     * @param httpResponse
+     */
+    protected void discard(HttpResponse<?> httpResponse) {
+        if (httpResponse != null && httpResponse.body() instanceof Closeable c) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                // nothing to recover
+            }
+        }
+    }
+
+    /**
+     * @param req
+     * @return true if a slow call can be raced by a second one
+     */
+    protected boolean isHedgeable(HttpRequest req) {
+        return "GET".equals(req.method()) || "HEAD".equals(req.method());
+    }
+
+    /**
+     * @param req the original request
+     * @return the request of the hedged call, the same request by default;
+     * when the profile load balances over an {@link EndpointGroup} it is
+     * sent to another endpoint than the primary call
+     */
+    protected HttpRequest hedgeRequest(HttpRequest req) {
+        return req;
+    }
+
+    /**
+     * One call including its retries, cancelling the response aborts the
+     * exchange in flight
+     *
+     * @param <B> response body type
+     */
+    protected static class Leg<B> {
+
+        protected final CompletableFuture<HttpResponse<B>> response = new CompletableFuture<>();
+        protected final AtomicReference<CompletableFuture<?>> inFlight = new AtomicReference<>();
+        protected volatile boolean started;
+        /**
+         * of the latest attempt, the next one avoids it
+         */
+        protected volatile EndpointGroup.Endpoint endpoint;
+
+        protected Leg() {
+            response.whenComplete((r, ex) -> {
+                if (ex instanceof CancellationException) {
+                    CompletableFuture<?> call = inFlight.get();
+                    if (call != null) {
+                        call.cancel(true);
+                    }
                 }
+            });
+        }
+    }
+
+    /**
+     * Sends the request, plus a hedged call if no response arrives within the
+     * hedge delay of the destination; the first response wins and the other
+     * call is cancelled.
+     *
+     * @param <B>
+     * @param context
+     * @param profile
+     * @param dest
+     * @param req
+     * @param bodyHandler
+     * @return
+     */
+    protected <B> CompletableFuture<HttpResponse<B>> sendAsync(ServiceContext context, HttpClientProfile profile, RPCGuard.Destination dest, HttpRequest req, HttpResponse.BodyHandler<B> bodyHandler) {
+        Leg<B> primary = new Leg<>();
+        primary.started = true;
+        sendAsync(context, profile, dest, req, bodyHandler, 0, primary);
+        long hedgeDelayMs = isHedgeable(req) ? dest.hedgeDelayMs() : 0;
+        if (hedgeDelayMs < 1) {
+            return primary.response;
+        }
+        CompletableFuture<HttpResponse<B>> ret = new CompletableFuture<>();
+        Leg<B> hedge = new Leg<>();
+        primary.response.whenComplete((r, ex) -> onLegDone(dest, ret, hedge, r, ex, false));
+        CompletableFuture.delayedExecutor(hedgeDelayMs, TimeUnit.MILLISECONDS).execute(() -> {
+            if (ret.isDone() || primary.response.isDone() || !dest.tryHedge()) {
+                return;
+            }
+            context.memo(RPCMemo.MEMO_RPC_RESPONSE, "hedge after " + hedgeDelayMs + "ms");
+            hedge.started = true;
+            hedge.endpoint = primary.endpoint;
+            hedge.response.whenComplete((r, ex) -> onLegDone(dest, ret, primary, r, ex, true));
+            sendAsync(context, profile, dest, hedgeRequest(req), bodyHandler, 0, hedge);
+        });
+        ret.whenComplete((r, ex) -> {
+            // cancel the loser, no-op on the winner
+            primary.response.cancel(true);
+            hedge.response.cancel(true);
+        });
+        return ret;
+    }
+
+    protected <B> void onLegDone(RPCGuard.Destination dest, CompletableFuture<HttpResponse<B>> ret, Leg<B> other, HttpResponse<B> httpResponse, Throwable ex, boolean isHedge) {
+        if (ex == null) {
+            if (ret.complete(httpResponse)) {
+                if (isHedge) {
+                    dest.onHedgeWin();
+                }
+            } else {
+                discard(httpResponse);// the loser
+            }
+        } else if (!other.started || other.response.isDone()) {
+            ret.completeExceptionally(ex);
+        }// else wait for the other call
+    }
+
+    protected <B> void sendAsync(ServiceContext context, HttpClientProfile profile, RPCGuard.Destination dest, HttpRequest req, HttpResponse.BodyHandler<B> bodyHandler, int attempt, Leg<B> leg) {
+        CompletableFuture<HttpResponse<B>> ret = leg.response;
+        if (ret.isDone()) {
+            return;// cancelled while waiting to retry
+        }
+        HttpRequest attemptReq;
+        Slot slot;
+        try {
+            attemptReq = withDeadline(context, req);
+            slot = acquire(profile, dest, leg.endpoint);
+        } catch (HttpTimeoutException | RPCRejectedException ex) {
+            ret.completeExceptionally(ex);
+            return;
+        }
+        EndpointGroup.Endpoint endpoint = slot.endpoint;
+        leg.endpoint = endpoint;
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<B>> call = profile.getHttpClient().sendAsync(endpoint == null ? attemptReq : endpoint.rewrite(attemptReq), bodyHandler);
+        leg.inFlight.set(call);
+        if (ret.isCancelled()) {
+            call.cancel(true);
+        }
+        call.whenComplete((httpResponse, ex) -> {
+            // a cancelled leg may also see the aborted exchange fail with an IOException
+            boolean cancelled = ex != null && (ret.isCancelled() || ex instanceof CancellationException || ex.getCause() instanceof CancellationException);
+            boolean failed = !cancelled && (ex != null || isUnhealthy(httpResponse.statusCode()));
+            if (cancelled) {
+                cancel(profile, dest, slot);
+            } else {
+                release(profile, dest, slot, System.nanoTime() - start, failed);
+            }
+            if (failed && !ret.isDone() && isIdempotent(req) && dest.tryRetry(attempt)) {
+                context.memo(RPCMemo.MEMO_RPC_RESPONSE, "retry " + (attempt + 1) + " after " + (ex == null ? httpResponse.statusCode() : ex));
+                discard(httpResponse);
+                CompletableFuture.delayedExecutor(Math.min(dest.backoffMs(attempt), context.remainingMs()), TimeUnit.MILLISECONDS)
+                        .execute(() -> sendAsync(context, profile, dest, req, bodyHandler, attempt + 1, leg));
+            } else if (ex != null) {
+                ret.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+            } else if (!ret.complete(httpResponse)) {
+                discard(httpResponse);// cancelled meanwhile
+            }
+        });
+    }
+
+    protected void memoRequest(ServiceContext context, HttpRequest originRequest, String originRequestBody) {
+        Object caller = context.caller();
+        context.memo(RPCMemo.MEMO_RPC_REQUEST, () -> originRequest + " caller=" + caller);
+        if (originRequestBody != null) {
+            context.memo(RPCMemo.MEMO_RPC_REQUEST_DATA, originRequestBody);
+        }
+    }
+
+    protected boolean isRemoteSuccess(int statusCode, HttpResponseStatus... successStatusList) {
+        if (successStatusList == null || successStatusList.length < 1) {
+            return statusCode == HttpResponseStatus.OK.code();
+        }
+        for (HttpResponseStatus successStatus : successStatusList) {// a simple loop is way faster than Arrays
+            if (statusCode == successStatus.code()) {
+                return true;
             }
         }
+        return false;
+    }
+
+    protected <T, E extends ServiceErrorConvertible> RPCResult<T, E> onResponse(ServiceContext context, HttpRequest originRequest, String originRequestBody, HttpResponse httpResponse, HttpResponseStatus... successStatusList) {
+        // 3a. check remote success or not
+        boolean isRemoteSuccess = isRemoteSuccess(httpResponse.statusCode(), successStatusList);
 
         //3b. update status   
         RPCResult<T, E> rpcResult = new RPCResult(originRequest, originRequestBody, httpResponse, isRemoteSuccess);
         String rpcResponseJsonBody = rpcResult.httpResponseBody();
-        context.memo(RPCMemo.MEMO_RPC_RESPONSE, rpcResult.httpStatusCode() + " " + httpResponse.headers());
+        int statusCode = rpcResult.httpStatusCode();
+        context.memo(RPCMemo.MEMO_RPC_RESPONSE, () -> statusCode + " " + httpResponse.headers());
         context.memo(RPCMemo.MEMO_RPC_RESPONSE_DATA, rpcResponseJsonBody);
         // let caller decide how to process the RPCResult - rpcResult.update(successResponseClass, errorResponseClass, context);
         return rpcResult;
@@ -154,4 +705,145 @@ public abstract class RPCDelegate_HTTPClientImpl implements RPCDelegate {
         return this.rpcEx(context, request.getOriginRequest(), request.getOriginRequestBody(), successStatusList);
     }
 
+    @Override
+    public <T, E extends ServiceErrorConvertible> CompletableFuture<RPCResult<T, E>> rpcAsync(ServiceContext serviceContext, HttpRequest.Builder reqBuilder, HttpResponseStatus... successStatusList) {
+        configure(reqBuilder);
+        HttpRequest req = reqBuilder.build();
+        String reqbody = RPCDelegate.getHttpRequestBody(req);
+        return this.rpcAsync(serviceContext, req, reqbody, successStatusList);
+    }
+
+    @Override
+    public <T, E extends ServiceErrorConvertible> CompletableFuture<RPCResult<T, E>> rpcAsync(ServiceContext serviceContext, HttpRequest req, HttpResponseStatus... successStatusList) {
+        String reqbody = RPCDelegate.getHttpRequestBody(req);
+        return this.rpcAsync(serviceContext, req, reqbody, successStatusList);
+    }
+
+    /**
+     * Need to call RPCResult.update(...) to deserialize JSON to success/error
+     * result. The callbacks run on the HttpClient executor, not on the caller
+     * thread.
+     *
+     * @param <T>
+     * @param <E>
+     * @param context
+     * @param originRequest
+     * @param originRequestBody
+     * @param successStatusList
+     * @return a future of Non-Null RPCResult
+     */
+    @Override
+    public <T, E extends ServiceErrorConvertible> CompletableFuture<RPCResult<T, E>> rpcAsync(ServiceContext context, HttpRequest originRequest, String originRequestBody, HttpResponseStatus... successStatusList) {
+        return rpcAsync(context, originRequest, originRequestBody, HttpResponse.BodyHandlers.ofString(),
+                httpResponse -> onResponse(context, originRequest, originRequestBody, httpResponse, successStatusList), null);
+    }
+
+    /**
+     * @param <B>
+     * @param <R>
+     * @param context
+     * @param originRequest
+     * @param originRequestBody
+     * @param bodyHandler
+     * @param onResponse        converts the response to the result
+     * @param executor          runs onResponse, null to run it on the
+     *                          HttpClient executor
+     * @return
+     */
+    protected <B, R> CompletableFuture<R> rpcAsync(ServiceContext context, HttpRequest originRequest, String originRequestBody, HttpResponse.BodyHandler<B> bodyHandler,
+                                                   Function<HttpResponse<B>, R> onResponse, Executor executor) {
+        //1. log memo
+        memoRequest(context, originRequest, originRequestBody);
+        //2. call remote sever
+        context.poi(BootPOI.RPC_BEGIN);
+        HttpClientConfig httpCfg = getHttpClientConfig();
+        RPCGuard.Destination dest = httpCfg.getGuard().destination(destination(originRequest));
+        dest.onRequest();
+        CompletableFuture<HttpResponse<B>> response = sendAsync(context, profile(), dest, originRequest, bodyHandler);
+        // recorded once, by whichever of completion and cancellation comes first
+        AtomicBoolean ended = new AtomicBoolean(false);
+        Runnable end = () -> {
+            if (ended.compareAndSet(false, true)) {
+                context.poi(BootPOI.RPC_END);
+            }
+        };
+        BiFunction<HttpResponse<B>, Throwable, R> handler = (httpResponse, ex) -> {
+            end.run();
+            if (ex != null) {
+                throw ex instanceof CompletionException ce ? ce : new CompletionException(ex);
+            }
+            return onResponse.apply(httpResponse);
+        };
+        CompletableFuture<R> ret = executor == null ? response.handle(handler) : response.handleAsync(handler, executor);
+        ret.whenComplete((r, ex) -> {
+            if (ex instanceof CancellationException) {
+                response.cancel(true);// aborts the exchange and stops pending retries and hedges
+                response.thenAccept(this::discard);// completed just before being cancelled
+                end.run();
+                context.memo(RPCMemo.MEMO_RPC_RESPONSE, "cancelled " + originRequest);
+            }
+        });
+        return context.cancelOnAbandoned(ret);
+    }
+
+    protected HttpResponse.BodyHandler<InputStream> streamingBodyHandler() {
+        HttpClientConfig httpCfg = getHttpClientConfig();
+        long maxBytes = httpCfg.getResponseMaxBytes();
+        int previewBytes = httpCfg.getResponseMemoPreviewBytes();
+        return responseInfo -> {
+            long contentLength = responseInfo.headers().firstValueAsLong("Content-Length").orElse(-1);
+            return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(),
+                    in -> new RPCResponseStream(in, contentLength, maxBytes, previewBytes));
+        };
+    }
+
+    @Override
+    public <T, E extends ServiceErrorConvertible> RPCResult<T, E> rpcStreaming(ServiceContext context, HttpRequest.Builder reqBuilder, Class<T> successResponseClass, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) throws IOException {
+        configure(reqBuilder);
+        HttpRequest req = reqBuilder.build();
+        String reqbody = RPCDelegate.getHttpRequestBody(req);
+        return this.rpcStreaming(context, req, reqbody, RPCResult.DefaultJacksonMapper.constructType(successResponseClass), errorResponseClass, successStatusList);
+    }
+
+    @Override
+    public <T, E extends ServiceErrorConvertible> RPCResult<T, E> rpcStreaming(ServiceContext context, HttpRequest originRequest, String originRequestBody, JavaType successResponseType, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) throws IOException {
+        //1. log memo
+        memoRequest(context, originRequest, originRequestBody);
+        //2. call remote sever
+        HttpResponse<InputStream> httpResponse;
+        context.poi(BootPOI.RPC_BEGIN);
+        try {
+            httpResponse = send(context, originRequest, streamingBodyHandler());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Err e = new Err(BootErrorCode.APP_INTERRUPTED, null, null, ex, "RPC Interrupted");
+            context.status(HttpResponseStatus.INTERNAL_SERVER_ERROR).error(e);
+            return new RPCResult(originRequest, originRequestBody, null, false);
+        } finally {
+            context.poi(BootPOI.RPC_END);
+        }
+        return onStreamingResponse(context, originRequest, originRequestBody, httpResponse, successResponseType, errorResponseClass, successStatusList);
+    }
+
+    @Override
+    public <T, E extends ServiceErrorConvertible> CompletableFuture<RPCResult<T, E>> rpcStreamingAsync(ServiceContext context, HttpRequest originRequest, String originRequestBody, JavaType successResponseType, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) {
+        // parsing blocks on the network stream: not on the HttpClient executor
+        return rpcAsync(context, originRequest, originRequestBody, streamingBodyHandler(),
+                httpResponse -> onStreamingResponse(context, originRequest, originRequestBody, httpResponse, successResponseType, errorResponseClass, successStatusList), STREAMING_PARSER);
+    }
+
+    protected <T, E extends ServiceErrorConvertible> RPCResult<T, E> onStreamingResponse(ServiceContext context, HttpRequest originRequest, String originRequestBody, HttpResponse<InputStream> httpResponse,
+                                                                                        JavaType successResponseType, Class<E> errorResponseClass, HttpResponseStatus... successStatusList) {
+        RPCResult<T, E> rpcResult = new RPCResult(originRequest, originRequestBody, httpResponse, isRemoteSuccess(httpResponse.statusCode(), successStatusList));
+        try {
+            rpcResult.update(RPCResult.DefaultJacksonMapper, successResponseType, null, errorResponseClass, context);
+        } finally {
+            rpcResult.close();
+        }
+        int statusCode = rpcResult.httpStatusCode();
+        context.memo(RPCMemo.MEMO_RPC_RESPONSE, () -> statusCode + " " + httpResponse.headers());
+        context.memo(RPCMemo.MEMO_RPC_RESPONSE_DATA, rpcResult.httpResponseBody());
+        return rpcResult;
+    }
+
 }
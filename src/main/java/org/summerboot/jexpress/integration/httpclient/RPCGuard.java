@@ -0,0 +1,406 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.httpclient;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.summerboot.jexpress.util.LatencyHistogram;
+import org.summerboot.jexpress.util.concurrent.CircuitBreaker;
+import org.summerboot.jexpress.util.concurrent.RetryBudget;
+import org.summerboot.jexpress.util.concurrent.SlidingWindowCircuitBreaker;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Failure isolation of one {@link HttpClientConfig}: every destination (host
+ * + path template) has its own circuit breaker, bulkhead and retry budget, so
+ * one degraded partner fails fast instead of holding the caller threads and
+ * the shared HttpClient executor until timeout. All limits are read from the
+ * config on every call, hot reload applies immediately.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RPCGuard implements RPCGuardMXBean {
+
+    protected static final Logger log = LogManager.getLogger(RPCGuard.class.getName());
+
+    protected static final int MAX_DESTINATIONS = 1000;// beyond this the path is not distinguished anymore
+    protected static final int MAX_PLAIN_SEGMENT_LENGTH = 32;
+    protected static final long LATENCY_WINDOW_MS = 30000;
+    protected static final int HEDGE_MIN_SAMPLES = 50;// no hedging on a guess
+
+    protected final HttpClientConfig cfg;
+    protected final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+    protected volatile ObjectName objectName;
+
+    public class Destination {
+
+        protected final String name;
+        protected final SlidingWindowCircuitBreaker circuitBreaker;
+        protected final RetryBudget retryBudget;
+        protected final RetryBudget hedgeBudget;
+        protected final LatencyHistogram latencyMicros = new LatencyHistogram(LATENCY_WINDOW_MS);
+        protected final AtomicInteger inFlight = new AtomicInteger(0);
+        protected final LongAdder circuitRejectedCount = new LongAdder();
+        protected final LongAdder bulkheadRejectedCount = new LongAdder();
+        protected final LongAdder hedgeWinCount = new LongAdder();
+
+        protected Destination(String name) {
+            this.name = name;
+            circuitBreaker = new SlidingWindowCircuitBreaker("HttpClient " + name,
+                    cfg::getCircuitBreakerFailureRatePercent, cfg::getCircuitBreakerSlowCallRatePercent, cfg::getCircuitBreakerSlowCallMs,
+                    cfg::getCircuitBreakerMinCalls, cfg::getCircuitBreakerWindowMs, cfg::getCircuitBreakerOpenMs);
+            circuitBreaker.setStateListener(RPCGuard.this::onStateChange);
+            retryBudget = new RetryBudget(cfg::getRetryBudgetPercent, cfg::getRetryBudgetMinPerSec);
+            hedgeBudget = new RetryBudget(cfg::getHedgeBudgetPercent, () -> 0);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * an original request, not a retry
+         */
+        public void onRequest() {
+            retryBudget.onRequest();
+            hedgeBudget.onRequest();
+        }
+
+        /**
+         * takes a bulkhead slot and a circuit permit, the caller must then
+         * {@link #release(long, long, boolean)}
+         *
+         * @return the circuit permit
+         * @throws RPCRejectedException
+         */
+        public long acquire() throws RPCRejectedException {
+            int max = cfg.getBulkheadMaxConcurrent();
+            if (inFlight.incrementAndGet() > max && max > 0) {
+                inFlight.decrementAndGet();
+                bulkheadRejectedCount.increment();
+                throw new RPCRejectedException(name, "bulkhead full (" + max + " concurrent calls)");
+            }
+            // after the bulkhead, a half-open probe permit must not be lost
+            long permit = circuitBreaker.tryAcquirePermit();
+            if (permit < 0) {
+                inFlight.decrementAndGet();
+                circuitRejectedCount.increment();
+                throw new RPCRejectedException(name, "circuit open");
+            }
+            return permit;
+        }
+
+        /**
+         * @param permit       from {@link #acquire()}
+         * @param latencyNanos
+         * @param failed       connection error, timeout or unhealthy status
+         */
+        public void release(long permit, long latencyNanos, boolean failed) {
+            inFlight.decrementAndGet();
+            circuitBreaker.record(permit, latencyNanos, failed);
+            if (!failed) {
+                latencyMicros.record(latencyNanos / 1000);
+            }
+        }
+
+        /**
+         * gives back the slot and the permit of a call cancelled by the
+         * caller, i.e. a hedged call that lost, without recording an outcome
+         *
+         * @param permit from {@link #acquire()}
+         */
+        public void cancel(long permit) {
+            inFlight.decrementAndGet();
+            circuitBreaker.cancel(permit);
+        }
+
+        /**
+         * @return how long to wait for a response before sending a hedged
+         * call, 0 if hedging is disabled, not enough latency samples yet or
+         * the circuit is not closed
+         */
+        public long hedgeDelayMs() {
+            double percentile = cfg.getHedgePercentile();
+            if (percentile <= 0 || circuitBreaker.getState() != CircuitBreaker.State.CLOSED || latencyMicros.getCount() < HEDGE_MIN_SAMPLES) {
+                return 0;
+            }
+            return Math.max(cfg.getHedgeMinDelayMs(), latencyMicros.getPercentile(percentile) / 1000);
+        }
+
+        /**
+         * @return true if a hedged call is allowed and has been withdrawn from
+         * the hedge budget
+         */
+        public boolean tryHedge() {
+            return circuitBreaker.getState() == CircuitBreaker.State.CLOSED && hedgeBudget.tryRetry();
+        }
+
+        public void onHedgeWin() {
+            hedgeWinCount.increment();
+        }
+
+        /**
+         * @param attempt 0 for the first retry
+         * @return true if allowed by config and by the retry budget
+         */
+        public boolean tryRetry(int attempt) {
+            return attempt < cfg.getRetryMaxRetries() && retryBudget.tryRetry();
+        }
+
+        /**
+         * @param attempt 0 for the first retry
+         * @return full jitter exponential backoff
+         */
+        public long backoffMs(int attempt) {
+            long cap = cfg.getRetryBackoffMs() << Math.min(attempt, 10);
+            return cap < 1 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+        }
+
+        public CircuitBreaker.State getState() {
+            return circuitBreaker.getState();
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + " state=" + circuitBreaker.getState() + ", inFlight=" + inFlight.get()
+                    + ", circuitRejected=" + circuitRejectedCount.sum() + ", bulkheadRejected=" + bulkheadRejectedCount.sum()
+                    + ", opened=" + circuitBreaker.getOpenCount() + ", retries=" + retryBudget.getRetryCount()
+                    + ", retryBudgetExhausted=" + retryBudget.getExhaustedCount()
+                    + ", hedges=" + hedgeBudget.getRetryCount() + ", hedgeWins=" + hedgeWinCount.sum() + ", hedgeBudgetExhausted=" + hedgeBudget.getExhaustedCount()
+                    + ", p50=" + latencyMicros.getPercentile(50) / 1000 + "ms, p99=" + latencyMicros.getPercentile(99) / 1000 + "ms";
+        }
+    }
+
+    public RPCGuard(HttpClientConfig cfg) {
+        this.cfg = cfg;
+        registerMBean(cfg.name());
+    }
+
+    protected void registerMBean(String name) {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("org.summerboot.jexpress:type=HttpClient,name=" + ObjectName.quote(name));
+            if (mBeanServer.isRegistered(objectName)) {
+                objectName = new ObjectName("org.summerboot.jexpress:type=HttpClient,name=" + ObjectName.quote(name + "@" + Integer.toHexString(System.identityHashCode(this))));
+            }
+            mBeanServer.registerMBean(new StandardMBean(this, RPCGuardMXBean.class, true), objectName);
+            this.objectName = objectName;
+        } catch (JMException | RuntimeException ex) {
+            log.debug(() -> "JMX not available for " + name + ": " + ex);
+        }
+    }
+
+    /**
+     * unregisters the MBean, called when the config shuts down
+     */
+    public void close() {
+        ObjectName on = objectName;
+        if (on == null) {
+            return;
+        }
+        objectName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+        } catch (JMException | RuntimeException ex) {
+            log.debug(() -> "failed to unregister " + on + ": " + ex);
+        }
+    }
+
+    protected void onStateChange(CircuitBreaker circuitBreaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+        var l = cfg.listener;
+        if (l != null) {
+            l.onHTTPClientCircuitStateChange(circuitBreaker.getName(), from, to);
+        }
+    }
+
+    /**
+     * @param destination see {@link #template(URI)}
+     * @return
+     */
+    public Destination destination(String destination) {
+        Destination ret = destinations.get(destination);
+        if (ret == null) {
+            if (destinations.size() >= MAX_DESTINATIONS) {
+                int i = destination.indexOf('/', destination.indexOf("//") + 2);
+                destination = (i < 0 ? destination : destination.substring(0, i)) + "/*";
+            }
+            ret = destinations.computeIfAbsent(destination, Destination::new);
+        }
+        return ret;
+    }
+
+    /**
+     * @param uri
+     * @return scheme://host:port/path with the segments that look like ids
+     * (numbers, UUIDs, long tokens) replaced by {}
+     */
+    public static String template(URI uri) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(uri.getScheme()).append("://").append(uri.getHost());
+        if (uri.getPort() > 0) {
+            sb.append(':').append(uri.getPort());
+        }
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty()) {
+            return sb.append('/').toString();
+        }
+        int start = path.charAt(0) == '/' ? 1 : 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            sb.append('/');
+            if (isIdLike(path, start, end)) {
+                sb.append("{}");
+            } else {
+                sb.append(path, start, end);
+            }
+            start = end + 1;
+        }
+        return sb.toString();
+    }
+
+    protected static boolean isIdLike(String path, int start, int end) {
+        int len = end - start;
+        if (len == 0) {
+            return false;
+        }
+        if (len > MAX_PLAIN_SEGMENT_LENGTH) {
+            return true;
+        }
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if (c != '-' && !(c >= 'a' && c <= 'f') && !(c >= 'A' && c <= 'F')) {
+                return false;// has a non-hex letter, i.e. "v1", "users"
+            }
+        }
+        // all digits, or hex/UUID with at least one digit
+        return digits == len || digits > 0 && len >= 8;
+    }
+
+    public List<Destination> getDestinations() {
+        return new ArrayList<>(destinations.values());
+    }
+
+    @Override
+    public int getDestinationCount() {
+        return destinations.size();
+    }
+
+    @Override
+    public int getOpenCircuitCount() {
+        int ret = 0;
+        for (Destination d : destinations.values()) {
+            if (d.getState() != CircuitBreaker.State.CLOSED) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public long getCircuitRejectedCount() {
+        long ret = 0;
+        for (Destination d : destinations.values()) {
+            ret += d.circuitRejectedCount.sum();
+        }
+        return ret;
+    }
+
+    @Override
+    public long getBulkheadRejectedCount() {
+        long ret = 0;
+        for (Destination d : destinations.values()) {
+            ret += d.bulkheadRejectedCount.sum();
+        }
+        return ret;
+    }
+
+    @Override
+    public long getRetryCount() {
+        long ret = 0;
+        for (Destination d : destinations.values()) {
+            ret += d.retryBudget.getRetryCount();
+        }
+        return ret;
+    }
+
+    @Override
+    public long getRetryBudgetExhaustedCount() {
+        long ret = 0;
+        for (Destination d : destinations.values()) {
+            ret += d.retryBudget.getExhaustedCount();
+        }
+        return ret;
+    }
+
+    @Override
+    public long getHedgeCount() {
+        long ret = 0;
+        for (Destination d : destinations.values()) {
+            ret += d.hedgeBudget.getRetryCount();
+        }
+        return ret;
+    }
+
+    @Override
+    public long getHedgeWinCount() {
+        long ret = 0;
+        for (Destination d : destinations.values()) {
+            ret += d.hedgeWinCount.sum();
+        }
+        return ret;
+    }
+
+    @Override
+    public long getHedgeBudgetExhaustedCount() {
+        long ret = 0;
+        for (Destination d : destinations.values()) {
+            ret += d.hedgeBudget.getExhaustedCount();
+        }
+        return ret;
+    }
+
+    @Override
+    public List<String> getDestinationReport() {
+        List<String> ret = new ArrayList<>();
+        for (Destination d : destinations.values()) {
+            ret.add(d.toString());
+        }
+        return ret;
+    }
+}
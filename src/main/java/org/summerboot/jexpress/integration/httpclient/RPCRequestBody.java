@@ -0,0 +1,119 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.httpclient;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.summerboot.jexpress.util.BeanUtil;
+
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A request body serialized once: the same bytes are published to every
+ * attempt (retries, hedged calls) and the text for memo is only rendered when
+ * asked, up to previewBytes.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RPCRequestBody {
+
+    public static final String CONTENT_TYPE_JSON = "application/json;charset=UTF-8";
+
+    protected final byte[] bytes;
+    protected final String contentType;
+    protected final int previewBytes;
+    protected volatile String preview;
+
+    public RPCRequestBody(byte[] bytes, String contentType, int previewBytes) {
+        this.bytes = bytes;
+        this.contentType = contentType;
+        this.previewBytes = previewBytes;
+    }
+
+    /**
+     * @param body         a String or byte[] is sent as is, anything else is
+     *                     serialized to JSON with a cached ObjectWriter
+     * @param previewBytes
+     * @return null if body is null
+     * @throws JsonProcessingException
+     */
+    public static RPCRequestBody json(Object body, int previewBytes) throws JsonProcessingException {
+        return of(body, null, previewBytes);
+    }
+
+    /**
+     * @param body         a String or byte[] is sent as is, anything else is
+     *                     serialized to JSON with a cached ObjectWriter
+     * @param contentType  null to label a serialized body as JSON and to leave
+     *                     the Content-Type of a String or byte[] to the
+     *                     default request headers
+     * @param previewBytes
+     * @return null if body is null
+     * @throws JsonProcessingException
+     */
+    public static RPCRequestBody of(Object body, String contentType, int previewBytes) throws JsonProcessingException {
+        if (body == null) {
+            return null;
+        }
+        if (body instanceof byte[] b) {
+            return new RPCRequestBody(b, contentType, previewBytes);
+        }
+        if (body instanceof String s) {
+            return new RPCRequestBody(s.getBytes(StandardCharsets.UTF_8), contentType, previewBytes);
+        }
+        return new RPCRequestBody(BeanUtil.toJsonBytes(body), contentType == null ? CONTENT_TYPE_JSON : contentType, previewBytes);
+    }
+
+    /**
+     * @return a publisher over the same bytes, no copy
+     */
+    public HttpRequest.BodyPublisher publisher() {
+        return HttpRequest.BodyPublishers.ofByteArray(bytes);
+    }
+
+    /**
+     * @return null if not known
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * @return the body as text, truncated to previewBytes unless it is
+     * negative
+     */
+    public String preview() {
+        String ret = preview;
+        if (ret == null) {
+            if (previewBytes < 0 || bytes.length <= previewBytes) {
+                ret = new String(bytes, StandardCharsets.UTF_8);
+            } else {
+                ret = new String(bytes, 0, previewBytes, StandardCharsets.UTF_8) + "...(" + bytes.length + " bytes)";
+            }
+            preview = ret;
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return preview();
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.httpclient;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client side HTTP cache of GET responses keyed by URI plus the values of the
+ * request headers named by the latest Vary of that URI, so each variant has
+ * its own entry, bounded by httpclient.Cache.MaxEntries in LRU order. Honors
+ * Cache-Control max-age, s-maxage, no-cache, no-store, private,
+ * must-revalidate and stale-if-error, Expires and Age; revalidates with If-None-Match and
+ * If-Modified-Since. A response to a request with Authorization is only stored
+ * when marked public or s-maxage (RFC 9111 section 3.5). An entry also keeps
+ * its body parsed once into a JSON tree, so a hit or a 304 binds a new object
+ * from the tree instead of parsing the JSON again, and callers never share an
+ * instance.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RPCResponseCache {
+
+    public enum Outcome {
+        /**
+         * fresh entry, no call
+         */
+        HIT,
+        /**
+         * stale entry confirmed by a 304
+         */
+        REVALIDATED,
+        /**
+         * stale entry served because the call failed
+         */
+        STALE_IF_ERROR,
+        MISS
+    }
+
+    protected final HttpClientConfig cfg;
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    /**
+     * lower case Vary header names by method + URI, guarded by entries
+     */
+    protected final LinkedHashMap<String, List<String>> varyNames = new LinkedHashMap<>(64, 0.75f, true);
+    protected final LongAdder hitCount = new LongAdder();
+    protected final LongAdder revalidatedCount = new LongAdder();
+    protected final LongAdder staleIfErrorCount = new LongAdder();
+    protected final LongAdder missCount = new LongAdder();
+    protected final LongAdder evictionCount = new LongAdder();
+
+    public RPCResponseCache(HttpClientConfig cfg) {
+        this.cfg = cfg;
+    }
+
+    public static boolean isCacheable(HttpRequest req) {
+        return "GET".equals(req.method());
+    }
+
+    protected static String uriKey(HttpRequest req) {
+        return req.method() + " " + req.uri();
+    }
+
+    /**
+     * @param req
+     * @param varyNames nullable
+     * @return method, URI and the values of the request headers named by Vary
+     */
+    protected static String key(HttpRequest req, List<String> varyNames) {
+        String ret = uriKey(req);
+        if (varyNames == null || varyNames.isEmpty()) {
+            return ret;
+        }
+        StringBuilder sb = new StringBuilder(ret);
+        for (String name : varyNames) {
+            sb.append('\n').append(name).append(": ").append(String.join(",", req.headers().allValues(name)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param h response headers
+     * @return lower case header names, null if Vary: *
+     */
+    protected static List<String> varyNames(HttpHeaders h) {
+        List<String> ret = new ArrayList<>();
+        for (String v : h.allValues("Vary")) {
+            for (String name : v.split(",")) {
+                name = name.trim().toLowerCase(Locale.ROOT);
+                if (name.equals("*")) {
+                    return null;
+                }
+                if (!name.isEmpty() && !ret.contains(name)) {
+                    ret.add(name);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param req
+     * @return the entry matching the URI and Vary headers of the request, fresh
+     * or not, null if none
+     */
+    public Entry get(HttpRequest req) {
+        Entry ret;
+        synchronized (entries) {
+            ret = entries.get(key(req, varyNames.get(uriKey(req))));
+        }
+        return ret == null || !ret.matches(req) ? null : ret;
+    }
+
+    /**
+     * @param req
+     * @param response a 200 response
+     * @return the new entry, null if the response must not be cached
+     */
+    public Entry put(HttpRequest req, HttpResponse<?> response) {
+        String uriKey = uriKey(req);
+        List<String> names = varyNames(response.headers());
+        Entry entry = names != null && response.statusCode() == 200 && response.body() instanceof String body && body.length() <= cfg.getCacheMaxBodyLength()
+                ? Entry.of(key(req, names), req, response, body, names, cfg.getCacheStaleIfErrorSec())
+                : null;
+        synchronized (entries) {
+            if (entry == null) {
+                entries.remove(key(req, varyNames.get(uriKey)));
+                return null;
+            }
+            varyNames.put(uriKey, names);
+            entries.put(entry.key, entry);
+            int max = cfg.getCacheMaxEntries();
+            Iterator<Entry> it = entries.values().iterator();
+            while (entries.size() > max && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictionCount.increment();
+            }
+            Iterator<List<String>> varyIt = varyNames.values().iterator();
+            while (varyNames.size() > max && varyIt.hasNext()) {
+                varyIt.next();
+                varyIt.remove();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * @param entry
+     * @param notModified the 304 response, may carry new caching headers
+     */
+    public void revalidated(Entry entry, HttpResponse<?> notModified) {
+        if (!entry.refresh(notModified.headers(), cfg.getCacheStaleIfErrorSec())) {
+            synchronized (entries) {
+                entries.remove(entry.key, entry);
+            }
+        }
+    }
+
+    public void record(Outcome outcome) {
+        switch (outcome) {
+            case HIT ->
+                    hitCount.increment();
+            case REVALIDATED ->
+                    revalidatedCount.increment();
+            case STALE_IF_ERROR ->
+                    staleIfErrorCount.increment();
+            case MISS ->
+                    missCount.increment();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            varyNames.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getRevalidatedCount() {
+        return revalidatedCount.sum();
+    }
+
+    public long getStaleIfErrorCount() {
+        return staleIfErrorCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * @return served from cache (hit, revalidated or stale-if-error) in
+     * percent of all cacheable calls
+     */
+    public double getHitRatePercent() {
+        long served = hitCount.sum() + revalidatedCount.sum() + staleIfErrorCount.sum();
+        long total = served + missCount.sum();
+        return total == 0 ? 0 : served * 100.0 / total;
+    }
+
+    @Override
+    public String toString() {
+        return "RPCResponseCache{" + "size=" + size() + ", hit=" + getHitCount() + ", revalidated=" + getRevalidatedCount() + ", staleIfError=" + getStaleIfErrorCount()
+                + ", miss=" + getMissCount() + ", eviction=" + getEvictionCount() + ", hitRate=" + String.format("%.1f", getHitRatePercent()) + "%}";
+    }
+
+    public static class Entry {
+
+        protected final String key;
+        protected final Map<String, List<String>> vary;
+        protected final int statusCode;
+        protected final HttpClient.Version version;
+        protected final String body;
+        /**
+         * the body parsed on the first hit, never handed out
+         */
+        protected volatile JsonNode tree;
+        protected volatile HttpHeaders headers;
+        protected volatile String etag;
+        protected volatile String lastModified;
+        protected volatile long expiresAtMs;
+        protected volatile long staleIfErrorMs;
+
+        protected Entry(String key, Map<String, List<String>> vary, HttpResponse<?> response, String body) {
+            this.key = key;
+            this.vary = vary;
+            this.statusCode = response.statusCode();
+            this.version = response.version();
+            this.body = body;
+        }
+
+        /**
+         * @param varyNames see {@link #varyNames(HttpHeaders)}
+         * @return null if the response must not be cached
+         */
+        protected static Entry of(String key, HttpRequest req, HttpResponse<?> response, String body, List<String> varyNames, long defaultStaleIfErrorSec) {
+            HttpHeaders h = response.headers();
+            Map<String, List<String>> vary = new LinkedHashMap<>();
+            for (String name : varyNames) {
+                vary.put(name, req.headers().allValues(name));
+            }
+            if (req.headers().firstValue("Authorization").isPresent() && !isSharedCacheable(h)) {
+                return null;
+            }
+            Entry ret = new Entry(key, vary, response, body);
+            if (!ret.refresh(h, defaultStaleIfErrorSec)) {
+                return null;
+            }
+            if (ret.expiresAtMs <= System.currentTimeMillis() && ret.etag == null && ret.lastModified == null) {
+                return null;// neither fresh nor revalidatable
+            }
+            return ret;
+        }
+
+        /**
+         * @param h response headers
+         * @return true if Cache-Control has public or s-maxage, which allow
+         * storing a response to a request with Authorization
+         */
+        protected static boolean isSharedCacheable(HttpHeaders h) {
+            for (String cc : h.allValues("Cache-Control")) {
+                for (String directive : cc.split(",")) {
+                    String d = directive.trim().toLowerCase(Locale.ROOT);
+                    if (d.equals("public") || d.startsWith("s-maxage=")) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param h
+         * @param defaultStaleIfErrorSec
+         * @return false if no-store or private
+         */
+        protected boolean refresh(HttpHeaders h, long defaultStaleIfErrorSec) {
+            long now = System.currentTimeMillis();
+            long maxAgeSec = -1;
+            long sMaxAgeSec = -1;
+            long staleIfErrorSec = defaultStaleIfErrorSec;
+            boolean isNoCache = false;
+            boolean isMustRevalidate = false;
+            for (String cc : h.allValues("Cache-Control")) {
+                for (String directive : cc.split(",")) {
+                    String d = directive.trim().toLowerCase(Locale.ROOT);
+                    if (d.equals("no-store") || d.equals("private") || d.startsWith("private=")) {
+                        return false;
+                    } else if (d.equals("no-cache")) {
+                        isNoCache = true;
+                    } else if (d.equals("must-revalidate") || d.equals("proxy-revalidate")) {
+                        isMustRevalidate = true;
+                    } else if (d.startsWith("max-age=")) {
+                        maxAgeSec = parseSec(d.substring(8), maxAgeSec);
+                    } else if (d.startsWith("s-maxage=")) {
+                        sMaxAgeSec = parseSec(d.substring(9), sMaxAgeSec);
+                    } else if (d.startsWith("stale-if-error=")) {
+                        staleIfErrorSec = parseSec(d.substring(15), staleIfErrorSec);
+                    }
+                }
+            }
+            if (sMaxAgeSec >= 0) {
+                maxAgeSec = sMaxAgeSec;// shared by all callers, like a proxy
+                isMustRevalidate = true;
+            }
+            if (maxAgeSec < 0) {
+                Optional<String> expires = h.firstValue("Expires");
+                if (expires.isPresent()) {
+                    maxAgeSec = 0;
+                    try {
+                        long date = h.firstValue("Date").map(RPCResponseCache::parseDate).orElse(now);
+                        maxAgeSec = Math.max(0, (parseDate(expires.get()) - date) / 1000);
+                    } catch (RuntimeException ex) {
+                        // invalid date means already expired
+                    }
+                }
+            }
+            long ageSec = h.firstValueAsLong("Age").orElse(0);
+            expiresAtMs = isNoCache || maxAgeSec < 0 ? now : now + TimeUnit.SECONDS.toMillis(Math.max(0, maxAgeSec - ageSec));
+            staleIfErrorMs = isMustRevalidate ? 0 : TimeUnit.SECONDS.toMillis(Math.max(0, staleIfErrorSec));
+            etag = h.firstValue("ETag").orElse(etag);
+            lastModified = h.firstValue("Last-Modified").orElse(lastModified);
+            if (headers == null || h.firstValue("Content-Type").isPresent()) {
+                headers = h;// a 304 has no body headers, keep the ones of the 200
+            }
+            return true;
+        }
+
+        protected static long parseSec(String v, long defaultValue) {
+            try {
+                return Long.parseLong(v.trim().replace("\"", ""));
+            } catch (NumberFormatException ex) {
+                return defaultValue;
+            }
+        }
+
+        protected boolean matches(HttpRequest req) {
+            for (Map.Entry<String, List<String>> e : vary.entrySet()) {
+                if (!req.headers().allValues(e.getKey()).equals(e.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expiresAtMs;
+        }
+
+        /**
+         * @return true if it may be served when the call fails
+         */
+        public boolean isUsableOnError() {
+            return System.currentTimeMillis() < expiresAtMs + staleIfErrorMs;
+        }
+
+        /**
+         * @param req
+         * @return the request with If-None-Match / If-Modified-Since
+         */
+        public HttpRequest conditional(HttpRequest req) {
+            if (etag == null && lastModified == null) {
+                return req;
+            }
+            HttpRequest.Builder b = HttpRequest.newBuilder(req, (name, value) -> true);
+            if (etag != null) {
+                b.setHeader("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                b.setHeader("If-Modified-Since", lastModified);
+            }
+            return b.build();
+        }
+
+        /**
+         * @param <R>
+         * @param mapper
+         * @param type
+         * @return a new object bound from the body, which is parsed only once,
+         * null if the body is blank
+         * @throws IOException if the body is not JSON of type
+         */
+        public <R> R copyOf(ObjectMapper mapper, Class<R> type) throws IOException {
+            if (StringUtils.isBlank(body)) {
+                return null;
+            }
+            JsonNode t = tree;
+            if (t == null) {
+                t = mapper.readTree(body);
+                tree = t;
+            }
+            return mapper.treeToValue(t, type);
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        /**
+         * @param req
+         * @return the cached response as if it was just received for req
+         */
+        public HttpResponse<String> toResponse(HttpRequest req) {
+            HttpHeaders h = headers;
+            return new HttpResponse<>() {
+                @Override
+                public int statusCode() {
+                    return statusCode;
+                }
+
+                @Override
+                public HttpRequest request() {
+                    return req;
+                }
+
+                @Override
+                public Optional<HttpResponse<String>> previousResponse() {
+                    return Optional.empty();
+                }
+
+                @Override
+                public HttpHeaders headers() {
+                    return h;
+                }
+
+                @Override
+                public String body() {
+                    return body;
+                }
+
+                @Override
+                public Optional<SSLSession> sslSession() {
+                    return Optional.empty();
+                }
+
+                @Override
+                public URI uri() {
+                    return req.uri();
+                }
+
+                @Override
+                public HttpClient.Version version() {
+                    return version;
+                }
+            };
+        }
+    }
+
+    protected static long parseDate(String httpDate) {
+        return ZonedDateTime.parse(httpDate.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.httpclient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Response body of a streaming RPC: fails once more than maxBytes have been
+ * read, and keeps the first bytes as a preview for logging instead of the
+ * whole body.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RPCResponseStream extends FilterInputStream {
+
+    public static class TooLargeException extends IOException {
+
+        public TooLargeException(long maxBytes) {
+            super("RPC response exceeds " + maxBytes + " bytes");
+        }
+    }
+
+    protected final long maxBytes;
+    protected final byte[] preview;
+    protected int previewLength;
+    protected long count;
+
+    /**
+     * @param in
+     * @param contentLength from the response header, -1 if unknown
+     * @param maxBytes      0 for unlimited
+     * @param previewBytes
+     */
+    public RPCResponseStream(InputStream in, long contentLength, long maxBytes, int previewBytes) {
+        super(in);
+        this.maxBytes = maxBytes;
+        this.preview = new byte[Math.max(0, previewBytes)];
+        if (maxBytes > 0 && contentLength > maxBytes) {
+            count = contentLength;// fail on first read, without downloading the body
+        }
+    }
+
+    protected void check() throws TooLargeException {
+        if (maxBytes > 0 && count > maxBytes) {
+            throw new TooLargeException(maxBytes);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        check();
+        int b = super.read();
+        if (b >= 0) {
+            if (previewLength < preview.length) {
+                preview[previewLength++] = (byte) b;
+            }
+            count++;
+            check();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        check();
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            int p = Math.min(n, preview.length - previewLength);
+            if (p > 0) {
+                System.arraycopy(b, off, preview, previewLength, p);
+                previewLength += p;
+            }
+            count += n;
+            check();
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return bytes read so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the first bytes read as UTF-8, with the total size if truncated
+     */
+    public String preview() {
+        String ret = new String(preview, 0, previewLength, StandardCharsets.UTF_8);
+        return count > previewLength ? ret + "...(" + count + " bytes)" : ret;
+    }
+}
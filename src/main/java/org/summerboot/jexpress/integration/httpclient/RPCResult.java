@@ -15,6 +15,7 @@
  */
 package org.summerboot.jexpress.integration.httpclient;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.MapperFeature;
@@ -24,11 +25,14 @@ import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.summerboot.jexpress.boot.BootErrorCode;
 import org.summerboot.jexpress.nio.server.domain.Err;
 import org.summerboot.jexpress.nio.server.domain.ServiceContext;
 import org.summerboot.jexpress.nio.server.domain.ServiceErrorConvertible;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.List;
@@ -68,7 +72,8 @@ public class RPCResult<T, E extends ServiceErrorConvertible> {
 
     protected final String originRequestBody;
     protected final HttpResponse httpResponse;
-    protected final String rpcResponseBody;
+    protected String rpcResponseBody;
+    protected final InputStream responseStream;
     protected final int httpStatusCode;
     protected final HttpResponseStatus httpStatus;
     protected final boolean remoteSuccess;
@@ -79,7 +84,9 @@ public class RPCResult<T, E extends ServiceErrorConvertible> {
         this.originRequest = originRequest;
         this.originRequestBody = originRequestBody;
         this.httpResponse = httpResponse;
-        this.rpcResponseBody = httpResponse == null ? null : String.valueOf(httpResponse.body());
+        Object body = httpResponse == null ? null : httpResponse.body();
+        this.responseStream = body instanceof InputStream in ? in : null;
+        this.rpcResponseBody = body == null || responseStream != null ? null : String.valueOf(body);
         this.httpStatusCode = httpResponse == null ? 0 : httpResponse.statusCode();
         this.httpStatus = HttpResponseStatus.valueOf(httpStatusCode);
         this.remoteSuccess = remoteSuccess;
@@ -105,10 +112,32 @@ public class RPCResult<T, E extends ServiceErrorConvertible> {
         return httpStatusCode;
     }
 
+    /**
+     * @return the response body, or only its preview in streaming mode (see
+     * {@link RPCDelegate#rpcStreaming(ServiceContext, HttpRequest, String, JavaType, Class, HttpResponseStatus...)})
+     * once parsed
+     */
     public String httpResponseBody() {
         return rpcResponseBody;
     }
 
+    /**
+     * Streaming mode only: releases the connection if the body has not been
+     * parsed
+     */
+    public void close() {
+        if (responseStream != null) {
+            try {
+                responseStream.close();
+            } catch (IOException ex) {
+                // nothing to recover
+            }
+            if (responseStream instanceof RPCResponseStream rs) {
+                rpcResponseBody = rs.preview();
+            }
+        }
+    }
+
     public boolean remoteSuccess() {
         return remoteSuccess;
     }
@@ -152,6 +181,9 @@ public class RPCResult<T, E extends ServiceErrorConvertible> {
     }
 
     protected <R extends Object> R fromJson(ObjectMapper jacksonMapper, JavaType responseType, Class<R> responseClass, final ServiceContext context) {
+        if (responseStream != null) {
+            return fromJsonStream(jacksonMapper, responseType, responseClass, context);
+        }
         if (responseClass == null && responseType == null || StringUtils.isBlank(rpcResponseBody)) {
             return null;
         }
@@ -171,4 +203,38 @@ public class RPCResult<T, E extends ServiceErrorConvertible> {
 
         return ret;
     }
+
+    /**
+     * parses straight from the response stream, the body is never held as a
+     * whole String
+     */
+    protected <R extends Object> R fromJsonStream(ObjectMapper jacksonMapper, JavaType responseType, Class<R> responseClass, final ServiceContext context) {
+        if (responseClass == null && responseType == null) {
+            close();
+            return null;
+        }
+        R ret;
+        try (JsonParser parser = jacksonMapper.createParser(responseStream)) {
+            if (parser.nextToken() == null) {
+                ret = null;// empty body
+            } else {
+                ret = responseClass == null
+                        ? jacksonMapper.readValue(parser, responseType)
+                        : jacksonMapper.readValue(parser, responseClass);
+            }
+        } catch (Throwable ex) {
+            close();
+            if (context != null) {
+                Throwable tooLarge = ExceptionUtils.throwableOfType(ex, RPCResponseStream.TooLargeException.class);
+                String desc = tooLarge != null
+                        ? tooLarge.getMessage()
+                        : "Failed to parse RPC JSON response: " + rpcResponseBody;
+                Err e = new Err(BootErrorCode.HTTPCLIENT_UNEXPECTED_RESPONSE_FORMAT, null, null, ex, desc);
+                context.status(HttpResponseStatus.BAD_GATEWAY).error(e);
+            }
+            return null;
+        }
+        close();
+        return ret;
+    }
 }
@@ -16,11 +16,14 @@
 package org.summerboot.jexpress.integration.jpa;
 
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.QueryTimeoutException;
 import org.apache.logging.log4j.LogManager;
 import org.hibernate.cfg.Environment;
 import org.summerboot.jexpress.boot.BackOffice;
 import org.summerboot.jexpress.boot.config.BootConfig;
 import org.summerboot.jexpress.boot.config.ConfigUtil;
+import org.summerboot.jexpress.nio.server.domain.ServiceContext;
 import org.summerboot.jexpress.util.FormatterUtil;
 import org.summerboot.jexpress.util.ReflectionUtil;
 
@@ -28,6 +31,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -138,4 +144,49 @@ public abstract class JPAConfig extends BootConfig {
     protected abstract void buildEntityManagerFactory();
 
     public abstract EntityManager em();
+
+    public static final String HINT_QUERY_TIMEOUT = "jakarta.persistence.query.timeout";
+
+    /**
+     * Set the query timeout to the configured timeout capped by the time left
+     * before the deadline of the context
+     *
+     * @param <Q>
+     * @param query
+     * @param context
+     * @param timeoutMs the configured query timeout, 0 if not configured
+     * @return the query
+     * @throws QueryTimeoutException when the deadline has already passed
+     */
+    public static <Q extends Query> Q withDeadline(Q query, ServiceContext context, long timeoutMs) {
+        long ms = context.timeoutMs(timeoutMs);
+        if (ms > 0) {
+            query.setHint(HINT_QUERY_TIMEOUT, (int) Math.min(ms, Integer.MAX_VALUE));
+        } else if (context.isDeadlineExceeded()) {
+            throw new QueryTimeoutException("deadline exceeded before query", null, query);
+        }
+        return query;
+    }
+
+    /**
+     * JDBC version of {@link #withDeadline(jakarta.persistence.Query, org.summerboot.jexpress.nio.server.domain.ServiceContext, long)},
+     * the timeout is rounded up to whole seconds
+     *
+     * @param <S>
+     * @param statement
+     * @param context
+     * @param timeoutMs the configured query timeout, 0 if not configured
+     * @return the statement
+     * @throws SQLException        SQLTimeoutException when the deadline has
+     *                             already passed
+     */
+    public static <S extends Statement> S withDeadline(S statement, ServiceContext context, long timeoutMs) throws SQLException {
+        long ms = context.timeoutMs(timeoutMs);
+        if (ms > 0) {
+            statement.setQueryTimeout((int) Math.min((ms + 999) / 1000, Integer.MAX_VALUE));
+        } else if (context.isDeadlineExceeded()) {
+            throw new SQLTimeoutException("deadline exceeded before query");
+        }
+        return statement;
+    }
 }
@@ -16,8 +16,11 @@
  */
 package org.summerboot.jexpress.nio.grpc;
 
+import io.grpc.Deadline;
 import io.grpc.ManagedChannel;
 import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.AbstractStub;
+import org.summerboot.jexpress.nio.server.domain.ServiceContext;
 
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
@@ -178,4 +181,27 @@ public abstract class GRPCClient<T extends GRPCClient<T>> {
     protected Lock getLock() {
         return readLock;
     }
+
+    /**
+     * Cap the deadline of the stub by the time left before the deadline of
+     * the context, gRPC sends it to the server as grpc-timeout
+     *
+     * @param <S>
+     * @param stub
+     * @param context
+     * @return the stub as is when the context has no deadline or the stub
+     * already has an earlier one
+     */
+    public static <S extends AbstractStub<S>> S withDeadline(S stub, ServiceContext context) {
+        long remainingMs = context.remainingMs();
+        if (remainingMs == Long.MAX_VALUE) {
+            return stub;
+        }
+        Deadline deadline = Deadline.after(remainingMs, TimeUnit.MILLISECONDS);
+        Deadline current = stub.getCallOptions().getDeadline();
+        if (current != null && current.isBefore(deadline)) {
+            return stub;
+        }
+        return stub.withDeadline(deadline);
+    }
 }
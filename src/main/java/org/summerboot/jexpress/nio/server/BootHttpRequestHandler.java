@@ -81,6 +81,7 @@ public class BootHttpRequestHandler extends NioServerHttpRequestHandler {
                     return processorSettings;
                 }
             }
+            context.route(httptMethod + " " + processor.getDeclaredPath());
             processorSettings = processor.getProcessorSettings();
             ProcessorSettings.LogSettings logSettings = processorSettings.getLogSettings();
             if (logSettings != null) {
@@ -16,21 +16,37 @@
 package org.summerboot.jexpress.nio.server;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.util.AttributeKey;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.summerboot.jexpress.security.auth.Caller;
+import org.summerboot.jexpress.util.concurrent.SerialExecutor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * usage example:
@@ -50,37 +66,164 @@ import org.summerboot.jexpress.security.auth.Caller;
  * return new User(0, token);
  * }
  *
+ * @Override
+ * protected String onCallerConnected(ChannelHandlerContext ctx, Caller caller) {
+ * subscribe(ctx.channel(), "dashboard");
+ * return null;
  * }
  *
  * }
+ *
+ * // anywhere else
+ * BootWebSocketHandler.publish("dashboard", json);
+ * }
  * </pre>
+ * <p>
+ * Inbound messages of one connection are handled one by one in arrival order
+ * on the biz executor. Broadcast frames are encoded once and written as-is to
+ * all receivers, grouped by EventLoop; a receiver above
+ * nio.WebSocket.WriteBufferHighWaterMark is skipped or disconnected according
+ * to nio.WebSocket.SlowConsumerPolicy.
  *
  * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
  * @version 2.0
  */
 abstract public class BootWebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
 
+    public enum SlowConsumerPolicy {
+        /**
+         * skip the broadcast frame for the slow consumer
+         */
+        DROP,
+        /**
+         * disconnect the slow consumer
+         */
+        CLOSE
+    }
+
     protected Logger log = LogManager.getLogger(this.getClass());
+    protected static final Logger logBroadcast = LogManager.getLogger(BootWebSocketHandler.class.getName());
     protected static final TextWebSocketFrame MSG_AUTH_FAILED = new TextWebSocketFrame("401 Unauthorized");
 
     protected static final ChannelGroup clients = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
 
     protected static final AttributeKey KEY_CALLER = AttributeKey.valueOf("caller");
+    protected static final AttributeKey<SerialExecutor> KEY_SERIAL_EXECUTOR = AttributeKey.valueOf("ws.serialExecutor");
+    protected static final AttributeKey<Set<String>> KEY_TOPICS = AttributeKey.valueOf("ws.topics");
+
+    /**
+     * broadcast indexes, channels grouped by EventLoop
+     */
+    protected static final Room ALL = new Room();
+    protected static final Room AUTHENTICATED = new Room();
+    protected static final Map<String, Room> topics = new ConcurrentHashMap<>();
+
+    protected static final AtomicLong COUNTER_BROADCAST = new AtomicLong(0);
+    protected static final AtomicLong COUNTER_DELIVERED = new AtomicLong(0);
+    protected static final AtomicLong COUNTER_DROPPED = new AtomicLong(0);
+    protected static final AtomicLong COUNTER_SLOW_CLOSED = new AtomicLong(0);
+
+    protected static class Room {
+
+        protected final Map<EventLoop, Set<Channel>> channelsByLoop = new ConcurrentHashMap<>();
+
+        protected void add(Channel channel) {
+            channelsByLoop.computeIfAbsent(channel.eventLoop(), k -> ConcurrentHashMap.newKeySet()).add(channel);
+        }
+
+        protected void remove(Channel channel) {
+            Set<Channel> channels = channelsByLoop.get(channel.eventLoop());
+            if (channels != null) {
+                channels.remove(channel);
+            }
+        }
 
-//    @Override
-//    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
-//        if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
-//            WebSocketServerProtocolHandler.HandshakeComplete event = (WebSocketServerProtocolHandler.HandshakeComplete) evt;
-//            String uri = event.requestUri();
-//            System.out.println("uri=" + uri);
-//            String p = event.selectedSubprotocol();
-//            System.out.println("selectedSubprotocol=" + p);
-//
-//            HttpHeaders headers = event.requestHeaders();
-//            List<String> requestedSubprotocols = headers.getAll(HttpHeaderNames.SEC_WEBSOCKET_PROTOCOL);
-//            System.out.println("requestedSubprotocols=" + requestedSubprotocols);
-//        }
-//    }
+        protected boolean isEmpty() {
+            for (Set<Channel> channels : channelsByLoop.values()) {
+                if (!channels.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        protected int size() {
+            int ret = 0;
+            for (Set<Channel> channels : channelsByLoop.values()) {
+                ret += channels.size();
+            }
+            return ret;
+        }
+
+        /**
+         * @param encoded the encoded WebSocket frame, ownership is transferred
+         * to this method
+         */
+        protected void broadcast(ByteBuf encoded) {
+            COUNTER_BROADCAST.incrementAndGet();
+            try {
+                for (Map.Entry<EventLoop, Set<Channel>> entry : channelsByLoop.entrySet()) {
+                    Set<Channel> channels = entry.getValue();
+                    if (channels.isEmpty()) {
+                        continue;
+                    }
+                    encoded.retain();
+                    try {
+                        // one task per EventLoop instead of one per channel
+                        entry.getKey().execute(() -> {
+                            try {
+                                for (Channel channel : channels) {
+                                    write(channel, encoded);
+                                }
+                            } finally {
+                                encoded.release();
+                            }
+                        });
+                    } catch (RejectedExecutionException ex) {
+                        encoded.release();
+                        logBroadcast.warn(() -> "broadcast rejected by " + entry.getKey() + ": " + ex);
+                    }
+                }
+            } finally {
+                encoded.release();
+            }
+        }
+
+        /**
+         * must be called on the channel's EventLoop
+         */
+        protected static void write(Channel channel, ByteBuf encoded) {
+            if (!channel.isActive()) {
+                return;
+            }
+            if (!channel.isWritable()) {
+                if (NioConfig.cfg.getWebSocketSlowConsumerPolicy() == SlowConsumerPolicy.CLOSE) {
+                    COUNTER_SLOW_CLOSED.incrementAndGet();
+                    logBroadcast.debug(() -> "slow consumer closed: " + channel);
+                    channel.close();
+                } else {
+                    COUNTER_DROPPED.incrementAndGet();
+                }
+                return;
+            }
+            channel.writeAndFlush(encoded.retainedDuplicate(), channel.voidPromise());
+            COUNTER_DELIVERED.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+            // only upgraded channels join the broadcast index, plain HTTP channels share this pipeline
+            Channel channel = ctx.channel();
+            int high = NioConfig.cfg.getWebSocketWriteBufferHighWaterMark();
+            int low = Math.min(NioConfig.cfg.getWebSocketWriteBufferLowWaterMark(), high);
+            channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(low, high));
+            ALL.add(channel);
+            log.trace(() -> "handshakeComplete: " + channel.remoteAddress() + ", uri=" + ((WebSocketServerProtocolHandler.HandshakeComplete) evt).requestUri());
+        }
+        super.userEventTriggered(ctx, evt);
+    }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame msg) throws Exception {
@@ -94,23 +237,32 @@ abstract public class BootWebSocketHandler extends SimpleChannelInboundHandler<W
     }
 
     protected void channelRead0(ChannelHandlerContext ctx, BinaryWebSocketFrame msg) throws Exception {
-        ByteBuf bb = msg.content();
-        byte[] data = ByteBufUtil.getBytes(bb);
+        ByteBuf data = msg.content().retain();// released after onMessage
         Runnable asyncTask = () -> {
-            Caller caller = (Caller) ctx.channel().attr(KEY_CALLER).get();
-            if (caller == null) {
-                clients.remove(ctx.channel());
-                ctx.writeAndFlush(MSG_AUTH_FAILED.retainedDuplicate());
-                ctx.close();
-                log.warn("Binary auth failed " + ctx.channel().remoteAddress());
-                return;
-            }
-            String responseText = onMessage(ctx, caller, data);
-            if (responseText != null) {
-                sendToChannel(ctx, responseText);
+            try {
+                Caller caller = (Caller) ctx.channel().attr(KEY_CALLER).get();
+                if (caller == null) {
+                    clients.remove(ctx.channel());
+                    ctx.writeAndFlush(MSG_AUTH_FAILED.retainedDuplicate());
+                    ctx.close();
+                    log.warn("Binary auth failed " + ctx.channel().remoteAddress());
+                    return;
+                }
+                String responseText = onMessage(ctx, caller, data);
+                if (responseText != null) {
+                    sendToChannel(ctx, responseText);
+                }
+            } finally {
+                data.release();
             }
         };
-        NioConfig.cfg.getBizExecutor().execute(asyncTask);
+        try {
+            serialExecutor(ctx.channel()).execute(asyncTask);
+        } catch (RejectedExecutionException ex) {
+            // only thrown when the task was removed from the queue, it will never run
+            data.release();
+            throw ex;
+        }
     }
 
     protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame msg) throws Exception {
@@ -127,6 +279,7 @@ abstract public class BootWebSocketHandler extends SimpleChannelInboundHandler<W
                     return;
                 }
                 ctx.channel().attr(KEY_CALLER).set(caller);
+                AUTHENTICATED.add(ctx.channel());
                 String message = onCallerConnected(ctx, caller);
                 if (message != null) {
                     sendToAllChannels(message, true);
@@ -139,11 +292,37 @@ abstract public class BootWebSocketHandler extends SimpleChannelInboundHandler<W
                 sendToChannel(ctx, responseText);
             }
         };
-        NioConfig.cfg.getBizExecutor().execute(asyncTask);
+        serialExecutor(ctx.channel()).execute(asyncTask);
     }
 
+    /**
+     * Fragmented messages are reassembled by the WebSocketFrameAggregator in
+     * the pipeline (nio.WebSocket.MaxMessageSize), a continuation frame only
+     * arrives here when this handler is used without it.
+     *
+     * @param ctx
+     * @param msg
+     * @throws Exception
+     */
     protected void channelRead0(ChannelHandlerContext ctx, ContinuationWebSocketFrame msg) throws Exception {
+        log.warn(() -> "unexpected continuation frame, WebSocketFrameAggregator is missing in pipeline: " + ctx.channel().remoteAddress());
+    }
 
+    /**
+     * @param channel
+     * @return the executor that runs the inbound messages of this channel
+     * one by one in arrival order
+     */
+    protected static SerialExecutor serialExecutor(Channel channel) {
+        SerialExecutor ret = channel.attr(KEY_SERIAL_EXECUTOR).get();
+        if (ret == null) {
+            ret = new SerialExecutor(NioConfig.cfg.getBizExecutor(), NioConfig.cfg.getWebSocketSerialBatchSize());
+            SerialExecutor old = channel.attr(KEY_SERIAL_EXECUTOR).setIfAbsent(ret);
+            if (old != null) {
+                ret = old;
+            }
+        }
+        return ret;
     }
 
     abstract protected Caller auth(String token);
@@ -160,33 +339,211 @@ abstract public class BootWebSocketHandler extends SimpleChannelInboundHandler<W
 
     abstract protected String onMessage(ChannelHandlerContext ctx, Caller caller, byte[] data);
 
+    /**
+     * Override this to read binary messages without copying them into a
+     * byte[], use data.nioBuffer() for a ByteBuffer view. The data is only
+     * valid during this call, retain() it to keep it longer.
+     *
+     * @param ctx
+     * @param caller
+     * @param data
+     * @return non-null string will send back to peer
+     */
+    protected String onMessage(ChannelHandlerContext ctx, Caller caller, ByteBuf data) {
+        return onMessage(ctx, caller, ByteBufUtil.getBytes(data));
+    }
+
     public static void sendToChannel(ChannelHandlerContext ctx, String message) {
         ctx.writeAndFlush(new TextWebSocketFrame(message));
     }
 
     public static void sendToChannel(ChannelHandlerContext ctx, byte[] data) {
-        ctx.writeAndFlush(new BinaryWebSocketFrame(Unpooled.copiedBuffer(data)));
+        ctx.writeAndFlush(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(data)));
+    }
+
+    /**
+     * @param ctx
+     * @param data ownership is transferred, it will be released after written
+     */
+    public static void sendToChannel(ChannelHandlerContext ctx, ByteBuf data) {
+        ctx.writeAndFlush(new BinaryWebSocketFrame(data));
     }
 
     public static void sendToAllChannels(String text, boolean auth) {
-        TextWebSocketFrame message = new TextWebSocketFrame(text);
-        sendToAllChannels(message, auth);
+        (auth ? AUTHENTICATED : ALL).broadcast(encode(OPCODE_TEXT, text));
     }
 
     public static void sendToAllChannels(byte[] data, boolean auth) {
-        BinaryWebSocketFrame message = new BinaryWebSocketFrame(Unpooled.copiedBuffer(data));
-        sendToAllChannels(message, auth);
+        (auth ? AUTHENTICATED : ALL).broadcast(encode(OPCODE_BINARY, data));
     }
 
+    /**
+     * @param message not released, the caller keeps its ownership
+     * @param auth true to send to authenticated channels only
+     */
     public static void sendToAllChannels(WebSocketFrame message, boolean auth) {
-        if (auth) {
-            clients.stream()
-                    .filter(channel -> channel.attr(KEY_CALLER).get() != null)
-                    .forEach(channel -> channel.writeAndFlush(message.retainedDuplicate()));
+        (auth ? AUTHENTICATED : ALL).broadcast(encode(message));
+    }
+
+    /**
+     * Subscribe the channel to a topic (room), the subscription is removed
+     * when the channel is closed
+     *
+     * @param channel
+     * @param topic
+     */
+    public static void subscribe(Channel channel, String topic) {
+        Set<String> channelTopics = channel.attr(KEY_TOPICS).get();
+        if (channelTopics == null) {
+            channelTopics = ConcurrentHashMap.newKeySet();
+            Set<String> old = channel.attr(KEY_TOPICS).setIfAbsent(channelTopics);
+            if (old != null) {
+                channelTopics = old;
+            }
+        }
+        channelTopics.add(topic);
+        topics.compute(topic, (k, room) -> {
+            if (room == null) {
+                room = new Room();
+            }
+            room.add(channel);
+            return room;
+        });
+    }
+
+    /**
+     * remove the channel from the topic, and the topic when its last channel
+     * leaves, atomically with {@link #subscribe(Channel, String)}
+     */
+    protected static void leave(Channel channel, String topic) {
+        topics.computeIfPresent(topic, (k, room) -> {
+            room.remove(channel);
+            return room.isEmpty() ? null : room;
+        });
+    }
+
+    public static void unsubscribe(Channel channel, String topic) {
+        Set<String> channelTopics = channel.attr(KEY_TOPICS).get();
+        if (channelTopics != null) {
+            channelTopics.remove(topic);
+        }
+        leave(channel, topic);
+    }
+
+    protected static void unsubscribeAll(Channel channel) {
+        Set<String> channelTopics = channel.attr(KEY_TOPICS).getAndSet(null);
+        if (channelTopics == null) {
+            return;
+        }
+        for (String topic : channelTopics) {
+            leave(channel, topic);
+        }
+    }
+
+    public static Set<String> getTopics(Channel channel) {
+        Set<String> channelTopics = channel.attr(KEY_TOPICS).get();
+        return channelTopics == null ? Collections.emptySet() : Collections.unmodifiableSet(channelTopics);
+    }
+
+    public static void publish(String topic, String text) {
+        Room room = topics.get(topic);
+        if (room != null) {
+            room.broadcast(encode(OPCODE_TEXT, text));
+        }
+    }
+
+    public static void publish(String topic, byte[] data) {
+        Room room = topics.get(topic);
+        if (room != null) {
+            room.broadcast(encode(OPCODE_BINARY, data));
+        }
+    }
+
+    /**
+     * @param topic
+     * @param message not released, the caller keeps its ownership
+     */
+    public static void publish(String topic, WebSocketFrame message) {
+        Room room = topics.get(topic);
+        if (room != null) {
+            room.broadcast(encode(message));
+        }
+    }
+
+    public static int getSubscriberCount(String topic) {
+        Room room = topics.get(topic);
+        return room == null ? 0 : room.size();
+    }
+
+    public static List<String> getTopicNames() {
+        return new ArrayList<>(topics.keySet());
+    }
+
+    public static long getBroadcastCount() {
+        return COUNTER_BROADCAST.get();
+    }
+
+    public static long getDeliveredCount() {
+        return COUNTER_DELIVERED.get();
+    }
+
+    public static long getDroppedCount() {
+        return COUNTER_DROPPED.get();
+    }
+
+    public static long getSlowConsumerClosedCount() {
+        return COUNTER_SLOW_CLOSED.get();
+    }
+
+    protected static final int OPCODE_TEXT = 0x1;
+    protected static final int OPCODE_BINARY = 0x2;
+
+    protected static ByteBuf encode(int opcode, String text) {
+        return encode(opcode, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected static ByteBuf encode(int opcode, byte[] payload) {
+        return encode(true, 0, opcode, Unpooled.wrappedBuffer(payload));
+    }
+
+    protected static ByteBuf encode(WebSocketFrame frame) {
+        int opcode = frame instanceof TextWebSocketFrame ? OPCODE_TEXT
+                : frame instanceof BinaryWebSocketFrame ? OPCODE_BINARY
+                : frame instanceof ContinuationWebSocketFrame ? 0x0
+                : -1;
+        if (opcode < 0) {
+            throw new IllegalArgumentException("unsupported broadcast frame: " + frame.getClass().getName());
+        }
+        return encode(frame.isFinalFragment(), frame.rsv(), opcode, frame.content());
+    }
+
+    /**
+     * Encode a server to client (unmasked, RFC 6455 section 5.2) frame once,
+     * the result is written as-is to every receiver. Uncompressed frames are
+     * valid also when permessage-deflate is negotiated (RSV1 = 0).
+     *
+     * @param fin
+     * @param rsv
+     * @param opcode
+     * @param payload not released
+     * @return the encoded frame
+     */
+    protected static ByteBuf encode(boolean fin, int rsv, int opcode, ByteBuf payload) {
+        int length = payload.readableBytes();
+        int headerLength = length <= 125 ? 2 : length <= 0xFFFF ? 4 : 10;
+        ByteBuf ret = ByteBufAllocator.DEFAULT.directBuffer(headerLength + length);
+        ret.writeByte((fin ? 0x80 : 0) | (rsv % 8) << 4 | opcode % 128);
+        if (length <= 125) {
+            ret.writeByte(length);
+        } else if (length <= 0xFFFF) {
+            ret.writeByte(126);
+            ret.writeShort(length);
         } else {
-            clients.stream()
-                    .forEach(channel -> channel.writeAndFlush(message.retainedDuplicate()));
+            ret.writeByte(127);
+            ret.writeLong(length);
         }
+        ret.writeBytes(payload, payload.readerIndex(), length);
+        return ret;
     }
 
     @Override
@@ -200,10 +557,20 @@ abstract public class BootWebSocketHandler extends SimpleChannelInboundHandler<W
         log.trace(() -> "channelActive: " + ctx.channel().remoteAddress());
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        log.trace(() -> "channelWritabilityChanged: " + ctx.channel().remoteAddress() + " writable=" + ctx.channel().isWritable());
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void handlerRemoved(ChannelHandlerContext ctx) {
-        clients.remove(ctx.channel());
-        log.trace(() -> "handlerRemoved: " + ctx.channel().remoteAddress());
+        Channel channel = ctx.channel();
+        clients.remove(channel);
+        ALL.remove(channel);
+        AUTHENTICATED.remove(channel);
+        unsubscribeAll(channel);
+        log.trace(() -> "handlerRemoved: " + channel.remoteAddress());
     }
 
     @Override
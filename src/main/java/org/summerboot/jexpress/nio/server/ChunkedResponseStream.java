@@ -0,0 +1,395 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.nio.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.ReferenceCountUtil;
+import jakarta.ws.rs.core.MediaType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.summerboot.jexpress.util.BeanUtil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.BaseStream;
+
+/**
+ * Chunked transfer-encoding body for controllers returning a
+ * {@link java.util.stream.Stream}, {@link Iterator} or {@link Flow.Publisher}.
+ * <p>
+ * Items are serialized as NDJSON (one JSON document per line) or as a JSON
+ * array. The producer (the biz thread for Stream/Iterator, the publisher for
+ * Flow.Publisher) fills a bounded queue, and the Netty event loop drains it via
+ * {@link ChunkedWriteHandler} only while the channel is writable, so a slow
+ * client slows down the producer instead of growing the heap. When the client
+ * disconnects, {@link #close()} closes the source Stream / cancels the
+ * subscription so that DB cursors are released.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class ChunkedResponseStream implements ChunkedInput<ByteBuf> {
+
+    protected static final Logger log = LogManager.getLogger(ChunkedResponseStream.class.getName());
+
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    public enum Format {
+        NDJSON, JSON_ARRAY
+    }
+
+    protected static final byte[] NDJSON_DELIMITER = {'\n'};
+    protected static final byte[] JSON_ARRAY_BEGIN = {'['};
+    protected static final byte[] JSON_ARRAY_DELIMITER = {','};
+    protected static final byte[] JSON_ARRAY_END = {']'};
+
+    protected final Iterator<?> iterator;
+    protected final Flow.Publisher<?> publisher;
+    protected final AutoCloseable source;
+    protected final Format format;
+    protected final int chunkSize;
+    protected final long writeTimeoutMs;
+    protected final BlockingQueue<ByteBuf> pending;
+
+    protected volatile ChannelHandlerContext ctx;
+    protected volatile Flow.Subscription subscription;
+    protected volatile boolean producerDone;
+    // the '[' queued by Subscriber.onSubscribe takes a slot but was not requested from the publisher
+    protected volatile boolean unrequestedBegin;
+    protected volatile boolean closed;
+    protected volatile Throwable cause;
+    protected volatile long transferredBytes;
+    protected long itemCount;
+    protected boolean isFirstItem = true;
+
+    /**
+     * @param source a Stream, Iterator or Flow.Publisher
+     * @return true if the source can be sent as a chunked response stream
+     */
+    public static boolean isStreamable(Object source) {
+        return source instanceof BaseStream || source instanceof Iterator || source instanceof Flow.Publisher;
+    }
+
+    public static boolean isStreamable(Class<?> type) {
+        return type != null && (BaseStream.class.isAssignableFrom(type) || Iterator.class.isAssignableFrom(type) || Flow.Publisher.class.isAssignableFrom(type));
+    }
+
+    public static ChunkedResponseStream of(Object source, Format format) {
+        NioConfig nioCfg = NioConfig.cfg;
+        return of(source, format, nioCfg.getStreamChunkSize(), nioCfg.getStreamMaxPendingChunks(), nioCfg.getStreamWriteTimeoutMs());
+    }
+
+    public static ChunkedResponseStream of(Object source, Format format, int chunkSize, int maxPendingChunks, long writeTimeoutMs) {
+        if (source instanceof BaseStream) {
+            BaseStream stream = (BaseStream) source;
+            return new ChunkedResponseStream(stream.iterator(), null, stream, format, chunkSize, maxPendingChunks, writeTimeoutMs);
+        }
+        if (source instanceof Iterator) {
+            AutoCloseable closeable = source instanceof AutoCloseable ? (AutoCloseable) source : null;
+            return new ChunkedResponseStream((Iterator) source, null, closeable, format, chunkSize, maxPendingChunks, writeTimeoutMs);
+        }
+        if (source instanceof Flow.Publisher) {
+            return new ChunkedResponseStream(null, (Flow.Publisher) source, null, format, chunkSize, maxPendingChunks, writeTimeoutMs);
+        }
+        throw new IllegalArgumentException("Unsupported stream source: " + (source == null ? null : source.getClass().getName()));
+    }
+
+    protected ChunkedResponseStream(Iterator<?> iterator, Flow.Publisher<?> publisher, AutoCloseable source, Format format, int chunkSize, int maxPendingChunks, long writeTimeoutMs) {
+        this.iterator = iterator;
+        this.publisher = publisher;
+        this.source = source;
+        this.format = format == null ? Format.NDJSON : format;
+        this.chunkSize = Math.max(512, chunkSize);
+        this.writeTimeoutMs = writeTimeoutMs;
+        // +2 reserves room for the JSON array brackets
+        this.pending = new LinkedBlockingQueue<>(Math.max(1, maxPendingChunks) + 2);
+    }
+
+    public Format format() {
+        return format;
+    }
+
+    public String contentType() {
+        return format == Format.NDJSON ? APPLICATION_NDJSON : MediaType.APPLICATION_JSON;
+    }
+
+    public boolean isAsync() {
+        return publisher != null;
+    }
+
+    public long itemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Start producing chunks. For Stream/Iterator sources this method runs the
+     * iteration on the caller (biz) thread and returns when all items are
+     * queued, the client is gone or the write timeout is reached. For
+     * Flow.Publisher sources it subscribes and returns immediately.
+     *
+     * @param ctx
+     * @return number of bytes produced, or -1 when the source is asynchronous
+     */
+    public long start(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        if (publisher != null) {
+            publisher.subscribe(new Subscriber());
+            return -1;
+        }
+        long producedBytes = 0;
+        ByteBuf buf = null;
+        try {
+            if (format == Format.JSON_ARRAY) {
+                buf = ctx.alloc().buffer(chunkSize);
+                buf.writeBytes(JSON_ARRAY_BEGIN);
+            }
+            while (!closed && iterator.hasNext()) {
+                Object item = iterator.next();
+                if (buf == null) {
+                    buf = ctx.alloc().buffer(chunkSize);
+                }
+                encode(item, buf);
+                if (buf.readableBytes() >= chunkSize) {
+                    producedBytes += buf.readableBytes();
+                    enqueueBlocking(buf);
+                    buf = null;
+                }
+            }
+            if (!closed) {
+                if (format == Format.JSON_ARRAY) {
+                    if (buf == null) {
+                        buf = ctx.alloc().buffer(JSON_ARRAY_END.length);
+                    }
+                    buf.writeBytes(JSON_ARRAY_END);
+                }
+                if (buf != null) {
+                    producedBytes += buf.readableBytes();
+                    enqueueBlocking(buf);
+                    buf = null;
+                }
+            }
+        } catch (Throwable ex) {
+            cause = ex;
+            log.warn(() -> "stream aborted after " + itemCount + " items: " + ex);
+        } finally {
+            ReferenceCountUtil.release(buf);
+            producerDone = true;
+            resumeTransfer();
+        }
+        return producedBytes;
+    }
+
+    protected void encode(Object item, ByteBuf buf) throws IOException {
+        if (format == Format.JSON_ARRAY && !isFirstItem) {
+            buf.writeBytes(JSON_ARRAY_DELIMITER);
+        }
+        isFirstItem = false;
+        if (item instanceof CharSequence) {// pre-serialized JSON
+            buf.writeCharSequence((CharSequence) item, StandardCharsets.UTF_8);
+        } else if (item == null) {
+            buf.writeCharSequence("null", StandardCharsets.US_ASCII);
+        } else {
+            try (ByteBufOutputStream out = new ByteBufOutputStream(buf)) {
+                BeanUtil.toJson(out, item);
+            }
+        }
+        if (format == Format.NDJSON) {
+            buf.writeBytes(NDJSON_DELIMITER);
+        }
+        itemCount++;
+    }
+
+    protected void enqueueBlocking(ByteBuf buf) throws InterruptedException, TimeoutException {
+        long deadline = System.currentTimeMillis() + writeTimeoutMs;
+        while (!closed) {
+            if (pending.offer(buf, 100, TimeUnit.MILLISECONDS)) {
+                resumeTransfer();
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new TimeoutException("client did not consume the stream within " + writeTimeoutMs + "ms");
+            }
+        }
+        buf.release();
+    }
+
+    protected void resumeTransfer() {
+        ChannelHandlerContext c = ctx;
+        if (c == null) {
+            return;
+        }
+        ChunkedWriteHandler chunkedWriteHandler = c.pipeline().get(ChunkedWriteHandler.class);
+        if (chunkedWriteHandler != null) {
+            chunkedWriteHandler.resumeTransfer();
+        }
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        // never report the end on failure, let readChunk throw so that the client sees a truncated (not a complete) response
+        return closed || producerDone && cause == null && pending.isEmpty();
+    }
+
+    @Override
+    @Deprecated
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        ByteBuf first = pending.poll();
+        if (first == null) {
+            Throwable ex = cause;
+            if (ex != null && producerDone) {
+                throw ex instanceof Exception ? (Exception) ex : new IOException(ex);
+            }
+            return null;// wait for resumeTransfer()
+        }
+        int count = 1;
+        ByteBuf ret = first;
+        if (first.readableBytes() < chunkSize && !pending.isEmpty()) {
+            CompositeByteBuf composite = allocator.compositeBuffer();
+            composite.addComponent(true, first);
+            ByteBuf next;
+            while (composite.readableBytes() < chunkSize && (next = pending.poll()) != null) {
+                composite.addComponent(true, next);
+                count++;
+            }
+            ret = composite;
+        }
+        transferredBytes += ret.readableBytes();
+        if (unrequestedBegin) {
+            unrequestedBegin = false;// always the first chunk
+            count--;
+        }
+        Flow.Subscription s = subscription;
+        if (s != null && count > 0) {
+            s.request(count);
+        }
+        return ret;
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return transferredBytes;
+    }
+
+    /**
+     * Called by {@link ChunkedWriteHandler} when the transfer is completed,
+     * failed or the channel is closed
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Flow.Subscription s = subscription;
+        if (s != null) {
+            s.cancel();
+        }
+        if (source != null) {
+            try {
+                source.close();
+            } catch (Throwable ex) {
+                log.warn(() -> "failed to close stream source: " + ex);
+            }
+        }
+        ByteBuf buf;
+        while ((buf = pending.poll()) != null) {
+            buf.release();
+        }
+    }
+
+    protected class Subscriber implements Flow.Subscriber<Object> {
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+            if (closed) {
+                s.cancel();
+                return;
+            }
+            if (format == Format.JSON_ARRAY) {
+                unrequestedBegin = true;
+                pending.offer(ctx.alloc().buffer(JSON_ARRAY_BEGIN.length).writeBytes(JSON_ARRAY_BEGIN));
+            }
+            s.request(pending.remainingCapacity() - 1);// keep one slot for the closing ']'
+        }
+
+        @Override
+        public void onNext(Object item) {
+            if (closed) {
+                return;
+            }
+            ByteBuf buf = ctx.alloc().buffer();
+            try {
+                encode(item, buf);
+            } catch (Throwable ex) {
+                buf.release();
+                subscription.cancel();
+                onError(ex);
+                return;
+            }
+            if (!pending.offer(buf)) {
+                buf.release();
+                subscription.cancel();
+                onError(new IllegalStateException("Flow.Publisher sent more items than requested"));
+                return;
+            }
+            resumeTransfer();
+        }
+
+        @Override
+        public void onError(Throwable ex) {
+            cause = ex;
+            producerDone = true;
+            log.warn(() -> "stream aborted after " + itemCount + " items: " + ex);
+            resumeTransfer();
+        }
+
+        @Override
+        public void onComplete() {
+            if (format == Format.JSON_ARRAY && !closed) {
+                ByteBuf end = ctx.alloc().buffer(JSON_ARRAY_END.length).writeBytes(JSON_ARRAY_END);
+                if (!pending.offer(end)) {
+                    end.release();
+                    // a truncated response rather than an invalid complete one
+                    cause = new IllegalStateException("no room for the closing bracket of the JSON array");
+                }
+            }
+            producerDone = true;
+            resumeTransfer();
+        }
+    }
+}
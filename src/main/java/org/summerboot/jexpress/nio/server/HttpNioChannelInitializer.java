@@ -23,6 +23,7 @@ import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
 import io.netty.handler.codec.http.websocketx.extensions.compression.WebSocketServerCompressionHandler;
 import io.netty.handler.logging.LogLevel;
@@ -120,6 +121,7 @@ public class HttpNioChannelInitializer extends NioChannelInitializer {
                         String webSocketURI = named;
                         String subprotocols = null;
                         channelPipeline.addLast(new WebSocketServerProtocolHandler(webSocketURI, subprotocols, allowExtensions, maxFrameSize, allowMaskMismatch, checkStartsWith, dropPongFrames, handshakeTimeoutMillis));
+                        channelPipeline.addLast(new WebSocketFrameAggregator(nioCfg.getWebSocketMaxMessageSize()));// to merge fragmented messages (continuation frames)
                         isWebSocketServerProtocolHandlerRequired = false;
                     }
                     channelPipeline.addLast("Websocket_" + named, ch);
@@ -231,6 +231,42 @@ public class NioConfig extends BootConfig {
             desc = "Sent Idle enabled only when value > 0")
     protected volatile int writerIdleSeconds = 0;
 
+    @Config(key = "nio.server.stream.ChunkSize", defaultValue = "8192",
+            desc = "Streaming response (controller returns Stream/Iterator/Flow.Publisher): bytes buffered per HTTP chunk")
+    protected volatile int streamChunkSize = 8192;
+
+    @Config(key = "nio.server.stream.MaxPendingChunks", defaultValue = "16",
+            desc = "Streaming response: max chunks buffered ahead of a slow client before the producer waits")
+    protected volatile int streamMaxPendingChunks = 16;
+
+    @Config(key = "nio.server.stream.WriteTimeoutMs", defaultValue = "30000",
+            desc = "Streaming response: abort the stream when the client does not consume any chunk within this time")
+    protected volatile long streamWriteTimeoutMs = 30000L;
+
+    @Config(key = "nio.server.sse.ReplayBufferSize", defaultValue = "256",
+            desc = "Server-Sent Events: number of recent events kept per topic for Last-Event-ID resume")
+    protected volatile int sseReplayBufferSize = 256;
+
+    @Config(key = "nio.server.sse.HeartbeatSeconds", defaultValue = "15",
+            desc = "Server-Sent Events: send a comment line to idle subscribers to keep proxies from closing the connection, 0 to disable")
+    protected volatile int sseHeartbeatSeconds = 15;
+
+    @Config(key = "nio.server.sse.TopicIdleTtlSeconds", defaultValue = "300",
+            desc = "Server-Sent Events: a topic without subscribers and its replay buffer are removed when nothing was published or subscribed to it within this time")
+    protected volatile int sseTopicIdleTtlSeconds = 300;
+
+    @Config(key = "nio.server.ResponseCache.MaxBytes", defaultValue = "67108864",
+            desc = "@ResponseCache: max total bytes of all cached responses, the least recently used are evicted when exceeded")
+    protected volatile long responseCacheMaxBytes = 67108864L;
+
+    @Config(key = "nio.server.deadline.DefaultMs", defaultValue = "0",
+            desc = "Deadline of each request counted from its arrival, outbound RPC, gRPC and DB calls made for the request are capped by the time left, 0 = no default deadline")
+    protected volatile long requestDeadlineMs = 0;
+
+    @Config(key = "nio.server.deadline.Header", defaultValue = BootConstant.REQUEST_HEADER_KEY_TIMEOUT_MS,
+            desc = "Request header carrying the caller's remaining budget in milliseconds, tightens nio.server.deadline.DefaultMs, blank to ignore")
+    protected volatile String requestDeadlineHeader = BootConstant.REQUEST_HEADER_KEY_TIMEOUT_MS;
+
     @Config(key = "nio.server.health.InspectionIntervalSeconds", defaultValue = "5")
     protected volatile int healthInspectionIntervalSeconds = 5;
 
@@ -263,6 +299,21 @@ public class NioConfig extends BootConfig {
     protected volatile boolean webSocketDropPongFrames = true;
     @Config(key = "nio.WebSocket.HandshakeTimeoutMs", defaultValue = "10000")
     protected volatile long webSocketHandshakeTimeoutMs = 10000L;//io.netty.handler.codec.http.websocketx.WebSocketServerProtocolConfig.DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+    @Config(key = "nio.WebSocket.MaxMessageSize", defaultValue = "5242880",
+            desc = "max size of a message reassembled from fragmented (continuation) frames, the connection is closed when exceeded")
+    protected volatile int webSocketMaxMessageSize = 5242880;
+    @Config(key = "nio.WebSocket.WriteBufferLowWaterMark", defaultValue = "32768",
+            desc = "a slow consumer becomes writable again when its pending outbound bytes drop below this")
+    protected volatile int webSocketWriteBufferLowWaterMark = 32768;
+    @Config(key = "nio.WebSocket.WriteBufferHighWaterMark", defaultValue = "65536",
+            desc = "a consumer with more pending outbound bytes than this is treated as slow on broadcast")
+    protected volatile int webSocketWriteBufferHighWaterMark = 65536;
+    @Config(key = "nio.WebSocket.SlowConsumerPolicy", defaultValue = "DROP",
+            desc = "DROP: skip broadcast frames for a slow consumer, CLOSE: disconnect it")
+    protected volatile BootWebSocketHandler.SlowConsumerPolicy webSocketSlowConsumerPolicy = BootWebSocketHandler.SlowConsumerPolicy.DROP;
+    @Config(key = "nio.WebSocket.SerialBatchSize", defaultValue = "16",
+            desc = "max inbound messages of one connection handled in a row before yielding the biz thread to other connections")
+    protected volatile int webSocketSerialBatchSize = 16;
 
     //5. IO Communication logging filter
     @ConfigHeader(title = "5. IO Communication logging filter")
@@ -325,6 +376,10 @@ public class NioConfig extends BootConfig {
             desc = "CSV format")
     protected volatile Set<String> filterPOISet;
 
+    @Config(key = "nio.verbose.ServiceTimePOI.RouteLatency", defaultValue = "true",
+            desc = "Aggregate the POI phases (x.begin to x.end) of each request into per-route latency histograms, available via JMX")
+    protected volatile boolean routeLatencyEnabled = true;
+
     protected static final String HEADER_SERVER_RESPONSE = "server.DefaultResponseHttpHeaders.";
 
     //7. Web Server Mode
@@ -490,6 +545,26 @@ public class NioConfig extends BootConfig {
         return webSocketHandshakeTimeoutMs;
     }
 
+    public int getWebSocketMaxMessageSize() {
+        return webSocketMaxMessageSize;
+    }
+
+    public int getWebSocketWriteBufferLowWaterMark() {
+        return webSocketWriteBufferLowWaterMark;
+    }
+
+    public int getWebSocketWriteBufferHighWaterMark() {
+        return webSocketWriteBufferHighWaterMark;
+    }
+
+    public BootWebSocketHandler.SlowConsumerPolicy getWebSocketSlowConsumerPolicy() {
+        return webSocketSlowConsumerPolicy;
+    }
+
+    public int getWebSocketSerialBatchSize() {
+        return webSocketSerialBatchSize;
+    }
+
     public List<InetSocketAddress> getBindingAddresses() {
         return bindingAddresses;
     }
@@ -634,6 +709,46 @@ public class NioConfig extends BootConfig {
         return writerIdleSeconds;
     }
 
+    public int getStreamChunkSize() {
+        return streamChunkSize;
+    }
+
+    public int getStreamMaxPendingChunks() {
+        return streamMaxPendingChunks;
+    }
+
+    public long getStreamWriteTimeoutMs() {
+        return streamWriteTimeoutMs;
+    }
+
+    public boolean isRouteLatencyEnabled() {
+        return routeLatencyEnabled;
+    }
+
+    public long getRequestDeadlineMs() {
+        return requestDeadlineMs;
+    }
+
+    public String getRequestDeadlineHeader() {
+        return requestDeadlineHeader;
+    }
+
+    public int getSseReplayBufferSize() {
+        return sseReplayBufferSize;
+    }
+
+    public int getSseHeartbeatSeconds() {
+        return sseHeartbeatSeconds;
+    }
+
+    public int getSseTopicIdleTtlSeconds() {
+        return sseTopicIdleTtlSeconds;
+    }
+
+    public long getResponseCacheMaxBytes() {
+        return responseCacheMaxBytes;
+    }
+
     public int getHealthInspectionIntervalSeconds() {
         return healthInspectionIntervalSeconds;
     }
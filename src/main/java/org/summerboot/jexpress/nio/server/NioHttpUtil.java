@@ -26,10 +26,12 @@ import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.stream.ChunkedFile;
@@ -42,6 +44,7 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.tika.Tika;
+import org.summerboot.jexpress.boot.BackOffice;
 import org.summerboot.jexpress.boot.BootConstant;
 import org.summerboot.jexpress.boot.BootErrorCode;
 import org.summerboot.jexpress.integration.cache.SimpleLocalCache;
@@ -127,6 +130,17 @@ public class NioHttpUtil {
             sendRedirect(ctx, serviceContext.redirect(), status);
             return 0;
         }
+        if (serviceContext.sseSubscription() != null && !serviceContext.hasError() && status.code() < 400) {
+            return SseBroadcaster.start(ctx, isKeepAlive, serviceContext, serviceContext.sseSubscription());
+        }
+        ChunkedResponseStream stream = serviceContext.stream();
+        if (stream != null) {
+            if (!serviceContext.hasError() && status.code() < 400) {
+                return sendStream(ctx, isKeepAlive, serviceContext, stream);
+            }
+            stream.close();// discard the stream and release DB cursor, send error instead
+            serviceContext.stream(null);
+        }
 
         boolean hasErrorContent = StringUtils.isEmpty(serviceContext.txt()) && status.code() >= 400;
         if (hasErrorContent) {
@@ -268,7 +282,39 @@ public class NioHttpUtil {
         return fileLength;
     }
 
-    public static final SimpleLocalCache<String, File> WebResourceCache = new SimpleLocalCacheImpl();
+    private static long sendStream(ChannelHandlerContext ctx, boolean isKeepAlive, final ServiceContext serviceContext, final ChunkedResponseStream stream) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, serviceContext.status());
+        HttpHeaders h = response.headers();
+        if (serviceContext.responseHeaders() != null) {
+            h.set(serviceContext.responseHeaders());
+        }
+        String contentType = serviceContext.contentType() == null ? stream.contentType() : serviceContext.contentType();
+        h.set(HttpHeaderNames.CONTENT_TYPE, contentType + ";charset=" + DEFAULT_CHARSET);
+        h.remove(HttpHeaderNames.CONTENT_LENGTH);
+        HttpUtil.setTransferEncodingChunked(response, true);
+        if (isKeepAlive) {
+            h.set(HttpHeaderNames.CONNECTION, KEEP_ALIVE);
+        }
+        ctx.write(response);
+        ChannelFuture sendStreamFuture = ctx.writeAndFlush(new HttpChunkedInput(stream));
+        sendStreamFuture.addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                // the status line is gone, closing the connection is the only way to tell the client the body is incomplete
+                log.warn(() -> serviceContext.txId() + " -> stream aborted after " + stream.progress() + " bytes: " + future.cause());
+                future.channel().close();
+            } else {
+                log.debug(() -> serviceContext.txId() + " -> stream complete: " + stream.progress() + " bytes, " + stream.itemCount() + " items");
+                if (!isKeepAlive) {
+                    future.channel().close();
+                }
+            }
+        });
+        long producedBytes = stream.start(ctx);
+        serviceContext.memo("sendStream", stream.format() + (stream.isAsync() ? ", async" : ", items=" + stream.itemCount()));
+        return producedBytes;
+    }
+
+    public static final SimpleLocalCache<String, File> WebResourceCache = new SimpleLocalCacheImpl<>("WebResourceCache", BackOffice.agent.getWebResourceCacheMaxSize());
 
     public static void sendWebResource(final ServiceRequest request, final ServiceContext response) {
         String httpRequestPath = request.getHttpRequestPath();
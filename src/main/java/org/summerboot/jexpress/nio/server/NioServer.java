@@ -69,6 +69,7 @@ public class NioServer {
 
     protected EventLoopGroup bossGroup;// the pool to accept new connection requests
     protected EventLoopGroup workerGroup;// the pool to process IO logic
+    protected static volatile EventLoopGroup sharedWorkerGroup;// for clients running on the same event loops, i.e. RedisAsyncClient
     //protected  EventExecutorGroup sharedNioExecutorGroup;// a thread pool to handle time-consuming business
     protected ScheduledExecutorService QPS_SERVICE;// = Executors.newSingleThreadScheduledExecutor();
 
@@ -158,6 +159,7 @@ public class NioServer {
             serverChannelClass = NioServerSocketChannel.class;
             multiplexer = IoMultiplexer.JDK;
         }
+        sharedWorkerGroup = workerGroup;
         ServerBootstrap boot = new ServerBootstrap();
         if (multiplexer == IoMultiplexer.EPOLL) {
             boot.option(EpollChannelOption.SO_REUSEPORT, true);
@@ -265,6 +267,13 @@ public class NioServer {
         }
     }
 
+    /**
+     * @return the IO event loops of the running server, null if not started
+     */
+    public static EventLoopGroup getSharedWorkerGroup() {
+        return sharedWorkerGroup;
+    }
+
     public void shutdown() {
         String tn = Thread.currentThread().getName();
         if (bossGroup != null && !bossGroup.isShutdown()) {
@@ -275,6 +284,9 @@ public class NioServer {
             System.out.println(tn + ": shutdown workerGroup");
             workerGroup.shutdownGracefully();
         }
+        if (sharedWorkerGroup == workerGroup) {
+            sharedWorkerGroup = null;
+        }
 
 //        EventExecutorGroup childExecutor = instance.getNioSharedChildExecutor();
 //        if (childExecutor != null) {
@@ -146,12 +146,16 @@ public abstract class NioServerHttpRequestHandler extends SimpleChannelInboundHa
             if (StringUtils.isNotBlank(acceptCharset)) {
                 context.charsetName(acceptCharset);//.contentType(ServiceContext.CONTENT_TYPE_JSON_ + acceptCharset); do not build content type with charset now, don't know charset valid or not
             }
+            applyDeadline(requestHeaders, context);
             long responseContentLength = -1;
             Throwable ioEx = null;
             long processTime = -1;
             ProcessorSettings processorSettings = null;
             try {
-                if (isDecoderSuccess) {
+                if (isDecoderSuccess && context.isDeadlineExceeded()) {
+                    Err err = new Err(BootErrorCode.HTTP_REQUEST_TIMEOUT, null, null, null, "Deadline exceeded after queuing " + queuingTime + "ms");
+                    context.error(err).status(HttpResponseStatus.GATEWAY_TIMEOUT).level(Level.WARN);
+                } else if (isDecoderSuccess) {
                     processorSettings = service(ctx, requestHeaders, httpMethod, httpRequestUri, queryStringDecoder.parameters(), httpPostRequestBody, context);
                     processTime = System.currentTimeMillis() - start;
                 } else {
@@ -170,6 +174,9 @@ public abstract class NioServerHttpRequestHandler extends SimpleChannelInboundHa
                 NioCounter.COUNTER_SENT.incrementAndGet();
                 long responseTime = System.currentTimeMillis() - start;
                 this.afterService(requestHeaders, httpMethod, httpRequestUri, queryStringDecoder.parameters(), httpPostRequestBody, context);
+                if (nioCfg.isRouteLatencyEnabled()) {
+                    RouteLatency.record(context);
+                }
                 String report = null;
                 try {
                     boolean overtime = responseTime > nioCfg.getBizTimeoutWarnThresholdMs();
@@ -294,6 +301,30 @@ public abstract class NioServerHttpRequestHandler extends SimpleChannelInboundHa
         }
     }
 
+    /**
+     * Set the deadline of the request from nio.server.deadline.DefaultMs and
+     * the caller's remaining budget header, the earlier wins
+     *
+     * @param requestHeaders
+     * @param context
+     */
+    protected void applyDeadline(HttpHeaders requestHeaders, ServiceContext context) {
+        context.deadlineAfterStart(nioCfg.getRequestDeadlineMs());
+        String header = nioCfg.getRequestDeadlineHeader();
+        if (StringUtils.isBlank(header)) {
+            return;
+        }
+        String budget = requestHeaders.get(header);
+        if (budget == null) {
+            return;
+        }
+        try {
+            context.deadlineAfterStart(Long.parseLong(budget.trim()));
+        } catch (NumberFormatException ex) {
+            log.debug(() -> "invalid " + header + ": " + budget);
+        }
+    }
+
     protected final String me = ", hdl=" + this.toString();
 
     protected String info(ChannelHandlerContext ctx) {
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.nio.server;
+
+import org.summerboot.jexpress.nio.server.domain.ServiceContext;
+import org.summerboot.jexpress.util.LatencyHistogram;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-route phase latency histograms fed by the POIs of each request: a
+ * "x.begin" POI is paired with the next "x.end" POI as phase "x", i.e.
+ * service, process, auth, rpc, db. POIs do not tell which end belongs to which
+ * begin, so parallel calls of the same phase (a begin while another one is
+ * still open) are skipped. Values are in microseconds.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RouteLatency {
+
+    protected static final long WINDOW_MS = 60000;
+    protected static final String SUFFIX_BEGIN = ".begin";
+    protected static final String SUFFIX_END = ".end";
+    protected static final String NOT_A_PHASE = "";
+
+    // route -> phase -> histogram
+    protected static final ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>> ROUTES = new ConcurrentHashMap<>();
+    // marker -> phase, the marker set is small
+    protected static final ConcurrentHashMap<String, String> PHASES = new ConcurrentHashMap<>();
+
+    protected static String phase(String marker) {
+        return PHASES.computeIfAbsent(marker, m -> {
+            if (m.endsWith(SUFFIX_BEGIN)) {
+                return m.substring(0, m.length() - SUFFIX_BEGIN.length());
+            }
+            if (m.endsWith(SUFFIX_END)) {
+                return m.substring(0, m.length() - SUFFIX_END.length());
+            }
+            return NOT_A_PHASE;
+        });
+    }
+
+    /**
+     * @param context a completed request, ignored if no route matched
+     */
+    public static void record(ServiceContext context) {
+        String route = context.route();
+        if (route == null) {
+            return;
+        }
+        ConcurrentHashMap<String, LatencyHistogram> phases = ROUTES.computeIfAbsent(route, k -> new ConcurrentHashMap<>());
+        Map<String, OpenPhase> open = new HashMap<>();
+        context.forEachPOI((marker, elapsedNanos) -> {
+            String phase = phase(marker);
+            if (phase == NOT_A_PHASE) {
+                return;
+            }
+            OpenPhase p = open.computeIfAbsent(phase, k -> new OpenPhase());
+            if (marker.endsWith(SUFFIX_BEGIN)) {
+                if (p.count++ == 0) {
+                    p.beginNanos = elapsedNanos;
+                } else {
+                    p.overlapped = true;
+                }
+                return;
+            }
+            if (p.count == 0) {
+                return;
+            }
+            if (--p.count > 0) {
+                return;
+            }
+            if (p.overlapped) {
+                p.overlapped = false;
+                return;
+            }
+            long micros = (elapsedNanos - p.beginNanos) / 1000;
+            phases.computeIfAbsent(phase, k -> new LatencyHistogram(WINDOW_MS)).record(micros);
+        });
+    }
+
+    /**
+     * begins of a phase not yet ended within one request
+     */
+    protected static class OpenPhase {
+
+        int count;
+        long beginNanos;
+        boolean overlapped;
+    }
+
+    /**
+     * @param route
+     * @param phase
+     * @return the histogram in microseconds, null if not recorded
+     */
+    public static LatencyHistogram get(String route, String phase) {
+        Map<String, LatencyHistogram> phases = ROUTES.get(route);
+        return phases == null ? null : phases.get(phase);
+    }
+
+    /**
+     * @return route -> phase -> histogram, sorted by route and phase
+     */
+    public static Map<String, Map<String, LatencyHistogram>> getAll() {
+        Map<String, Map<String, LatencyHistogram>> ret = new TreeMap<>();
+        ROUTES.forEach((route, phases) -> ret.put(route, new TreeMap<>(phases)));
+        return ret;
+    }
+
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        getAll().forEach((route, phases) -> {
+            sb.append(route);
+            phases.forEach((phase, h) -> {
+                long count = h.getCount();
+                if (count > 0) {
+                    sb.append("\n\t").append(phase).append(": count=").append(count)
+                            .append(", p50=").append(ms(h.getPercentile(50)))
+                            .append("ms, p99=").append(ms(h.getPercentile(99)))
+                            .append("ms, max=").append(ms(h.getMax())).append("ms");
+                }
+            });
+            sb.append("\n");
+        });
+        return sb.toString();
+    }
+
+    protected static String ms(long micros) {
+        return String.format("%.3f", micros / 1000.0);
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.nio.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.summerboot.jexpress.boot.annotation.SSE;
+import org.summerboot.jexpress.nio.server.domain.ServiceContext;
+import org.summerboot.jexpress.util.BeanUtil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Topic based Server-Sent Events fan-out for {@link SSE} endpoints.
+ * <p>
+ * An event is serialized once per publish. Subscribers are grouped by their
+ * EventLoop so that one task per EventLoop writes the same (read-only) buffer
+ * to all of its subscribers, instead of one cross-thread task per channel.
+ * Each subscriber has a bounded write buffer (SSE.maxBufferBytes); when it is
+ * full the event is dropped or the subscriber is closed (SSE.overflow). Recent
+ * events are kept in a per-topic ring buffer to resume from the Last-Event-ID
+ * header after a reconnect. Event ids are unique across topics. A topic and
+ * its ring buffer are removed when it has no subscriber and nothing was
+ * published or subscribed to it within nio.server.sse.TopicIdleTtlSeconds, so
+ * a client reconnecting shortly after its disconnect still finds the history.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class SseBroadcaster {
+
+    protected static final Logger log = LogManager.getLogger(SseBroadcaster.class.getName());
+
+    public static final String CONTENT_TYPE = "text/event-stream";
+    public static final String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+
+    protected static final ByteBuf HEARTBEAT = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(":\n\n".getBytes(StandardCharsets.US_ASCII)));
+
+    protected static final Map<String, Topic> topics = new ConcurrentHashMap<>();
+    // event ids are unique across topics and stay monotonic when a pruned topic is created again
+    protected static final AtomicLong EVENT_ID = new AtomicLong(0);
+    protected static final AtomicLong NEXT_PRUNE_MS = new AtomicLong(0);
+
+    protected static final AtomicLong COUNTER_PUBLISHED = new AtomicLong(0);
+    protected static final AtomicLong COUNTER_DELIVERED = new AtomicLong(0);
+    protected static final AtomicLong COUNTER_DROPPED = new AtomicLong(0);
+    protected static final AtomicLong COUNTER_SLOW_CLOSED = new AtomicLong(0);
+
+    /**
+     * Subscription request built from the @SSE controller return value
+     */
+    public static class Subscription {
+
+        protected final List<String> topicNames;
+        protected final String lastEventId;
+        protected final int maxBufferBytes;
+        protected final SSE.OverflowPolicy overflow;
+        protected final long retryMs;
+
+        public Subscription(Collection<String> topicNames, String lastEventId, int maxBufferBytes, SSE.OverflowPolicy overflow, long retryMs) {
+            this.topicNames = List.copyOf(topicNames);
+            this.lastEventId = lastEventId;
+            this.maxBufferBytes = maxBufferBytes;
+            this.overflow = overflow == null ? SSE.OverflowPolicy.DROP : overflow;
+            this.retryMs = retryMs;
+        }
+
+        public static Subscription of(Object topics, String lastEventId, SSE sse) {
+            List<String> names = new ArrayList<>();
+            if (topics instanceof String) {
+                names.add((String) topics);
+            } else if (topics instanceof String[]) {
+                names.addAll(List.of((String[]) topics));
+            } else if (topics instanceof Collection) {
+                for (Object o : (Collection) topics) {
+                    names.add(String.valueOf(o));
+                }
+            } else {
+                throw new IllegalArgumentException("@SSE method must return String, String[] or Collection<String>, but got " + topics.getClass().getName());
+            }
+            return new Subscription(names, lastEventId, sse.maxBufferBytes(), sse.overflow(), sse.retryMs());
+        }
+
+        public List<String> topicNames() {
+            return topicNames;
+        }
+    }
+
+    protected static class Event {
+
+        final long id;
+        final ByteBuf content;// unreleasable, shared by all subscribers
+
+        Event(long id, ByteBuf content) {
+            this.id = id;
+            this.content = content;
+        }
+    }
+
+    protected static class Subscriber {
+
+        final Channel channel;
+        final SSE.OverflowPolicy overflow;
+        volatile ScheduledFuture<?> heartbeat;
+
+        Subscriber(Channel channel, SSE.OverflowPolicy overflow) {
+            this.channel = channel;
+            this.overflow = overflow;
+        }
+
+        /**
+         * must be called on the channel's EventLoop
+         *
+         * @return true if written (not flushed)
+         */
+        boolean write(ByteBuf content) {
+            if (!channel.isActive()) {
+                return false;
+            }
+            if (!channel.isWritable()) {
+                if (overflow == SSE.OverflowPolicy.CLOSE) {
+                    COUNTER_SLOW_CLOSED.incrementAndGet();
+                    log.debug(() -> "SSE slow consumer closed: " + channel);
+                    channel.close();
+                } else {
+                    COUNTER_DROPPED.incrementAndGet();
+                }
+                return false;
+            }
+            channel.write(new DefaultHttpContent(content.duplicate()), channel.voidPromise());
+            COUNTER_DELIVERED.incrementAndGet();
+            return true;
+        }
+    }
+
+    protected static class Topic {
+
+        final String name;
+        final Event[] ring;
+        final Map<EventLoop, Set<Subscriber>> subscribersByLoop = new ConcurrentHashMap<>();
+        boolean pruned = false;// guarded by this
+        volatile long lastActiveMs = System.currentTimeMillis();// last publish, subscribe or unsubscribe
+        int ringHead = 0;// next slot, guarded by this
+        int ringSize = 0;// guarded by this
+
+        Topic(String name, int replayBufferSize) {
+            this.name = name;
+            this.ring = new Event[Math.max(0, replayBufferSize)];
+        }
+
+        /**
+         * @return events newer than lastEventId, oldest first, guarded by this
+         */
+        List<Event> eventsAfter(long lastEventId) {
+            List<Event> ret = new ArrayList<>();
+            int cap = ring.length;
+            for (int i = ringSize; i > 0; i--) {
+                Event e = ring[(ringHead - i + cap) % cap];
+                if (e.id > lastEventId) {
+                    ret.add(e);
+                }
+            }
+            return ret;
+        }
+
+        void remember(Event e) {
+            if (ring.length == 0) {
+                return;
+            }
+            ring[ringHead] = e;
+            ringHead = (ringHead + 1) % ring.length;
+            if (ringSize < ring.length) {
+                ringSize++;
+            }
+        }
+    }
+
+    protected static Topic topic(String name) {
+        return topics.computeIfAbsent(name, n -> new Topic(n, NioConfig.cfg.getSseReplayBufferSize()));
+    }
+
+    /**
+     * remove the topics without subscribers that have been idle longer than
+     * nio.server.sse.TopicIdleTtlSeconds, their replay buffers are dropped with
+     * them. Runs at most once per TTL, from publish and subscribe.
+     */
+    protected static void pruneIdleTopics() {
+        long now = System.currentTimeMillis();
+        long next = NEXT_PRUNE_MS.get();
+        long ttlMs = TimeUnit.SECONDS.toMillis(Math.max(1, NioConfig.cfg.getSseTopicIdleTtlSeconds()));
+        if (now < next || !NEXT_PRUNE_MS.compareAndSet(next, now + ttlMs)) {
+            return;
+        }
+        for (Topic topic : topics.values()) {
+            if (now - topic.lastActiveMs >= ttlMs) {
+                pruneIfIdle(topic, now - ttlMs);
+            }
+        }
+    }
+
+    /**
+     * @param topic
+     * @param idleSinceMs remove the topic only if it has not been active since
+     */
+    protected static void pruneIfIdle(Topic topic, long idleSinceMs) {
+        synchronized (topic) {
+            if (topic.lastActiveMs > idleSinceMs) {
+                return;
+            }
+            for (Set<Subscriber> subscribers : topic.subscribersByLoop.values()) {
+                if (!subscribers.isEmpty()) {
+                    return;
+                }
+            }
+            topic.pruned = true;
+            topics.remove(topic.name, topic);
+        }
+    }
+
+    /**
+     * Publish an event to all subscribers of the topic
+     *
+     * @param topicName
+     * @param eventName optional SSE event type, null for default "message"
+     * @param data String is sent as is, other objects are serialized as JSON
+     * @return the event id
+     * @throws IOException if data cannot be serialized
+     */
+    public static long publish(String topicName, String eventName, Object data) throws IOException {
+        String payload = data instanceof CharSequence ? data.toString() : BeanUtil.toJson(data);
+        pruneIdleTopics();
+        Event event = null;
+        final List<Map.Entry<EventLoop, List<Subscriber>>> targets = new ArrayList<>();
+        while (event == null) {
+            Topic topic = topic(topicName);
+            synchronized (topic) {
+                if (topic.pruned) {
+                    continue;// removed meanwhile, publish to the new one
+                }
+                topic.lastActiveMs = System.currentTimeMillis();
+                long id = EVENT_ID.incrementAndGet();
+                event = new Event(id, encode(id, eventName, payload));
+                topic.remember(event);
+                // snapshot the subscribers together with the replay buffer update: a subscriber registered after
+                // this point gets the event from the replay, not a second time from here
+                for (Map.Entry<EventLoop, Set<Subscriber>> e : topic.subscribersByLoop.entrySet()) {
+                    if (!e.getValue().isEmpty()) {
+                        targets.add(Map.entry(e.getKey(), new ArrayList<>(e.getValue())));
+                    }
+                }
+            }
+        }
+        COUNTER_PUBLISHED.incrementAndGet();
+        final Event published = event;
+        for (Map.Entry<EventLoop, List<Subscriber>> target : targets) {
+            List<Subscriber> subscribers = target.getValue();
+            // one task per EventLoop, all its subscribers share the same encoded event
+            target.getKey().execute(() -> {
+                for (Subscriber subscriber : subscribers) {
+                    if (subscriber.write(published.content)) {
+                        subscriber.channel.flush();
+                    }
+                }
+            });
+        }
+        return published.id;
+    }
+
+    protected static ByteBuf encode(long id, String eventName, String payload) {
+        StringBuilder sb = new StringBuilder(payload.length() + 32);
+        sb.append("id: ").append(id).append('\n');
+        if (eventName != null && !eventName.isBlank()) {
+            sb.append("event: ").append(eventName).append('\n');
+        }
+        // multi-line data must be sent as multiple data fields
+        int start = 0;
+        int len = payload.length();
+        while (start <= len) {
+            int end = payload.indexOf('\n', start);
+            if (end < 0) {
+                end = len;
+            }
+            int lineEnd = end > start && payload.charAt(end - 1) == '\r' ? end - 1 : end;
+            sb.append("data: ").append(payload, start, lineEnd).append('\n');
+            start = end + 1;
+        }
+        sb.append('\n');
+        return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(sb.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Send the event-stream response header, replay missed events and register
+     * the channel to the topics
+     *
+     * @param ctx
+     * @param isKeepAlive
+     * @param serviceContext
+     * @param subscription
+     * @return
+     */
+    public static long start(ChannelHandlerContext ctx, boolean isKeepAlive, final ServiceContext serviceContext, final Subscription subscription) {
+        final Channel channel = ctx.channel();
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        HttpHeaders h = response.headers();
+        if (serviceContext.responseHeaders() != null) {
+            h.set(serviceContext.responseHeaders());
+        }
+        h.set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE + ";charset=UTF-8");
+        h.set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+        h.remove(HttpHeaderNames.CONTENT_LENGTH);
+        h.set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        HttpUtil.setTransferEncodingChunked(response, true);
+
+        int maxBufferBytes = Math.max(1024, subscription.maxBufferBytes);
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(maxBufferBytes / 2, maxBufferBytes));
+        final Subscriber subscriber = new Subscriber(channel, subscription.overflow);
+        final EventLoop eventLoop = channel.eventLoop();
+
+        long lastEventId = -1;
+        if (subscription.lastEventId != null) {
+            try {
+                lastEventId = Long.parseLong(subscription.lastEventId.trim());
+            } catch (NumberFormatException ex) {
+                log.debug(() -> "ignore invalid " + HEADER_LAST_EVENT_ID + ": " + subscription.lastEventId);
+            }
+        }
+        final long resumeFrom = lastEventId;
+        pruneIdleTopics();
+        // register under the topic lock and queue the replay on the subscriber's EventLoop in the same critical section,
+        // so that no event is lost or duplicated between replay and live delivery
+        eventLoop.execute(() -> {
+            channel.write(response, channel.voidPromise());
+            if (subscription.retryMs > 0) {
+                channel.write(new DefaultHttpContent(Unpooled.copiedBuffer("retry: " + subscription.retryMs + "\n\n", StandardCharsets.US_ASCII)), channel.voidPromise());
+            }
+            channel.flush();
+        });
+        for (String topicName : subscription.topicNames) {
+            boolean registered = false;
+            while (!registered) {
+                Topic topic = topic(topicName);
+                synchronized (topic) {
+                    if (topic.pruned) {
+                        continue;// removed meanwhile, subscribe to the new one
+                    }
+                    registered = true;
+                    topic.lastActiveMs = System.currentTimeMillis();
+                    if (resumeFrom >= 0) {
+                        List<Event> missed = topic.eventsAfter(resumeFrom);
+                        if (!missed.isEmpty()) {
+                            eventLoop.execute(() -> {
+                                for (Event e : missed) {
+                                    subscriber.write(e.content);
+                                }
+                                channel.flush();
+                            });
+                        }
+                    }
+                    topic.subscribersByLoop.computeIfAbsent(eventLoop, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+                }
+            }
+        }
+
+        long heartbeatSec = NioConfig.cfg.getSseHeartbeatSeconds();
+        if (heartbeatSec > 0) {
+            subscriber.heartbeat = eventLoop.scheduleAtFixedRate(() -> {
+                if (channel.isActive() && channel.isWritable()) {
+                    channel.writeAndFlush(new DefaultHttpContent(HEARTBEAT.duplicate()), channel.voidPromise());
+                }
+            }, heartbeatSec, heartbeatSec, TimeUnit.SECONDS);
+        }
+        channel.closeFuture().addListener((ChannelFutureListener) future -> {
+            ScheduledFuture<?> hb = subscriber.heartbeat;
+            if (hb != null) {
+                hb.cancel(false);
+            }
+            for (String topicName : subscription.topicNames) {
+                Topic topic = topics.get(topicName);
+                if (topic != null) {
+                    Set<Subscriber> subscribers = topic.subscribersByLoop.get(eventLoop);
+                    if (subscribers != null && subscribers.remove(subscriber)) {
+                        // keep the replay buffer for a reconnect, pruneIdleTopics() removes it after the idle TTL
+                        topic.lastActiveMs = System.currentTimeMillis();
+                    }
+                }
+            }
+            log.debug(() -> "SSE unsubscribed " + subscription.topicNames + ": " + channel);
+        });
+        serviceContext.memo("SSE.subscribe", subscription.topicNames + ", Last-Event-ID=" + subscription.lastEventId + ", overflow=" + subscription.overflow);
+        return 0;
+    }
+
+    public static int getSubscriberCount(String topicName) {
+        Topic topic = topics.get(topicName);
+        if (topic == null) {
+            return 0;
+        }
+        int ret = 0;
+        for (Set<Subscriber> subscribers : topic.subscribersByLoop.values()) {
+            ret += subscribers.size();
+        }
+        return ret;
+    }
+
+    public static long getPublishedCount() {
+        return COUNTER_PUBLISHED.get();
+    }
+
+    public static long getDeliveredCount() {
+        return COUNTER_DELIVERED.get();
+    }
+
+    public static long getDroppedCount() {
+        return COUNTER_DROPPED.get();
+    }
+
+    public static long getSlowConsumerClosedCount() {
+        return COUNTER_SLOW_CLOSED.get();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.nio.server.domain;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only POI timeline of one request: marker ids and System.nanoTime()
+ * stamps in preallocated primitive arrays. Appending is lock-free, so async
+ * RPC callbacks can record in parallel with the request thread; a reader
+ * skips slots that are claimed but not written yet.
+ * <p>
+ * The first {@value #CHUNK_SIZE} POIs go into arrays allocated with the
+ * recorder, more are added in chunks of the same size up to
+ * {@value #MAX_POI} POIs, the rest are counted as dropped.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class POIRecorder {
+
+    public interface Visitor {
+
+        void visit(String marker, long nanoTime);
+    }
+
+    protected static final int CHUNK_BITS = 4;
+    protected static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    protected static final int MAX_CHUNKS = 64;
+    protected static final int MAX_POI = CHUNK_SIZE * MAX_CHUNKS;
+
+    protected static final VarHandle MARKERS = MethodHandles.arrayElementVarHandle(int[].class);
+    protected static final VarHandle SIZE;
+    protected static final VarHandle OVERFLOW;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            SIZE = lookup.findVarHandle(POIRecorder.class, "size", int.class);
+            OVERFLOW = lookup.findVarHandle(POIRecorder.class, "overflow", AtomicReferenceArray.class);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    // marker name <-> id, shared by all requests, 0 means not written yet
+    protected static final ConcurrentHashMap<String, Integer> IDS = new ConcurrentHashMap<>();
+    protected static volatile String[] NAMES = new String[64];
+    protected static int lastId = 0;
+
+    /**
+     * @param marker
+     * @return the id of the marker, registered the first time
+     */
+    public static int id(String marker) {
+        Integer id = IDS.get(marker);
+        return id == null ? register(marker) : id;
+    }
+
+    protected static synchronized int register(String marker) {
+        Integer id = IDS.get(marker);
+        if (id != null) {
+            return id;
+        }
+        int ret = ++lastId;
+        String[] names = NAMES;
+        if (ret >= names.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+        }
+        names[ret] = marker;
+        NAMES = names;// publish the name before the id
+        IDS.put(marker, ret);
+        return ret;
+    }
+
+    public static String name(int id) {
+        return NAMES[id];
+    }
+
+    protected static final class Chunk {
+
+        protected final int[] markers = new int[CHUNK_SIZE];
+        protected final long[] nanos = new long[CHUNK_SIZE];
+    }
+
+    protected final Chunk first = new Chunk();
+    protected volatile AtomicReferenceArray<Chunk> overflow;
+    protected volatile int size;
+
+    /**
+     * @param markerId
+     * @param nanoTime
+     * @return false if dropped when more than {@value #MAX_POI} POIs
+     */
+    public boolean record(int markerId, long nanoTime) {
+        int i = (int) SIZE.getAndAdd(this, 1);
+        if (i >= MAX_POI) {
+            return false;
+        }
+        Chunk c = i < CHUNK_SIZE ? first : overflowChunk(i >>> CHUNK_BITS);
+        int j = i & (CHUNK_SIZE - 1);
+        c.nanos[j] = nanoTime;
+        MARKERS.setRelease(c.markers, j, markerId);// publishes nanos[j]
+        return true;
+    }
+
+    protected Chunk overflowChunk(int index) {
+        AtomicReferenceArray<Chunk> chunks = overflow;
+        if (chunks == null) {
+            OVERFLOW.compareAndSet(this, null, new AtomicReferenceArray<Chunk>(MAX_CHUNKS));
+            chunks = overflow;
+        }
+        Chunk c = chunks.get(index);
+        if (c == null) {
+            chunks.compareAndSet(index, null, new Chunk());
+            c = chunks.get(index);
+        }
+        return c;
+    }
+
+    /**
+     * @return number of recorded POIs, including those still being written
+     */
+    public int size() {
+        return Math.min(size, MAX_POI);
+    }
+
+    public int dropped() {
+        return Math.max(0, size - MAX_POI);
+    }
+
+    /**
+     * visits the POIs in the order they were recorded
+     *
+     * @param visitor
+     */
+    public void forEach(Visitor visitor) {
+        int n = size();
+        String[] names = NAMES;
+        for (int i = 0; i < n; i++) {
+            Chunk c;
+            if (i < CHUNK_SIZE) {
+                c = first;
+            } else {
+                AtomicReferenceArray<Chunk> chunks = overflow;
+                c = chunks == null ? null : chunks.get(i >>> CHUNK_BITS);
+                if (c == null) {
+                    continue;// being created
+                }
+            }
+            int j = i & (CHUNK_SIZE - 1);
+            int id = (int) MARKERS.getAcquire(c.markers, j);
+            if (id == 0) {
+                continue;// claimed, not written yet
+            }
+            if (id >= names.length) {
+                names = NAMES;
+            }
+            visitor.visit(names[id], c.nanos[j]);
+        }
+    }
+}
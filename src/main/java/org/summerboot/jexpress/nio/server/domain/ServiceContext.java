@@ -16,7 +16,11 @@
 package org.summerboot.jexpress.nio.server.domain;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.HttpHeaderNames;
@@ -31,9 +35,11 @@ import org.summerboot.jexpress.boot.BackOffice;
 import org.summerboot.jexpress.boot.BootConstant;
 import org.summerboot.jexpress.boot.BootErrorCode;
 import org.summerboot.jexpress.boot.BootPOI;
+import org.summerboot.jexpress.nio.server.ChunkedResponseStream;
 import org.summerboot.jexpress.nio.server.NioConfig;
 import org.summerboot.jexpress.nio.server.NioHttpUtil;
 import org.summerboot.jexpress.nio.server.ResponseEncoder;
+import org.summerboot.jexpress.nio.server.SseBroadcaster;
 import org.summerboot.jexpress.security.auth.Caller;
 import org.summerboot.jexpress.util.ApplicationUtil;
 import org.summerboot.jexpress.util.BeanUtil;
@@ -54,6 +60,10 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.Set;
 
 /**
@@ -65,6 +75,8 @@ public class ServiceContext {
     //protected ChannelHandlerContext ctx;
     protected final SocketAddress localIP;
     protected final SocketAddress remoteIP;
+    @JsonIgnore
+    protected final ChannelFuture closeFuture;
     protected final HttpMethod requesMethod;
     protected final String requesURI;
     protected final HttpHeaders requestHeaders;
@@ -73,6 +85,8 @@ public class ServiceContext {
     protected final long hit;
     protected final long startTs;
     protected final OffsetDateTime startDateTime;
+    protected final long startNanos;
+    protected volatile long deadlineTs;
     protected Caller caller;
     protected String callerId;
 
@@ -90,10 +104,15 @@ public class ServiceContext {
     protected byte[] data;
     protected String txt = "";
     protected File file;
+    protected ChunkedResponseStream stream;
+    protected SseBroadcaster.Subscription sseSubscription;
     protected boolean downloadMode = true;
     protected String redirect;
-    protected final List<POI> poi = new ArrayList<>();
-    protected List<Memo> memo;
+    @JsonIgnore
+    protected final POIRecorder poi = new POIRecorder();
+    @JsonIgnore
+    protected volatile ConcurrentLinkedQueue<Memo> memo;
+    protected String route;
 
     // Session attributes
     protected Map<Object, Object> sessionAttributes;
@@ -133,19 +152,22 @@ public class ServiceContext {
         if (ctx != null && ctx.channel() != null) {
             this.localIP = ctx.channel().localAddress();
             this.remoteIP = ctx.channel().remoteAddress();
+            this.closeFuture = ctx.channel().closeFuture();
         } else {
             this.localIP = null;
             this.remoteIP = null;
+            this.closeFuture = null;
         }
         this.txId = txId;
         this.hit = hit;
         this.startTs = startTs;
         this.startDateTime = OffsetDateTime.ofInstant(java.time.Instant.ofEpochMilli(startTs), java.time.ZoneId.systemDefault());
+        this.startNanos = System.nanoTime() - (System.currentTimeMillis() - startTs) * 1_000_000L;// startTs is taken before queuing
         this.requestHeaders = requestHeaders;
         this.requesMethod = requesMethod;
         this.requesURI = requesURI;
         this.requestBody = requestBody;
-        poi.add(new POI(BootPOI.SERVICE_BEGIN));
+        poi.record(POIRecorder.id(BootPOI.SERVICE_BEGIN), startNanos);
     }
 
 //    public void clear() {
@@ -233,12 +255,79 @@ public class ServiceContext {
         return startDateTime;
     }
 
+    /**
+     * @return the epoch milliseconds after which nobody waits for the result
+     * any more, 0 if there is no deadline
+     */
+    public long deadline() {
+        return deadlineTs;
+    }
+
+    /**
+     * @param deadlineTs epoch milliseconds, 0 to remove the deadline
+     * @return current ServiceContext instance
+     */
+    public ServiceContext deadline(long deadlineTs) {
+        this.deadlineTs = Math.max(0, deadlineTs);
+        return this;
+    }
+
+    /**
+     * Tighten the deadline to the given budget counted from the start of this
+     * request, an earlier deadline is kept
+     *
+     * @param timeoutMs
+     * @return current ServiceContext instance
+     */
+    public ServiceContext deadlineAfterStart(long timeoutMs) {
+        if (timeoutMs > 0) {
+            long ts = startTs + timeoutMs;
+            if (deadlineTs == 0 || ts < deadlineTs) {
+                deadlineTs = ts;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return milliseconds left before the deadline, 0 if already passed,
+     * Long.MAX_VALUE if there is no deadline
+     */
+    public long remainingMs() {
+        long ts = deadlineTs;
+        return ts == 0 ? Long.MAX_VALUE : Math.max(0, ts - System.currentTimeMillis());
+    }
+
+    public boolean isDeadlineExceeded() {
+        long ts = deadlineTs;
+        return ts != 0 && System.currentTimeMillis() >= ts;
+    }
+
+    /**
+     * @param timeoutMs the configured timeout of an outbound call, 0 or less
+     *                  if not configured
+     * @return the configured timeout capped by the time left before the
+     * deadline, 0 or less if neither applies
+     */
+    public long timeoutMs(long timeoutMs) {
+        long remaining = remainingMs();
+        if (remaining == Long.MAX_VALUE) {
+            return timeoutMs;
+        }
+        return timeoutMs > 0 ? Math.min(timeoutMs, remaining) : remaining;
+    }
+
     public ServiceContext resetResponseData() {
         // 1. data
         txt = "";
         file = null;
         redirect = null;
         data = null;
+        if (stream != null) {
+            stream.close();// release DB cursor
+            stream = null;
+        }
+        sseSubscription = null;
 
         // 2. error
         serviceError = null;
@@ -430,6 +519,7 @@ public class ServiceContext {
         this.redirect = redirect;
         this.txt = null;
         this.file = null;
+        this.stream = null;
         this.status = status;
         responseHeader(HttpHeaderNames.LOCATION.toString(), redirect);
         return this;
@@ -455,6 +545,50 @@ public class ServiceContext {
         return this;
     }
 
+    public ChunkedResponseStream stream() {
+        return stream;
+    }
+
+    /**
+     * Send the response body as chunked transfer-encoding, the body will be
+     * produced and written after the controller returns
+     *
+     * @param stream
+     * @return
+     */
+    public ServiceContext stream(ChunkedResponseStream stream) {
+        this.stream = stream;
+        if (stream != null) {
+            this.txt = null;
+            this.file = null;
+            this.redirect = null;
+            this.contentType = stream.contentType();
+        }
+        return this;
+    }
+
+    public SseBroadcaster.Subscription sseSubscription() {
+        return sseSubscription;
+    }
+
+    /**
+     * Keep the connection open as a Server-Sent Events stream subscribed to
+     * the given topics
+     *
+     * @param sseSubscription
+     * @return
+     */
+    public ServiceContext sseSubscription(SseBroadcaster.Subscription sseSubscription) {
+        this.sseSubscription = sseSubscription;
+        if (sseSubscription != null) {
+            this.txt = null;
+            this.file = null;
+            this.redirect = null;
+            this.contentType = SseBroadcaster.CONTENT_TYPE;
+        }
+        return this;
+    }
+
     //@JsonInclude(JsonInclude.Include.NON_NULL)
     public File file() {
         return file;
@@ -601,6 +735,7 @@ public class ServiceContext {
         }
         this.txt = null;
         this.redirect = null;
+        this.stream = null;
         this.file = file;
         this.contentType = NioHttpUtil.getFileContentType(file);
 //        if (!downloadMode) {
@@ -652,6 +787,11 @@ public class ServiceContext {
             //2. set content and contentType
             if (ret instanceof String) {
                 this.txt((String) ret);
+            } else if (ChunkedResponseStream.isStreamable(ret)) {
+                ChunkedResponseStream.Format format = clientAcceptContentType != null && clientAcceptContentType.contains(ChunkedResponseStream.APPLICATION_NDJSON)
+                        ? ChunkedResponseStream.Format.NDJSON
+                        : ChunkedResponseStream.Format.JSON_ARRAY;
+                this.stream(ChunkedResponseStream.of(ret, format));
             } else {
                 switch (responseContentType) {
                     case MediaType.APPLICATION_JSON:
@@ -750,7 +890,7 @@ public class ServiceContext {
      * @param error
      * @return
      */
-    public ServiceContext error(Err error) {
+    public synchronized ServiceContext error(Err error) {
         if (serviceError == null) {
             serviceError = new ServiceError(txId);
         }
@@ -775,7 +915,7 @@ public class ServiceContext {
      * @param es
      * @return
      */
-    public ServiceContext errors(Collection<Err> es) {
+    public synchronized ServiceContext errors(Collection<Err> es) {
         if (es == null || es.isEmpty()) {
             if (serviceError != null && serviceError.getErrors() != null) {
                 serviceError.getErrors().clear();
@@ -877,36 +1017,137 @@ public class ServiceContext {
         return logResponseBody;
     }
 
+    /**
+     * lock-free and thread-safe, i.e. called from parallel async RPC callbacks
+     *
+     * @param marker
+     * @return
+     */
     public ServiceContext poi(String marker) {
-//        if (poi == null) {
-//            //poi = new LinkedHashMap();
-//            poi = new ArrayList();
-//        }
-        //poi.put(marker, System.currentTimeMillis());
-        poi.add(new POI(marker));
+        poi.record(POIRecorder.id(marker), System.nanoTime());
         return this;
     }
 
+    /**
+     * @return a snapshot of the POIs recorded so far
+     */
     //@JsonInclude(JsonInclude.Include.NON_NULL)
+    @JsonProperty("poi")
     public List<POI> poi() {
-        return poi;
+        List<POI> ret = new ArrayList<>(poi.size());
+        poi.forEach((marker, nanoTime) -> ret.add(new POI(marker, startTs + (nanoTime - startNanos) / 1_000_000L, nanoTime - startNanos)));
+        return ret;
+    }
+
+    /**
+     * visits the POIs recorded so far in the order they were recorded
+     *
+     * @param visitor receives the marker and the nanoseconds elapsed since the
+     *                start of this request
+     */
+    public void forEachPOI(POIRecorder.Visitor visitor) {
+        poi.forEach((marker, nanoTime) -> visitor.visit(marker, nanoTime - startNanos));
+    }
+
+    /**
+     * @return the declared path of the matched controller action, i.e.
+     * "GET /api/v1/users/{id}", null if no action matched
+     */
+    public String route() {
+        return route;
+    }
+
+    public ServiceContext route(String route) {
+        this.route = route;
+        return this;
     }
 
     public ServiceContext memo(String desc) {
         return this.memo(null, desc);
     }
 
+    /**
+     * lock-free and thread-safe, i.e. called from parallel async RPC callbacks
+     *
+     * @param id
+     * @param desc
+     * @return
+     */
     public ServiceContext memo(String id, String desc) {
-        if (memo == null) {
-            memo = new ArrayList();
-        }
-        memo.add(new Memo(id, desc));
+        memoQueue().add(new Memo(id, desc));
+        return this;
+    }
+
+    /**
+     * Same as {@link #memo(java.lang.String, java.lang.String)}, but the
+     * description is only built when the memo is reported or read via
+     * {@link #memo()}, i.e. when the request is logged
+     *
+     * @param id
+     * @param desc
+     * @return
+     */
+    public ServiceContext memo(String id, Supplier<?> desc) {
+        memoQueue().add(new LazyMemo(id, desc));
         return this;
     }
 
+    protected ConcurrentLinkedQueue<Memo> memoQueue() {
+        ConcurrentLinkedQueue<Memo> ret = memo;
+        if (ret == null) {
+            synchronized (this) {
+                ret = memo;
+                if (ret == null) {
+                    ret = new ConcurrentLinkedQueue<>();
+                    memo = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return a snapshot of the memos recorded so far with their descriptions
+     * built, null if none
+     */
     //@JsonInclude(JsonInclude.Include.NON_NULL)
+    @JsonProperty("memo")
     public List<Memo> memo() {
-        return memo;
+        ConcurrentLinkedQueue<Memo> m = memo;
+        if (m == null) {
+            return null;
+        }
+        List<Memo> ret = new ArrayList<>();
+        for (Memo e : m) {
+            ret.add(e instanceof LazyMemo lazy ? lazy.resolve() : e);
+        }
+        return ret;
+    }
+
+    /**
+     * @return true if the client closed the connection before the response
+     * was sent
+     */
+    public boolean isAbandoned() {
+        return closeFuture != null && closeFuture.isDone();
+    }
+
+    /**
+     * Cancels the future when the client closes the connection before it
+     * completes, so no more work is done for a response nobody will read.
+     *
+     * @param <T>
+     * @param future i.e. an async RPC call
+     * @return the future
+     */
+    public <T> CompletableFuture<T> cancelOnAbandoned(CompletableFuture<T> future) {
+        if (closeFuture == null || future.isDone()) {
+            return future;
+        }
+        ChannelFutureListener onClose = f -> future.cancel(true);
+        closeFuture.addListener(onClose);
+        future.whenComplete((r, ex) -> closeFuture.removeListener(onClose));// keep-alive connections serve many requests
+        return future;
     }
 
     public boolean autoConvertBlank200To204() {
@@ -916,10 +1157,20 @@ public class ServiceContext {
     public static class POI {
 
         public final String name;
-        public final long ts = System.currentTimeMillis();
+        public final long ts;
+        /**
+         * nanoseconds since the start of the request, -1 if unknown
+         */
+        public final long elapsedNanos;
 
         public POI(String name) {
+            this(name, System.currentTimeMillis(), -1);
+        }
+
+        public POI(String name, long ts, long elapsedNanos) {
             this.name = name;
+            this.ts = ts;
+            this.elapsedNanos = elapsedNanos;
         }
     }
 
@@ -933,6 +1184,52 @@ public class ServiceContext {
             this.desc = desc;
         }
 
+        /**
+         * @return the description
+         */
+        @JsonProperty("desc")
+        public String desc() {
+            return desc;
+        }
+    }
+
+    /**
+     * A memo whose description is built once, on the first call of
+     * {@link #resolve()} or {@link #desc()}. Only kept in the memo queue, its
+     * desc field is null, {@link #memo()} hands out the resolved memo instead
+     */
+    protected static class LazyMemo extends Memo {
+
+        protected Supplier<?> lazyDesc;
+        protected volatile Memo resolved;
+
+        protected LazyMemo(String id, Supplier<?> lazyDesc) {
+            super(id, null);
+            this.lazyDesc = lazyDesc;
+        }
+
+        /**
+         * @return a memo with the same id and the built description
+         */
+        protected Memo resolve() {
+            Memo ret = resolved;
+            if (ret == null) {
+                synchronized (this) {
+                    ret = resolved;
+                    if (ret == null) {
+                        ret = new Memo(id, String.valueOf(lazyDesc.get()));
+                        resolved = ret;
+                        lazyDesc = null;
+                    }
+                }
+            }
+            return ret;
+        }
+
+        @Override
+        public String desc() {
+            return resolve().desc;
+        }
     }
 
     public StringBuilder report() {
@@ -980,18 +1277,19 @@ public class ServiceContext {
     }
 
     public ServiceContext reportMemo(StringBuilder sb) {
-        if (memo == null || memo.isEmpty()) {
+        ConcurrentLinkedQueue<Memo> m = memo;
+        if (m == null || m.isEmpty()) {
             //sb.append("\n\tMemo: n/a");
             return this;
         }
         sb.append("\n\n\tMemo: ");
-        memo.forEach((m) -> {
-            if (m.id == null || m.id.isEmpty()) {
-                sb.append("\n\t\t").append(m.desc);
+        for (Memo e : m) {
+            if (e.id == null || e.id.isEmpty()) {
+                sb.append("\n\t\t").append(e.desc());
             } else {
-                sb.append("\n\t\t").append(m.id).append(BootConstant.MEMO_DELIMITER).append(m.desc);
+                sb.append("\n\t\t").append(e.id).append(BootConstant.MEMO_DELIMITER).append(e.desc());
             }
-        });
+        }
         return this;
     }
 
@@ -1000,7 +1298,7 @@ public class ServiceContext {
     }
 
     public ServiceContext reportPOI(NioConfig cfg, StringBuilder sb) {
-        if (poi == null || poi.isEmpty()) {
+        if (poi.size() == 0) {
             sb.append("\n\tPOI: n/a");
             return this;
         }
@@ -1008,20 +1306,31 @@ public class ServiceContext {
         sb.append("\n\tPOI.t0=").append(startDateTime).append(" ");
         switch (filterType) {
             case all:
-                poi.forEach((p) -> {
-                    sb.append(p.name).append("=").append(p.ts - startTs).append("ms, ");
-                });
+                forEachPOI((marker, elapsedNanos) -> appendPOI(sb, marker, elapsedNanos));
                 break;
             case filter:
                 Set<String> poiSet = cfg.getFilterPOISet();
-                poi.stream().filter((p) -> (poiSet.contains(p.name))).forEachOrdered((p) -> {
-                    sb.append(p.name).append("=").append(p.ts - startTs).append("ms, ");
+                forEachPOI((marker, elapsedNanos) -> {
+                    if (poiSet.contains(marker)) {
+                        appendPOI(sb, marker, elapsedNanos);
+                    }
                 });
                 break;
             case ignore:
                 sb.append("off");
                 break;
         }
+        if (poi.dropped() > 0) {
+            sb.append("dropped=").append(poi.dropped());
+        }
         return this;
     }
+
+    /**
+     * appends "marker=12ms, ", whole milliseconds as before nanoTime was used
+     * so log parsers keep working
+     */
+    protected static void appendPOI(StringBuilder sb, String marker, long elapsedNanos) {
+        sb.append(marker).append("=").append(TimeUnit.NANOSECONDS.toMillis(Math.max(0, elapsedNanos))).append("ms, ");
+    }
 }
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.nio.server.ws.rs;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.summerboot.jexpress.boot.BackOffice;
+import org.summerboot.jexpress.boot.annotation.ResponseCache;
+import org.summerboot.jexpress.nio.server.NioConfig;
+import org.summerboot.jexpress.nio.server.domain.ServiceContext;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte bounded LRU store for {@link ResponseCache} methods.
+ * <p>
+ * The keys are spread over lock-striped segments, each one an access ordered
+ * LinkedHashMap evicting its least recently used entries once its share of
+ * nio.server.ResponseCache.MaxBytes is exceeded. A tag index maps each tag to
+ * the keys of its entries, and every invalidation bumps an epoch so that a
+ * response computed before the invalidation is never stored after it.
+ * Set-Cookie and the other per-caller response headers are never stored.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class HttpResponseCache {
+
+    protected static final Logger log = LogManager.getLogger(HttpResponseCache.class.getName());
+
+    protected static final int SEGMENTS = 16;// power of 2
+    protected static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    protected static final Segment[] segments = new Segment[SEGMENTS];
+    protected static final Map<String, Set<String>> tagIndex = new ConcurrentHashMap<>();
+    protected static final AtomicLong epoch = new AtomicLong(0);
+
+    protected static final LongAdder COUNTER_HIT = new LongAdder();
+    protected static final LongAdder COUNTER_STALE_HIT = new LongAdder();
+    protected static final LongAdder COUNTER_MISS = new LongAdder();
+    protected static final LongAdder COUNTER_EVICTION = new LongAdder();
+    protected static final LongAdder COUNTER_REFRESH_FAILURE = new LongAdder();
+
+    static {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Invokes the cached method with a new context to refresh a stale entry
+     */
+    @FunctionalInterface
+    public interface Loader {
+
+        Object load(ServiceContext context) throws Throwable;
+    }
+
+    protected static class Entry {
+
+        protected final String key;
+        protected final RequestCoalescer.SharedResponse response;
+        protected final String[] tags;
+        protected final long bytes;
+        protected final long storedAt;
+        protected final long freshUntil;
+        protected final long staleUntil;
+        protected final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        protected Entry(String key, RequestCoalescer.SharedResponse response, ResponseCache policy, long bytes, long now) {
+            this.key = key;
+            this.response = response;
+            this.tags = policy.tags();
+            this.bytes = bytes;
+            this.storedAt = now;
+            this.freshUntil = now + policy.ttlSec() * 1000;
+            this.staleUntil = freshUntil + policy.staleWhileRevalidateSec() * 1000;
+        }
+
+        protected boolean isFresh(long now) {
+            return now < freshUntil;
+        }
+
+        protected Object copyTo(ServiceContext context, long now) {
+            Object ret = response.copyTo(context);
+            context.responseHeader(HttpHeaderNames.AGE.toString(), (now - storedAt) / 1000);
+            return ret;
+        }
+    }
+
+    protected static class Segment extends LinkedHashMap<String, Entry> {
+
+        protected long bytes;
+
+        protected Segment() {
+            super(16, 0.75f, true);
+        }
+    }
+
+    protected static Segment segment(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    /**
+     * @param key
+     * @return the fresh or stale-while-revalidate entry, null if not cached
+     */
+    protected static Entry get(String key) {
+        long now = System.currentTimeMillis();
+        Segment segment = segment(key);
+        Entry e;
+        Entry expired = null;
+        synchronized (segment) {
+            e = segment.get(key);
+            if (e != null && now >= e.staleUntil) {
+                segment.remove(key);
+                segment.bytes -= e.bytes;
+                expired = e;
+                e = null;
+            }
+        }
+        if (expired != null) {
+            untag(expired);
+        }
+        if (e == null) {
+            COUNTER_MISS.increment();
+        } else if (e.isFresh(now)) {
+            COUNTER_HIT.increment();
+        } else {
+            COUNTER_STALE_HIT.increment();
+        }
+        return e;
+    }
+
+    /**
+     * @return the current invalidation epoch, to be passed to
+     * {@link #put(String, Object, ServiceContext, ResponseCache, long)} by a
+     * caller about to compute a response
+     */
+    protected static long epoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Stores the response of the context if it is cacheable
+     *
+     * @param key
+     * @param ret the return value of the method
+     * @param context
+     * @param policy
+     * @param startEpoch {@link #epoch()} before the response was computed
+     */
+    protected static void put(String key, Object ret, ServiceContext context, ResponseCache policy, long startEpoch) {
+        RequestCoalescer.SharedResponse response = RequestCoalescer.SharedResponse.of(ret, context);
+        if (response == null || epoch.get() != startEpoch) {
+            return;
+        }
+        long bytes = sizeOf(key, response);
+        long maxSegmentBytes = NioConfig.cfg.getResponseCacheMaxBytes() / SEGMENTS;
+        if (bytes > policy.maxEntryBytes() || bytes > maxSegmentBytes) {
+            return;
+        }
+        Entry e = new Entry(key, response, policy, bytes, System.currentTimeMillis());
+        Segment segment = segment(key);
+        Entry old;
+        synchronized (segment) {
+            old = segment.put(key, e);
+            if (old != null) {
+                segment.bytes -= old.bytes;
+            }
+            segment.bytes += bytes;
+            Iterator<Entry> it = segment.values().iterator();
+            while (segment.bytes > maxSegmentBytes && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                segment.bytes -= eldest.bytes;
+                untag(eldest);
+                COUNTER_EVICTION.increment();
+            }
+        }
+        if (old != null) {
+            untag(old);
+        }
+        for (String tag : e.tags) {
+            tagIndex.compute(tag, (k, keys) -> {
+                if (keys == null) {
+                    keys = ConcurrentHashMap.newKeySet();
+                }
+                keys.add(key);
+                return keys;
+            });
+        }
+        // an invalidation raced with this put and may have missed the tags above
+        if (epoch.get() != startEpoch) {
+            remove(key);
+        }
+    }
+
+    protected static long sizeOf(String key, RequestCoalescer.SharedResponse response) {
+        long ret = ENTRY_OVERHEAD_BYTES + 2L * key.length();
+        if (response.txt != null) {
+            ret += 2L * response.txt.length();
+        }
+        if (response.data != null) {
+            ret += response.data.length;
+        }
+        if (response.responseHeaders != null) {
+            for (Map.Entry<String, String> h : response.responseHeaders) {
+                ret += 2L * (h.getKey().length() + h.getValue().length());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * removes the key of the entry from the tag index, and the tags left
+     * without keys
+     *
+     * @param e
+     */
+    protected static void untag(Entry e) {
+        for (String tag : e.tags) {
+            tagIndex.computeIfPresent(tag, (k, keys) -> {
+                keys.remove(e.key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    protected static void remove(String key) {
+        Segment segment = segment(key);
+        Entry e;
+        synchronized (segment) {
+            e = segment.remove(key);
+            if (e != null) {
+                segment.bytes -= e.bytes;
+            }
+        }
+        if (e != null) {
+            untag(e);
+        }
+    }
+
+    /**
+     * Refreshes a stale entry on the BackOffice executor, at most one refresh
+     * per entry at a time; the stale entry is kept when the refresh fails
+     *
+     * @param stale
+     * @param policy
+     * @param refreshContext a new context of the same caller and request
+     * @param loader
+     */
+    protected static void refreshAsync(Entry stale, ResponseCache policy, ServiceContext refreshContext, Loader loader) {
+        if (!stale.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        long startEpoch = epoch.get();
+        try {
+            BackOffice.execute(() -> {
+                try {
+                    Object ret = loader.load(refreshContext);
+                    put(stale.key, ret, refreshContext, policy, startEpoch);
+                    if (refreshContext.hasError()) {
+                        COUNTER_REFRESH_FAILURE.increment();
+                    }
+                } catch (Throwable ex) {
+                    COUNTER_REFRESH_FAILURE.increment();
+                    log.warn(() -> "failed to refresh " + stale.key + ": " + ex);
+                } finally {
+                    stale.refreshing.set(false);
+                }
+            });
+        } catch (RuntimeException ex) {
+            stale.refreshing.set(false);
+            log.warn(() -> "failed to schedule refresh of " + stale.key + ": " + ex);
+        }
+    }
+
+    /**
+     * Removes all cached responses of the tag
+     *
+     * @param tag
+     * @return number of responses removed
+     */
+    public static int invalidateTag(String tag) {
+        epoch.incrementAndGet();
+        Set<String> keys = tagIndex.remove(tag);
+        if (keys == null) {
+            return 0;
+        }
+        for (String key : keys) {
+            remove(key);
+        }
+        return keys.size();
+    }
+
+    /**
+     * Removes all cached responses
+     */
+    public static void invalidateAll() {
+        epoch.incrementAndGet();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+                segment.bytes = 0;
+            }
+        }
+        tagIndex.clear();
+    }
+
+    public static long getSize() {
+        long ret = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                ret += segment.size();
+            }
+        }
+        return ret;
+    }
+
+    public static long getBytes() {
+        long ret = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                ret += segment.bytes;
+            }
+        }
+        return ret;
+    }
+
+    public static long getHitCount() {
+        return COUNTER_HIT.sum();
+    }
+
+    public static long getStaleHitCount() {
+        return COUNTER_STALE_HIT.sum();
+    }
+
+    public static long getMissCount() {
+        return COUNTER_MISS.sum();
+    }
+
+    public static long getEvictionCount() {
+        return COUNTER_EVICTION.sum();
+    }
+
+    public static long getRefreshFailureCount() {
+        return COUNTER_REFRESH_FAILURE.sum();
+    }
+}
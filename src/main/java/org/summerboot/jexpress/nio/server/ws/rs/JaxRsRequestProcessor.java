@@ -16,6 +16,8 @@
 package org.summerboot.jexpress.nio.server.ws.rs;
 
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -30,10 +32,16 @@ import org.apache.commons.lang3.StringUtils;
 import org.summerboot.jexpress.boot.BootErrorCode;
 import org.summerboot.jexpress.boot.BootPOI;
 import org.summerboot.jexpress.boot.annotation.Controller;
+import org.summerboot.jexpress.boot.annotation.Coalesce;
 import org.summerboot.jexpress.boot.annotation.Deamon;
 import org.summerboot.jexpress.boot.annotation.Log;
+import org.summerboot.jexpress.boot.annotation.ResponseCache;
+import org.summerboot.jexpress.boot.annotation.SSE;
 import org.summerboot.jexpress.boot.instrumentation.HealthMonitor;
+import org.summerboot.jexpress.nio.server.ChunkedResponseStream;
+import org.summerboot.jexpress.nio.server.NioConfig;
 import org.summerboot.jexpress.nio.server.RequestProcessor;
+import org.summerboot.jexpress.nio.server.SseBroadcaster;
 import org.summerboot.jexpress.nio.server.domain.Err;
 import org.summerboot.jexpress.nio.server.domain.ProcessorSettings;
 import org.summerboot.jexpress.nio.server.domain.ServiceContext;
@@ -53,6 +61,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 
 /**
@@ -74,6 +83,9 @@ public class JaxRsRequestProcessor implements RequestProcessor {
     protected final Log classLevelLogAnnotation;
     protected final boolean rejectWhenPaused;
     protected final boolean rejectWhenHealthCheckFailed;
+    protected final SSE sse;
+    protected final Coalesce coalesce;
+    protected final ResponseCache responseCache;
 
     //param info    
     protected final List<JaxRsRequestParameter> parameterList;
@@ -84,6 +96,7 @@ public class JaxRsRequestProcessor implements RequestProcessor {
     protected final Pattern regexPattern;
     protected final int parameterSize;
     public static final List<String> SupportedProducesWithReturnType = Arrays.asList(MediaType.APPLICATION_JSON, MediaType.APPLICATION_JSON_PATCH_JSON, MediaType.APPLICATION_XML, MediaType.TEXT_XML, MediaType.TEXT_PLAIN, MediaType.TEXT_HTML);
+    public static final List<String> SupportedProducesWithStreamReturnType = Arrays.asList(MediaType.APPLICATION_JSON, ChunkedResponseStream.APPLICATION_NDJSON);
 
     //logging info
     protected final ProcessorSettings processorSettings;
@@ -116,6 +129,20 @@ public class JaxRsRequestProcessor implements RequestProcessor {
             rejectWhenHealthCheckFailed = true;
         }
 
+        // Server-Sent Events endpoint
+        sse = javaMethod.getAnnotation(SSE.class);
+        if (sse != null && !HttpMethod.GET.equals(httpMethod)) {
+            throw new UnsupportedOperationException("@" + SSE.class.getSimpleName() + " is only supported with @GET @ " + info);
+        }
+        coalesce = javaMethod.getAnnotation(Coalesce.class);
+        if (coalesce != null && (!HttpMethod.GET.equals(httpMethod) || sse != null)) {
+            throw new UnsupportedOperationException("@" + Coalesce.class.getSimpleName() + " is only supported with @GET and not with @" + SSE.class.getSimpleName() + " @ " + info);
+        }
+        responseCache = javaMethod.getAnnotation(ResponseCache.class);
+        if (responseCache != null && (!HttpMethod.GET.equals(httpMethod) && !HttpMethod.HEAD.equals(httpMethod) || sse != null)) {
+            throw new UnsupportedOperationException("@" + ResponseCache.class.getSimpleName() + " is only supported with @GET/@HEAD and not with @" + SSE.class.getSimpleName() + " @ " + info);
+        }
+
         //2. Parse @RolesAllowed, @PermitAll and @DenyAll - Method level preprocess - Authoritarian - Role based 
         RolesAllowed rolesAllowedAnnotation = javaMethod.getAnnotation(RolesAllowed.class);
         PermitAll permitAllAnnotation = javaMethod.getAnnotation(PermitAll.class);
@@ -195,7 +222,13 @@ public class JaxRsRequestProcessor implements RequestProcessor {
             produce_DefaultType = null;
         } else {
             Class retType = javaMethod.getReturnType();
-            if (retType != null && !retType.equals(String.class) && !retType.equals(File.class)) {
+            if (ChunkedResponseStream.isStreamable(retType)) {
+                List<String> filter = new ArrayList<>(temp);
+                filter.removeAll(SupportedProducesWithStreamReturnType);
+                if (!filter.isEmpty()) {
+                    throw new UnsupportedOperationException("\n\t@Produces(" + filter + ") is not supported with return type(" + retType + ") @ " + info + ", supported @Produces values with stream return type are: " + SupportedProducesWithStreamReturnType);
+                }
+            } else if (retType != null && !retType.equals(String.class) && !retType.equals(File.class)) {
                 List<String> filter = new ArrayList<>(temp);
                 filter.removeAll(SupportedProducesWithReturnType);
                 if (!filter.isEmpty()) {
@@ -394,6 +427,62 @@ public class JaxRsRequestProcessor implements RequestProcessor {
 
     @Override
     public Object process(final ChannelHandlerContext channelHandlerCtx, final HttpHeaders httpHeaders, final String httpRequestPath, final Map<String, List<String>> queryParams, final String httpPostRequestBody, final ServiceContext context) throws Throwable {
+        if (responseCache == null) {
+            return processCoalesced(channelHandlerCtx, httpHeaders, httpRequestPath, queryParams, httpPostRequestBody, context);
+        }
+        String key = RequestCoalescer.key(responseCache.headers(), responseCache.perTenant(), responseCache.perCaller(), context.method(), httpRequestPath, queryParams, httpHeaders, context.caller());
+        HttpResponseCache.Entry cached = HttpResponseCache.get(key);
+        if (cached != null) {
+            long now = System.currentTimeMillis();
+            if (cached.isFresh(now)) {
+                context.memo("cache", "hit");
+            } else {
+                context.memo("cache", "stale");
+                // stale-while-revalidate: refresh with a copy of this request, as the original one is released once responded
+                HttpHeaders refreshHeaders = new DefaultHttpHeaders().set(httpHeaders);
+                ServiceContext refreshContext = ServiceContext.build(channelHandlerCtx, context.txId() + "-refresh", context.hit(), now, refreshHeaders, context.method(), context.uri(), null)
+                        .responseHeaders(NioConfig.cfg.getServerDefaultResponseHeaders())
+                        .clientAcceptContentType(refreshHeaders.get(HttpHeaderNames.ACCEPT))
+                        .caller(context.caller());
+                HttpResponseCache.refreshAsync(cached, responseCache, refreshContext,
+                        c -> doProcess(channelHandlerCtx, refreshHeaders, httpRequestPath, queryParams, null, c));
+            }
+            return cached.copyTo(context, now);
+        }
+        context.memo("cache", "miss");
+        long epoch = HttpResponseCache.epoch();
+        Object ret = processCoalesced(channelHandlerCtx, httpHeaders, httpRequestPath, queryParams, httpPostRequestBody, context);
+        HttpResponseCache.put(key, ret, context, responseCache, epoch);
+        return ret;
+    }
+
+    protected Object processCoalesced(final ChannelHandlerContext channelHandlerCtx, final HttpHeaders httpHeaders, final String httpRequestPath, final Map<String, List<String>> queryParams, final String httpPostRequestBody, final ServiceContext context) throws Throwable {
+        if (coalesce == null) {
+            return doProcess(channelHandlerCtx, httpHeaders, httpRequestPath, queryParams, httpPostRequestBody, context);
+        }
+        // single-flight: identical concurrent requests share the leader's response
+        String key = RequestCoalescer.key(coalesce, context.method(), httpRequestPath, queryParams, httpHeaders, context.caller());
+        CompletableFuture<RequestCoalescer.SharedResponse> leader = new CompletableFuture<>();
+        CompletableFuture<RequestCoalescer.SharedResponse> flight = RequestCoalescer.join(key, leader);
+        if (flight != null) {
+            RequestCoalescer.SharedResponse shared = RequestCoalescer.await(flight, coalesce.waitTimeoutMs());
+            if (shared != null) {
+                context.memo("coalesced", key);
+                return shared.copyTo(context);
+            }
+            return doProcess(channelHandlerCtx, httpHeaders, httpRequestPath, queryParams, httpPostRequestBody, context);
+        }
+        RequestCoalescer.SharedResponse shared = null;
+        try {
+            Object ret = doProcess(channelHandlerCtx, httpHeaders, httpRequestPath, queryParams, httpPostRequestBody, context);
+            shared = RequestCoalescer.SharedResponse.of(ret, context);
+            return ret;
+        } finally {
+            RequestCoalescer.complete(key, leader, shared);
+        }
+    }
+
+    protected Object doProcess(final ChannelHandlerContext channelHandlerCtx, final HttpHeaders httpHeaders, final String httpRequestPath, final Map<String, List<String>> queryParams, final String httpPostRequestBody, final ServiceContext context) throws Throwable {
         //2. invoke
         Object ret;
         Object[] paramValues = new Object[parameterSize];
@@ -427,6 +516,10 @@ public class JaxRsRequestProcessor implements RequestProcessor {
         }
 
         //3. process return object
+        if (sse != null && ret != null && !context.hasError()) {
+            context.sseSubscription(SseBroadcaster.Subscription.of(ret, httpHeaders.get(SseBroadcaster.HEADER_LAST_EVENT_ID), sse));
+            return ret;
+        }
         if (ret != null) {
             if (ret instanceof File) {
                 context.file((File) ret, true);
@@ -468,6 +561,17 @@ public class JaxRsRequestProcessor implements RequestProcessor {
                 //2. set content and contentType
                 if (ret instanceof String) {
                     context.txt((String) ret);
+                } else if (ChunkedResponseStream.isStreamable(ret)) {
+                    // large result set: serialize item by item as chunked NDJSON or JSON array
+                    if (produces == null && context.clientAcceptContentType() != null && context.clientAcceptContentType().contains(ChunkedResponseStream.APPLICATION_NDJSON)) {
+                        responseContentType = ChunkedResponseStream.APPLICATION_NDJSON;
+                    }
+                    if (ChunkedResponseStream.APPLICATION_NDJSON.equals(responseContentType)) {
+                        context.stream(ChunkedResponseStream.of(ret, ChunkedResponseStream.Format.NDJSON));
+                    } else {
+                        responseContentType = MediaType.APPLICATION_JSON;
+                        context.stream(ChunkedResponseStream.of(ret, ChunkedResponseStream.Format.JSON_ARRAY));
+                    }
                 } else {
                     switch (responseContentType) {
                         case MediaType.APPLICATION_JSON:
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.nio.server.ws.rs;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.summerboot.jexpress.boot.annotation.Coalesce;
+import org.summerboot.jexpress.nio.server.domain.ServiceContext;
+import org.summerboot.jexpress.security.auth.Caller;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-flight registry for {@link Coalesce} methods
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RequestCoalescer {
+
+    protected static final Map<String, CompletableFuture<SharedResponse>> inFlight = new ConcurrentHashMap<>();
+
+    protected static final AtomicLong COUNTER_LEADER = new AtomicLong(0);
+    protected static final AtomicLong COUNTER_COALESCED = new AtomicLong(0);
+    protected static final AtomicLong COUNTER_FALLBACK = new AtomicLong(0);
+
+    /**
+     * Immutable copy of a leader's response, without the response headers
+     * that belong to the leader's caller only
+     */
+    protected static class SharedResponse {
+
+        /**
+         * never stored or replayed to another request
+         */
+        protected static final CharSequence[] PER_CALLER_HEADERS = {HttpHeaderNames.SET_COOKIE, HttpHeaderNames.SET_COOKIE2, "Authentication-Info", "Proxy-Authentication-Info"};
+
+        protected final Object ret;
+        protected final HttpResponseStatus status;
+        protected final String txt;
+        protected final byte[] data;
+        protected final String contentType;
+        protected final String charsetName;
+        protected final HttpHeaders responseHeaders;
+
+        protected SharedResponse(Object ret, ServiceContext context) {
+            this.ret = ret;
+            this.status = context.status();
+            this.txt = context.txt();
+            this.data = context.data() == null ? null : context.data().clone();
+            this.contentType = context.contentType();
+            this.charsetName = context.charsetName();
+            HttpHeaders h = context.responseHeaders() == null ? null : new DefaultHttpHeaders().set(context.responseHeaders());
+            if (h != null) {
+                for (CharSequence name : PER_CALLER_HEADERS) {
+                    h.remove(name);
+                }
+            }
+            this.responseHeaders = h;
+        }
+
+        /**
+         * @return null if the response of the context cannot be shared
+         */
+        protected static SharedResponse of(Object ret, ServiceContext context) {
+            if (context.hasError() || context.status().code() >= 300
+                    || context.file() != null || context.stream() != null || context.sseSubscription() != null || context.redirect() != null) {
+                return null;
+            }
+            return new SharedResponse(ret, context);
+        }
+
+        protected Object copyTo(ServiceContext context) {
+            context.status(status)
+                    .txt(txt)
+                    .contentType(contentType)
+                    .responseHeaders(responseHeaders);
+            if (data != null) {
+                context.data(data.clone());
+            }
+            if (charsetName != null) {
+                context.charsetName(charsetName);
+            }
+            return ret;
+        }
+    }
+
+    public static String key(Coalesce coalesce, HttpMethod httpMethod, String httpRequestPath, Map<String, List<String>> queryParams, HttpHeaders httpHeaders, Caller caller) {
+        return key(coalesce.headers(), coalesce.perTenant(), coalesce.perCaller(), httpMethod, httpRequestPath, queryParams, httpHeaders, caller);
+    }
+
+    /**
+     * @param varyHeaders request headers that make a difference to the
+     * response, in addition to Accept
+     * @param perTenant
+     * @param perCaller
+     * @param httpMethod      i.e. a HEAD response has no body, never serve it
+     *                        to a GET
+     * @param httpRequestPath
+     * @param queryParams
+     * @param httpHeaders
+     * @param caller
+     * @return the identity of a request with the same response, every
+     * component is length-prefixed so that no two different requests share a
+     * key whatever their values contain
+     */
+    public static String key(String[] varyHeaders, boolean perTenant, boolean perCaller, HttpMethod httpMethod, String httpRequestPath, Map<String, List<String>> queryParams, HttpHeaders httpHeaders, Caller caller) {
+        StringBuilder sb = new StringBuilder();
+        append(sb, httpMethod.name());
+        append(sb, httpRequestPath);
+        if (queryParams == null || queryParams.isEmpty()) {
+            sb.append("0#");
+        } else {
+            sb.append(queryParams.size()).append('#');
+            for (Map.Entry<String, List<String>> param : new TreeMap<>(queryParams).entrySet()) {
+                append(sb, param.getKey());
+                append(sb, param.getValue());
+            }
+        }
+        append(sb, httpHeaders.getAll(HttpHeaderNames.ACCEPT));
+        sb.append(varyHeaders.length).append('#');
+        for (String header : varyHeaders) {
+            append(sb, header);
+            append(sb, httpHeaders.getAll(header));
+        }
+        if (perTenant) {
+            sb.append('t');
+            append(sb, caller == null ? null : Objects.toString(caller.getTenantId(), null));
+        }
+        if (perCaller) {
+            sb.append('c');
+            append(sb, caller == null ? null : Objects.toString(caller.getId(), null));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param sb
+     * @param s appended as length:value, null as -1:
+     */
+    protected static void append(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("-1:");
+        } else {
+            sb.append(s.length()).append(':').append(s);
+        }
+    }
+
+    /**
+     * @param sb
+     * @param values appended as count#, then each value length-prefixed
+     */
+    protected static void append(StringBuilder sb, List<String> values) {
+        if (values == null) {
+            sb.append("-1#");
+            return;
+        }
+        sb.append(values.size()).append('#');
+        for (String v : values) {
+            append(sb, v);
+        }
+    }
+
+    /**
+     * @param key
+     * @param leader the future to complete by the caller when this returns
+     * null
+     * @return the in-flight future of an identical request, or null if the
+     * caller becomes the leader
+     */
+    protected static CompletableFuture<SharedResponse> join(String key, CompletableFuture<SharedResponse> leader) {
+        CompletableFuture<SharedResponse> ret = inFlight.putIfAbsent(key, leader);
+        if (ret == null) {
+            COUNTER_LEADER.incrementAndGet();
+        }
+        return ret;
+    }
+
+    protected static void complete(String key, CompletableFuture<SharedResponse> leader, SharedResponse response) {
+        inFlight.remove(key, leader);
+        leader.complete(response);
+    }
+
+    /**
+     * @return the leader's response, or null if the caller should process
+     * the request by itself
+     */
+    protected static SharedResponse await(CompletableFuture<SharedResponse> flight, long timeoutMs) throws InterruptedException {
+        SharedResponse ret = null;
+        try {
+            ret = flight.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException ex) {
+        }
+        if (ret == null) {
+            COUNTER_FALLBACK.incrementAndGet();
+        } else {
+            COUNTER_COALESCED.incrementAndGet();
+        }
+        return ret;
+    }
+
+    public static int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public static long getLeaderCount() {
+        return COUNTER_LEADER.get();
+    }
+
+    public static long getCoalescedCount() {
+        return COUNTER_COALESCED.get();
+    }
+
+    public static long getFallbackCount() {
+        return COUNTER_FALLBACK.get();
+    }
+}
@@ -188,6 +188,14 @@ public class AuthConfig extends BootConfig {
     @Config(key = "jwt.issuer")
     protected volatile String jwtIssuer;
 
+    @Config(key = "jwt.verifiedCache.maxSize", defaultValue = "100000",
+            desc = "max number of verified tokens cached to skip signature verification of a reused token, 0 to disable")
+    protected volatile long jwtVerifiedCacheMaxSize = 100000;
+
+    @Config(key = "jwt.verifiedCache.maxTtlSec", defaultValue = "300",
+            desc = "a verified token is cached until its exp, but not longer than this")
+    protected volatile long jwtVerifiedCacheMaxTtlSec = 300;
+
     //3. Role mapping
     @ConfigHeader(title = "3. Role mapping",
             desc = "Map the role (defined as @RolesAllowed({\"AppAdmin\"})) with user group (no matter the group is defined in LDAP or DB)",
@@ -351,6 +359,14 @@ public class AuthConfig extends BootConfig {
         return jwtTTLMinutes;
     }
 
+    public long getJwtVerifiedCacheMaxSize() {
+        return jwtVerifiedCacheMaxSize;
+    }
+
+    public long getJwtVerifiedCacheMaxTtlSec() {
+        return jwtVerifiedCacheMaxTtlSec;
+    }
+
     public RoleMapping getRole(String role) {
         return roles.get(role);
     }
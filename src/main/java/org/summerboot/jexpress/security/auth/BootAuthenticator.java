@@ -67,6 +67,25 @@ public abstract class BootAuthenticator<E> implements Authenticator<E>, ServerIn
     @Inject
     protected AuthTokenCache authTokenCache;
 
+    protected volatile VerifiedTokenCache verifiedTokenCache;
+
+    /**
+     * @return null if disabled by jwt.verifiedCache.maxSize=0
+     */
+    protected VerifiedTokenCache verifiedTokenCache() {
+        VerifiedTokenCache ret = verifiedTokenCache;
+        if (ret == null && AuthConfig.cfg.getJwtVerifiedCacheMaxSize() > 0) {
+            synchronized (this) {
+                ret = verifiedTokenCache;
+                if (ret == null) {
+                    ret = new VerifiedTokenCache(AuthConfig.cfg.getJwtVerifiedCacheMaxSize(), AuthConfig.cfg.getJwtVerifiedCacheMaxTtlSec() * 1000);
+                    verifiedTokenCache = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
     /**
      * @param username
      * @param pwd
@@ -190,7 +209,8 @@ public abstract class BootAuthenticator<E> implements Authenticator<E>, ServerIn
 
     /**
      * Convert Caller back from auth token, override this method to implement
-     * customized token format
+     * customized token format. The result is cached and shared by all requests
+     * with the same token (see jwt.verifiedCache.maxSize), treat it as read-only
      *
      * @param claims
      * @return Caller
@@ -319,8 +339,19 @@ public abstract class BootAuthenticator<E> implements Authenticator<E>, ServerIn
             context.error(e).status(HttpResponseStatus.UNAUTHORIZED);
         } else {
             try {
-                Claims claims = parseJWT(authToken);
-                String jti = claims.getId();
+                // skip signature verification for a token verified before
+                JwtParser jwtParser = AuthConfig.cfg.getJwtParser();
+                VerifiedTokenCache vtc = verifiedTokenCache();
+                VerifiedTokenCache.VerifiedToken verified = vtc == null ? null : vtc.get(authToken, jwtParser);
+                Claims claims;
+                String jti;
+                if (verified != null) {
+                    claims = verified.claims();
+                    jti = verified.jti();
+                } else {
+                    claims = parseJWT(authToken);
+                    jti = claims.getId();
+                }
                 context.callerId(jti);
                 if (cache == null) {
                     cache = authTokenCache;
@@ -329,7 +360,10 @@ public abstract class BootAuthenticator<E> implements Authenticator<E>, ServerIn
                     Err e = new Err(errorCode != null ? errorCode : BootErrorCode.AUTH_EXPIRED_TOKEN, null, null, null, "AuthToken has been logout");
                     context.error(e).status(HttpResponseStatus.UNAUTHORIZED);
                 } else {
-                    caller = fromJwt(claims);
+                    caller = fromJwt(claims);// a new Caller per request, never shared
+                    if (vtc != null && verified == null) {
+                        vtc.put(authToken, jwtParser, claims);
+                    }
                 }
             } catch (ExpiredJwtException ex) {
                 Err e = new Err(errorCode != null ? errorCode : BootErrorCode.AUTH_EXPIRED_TOKEN, null, null, null, "Expired AuthToken: " + ex);
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.security.auth;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
+import org.summerboot.jexpress.integration.cache.SimpleLocalCacheImpl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+/**
+ * Cache of successfully verified JWTs, so that the signature is verified once
+ * per token per node instead of once per request. The cached (immutable)
+ * claims are turned into a new Caller on every hit, so a request changing its
+ * Caller does not affect other requests with the same token.
+ * <p>
+ * The key is the SHA-256 digest of the whole compact token (header, payload
+ * and signature), so any modified variant of a cached token is a miss and
+ * gets fully verified. An entry expires at the token's exp (or after
+ * jwt.verifiedCache.maxTtlSec, whichever is earlier), and is ignored after the
+ * JWT parser has been replaced by a config reload (i.e. key rotation).
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class VerifiedTokenCache {
+
+    protected static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    public static class VerifiedToken {
+
+        protected final String jti;
+        protected final Claims claims;
+        protected final JwtParser parser;
+        protected final long expireAtMillis;
+
+        protected VerifiedToken(String jti, Claims claims, JwtParser parser, long expireAtMillis) {
+            this.jti = jti;
+            this.claims = claims;
+            this.parser = parser;
+            this.expireAtMillis = expireAtMillis;
+        }
+
+        public String jti() {
+            return jti;
+        }
+
+        /**
+         * @return the verified claims, immutable
+         */
+        public Claims claims() {
+            return claims;
+        }
+    }
+
+    protected final SimpleLocalCacheImpl<String, VerifiedToken> cache;
+    protected final long maxTtlMillis;
+
+    public VerifiedTokenCache(long maxSize, long maxTtlMillis) {
+        this.cache = new SimpleLocalCacheImpl<>("VerifiedTokenCache", maxSize);
+        this.maxTtlMillis = maxTtlMillis;
+    }
+
+    protected static String digest(String token) {
+        byte[] hash = SHA256.get().digest(token.getBytes(StandardCharsets.UTF_8));
+        return new String(hash, StandardCharsets.ISO_8859_1);// 1 char per byte, compact and collision-free
+    }
+
+    /**
+     * @param token
+     * @param parser the current JWT parser
+     * @return null if not cached, expired or verified by another parser
+     */
+    public VerifiedToken get(String token, JwtParser parser) {
+        VerifiedToken ret = cache.get(digest(token));
+        if (ret == null || ret.parser != parser || ret.expireAtMillis <= System.currentTimeMillis()) {
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * @param token a successfully verified token
+     * @param parser the JWT parser which verified the token
+     * @param claims
+     */
+    public void put(String token, JwtParser parser, Claims claims) {
+        long now = System.currentTimeMillis();
+        long expireAtMillis = now + maxTtlMillis;
+        Date exp = claims.getExpiration();
+        if (exp != null && exp.getTime() < expireAtMillis) {
+            expireAtMillis = exp.getTime();
+        }
+        long ttl = expireAtMillis - now;
+        if (ttl <= 0) {
+            return;
+        }
+        cache.put(digest(token), new VerifiedToken(claims.getId(), claims, parser, expireAtMillis), ttl);
+    }
+
+    public void delete(String token) {
+        cache.delete(digest(token));
+    }
+}
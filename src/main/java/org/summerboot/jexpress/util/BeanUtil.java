@@ -16,12 +16,14 @@
 package org.summerboot.jexpress.util;
 
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
@@ -31,11 +33,15 @@ import jakarta.validation.Validation;
 import jakarta.validation.ValidatorFactory;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Array;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
@@ -50,6 +56,7 @@ public class BeanUtil {
             .setSerializationInclusion(Include.NON_NULL)
             .setSerializationInclusion(Include.NON_EMPTY);
     public static XmlMapper XMLMapper = new XmlMapper();
+    protected static final Map<Class<?>, ObjectWriter> JsonWriters = new ConcurrentHashMap<>();
 
     public static void update(ObjectMapper objectMapper, TimeZone timeZone, boolean isFromJsonFailOnUnknownProperties) {
         objectMapper.registerModules(new JavaTimeModule());
@@ -70,6 +77,7 @@ public class BeanUtil {
         update(JacksonMapper, timeZone, fromJsonFailOnUnknownProperties);
         update(JacksonMapperIgnoreNull, timeZone, fromJsonFailOnUnknownProperties);
         update(XMLMapper, timeZone, fromJsonFailOnUnknownProperties);
+        JsonWriters.clear();
     }
 
     static {
@@ -118,6 +126,51 @@ public class BeanUtil {
         }
     }
 
+    /**
+     * Serialization, write JSON bytes (UTF-8, not pretty) directly to the
+     * output stream without building an intermediate String, ignore
+     * null/empty based on the nio.JAX-RS.toJson.IgnoreNull setting
+     *
+     * @param <T>
+     * @param out the output stream will not be closed
+     * @param obj
+     * @throws IOException
+     */
+    public static <T extends Object> void toJson(OutputStream out, T obj) throws IOException {
+        if (obj == null) {
+            return;
+        }
+        ObjectMapper mapper = isToJsonIgnoreNull ? JacksonMapperIgnoreNull : JacksonMapper;
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            mapper.writeValue(generator, obj);
+        }
+    }
+
+    /**
+     * @param c
+     * @return a cached writer for the type, not pretty, ignore null/empty based
+     * on the nio.JAX-RS.toJson.IgnoreNull setting
+     */
+    public static ObjectWriter jsonWriterFor(Class<?> c) {
+        return JsonWriters.computeIfAbsent(c, k -> (isToJsonIgnoreNull ? JacksonMapperIgnoreNull : JacksonMapper).writerFor(k));
+    }
+
+    /**
+     * Serialization, convert to JSON bytes (UTF-8, not pretty) without
+     * building an intermediate String
+     *
+     * @param obj
+     * @return empty array if obj is null
+     * @throws JsonProcessingException
+     */
+    public static byte[] toJsonBytes(Object obj) throws JsonProcessingException {
+        if (obj == null) {
+            return new byte[0];
+        }
+        return jsonWriterFor(obj.getClass()).writeValueAsBytes(obj);
+    }
+
     /**
      * Deserialization , convert JSON string to object T
      *
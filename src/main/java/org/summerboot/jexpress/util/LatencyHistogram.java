@@ -0,0 +1,155 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram for online percentiles: every power of 2 is
+ * split into {@value #SUB_BUCKETS} buckets, so a percentile is at most 12.5%
+ * above the real value, with a fixed footprint of a few KB whatever the
+ * number of samples. Samples age out in two rotating windows: a percentile
+ * covers the current window plus the previous one.
+ * <p>
+ * The unit is the caller's, i.e. record microseconds and read percentiles in
+ * microseconds.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class LatencyHistogram {
+
+    protected static final int SUB_BUCKET_BITS = 3;
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    protected static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    protected static class Window {
+
+        protected final long start;
+        protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        protected final AtomicLong count = new AtomicLong();
+        protected final AtomicLong sum = new AtomicLong();
+        protected final AtomicLong max = new AtomicLong();
+
+        protected Window(long start) {
+            this.start = start;
+        }
+    }
+
+    protected final long windowMs;
+    protected volatile Window current;
+    protected volatile Window previous;
+
+    /**
+     * @param windowMs samples are kept for one to two windows
+     */
+    public LatencyHistogram(long windowMs) {
+        this.windowMs = windowMs;
+        long now = System.currentTimeMillis();
+        current = new Window(now);
+        previous = new Window(now);
+    }
+
+    protected static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param index
+     * @return the largest value of the bucket
+     */
+    protected static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    protected Window window() {
+        Window w = current;
+        long now = System.currentTimeMillis();
+        if (now - w.start >= windowMs) {
+            synchronized (this) {
+                w = current;
+                if (now - w.start >= windowMs) {
+                    // two windows idle: nothing recent left
+                    previous = now - w.start >= 2 * windowMs ? new Window(now) : w;
+                    w = new Window(now);
+                    current = w;
+                }
+            }
+        }
+        return w;
+    }
+
+    public void record(long value) {
+        Window w = window();
+        w.counts.incrementAndGet(index(value));
+        w.count.incrementAndGet();
+        w.sum.addAndGet(value);
+        w.max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return number of samples in the current and previous windows
+     */
+    public long getCount() {
+        Window w = window();
+        return w.count.get() + previous.count.get();
+    }
+
+    public double getMean() {
+        Window w = window();
+        Window p = previous;
+        long n = w.count.get() + p.count.get();
+        return n == 0 ? 0 : (double) (w.sum.get() + p.sum.get()) / n;
+    }
+
+    public long getMax() {
+        Window w = window();
+        return Math.max(w.max.get(), previous.max.get());
+    }
+
+    /**
+     * @param percentile 0 to 100, i.e. 99.9
+     * @return the upper bound of the bucket that holds the percentile, 0 if
+     * no samples
+     */
+    public long getPercentile(double percentile) {
+        Window w = window();
+        Window p = previous;
+        long total = w.count.get() + p.count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += w.counts.get(i) + p.counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.util.concurrent;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Consecutive-failure circuit breaker: after N failures in a row the circuit
+ * opens and calls fail fast; once the open period has elapsed a single probe
+ * call is let through, closing the circuit on success or reopening it on
+ * failure. The thresholds are read from suppliers on every decision so that
+ * config hot reload applies immediately.
+ * <pre>
+ * {@code
+ * if (!cb.tryAcquire()) {
+ *     throw new IOException("circuit open");
+ * }
+ * try {
+ *     call();
+ *     cb.onSuccess();
+ * } catch (IOException ex) {
+ *     cb.onFailure();
+ *     throw ex;
+ * }
+ * }
+ * </pre>
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class CircuitBreaker {
+
+    protected static final Logger log = LogManager.getLogger(CircuitBreaker.class.getName());
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public interface StateListener {
+
+        void onStateChange(CircuitBreaker circuitBreaker, State from, State to);
+    }
+
+    protected final String name;
+    protected final IntSupplier failureThreshold;
+    protected final LongSupplier openMs;
+
+    protected final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+    protected final AtomicBoolean probing = new AtomicBoolean(false);
+    protected volatile State state = State.CLOSED;
+    protected volatile long openedAt;
+    protected volatile StateListener stateListener;
+
+    protected final LongAdder rejectedCount = new LongAdder();
+    protected final LongAdder openCount = new LongAdder();
+
+    /**
+     * @param name             for logging
+     * @param failureThreshold consecutive failures to open the circuit, 0 to
+     *                         disable the breaker
+     * @param openMs           how long the circuit stays open before a probe
+     */
+    public CircuitBreaker(String name, IntSupplier failureThreshold, LongSupplier openMs) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+    }
+
+    public void setStateListener(StateListener stateListener) {
+        this.stateListener = stateListener;
+    }
+
+    protected void transition(State from, State to) {
+        state = to;
+        StateListener l = stateListener;
+        if (l != null && from != to) {
+            l.onStateChange(this, from, to);
+        }
+    }
+
+    /**
+     * @return true if the call is allowed, the caller must then report
+     * {@link #onSuccess()} or {@link #onFailure()}
+     */
+    public boolean tryAcquire() {
+        State s = state;
+        if (s == State.CLOSED) {
+            return true;
+        }
+        if (s == State.OPEN && System.currentTimeMillis() - openedAt >= openMs.getAsLong() && probing.compareAndSet(false, true)) {
+            transition(State.OPEN, State.HALF_OPEN);
+            return true;
+        }
+        rejectedCount.increment();
+        return false;
+    }
+
+    /**
+     * the remote side responded, including with a business error
+     */
+    public void onSuccess() {
+        consecutiveFailures.set(0);
+        close();
+    }
+
+    protected void close() {
+        State s = state;
+        if (s != State.CLOSED) {
+            transition(s, State.CLOSED);
+            probing.set(false);
+            log.info(() -> name + " circuit closed");
+        }
+    }
+
+    /**
+     * the remote side is not reachable
+     */
+    public void onFailure() {
+        int threshold = failureThreshold.getAsInt();
+        if (threshold < 1) {
+            return;
+        }
+        int failures = consecutiveFailures.incrementAndGet();
+        if (state == State.HALF_OPEN || state == State.CLOSED && failures >= threshold) {
+            open(failures + " consecutive failures");
+        }
+    }
+
+    protected void open(String reason) {
+        openedAt = System.currentTimeMillis();
+        State s = state;
+        transition(s, State.OPEN);
+        probing.set(false);
+        openCount.increment();
+        log.warn(() -> name + " circuit opened after " + reason + ", retry in " + openMs.getAsLong() + "ms");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public long getOpenCount() {
+        return openCount.sum();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.util.concurrent;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Caps retries to a percentage of the requests over the last
+ * {@value #WINDOW_SEC} seconds, plus a small allowance per second for low
+ * traffic, so retries cannot multiply the load on a partner that is already
+ * failing.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RetryBudget {
+
+    protected static final int WINDOW_SEC = 10;
+
+    protected final IntSupplier percent;
+    protected final IntSupplier minPerSec;
+
+    protected final long[] seconds = new long[WINDOW_SEC];
+    protected final int[] requests = new int[WINDOW_SEC];
+    protected final int[] retries = new int[WINDOW_SEC];
+
+    protected final LongAdder retryCount = new LongAdder();
+    protected final LongAdder exhaustedCount = new LongAdder();
+
+    /**
+     * @param percent   retries allowed as a percentage of requests
+     * @param minPerSec retries allowed per second regardless of traffic
+     */
+    public RetryBudget(IntSupplier percent, IntSupplier minPerSec) {
+        this.percent = percent;
+        this.minPerSec = minPerSec;
+    }
+
+    protected int bucket(long now) {
+        int i = (int) (now % WINDOW_SEC);
+        if (seconds[i] != now) {
+            seconds[i] = now;
+            requests[i] = retries[i] = 0;
+        }
+        return i;
+    }
+
+    /**
+     * an original request, not a retry
+     */
+    public synchronized void onRequest() {
+        requests[bucket(System.currentTimeMillis() / 1000)]++;
+    }
+
+    /**
+     * @return true if a retry is allowed and has been withdrawn from the budget
+     */
+    public boolean tryRetry() {
+        synchronized (this) {
+            long now = System.currentTimeMillis() / 1000;
+            int i = bucket(now);
+            long totalRequests = 0, totalRetries = 0;
+            for (int b = 0; b < WINDOW_SEC; b++) {
+                if (now - seconds[b] < WINDOW_SEC) {
+                    totalRequests += requests[b];
+                    totalRetries += retries[b];
+                }
+            }
+            long allowed = (long) minPerSec.getAsInt() * WINDOW_SEC + totalRequests * percent.getAsInt() / 100;
+            if (totalRetries < allowed) {
+                retries[i]++;
+                retryCount.increment();
+                return true;
+            }
+        }
+        exhaustedCount.increment();
+        return false;
+    }
+
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    /**
+     * @return retries refused because the budget was used up
+     */
+    public long getExhaustedCount() {
+        return exhaustedCount.sum();
+    }
+}
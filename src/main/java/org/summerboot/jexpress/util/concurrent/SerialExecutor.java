@@ -0,0 +1,115 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.util.concurrent;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the submitted tasks one at a time in submission order on a shared
+ * executor, so that tasks of the same key (i.e. one connection) are never
+ * executed concurrently or out of order, while tasks of different keys still
+ * run in parallel. No thread is bound to an idle SerialExecutor.
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class SerialExecutor implements Executor {
+
+    protected static final Logger log = LogManager.getLogger(SerialExecutor.class.getName());
+
+    protected final Executor delegate;
+    protected final int maxBatchSize;
+    protected final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    protected final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * @param delegate the shared executor
+     * @param maxBatchSize max tasks to run before yielding the delegate thread
+     * to other SerialExecutors
+     */
+    public SerialExecutor(Executor delegate, int maxBatchSize) {
+        this.delegate = delegate;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * @param task
+     * @throws RejectedExecutionException if the delegate rejects it, the task
+     * is then removed from the queue and will never run, so the caller still
+     * owns its resources. Not thrown when a running drain has already taken
+     * the task.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        try {
+            schedule();
+        } catch (RejectedExecutionException ex) {
+            if (tasks.remove(task)) {
+                throw ex;
+            }
+            log.debug(() -> "schedule rejected, task already taken by a running drain: " + ex);
+        }
+    }
+
+    public boolean isIdle() {
+        return tasks.isEmpty() && !scheduled.get();
+    }
+
+    protected void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                delegate.execute(this::drain);
+            } catch (RejectedExecutionException ex) {
+                scheduled.set(false);
+                throw ex;
+            }
+        }
+    }
+
+    protected void drain() {
+        while (true) {
+            try {
+                Runnable task;
+                for (int i = 0; i < maxBatchSize && (task = tasks.poll()) != null; i++) {
+                    try {
+                        task.run();
+                    } catch (Throwable ex) {
+                        log.error("serial task failed", ex);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            if (tasks.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                delegate.execute(this::drain);
+                return;
+            } catch (RejectedExecutionException ex) {
+                // keep draining on this thread rather than strand the queued tasks
+                log.debug(() -> "reschedule rejected, continue on current thread: " + ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker on the failure rate and the slow call rate over a sliding
+ * time window, for callers where occasional failures are normal and a slow
+ * partner must be isolated before it times out every call. The window is split
+ * into {@value #BUCKETS} buckets, so old calls age out gradually.
+ * <p>
+ * A permit carries the generation of the circuit state it was taken in, the
+ * outcome of a call started before the latest state change is ignored: only
+ * the probe admitted in HALF_OPEN decides whether the circuit closes.
+ * <pre>
+ * {@code
+ * long permit = cb.tryAcquirePermit();
+ * if (permit < 0) {
+ *     throw new IOException("circuit open");
+ * }
+ * long start = System.nanoTime();
+ * boolean failed = true;
+ * try {
+ *     call();
+ *     failed = false;
+ * } finally {
+ *     cb.record(permit, System.nanoTime() - start, failed);
+ * }
+ * }
+ * </pre>
+ *
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class SlidingWindowCircuitBreaker extends CircuitBreaker {
+
+    protected static final int BUCKETS = 10;
+
+    protected final IntSupplier failureRatePercent;
+    protected final IntSupplier slowCallRatePercent;
+    protected final LongSupplier slowCallMs;
+    protected final IntSupplier minCalls;
+    protected final LongSupplier windowMs;
+
+    protected final long[] bucketIds = new long[BUCKETS];
+    protected final int[] calls = new int[BUCKETS];
+    protected final int[] failures = new int[BUCKETS];
+    protected final int[] slowCalls = new int[BUCKETS];
+    protected final AtomicLong generation = new AtomicLong(0);
+
+    /**
+     * @param name                for logging
+     * @param failureRatePercent  failure rate in the window to open the
+     *                            circuit, 0 to ignore failures
+     * @param slowCallRatePercent slow call rate in the window to open the
+     *                            circuit, 0 to ignore latency
+     * @param slowCallMs          a call taking longer is slow
+     * @param minCalls            no decision until the window has as many
+     *                            calls
+     * @param windowMs            sliding window size
+     * @param openMs              how long the circuit stays open before a
+     *                            probe
+     */
+    public SlidingWindowCircuitBreaker(String name, IntSupplier failureRatePercent, IntSupplier slowCallRatePercent, LongSupplier slowCallMs,
+                                       IntSupplier minCalls, LongSupplier windowMs, LongSupplier openMs) {
+        super(name, () -> 0, openMs);
+        this.failureRatePercent = failureRatePercent;
+        this.slowCallRatePercent = slowCallRatePercent;
+        this.slowCallMs = slowCallMs;
+        this.minCalls = minCalls;
+        this.windowMs = windowMs;
+    }
+
+    @Override
+    protected void transition(State from, State to) {
+        generation.incrementAndGet();
+        super.transition(from, to);
+    }
+
+    /**
+     * @return the permit to pass to {@link #record(long, long, boolean)}, -1
+     * if the call is not allowed
+     */
+    public long tryAcquirePermit() {
+        return tryAcquire() ? generation.get() : -1;
+    }
+
+    @Override
+    public void onSuccess() {
+        record(0, false);
+    }
+
+    @Override
+    public void onFailure() {
+        record(0, true);
+    }
+
+    /**
+     * gives back a permit whose call was cancelled by the caller, the
+     * outcome says nothing about the remote side; a cancelled probe lets the
+     * next call probe again
+     *
+     * @param permit from {@link #tryAcquirePermit()}
+     */
+    public void cancel(long permit) {
+        if (permit == generation.get() && state == State.HALF_OPEN) {
+            transition(State.HALF_OPEN, State.OPEN);// openedAt unchanged, the open period is already over
+            probing.set(false);
+        }
+    }
+
+    /**
+     * records the outcome as of the current state
+     *
+     * @param latencyNanos
+     * @param failed       the remote side is not reachable or not healthy
+     */
+    public void record(long latencyNanos, boolean failed) {
+        record(generation.get(), latencyNanos, failed);
+    }
+
+    /**
+     * @param permit       from {@link #tryAcquirePermit()}, ignored if the
+     *                     state has changed since
+     * @param latencyNanos
+     * @param failed       the remote side is not reachable or not healthy
+     */
+    public void record(long permit, long latencyNanos, boolean failed) {
+        if (permit != generation.get()) {
+            return;// started before the latest state change, i.e. before the circuit opened
+        }
+        boolean slow = latencyNanos >= slowCallMs.getAsLong() * 1_000_000L;
+        if (state == State.HALF_OPEN) {
+            if (failed || slow && slowCallRatePercent.getAsInt() > 0) {
+                open("failed probe");
+            } else {
+                close();
+            }
+            return;
+        }
+        int failurePercent = failureRatePercent.getAsInt();
+        int slowPercent = slowCallRatePercent.getAsInt();
+        if (failurePercent < 1 && slowPercent < 1) {
+            return;
+        }
+        String reason = null;
+        synchronized (this) {
+            long bucketMs = Math.max(1, windowMs.getAsLong() / BUCKETS);
+            long bucketId = System.currentTimeMillis() / bucketMs;
+            int i = (int) (bucketId % BUCKETS);
+            if (bucketIds[i] != bucketId) {
+                bucketIds[i] = bucketId;
+                calls[i] = failures[i] = slowCalls[i] = 0;
+            }
+            calls[i]++;
+            if (failed) {
+                failures[i]++;
+            }
+            if (slow) {
+                slowCalls[i]++;
+            }
+            int totalCalls = 0, totalFailures = 0, totalSlowCalls = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                if (bucketId - bucketIds[b] < BUCKETS) {
+                    totalCalls += calls[b];
+                    totalFailures += failures[b];
+                    totalSlowCalls += slowCalls[b];
+                }
+            }
+            if (state == State.CLOSED && totalCalls >= Math.max(1, minCalls.getAsInt())) {
+                if (failurePercent > 0 && totalFailures * 100L >= (long) failurePercent * totalCalls) {
+                    reason = totalFailures + "/" + totalCalls + " failed calls";
+                } else if (slowPercent > 0 && totalSlowCalls * 100L >= (long) slowPercent * totalCalls) {
+                    reason = totalSlowCalls + "/" + totalCalls + " calls slower than " + slowCallMs.getAsLong() + "ms";
+                }
+                if (reason != null) {
+                    resetWindow();
+                }
+            }
+        }
+        if (reason != null) {
+            open(reason);
+        }
+    }
+
+    protected void resetWindow() {
+        for (int b = 0; b < BUCKETS; b++) {
+            bucketIds[b] = 0;
+            calls[b] = failures[b] = slowCalls[b] = 0;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.cache;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class BootCache_RedisImpleTest {
+
+    /**
+     * every command times out as if its reply was lost
+     */
+    protected static class TimeoutClient extends RedisAsyncClient {
+
+        protected final List<String> sent = new ArrayList<>();
+
+        protected TimeoutClient() {
+            super(() -> null, () -> null, 1000);
+        }
+
+        @Override
+        public synchronized CompletableFuture<Object> send(String... args) {
+            sent.add(args[0]);
+            return CompletableFuture.failedFuture(new TimeoutException());
+        }
+
+        protected synchronized List<String> sent() {
+            return new ArrayList<>(sent);
+        }
+    }
+
+    protected TimeoutClient client;
+    protected BootCache_RedisImple cache;
+
+    @BeforeClass
+    public void setUp() {
+        RedisConfig cfg = RedisConfig.cfg;
+        cfg.retryMaxAttempts = 3;
+        cfg.retryBaseDelayMs = 0;
+        cfg.retryMaxDelayMs = 0;
+        cfg.retryDeadlineMs = 10000;
+        cfg.circuitBreakerFailureThreshold = 0;
+        cfg.leaseFlashSaleBlockSize = 0;
+        client = new TimeoutClient();
+        cache = new BootCache_RedisImple() {
+            @Override
+            protected RedisAsyncClient asyncClient() {
+                return client;
+            }
+
+            @Override
+            protected void onRedisDown(Throwable ex) {
+            }
+        };
+    }
+
+    @AfterClass
+    public void tearDown() {
+        client.shutdown();
+    }
+
+    protected static void assertTimedOut(CompletableFuture<?> f) throws InterruptedException {
+        try {
+            f.get();
+            fail("expected a timeout");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException, String.valueOf(ex.getCause()));
+        }
+    }
+
+    @Test
+    public void testTimedOutEvalIsNotRetried() throws Exception {
+        int before = client.sent().size();
+        assertTimedOut(cache.flashsaleAcquireQuotaAsync("item1", 2));
+        assertEquals(client.sent().subList(before, client.sent().size()), List.of("EVAL"));
+    }
+
+    @Test
+    public void testTimedOutRevokeIsNotRetried() throws Exception {
+        int before = client.sent().size();
+        assertTimedOut(cache.flashsaleRevokeQuotaAsync("item1", 2));
+        assertEquals(client.sent().subList(before, client.sent().size()), List.of("HINCRBY"));
+    }
+
+    @Test
+    public void testTimedOutIdempotentReadIsRetried() throws Exception {
+        int before = client.sent().size();
+        assertTimedOut(cache.getAllAsync(List.of("k1", "k2")));
+        assertEquals(client.sent().subList(before, client.sent().size()), List.of("MGET", "MGET", "MGET"));
+    }
+}
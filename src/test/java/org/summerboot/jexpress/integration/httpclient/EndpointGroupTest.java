@@ -0,0 +1,87 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.httpclient;
+
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+/**
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class EndpointGroupTest {
+
+    protected static EndpointGroup p2c() {
+        EndpointGroup ret = new EndpointGroup("test", EndpointGroup.Discovery.STATIC,
+                List.of(URI.create("http://a.test:8080"), URI.create("http://b.test:8080")),
+                EndpointGroup.Strategy.P2C_EWMA, 0, 0, 0, 0, null, 0, 0);
+        ret.refresh();
+        assertEquals(ret.endpoints.size(), 2);
+        return ret;
+    }
+
+    /**
+     * selects many times, releasing each call without a sample so that the
+     * state under test stays the same
+     */
+    protected static void assertAlwaysSelected(EndpointGroup group, EndpointGroup.Endpoint expected) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            EndpointGroup.Endpoint e = group.select(null);
+            e.cancel();
+            assertSame(e, expected, "pick " + i);
+        }
+    }
+
+    @Test
+    public void testEndpointWithoutSampleAndOutstandingCallsLoses() throws Exception {
+        EndpointGroup group = p2c();
+        EndpointGroup.Endpoint fresh = group.endpoints.get(0);
+        EndpointGroup.Endpoint healthy = group.endpoints.get(1);
+        healthy.outstanding.incrementAndGet();
+        healthy.release(TimeUnit.MILLISECONDS.toNanos(10), false);
+        fresh.outstanding.addAndGet(3);// calls in flight, never completed
+        assertEquals(fresh.getEwmaMs(), 0.0);
+        assertAlwaysSelected(group, healthy);
+    }
+
+    @Test
+    public void testFailingEndpointLoses() throws Exception {
+        EndpointGroup group = p2c();
+        EndpointGroup.Endpoint failing = group.endpoints.get(0);
+        EndpointGroup.Endpoint healthy = group.endpoints.get(1);
+        healthy.outstanding.incrementAndGet();
+        healthy.release(TimeUnit.MILLISECONDS.toNanos(10), false);
+        // fails fast, i.e. connection refused
+        failing.outstanding.incrementAndGet();
+        failing.release(TimeUnit.MICROSECONDS.toNanos(100), true);
+        healthy.outstanding.addAndGet(2);
+        assertAlwaysSelected(group, healthy);
+    }
+
+    @Test
+    public void testWithoutSamplesFewerOutstandingWins() throws Exception {
+        EndpointGroup group = p2c();
+        EndpointGroup.Endpoint busy = group.endpoints.get(0);
+        EndpointGroup.Endpoint idle = group.endpoints.get(1);
+        busy.outstanding.addAndGet(2);
+        assertAlwaysSelected(group, idle);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.integration.httpclient;
+
+import org.testng.annotations.Test;
+
+import javax.net.ssl.SSLSession;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+
+/**
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RPCResponseCacheTest {
+
+    protected static RPCResponseCache cache() {
+        HttpClientConfig cfg = new HttpClientConfig() {
+        };
+        cfg.cacheMaxEntries = 10;
+        return new RPCResponseCache(cfg);
+    }
+
+    protected static HttpRequest request(String... headers) {
+        HttpRequest.Builder b = HttpRequest.newBuilder(URI.create("http://a.test/items")).GET();
+        return headers.length == 0 ? b.build() : b.headers(headers).build();
+    }
+
+    protected static HttpResponse<String> response(HttpRequest req, String cacheControl) {
+        HttpHeaders h = HttpHeaders.of(Map.of("Cache-Control", List.of(cacheControl)), (name, value) -> true);
+        return new HttpResponse<>() {
+            @Override
+            public int statusCode() {
+                return 200;
+            }
+
+            @Override
+            public HttpRequest request() {
+                return req;
+            }
+
+            @Override
+            public Optional<HttpResponse<String>> previousResponse() {
+                return Optional.empty();
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return h;
+            }
+
+            @Override
+            public String body() {
+                return "{\"id\":1}";
+            }
+
+            @Override
+            public Optional<SSLSession> sslSession() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI uri() {
+                return req.uri();
+            }
+
+            @Override
+            public HttpClient.Version version() {
+                return HttpClient.Version.HTTP_1_1;
+            }
+        };
+    }
+
+    @Test
+    public void testPrivateIsNotStored() {
+        RPCResponseCache cache = cache();
+        HttpRequest req = request();
+        assertNull(cache.put(req, response(req, "private, max-age=60")));
+        assertNull(cache.get(req));
+        assertNotNull(cache.put(req, response(req, "max-age=60")));
+    }
+
+    @Test
+    public void testAuthorizationNeedsPublicOrSMaxAge() {
+        RPCResponseCache cache = cache();
+        HttpRequest req = request("Authorization", "Bearer t");
+        assertNull(cache.put(req, response(req, "max-age=60")));
+        assertNotNull(cache.put(req, response(req, "public, max-age=60")));
+        assertNotNull(cache.put(req, response(req, "s-maxage=60")));
+    }
+
+    @Test
+    public void testEachHitGetsItsOwnCopy() throws Exception {
+        RPCResponseCache cache = cache();
+        HttpRequest req = request();
+        RPCResponseCache.Entry entry = cache.put(req, response(req, "max-age=60"));
+        Map<String, Object> first = entry.copyOf(RPCResult.DefaultJacksonMapper, Map.class);
+        Map<String, Object> second = entry.copyOf(RPCResult.DefaultJacksonMapper, Map.class);
+        assertEquals(first, Map.of("id", 1));
+        assertEquals(second, first);
+        assertNotSame(second, first);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2005-2022 Du Law Office - The Summer Boot Framework Project
+ *
+ * The Summer Boot Project licenses this file to you under the Apache License, version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License and you have no
+ * policy prohibiting employee contributions back to this file (unless the contributor to this
+ * file is your current or retired employee). You may obtain a copy of the License at:
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.summerboot.jexpress.nio.server.ws.rs;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+
+/**
+ * @author Changski Tie Zheng Zhang 张铁铮, 魏泽北, 杜旺财, 杜富贵
+ */
+public class RequestCoalescerTest {
+
+    protected static String key(Map<String, List<String>> queryParams, HttpHeaders headers, String... varyHeaders) {
+        return RequestCoalescer.key(varyHeaders, false, false, HttpMethod.GET, "/api/items", queryParams, headers, null);
+    }
+
+    @Test
+    public void testSameRequestSameKey() {
+        HttpHeaders headers = new DefaultHttpHeaders().set("Accept", "application/json");
+        assertEquals(key(Map.of("a", List.of("1"), "b", List.of("2")), headers),
+                key(Map.of("b", List.of("2"), "a", List.of("1")), headers));
+    }
+
+    @Test
+    public void testCollidingQueriesDifferentKeys() {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        // both were "{a=[1, 2]}" as TreeMap.toString()
+        assertNotEquals(key(Map.of("a", List.of("1, 2")), headers),
+                key(Map.of("a", List.of("1", "2")), headers));
+        // both were "{a=[1], b=[2]}"
+        assertNotEquals(key(Map.of("a", List.of("1], b=[2")), headers),
+                key(Map.of("a", List.of("1"), "b", List.of("2")), headers));
+    }
+
+    @Test
+    public void testCollidingVaryHeadersDifferentKeys() {
+        HttpHeaders h1 = new DefaultHttpHeaders().add("X-Lang", "en|X-Region=[ca]");
+        HttpHeaders h2 = new DefaultHttpHeaders().add("X-Lang", "en").add("X-Region", "ca");
+        assertNotEquals(key(null, h1, "X-Lang", "X-Region"), key(null, h2, "X-Lang", "X-Region"));
+    }
+}